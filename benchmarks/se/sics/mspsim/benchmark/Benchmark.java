@@ -0,0 +1,80 @@
+package se.sics.mspsim.benchmark;
+
+import se.sics.mspsim.config.MSP430f1611Config;
+import se.sics.mspsim.core.MSP430;
+import se.sics.mspsim.core.MSP430Constants;
+import se.sics.mspsim.util.ComponentRegistry;
+
+/**
+ * A benchmark run by BenchmarkRunner. setup() is called before every round
+ * and is not included in the measured time. run() executes the measured work
+ * and returns the number of operations performed, in the benchmark's unit.
+ */
+public abstract class Benchmark {
+
+    private final String suite;
+    private final String name;
+    private final String unit;
+
+    protected Benchmark(String suite, String name, String unit) {
+        this.suite = suite;
+        this.name = name;
+        this.unit = unit;
+    }
+
+    public String getSuite() {
+        return suite;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getUnit() {
+        return unit;
+    }
+
+    public void setup() throws Exception {
+    }
+
+    public abstract long run() throws Exception;
+
+    /**
+     * Creates a MSP430F1611 that stops the watchdog and enters LPM0 after
+     * reset. Used by benchmarks that only need time to pass and events
+     * to be executed.
+     */
+    protected static MSP430 createIdleCPU() {
+        MSP430 cpu = new MSP430(0, new ComponentRegistry(), new MSP430f1611Config());
+        int[] program = {
+                0x40b2, 0x5a80, 0x0120, /* mov #WDTPW|WDTHOLD, &WDTCTL */
+                0xd032, 0x0010,         /* bis #CPUOFF, SR */
+                0x3fff                  /* jmp $ */
+        };
+        int address = 0x4000;
+        for (int word : program) {
+            cpu.memory[address] = (byte) word;
+            cpu.memory[address + 1] = (byte) (word >> 8);
+            address += 2;
+        }
+        cpu.memory[0xfffe] = 0x00;
+        cpu.memory[0xffff] = 0x40;
+        cpu.reset();
+        /* The reset is done when the CPU starts and removes all scheduled events */
+        while ((cpu.reg[MSP430Constants.SR] & MSP430Constants.CPUOFF) == 0) {
+            cpu.emulateOP(-1);
+        }
+        return cpu;
+    }
+
+    /**
+     * Emulates the specified number of cycles.
+     */
+    protected static void advance(MSP430 cpu, long cycles) {
+        long target = cpu.cycles + cycles;
+        while (cpu.cycles < target) {
+            cpu.emulateOP(target);
+        }
+    }
+
+}
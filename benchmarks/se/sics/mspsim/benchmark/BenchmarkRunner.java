@@ -0,0 +1,187 @@
+package se.sics.mspsim.benchmark;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import se.sics.json.JSONArray;
+import se.sics.json.JSONObject;
+import se.sics.mspsim.core.MSP430Constants;
+
+/**
+ * Runs the benchmark suites and writes the results as JSON so that they can
+ * be compared between versions.
+ *
+ * Usage: BenchmarkRunner [-warmup N] [-rounds N] [-filter text] [-label text] [resultfile]
+ */
+public class BenchmarkRunner {
+
+    private int warmupRounds = 2;
+    private int rounds = 5;
+    private String filter;
+    private String label;
+
+    private static ArrayList<Benchmark> createBenchmarks() {
+        ArrayList<Benchmark> benchmarks = new ArrayList<Benchmark>();
+        benchmarks.add(new FirmwareBenchmark("cputest", "firmware/sky/cputest.sky", false));
+        benchmarks.add(new FirmwareBenchmark("cputest-translated", "firmware/sky/cputest.sky", true));
+        benchmarks.add(new FirmwareBenchmark("timertest", "firmware/sky/timertest.sky", false));
+        benchmarks.add(new FirmwareBenchmark("timertest-translated", "firmware/sky/timertest.sky", true));
+        benchmarks.add(new ProfilerBenchmark("cputest-simple", "firmware/sky/cputest.sky", false));
+        benchmarks.add(new ProfilerBenchmark("cputest-array", "firmware/sky/cputest.sky", true));
+        for (int size : new int[] { 10, 100, 1000 }) {
+            benchmarks.add(new EventQueueChurn(size));
+        }
+        for (int size : new int[] { 10, 100 }) {
+            benchmarks.add(new EventSchedulingBenchmark(size));
+        }
+        benchmarks.add(MemoryBenchmark.ram());
+        benchmarks.add(MemoryBenchmark.flash());
+        benchmarks.add(MemoryBenchmark.io());
+        benchmarks.add(MemoryBenchmark.watched());
+        benchmarks.add(new RadioLoopbackBenchmark());
+        benchmarks.add(new RadioMediumBenchmark(100, false));
+        benchmarks.add(new RadioMediumBenchmark(1000, false));
+        benchmarks.add(new RadioMediumBenchmark(1000, true));
+        benchmarks.add(new EmuLinkBenchmark("json-messages", "firmware/sky/blink.sky", 1, false));
+        benchmarks.add(new EmuLinkBenchmark("binary-messages", "firmware/sky/blink.sky", 1, true));
+        benchmarks.add(new EmuLinkBenchmark("json-nodes", "firmware/sky/blink.sky", 16, false));
+        benchmarks.add(new EmuLinkBenchmark("binary-nodes", "firmware/sky/blink.sky", 16, true));
+        benchmarks.add(new NetworkBenchmark("loopback-frames", false, false));
+        benchmarks.add(new NetworkBenchmark("loopback-pingpong", false, true));
+        benchmarks.add(new NetworkBenchmark("tcp-frames", true, false));
+        benchmarks.add(new NetworkBenchmark("tcp-pingpong", true, true));
+        benchmarks.add(new SerialBenchmark("output-direct", true, false));
+        benchmarks.add(new SerialBenchmark("output-channel", true, true));
+        benchmarks.add(new SerialBenchmark("input-per-byte", false, false));
+        benchmarks.add(new SerialBenchmark("input-channel", false, true));
+        return benchmarks;
+    }
+
+    /* The event queue without the CPU core */
+    private static class EventQueueChurn extends Benchmark {
+        private static final int OPERATIONS = 2000000;
+        private final int size;
+
+        EventQueueChurn(int size) {
+            super("events", "eventqueue-" + size, "operations");
+            this.size = size;
+        }
+
+        @Override
+        public long run() {
+            MemoryBenchmark.sink += (int) EventQueueBenchmark.runEventQueue(size, OPERATIONS);
+            return OPERATIONS;
+        }
+    }
+
+    private JSONObject measure(Benchmark benchmark) throws Exception {
+        double[] results = new double[rounds];
+        for (int round = -warmupRounds; round < rounds; round++) {
+            benchmark.setup();
+            long start = System.nanoTime();
+            long operations = benchmark.run();
+            long time = System.nanoTime() - start;
+            if (round >= 0) {
+                results[round] = operations * 1e9 / time;
+            }
+        }
+
+        JSONArray values = new JSONArray();
+        double sum = 0;
+        for (double r : results) {
+            values.add(r);
+            sum += r;
+        }
+        double[] sorted = results.clone();
+        Arrays.sort(sorted);
+
+        JSONObject result = new JSONObject();
+        result.put("suite", benchmark.getSuite());
+        result.put("name", benchmark.getName());
+        result.put("unit", benchmark.getUnit() + "/s");
+        result.put("best", sorted[sorted.length - 1]);
+        result.put("median", sorted[sorted.length / 2]);
+        result.put("mean", sum / results.length);
+        result.put("rounds", values);
+        return result;
+    }
+
+    private JSONObject runAll() throws Exception {
+        JSONArray results = new JSONArray();
+        System.out.printf("%-8s %-22s %16s %16s  %s\n", "suite", "benchmark", "best", "median", "unit");
+        for (Benchmark benchmark : createBenchmarks()) {
+            String id = benchmark.getSuite() + "." + benchmark.getName();
+            if (filter != null && !id.contains(filter)) {
+                continue;
+            }
+            JSONObject result = measure(benchmark);
+            System.out.printf("%-8s %-22s %16.0f %16.0f  %s\n", benchmark.getSuite(), benchmark.getName(),
+                    (Double) result.get("best"), (Double) result.get("median"), result.get("unit"));
+            results.add(result);
+        }
+
+        JSONObject report = new JSONObject();
+        report.put("mspsim", MSP430Constants.VERSION);
+        if (label != null) {
+            report.put("label", label);
+        }
+        report.put("java", System.getProperty("java.version"));
+        report.put("vm", System.getProperty("java.vm.name"));
+        report.put("timestamp", System.currentTimeMillis());
+        report.put("warmup", warmupRounds);
+        report.put("benchmarks", results);
+        return report;
+    }
+
+    private static void usage() {
+        System.err.println("Usage: BenchmarkRunner [-warmup N] [-rounds N] [-filter text] [-label text] [resultfile]");
+        System.exit(1);
+    }
+
+    public static void main(String[] args) throws Exception {
+        BenchmarkRunner runner = new BenchmarkRunner();
+        String resultFile = null;
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.startsWith("-") && i + 1 >= args.length) {
+                usage();
+            }
+            if ("-warmup".equals(arg)) {
+                runner.warmupRounds = Integer.parseInt(args[++i]);
+            } else if ("-rounds".equals(arg)) {
+                runner.rounds = Integer.parseInt(args[++i]);
+            } else if ("-filter".equals(arg)) {
+                runner.filter = args[++i];
+            } else if ("-label".equals(arg)) {
+                runner.label = args[++i];
+            } else if (arg.startsWith("-") || resultFile != null) {
+                usage();
+            } else {
+                resultFile = arg;
+            }
+        }
+        if (runner.rounds < 1) {
+            usage();
+        }
+
+        JSONObject report = runner.runAll();
+        if (resultFile != null) {
+            File file = new File(resultFile);
+            if (file.getParentFile() != null) {
+                file.getParentFile().mkdirs();
+            }
+            try (Writer out = new FileWriter(file)) {
+                report.writeJSONString(out);
+                out.write('\n');
+            } catch (IOException e) {
+                System.err.println("Failed to write " + resultFile + ": " + e);
+                System.exit(1);
+            }
+            System.out.println("Results written to " + resultFile);
+        }
+    }
+
+}
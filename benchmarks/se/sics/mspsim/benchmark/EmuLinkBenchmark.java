@@ -0,0 +1,126 @@
+package se.sics.mspsim.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import se.sics.mspsim.emulink.EmuLink;
+
+/**
+ * Measures the emulation link by stepping nodes with a stream of step
+ * messages in either the JSON or the binary protocol. Each message steps
+ * all nodes one millisecond. The messages are prepared during setup so
+ * that only the parsing, the stepping and the replies are measured. The
+ * result is in messages, or in node steps when several nodes are used.
+ */
+public class EmuLinkBenchmark extends Benchmark {
+
+    private static final int MESSAGES = 2000;
+    private static final long STEP_MICROS = 1000;
+
+    private final String firmware;
+    private final int nodeCount;
+    private final boolean binary;
+    private EmuLink link;
+    private long micros;
+    private byte[] messages;
+
+    public EmuLinkBenchmark(String name, String firmware, int nodeCount, boolean binary) {
+        super("emulink", name, nodeCount == 1 ? "messages" : "nodes");
+        this.firmware = firmware;
+        this.nodeCount = nodeCount;
+        this.binary = binary;
+    }
+
+    @Override
+    public void setup() throws Exception {
+        if (link == null) {
+            link = new EmuLink();
+            link.handleConnection(new ByteArrayInputStream(binary ? createBinaryNodes() : createJSONNodes()),
+                    OutputStream.nullOutputStream());
+            if (link.getNodeCount() != nodeCount) {
+                throw new IllegalStateException("failed to create the nodes");
+            }
+        }
+        messages = binary ? createBinarySteps() : createJSONSteps();
+    }
+
+    private byte[] createJSONNodes() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"event\":\"create\",\"type\":\"sky\",\"node\":[");
+        for (int i = 0; i < nodeCount; i++) {
+            sb.append(i > 0 ? ",\"" : "\"").append(i).append('"');
+        }
+        sb.append("]}{\"event\":\"write\",\"file\":\"").append(firmware).append("\",\"node\":[");
+        for (int i = 0; i < nodeCount; i++) {
+            sb.append(i > 0 ? ",\"" : "\"").append(i).append('"');
+        }
+        sb.append("]}");
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private byte[] createJSONSteps() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < MESSAGES; i++) {
+            sb.append("{\"event\":\"emulation_control\",\"data\":\"start\",\"etime\":").append(STEP_MICROS).append('}');
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private byte[] createBinaryNodes() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(EmuLink.BINARY_MAGIC);
+
+        ByteArrayOutputStream message = new ByteArrayOutputStream();
+        DataOutputStream m = new DataOutputStream(message);
+        m.writeByte(EmuLink.MSG_CREATE);
+        m.writeUTF("sky");
+        m.writeInt(nodeCount);
+        for (int i = 0; i < nodeCount; i++) {
+            m.writeUTF(Integer.toString(i));
+        }
+        writeMessage(out, message);
+
+        m.writeByte(EmuLink.MSG_WRITE);
+        m.writeUTF(firmware);
+        m.writeInt(nodeCount);
+        for (int i = 0; i < nodeCount; i++) {
+            m.writeInt(i);
+        }
+        writeMessage(out, message);
+        return bytes.toByteArray();
+    }
+
+    private byte[] createBinarySteps() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(EmuLink.BINARY_MAGIC);
+        ByteArrayOutputStream message = new ByteArrayOutputStream();
+        DataOutputStream m = new DataOutputStream(message);
+        for (int i = 0; i < MESSAGES; i++) {
+            micros += STEP_MICROS;
+            m.writeByte(EmuLink.MSG_STEP);
+            m.writeLong(micros);
+            m.writeInt(-1);
+            writeMessage(out, message);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writeMessage(DataOutputStream out, ByteArrayOutputStream message) throws IOException {
+        out.writeInt(message.size());
+        message.writeTo(out);
+        message.reset();
+    }
+
+    @Override
+    public long run() throws Exception {
+        link.handleConnection(new ByteArrayInputStream(messages), OutputStream.nullOutputStream());
+        return (long) MESSAGES * nodeCount;
+    }
+
+}
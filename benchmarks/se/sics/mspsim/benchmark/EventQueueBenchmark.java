@@ -0,0 +1,181 @@
+package se.sics.mspsim.benchmark;
+
+import se.sics.mspsim.core.EventQueue;
+import se.sics.mspsim.core.TimeEvent;
+
+/**
+ * Compares the event queue with the sorted linked list it replaced. Each
+ * operation executes the first event and reschedules it, like a timer, and
+ * reschedules one other pending event, like a peripheral changing its
+ * next deadline.
+ */
+public class EventQueueBenchmark {
+
+    private static final int[] SIZES = { 10, 100, 1000 };
+    private static final int OPERATIONS = 2000000;
+    private static final int ROUNDS = 5;
+
+    /* The previous EventQueue implementation: a list sorted on insert */
+    static class LinkedListEventQueue {
+
+        static class Event {
+            Event nextEvent;
+            LinkedListEventQueue scheduledIn;
+            long time;
+        }
+
+        private Event first;
+        long nextTime;
+        int eventCount;
+
+        void addEvent(Event event, long time) {
+            if (event.scheduledIn != null) {
+                removeEvent(event);
+            }
+            event.time = time;
+            if (first == null) {
+                first = event;
+            } else {
+                Event pos = first;
+                Event lastPos = first;
+                while (pos != null && pos.time < event.time) {
+                    lastPos = pos;
+                    pos = pos.nextEvent;
+                }
+                if (pos == first) {
+                    event.nextEvent = pos;
+                    first = event;
+                } else {
+                    event.nextEvent = pos;
+                    lastPos.nextEvent = event;
+                }
+            }
+            nextTime = first.time;
+            event.scheduledIn = this;
+            eventCount++;
+        }
+
+        boolean removeEvent(Event event) {
+            Event pos = first;
+            Event lastPos = first;
+            while (pos != null && pos != event) {
+                lastPos = pos;
+                pos = pos.nextEvent;
+            }
+            if (pos == null) return false;
+            if (pos == first) {
+                first = pos.nextEvent;
+            } else {
+                lastPos.nextEvent = pos.nextEvent;
+            }
+            pos.nextEvent = null;
+            nextTime = first != null ? first.time : 0;
+            event.scheduledIn = null;
+            eventCount--;
+            return true;
+        }
+
+        Event popFirst() {
+            Event tmp = first;
+            if (tmp != null) {
+                first = tmp.nextEvent;
+                tmp.nextEvent = null;
+                tmp.scheduledIn = null;
+                eventCount--;
+            }
+            nextTime = first != null ? first.time : 0;
+            return tmp;
+        }
+    }
+
+    static class BenchmarkEvent extends TimeEvent {
+        BenchmarkEvent() {
+            super(0, "benchmark");
+        }
+        public void execute(long t) {
+        }
+    }
+
+    /* Pseudo random deltas - the same sequence for both implementations */
+    private static long seed;
+
+    /* The sum of the executed event times, printed with the results */
+    private static long checksum;
+
+    private static int nextDelta(int max) {
+        seed ^= seed << 13;
+        seed ^= seed >>> 7;
+        seed ^= seed << 17;
+        return 1 + (int) ((seed >>> 1) % max);
+    }
+
+    static long runEventQueue(int size, int operations) {
+        EventQueue queue = new EventQueue();
+        BenchmarkEvent[] events = new BenchmarkEvent[size];
+        seed = 0x2545F4914F6CDD1DL;
+        int range = size * 8;
+        for (int i = 0; i < size; i++) {
+            events[i] = new BenchmarkEvent();
+            queue.addEvent(events[i], nextDelta(range));
+        }
+        long checksum = 0;
+        for (int i = 0; i < operations; i++) {
+            long now = queue.nextTime;
+            TimeEvent first = queue.popFirst();
+            queue.addEvent(first, now + nextDelta(range));
+            BenchmarkEvent other = events[nextDelta(size) - 1];
+            queue.addEvent(other, now + nextDelta(range));
+            checksum += now;
+        }
+        return checksum;
+    }
+
+    static long runLinkedList(int size, int operations) {
+        LinkedListEventQueue queue = new LinkedListEventQueue();
+        LinkedListEventQueue.Event[] events = new LinkedListEventQueue.Event[size];
+        seed = 0x2545F4914F6CDD1DL;
+        int range = size * 8;
+        for (int i = 0; i < size; i++) {
+            events[i] = new LinkedListEventQueue.Event();
+            queue.addEvent(events[i], nextDelta(range));
+        }
+        long checksum = 0;
+        for (int i = 0; i < operations; i++) {
+            long now = queue.nextTime;
+            LinkedListEventQueue.Event first = queue.popFirst();
+            queue.addEvent(first, now + nextDelta(range));
+            LinkedListEventQueue.Event other = events[nextDelta(size) - 1];
+            queue.addEvent(other, now + nextDelta(range));
+            checksum += now;
+        }
+        return checksum;
+    }
+
+    /* Returns the best time in nanoseconds per operation */
+    static double measure(boolean linkedList, int size) {
+        /* Keep the total work per round roughly the same for all sizes */
+        int operations = linkedList ? Math.max(10000, OPERATIONS * 10 / size) : OPERATIONS;
+        double best = Double.MAX_VALUE;
+        for (int round = 0; round < ROUNDS + 1; round++) {
+            long start = System.nanoTime();
+            checksum += linkedList ? runLinkedList(size, operations) : runEventQueue(size, operations);
+            long time = System.nanoTime() - start;
+            /* The first round is warm up */
+            if (round > 0) {
+                best = Math.min(best, (double) time / operations);
+            }
+        }
+        return best;
+    }
+
+    public static void main(String[] args) {
+        System.out.println("pending  linked-list ns/op  heap ns/op");
+        for (int size : SIZES) {
+            double list = measure(true, size);
+            double heap = measure(false, size);
+            System.out.printf("%7d  %18.1f  %10.1f\n", size, list, heap);
+        }
+        System.out.println("checksum " + checksum);
+    }
+
+}
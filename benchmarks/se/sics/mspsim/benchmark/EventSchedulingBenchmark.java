@@ -0,0 +1,66 @@
+package se.sics.mspsim.benchmark;
+
+import se.sics.mspsim.core.MSP430;
+import se.sics.mspsim.core.TimeEvent;
+
+/**
+ * Measures event scheduling churn through the CPU core. A sleeping CPU has a
+ * number of pending cycle events that reschedule themselves when executed,
+ * like timers, and also move another pending event, like a peripheral
+ * changing its next deadline. The result is in executed events.
+ */
+public class EventSchedulingBenchmark extends Benchmark {
+
+    private static final long EVENTS = 2000000;
+
+    private final int size;
+    private MSP430 cpu;
+    private ChurnEvent[] events;
+    private long executed;
+
+    public EventSchedulingBenchmark(int size) {
+        super("events", "cycle-events-" + size, "events");
+        this.size = size;
+    }
+
+    private class ChurnEvent extends TimeEvent {
+        private final int period;
+        private final ChurnEvent other;
+
+        ChurnEvent(int period, ChurnEvent other) {
+            super(0, "churn");
+            this.period = period;
+            this.other = other;
+        }
+
+        public void execute(long t) {
+            executed++;
+            cpu.scheduleCycleEvent(this, t + period);
+            if (other != null) {
+                cpu.scheduleCycleEvent(other, t + other.period / 2 + 1);
+            }
+        }
+    }
+
+    @Override
+    public void setup() {
+        cpu = createIdleCPU();
+        events = new ChurnEvent[size];
+        for (int i = 0; i < size; i++) {
+            /* Periods between 100 and 1100 cycles, each event moves the one created before it */
+            int period = 100 + (int) ((i * 2654435761L) % 1000);
+            events[i] = new ChurnEvent(period, i > 0 ? events[i - 1] : null);
+            cpu.scheduleCycleEvent(events[i], cpu.cycles + period);
+        }
+        executed = 0;
+    }
+
+    @Override
+    public long run() {
+        while (executed < EVENTS) {
+            advance(cpu, 10000);
+        }
+        return executed;
+    }
+
+}
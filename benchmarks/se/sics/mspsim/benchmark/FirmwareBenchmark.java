@@ -0,0 +1,93 @@
+package se.sics.mspsim.benchmark;
+
+import se.sics.mspsim.config.MSP430f1611Config;
+import se.sics.mspsim.core.EmulationException;
+import se.sics.mspsim.core.IOUnit;
+import se.sics.mspsim.core.MSP430;
+import se.sics.mspsim.core.USART;
+import se.sics.mspsim.core.USARTListener;
+import se.sics.mspsim.core.USARTSource;
+import se.sics.mspsim.util.ComponentRegistry;
+import se.sics.mspsim.util.ELF;
+
+/**
+ * Measures instruction throughput by running one of the test firmwares used
+ * by util.Test until it reports EXIT on USART 1. The firmware is loaded into
+ * fresh CPUs during setup so that only the emulation is measured.
+ * The result is in emulated CPU cycles.
+ */
+public class FirmwareBenchmark extends Benchmark {
+
+    /* Number of times the firmware is run per round */
+    private static final int RUNS = 8;
+
+    /* Stop runaway firmware */
+    private static final long MAX_CYCLES = 100000000;
+
+    private final String firmware;
+    private final boolean translate;
+    private ELF elf;
+    private MSP430[] cpus;
+    private boolean exit;
+
+    public FirmwareBenchmark(String name, String firmware, boolean translate) {
+        super("cpu", name, "cycles");
+        this.firmware = firmware;
+        this.translate = translate;
+    }
+
+    @Override
+    public void setup() throws Exception {
+        if (elf == null) {
+            elf = ELF.readELF(firmware);
+        }
+        cpus = new MSP430[RUNS];
+        for (int i = 0; i < RUNS; i++) {
+            MSP430 cpu = new MSP430(0, new ComponentRegistry(), new MSP430f1611Config());
+            elf.loadPrograms(cpu.memory);
+            cpu.setBlockTranslationEnabled(translate);
+            cpu.reset();
+            IOUnit usart = cpu.getIOUnit("USART 1");
+            if (usart instanceof USART) {
+                ((USART) usart).addUSARTListener(new USARTListener() {
+                    private final StringBuilder line = new StringBuilder();
+
+                    public void dataReceived(USARTSource source, int data) {
+                        if (data != '\n') {
+                            line.append((char) data);
+                        } else if (line.toString().startsWith("FAIL:")) {
+                            throw new EmulationException(firmware + ": " + line);
+                        } else {
+                            if (line.toString().startsWith("EXIT")) {
+                                exit = true;
+                            }
+                            line.setLength(0);
+                        }
+                    }
+
+                    public void stateChanged(int state) {
+                    }
+                });
+            }
+            cpus[i] = cpu;
+        }
+    }
+
+    @Override
+    public long run() throws Exception {
+        long cycles = 0;
+        for (MSP430 cpu : cpus) {
+            exit = false;
+            while (!exit) {
+                cpu.emulateOP(-1);
+                if (cpu.cycles > MAX_CYCLES) {
+                    throw new IllegalStateException(firmware + " did not exit");
+                }
+            }
+            cycles += cpu.cycles;
+        }
+        cpus = null;
+        return cycles;
+    }
+
+}
@@ -0,0 +1,99 @@
+package se.sics.mspsim.benchmark;
+
+import se.sics.mspsim.core.MSP430;
+import se.sics.mspsim.core.Memory;
+import se.sics.mspsim.core.Memory.AccessMode;
+import se.sics.mspsim.core.Memory.AccessType;
+import se.sics.mspsim.core.MemoryMonitor;
+
+/**
+ * Measures reads and writes through the CPU memory segments. Every fourth
+ * access is a write unless the region is read only.
+ */
+public class MemoryBenchmark extends Benchmark {
+
+    private static final int OPERATIONS = 20000000;
+
+    /* Keeps the JIT from removing the reads */
+    static int sink;
+
+    private final int[] addresses;
+    private final AccessMode mode;
+    private final boolean write;
+    private final boolean watch;
+    private MSP430 cpu;
+    private int watchHits;
+
+    private MemoryBenchmark(String name, int[] addresses, AccessMode mode, boolean write, boolean watch) {
+        super("memory", name, "accesses");
+        this.addresses = addresses;
+        this.mode = mode;
+        this.write = write;
+        this.watch = watch;
+    }
+
+    private static int[] range(int start, int size, int step) {
+        int[] addresses = new int[size / step];
+        for (int i = 0; i < addresses.length; i++) {
+            addresses[i] = start + i * step;
+        }
+        return addresses;
+    }
+
+    public static MemoryBenchmark ram() {
+        return new MemoryBenchmark("ram", range(0x1100, 0x2000, 2), AccessMode.WORD, true, false);
+    }
+
+    public static MemoryBenchmark flash() {
+        return new MemoryBenchmark("flash", range(0x4000, 0x4000, 2), AccessMode.WORD, false, false);
+    }
+
+    public static MemoryBenchmark io() {
+        /* P1OUT, P1DIR, P2OUT, P2DIR, P3OUT, P3DIR */
+        return new MemoryBenchmark("io", new int[] { 0x21, 0x22, 0x29, 0x2a, 0x19, 0x1a }, AccessMode.BYTE,
+                true, false);
+    }
+
+    public static MemoryBenchmark watched() {
+        return new MemoryBenchmark("watched", range(0x1100, 0x400, 2), AccessMode.WORD, true, true);
+    }
+
+    @Override
+    public void setup() {
+        cpu = createIdleCPU();
+        if (watch) {
+            MemoryMonitor monitor = new MemoryMonitor.Adapter() {
+                @Override
+                public void notifyWriteAfter(int dstAddress, int data, AccessMode mode) {
+                    watchHits++;
+                }
+            };
+            /* One watched word per segment - the other words go through the watched segment */
+            for (int i = 0; i < addresses.length; i += Memory.SEGMENT_SIZE / 2) {
+                cpu.addWatchPoint(addresses[i], monitor);
+            }
+        }
+    }
+
+    @Override
+    public long run() {
+        Memory memory = cpu.getMemory();
+        int[] addresses = this.addresses;
+        int mask = mode.mask;
+        int sum = 0;
+        for (int i = 0, a = 0; i < OPERATIONS; i++) {
+            int address = addresses[a];
+            if (write && (i & 3) == 3) {
+                memory.write(address, i & mask, mode);
+            } else {
+                sum += memory.read(address, mode, AccessType.READ);
+            }
+            if (++a == addresses.length) {
+                a = 0;
+            }
+        }
+        sink += sum + watchHits;
+        return OPERATIONS;
+    }
+
+}
@@ -0,0 +1,131 @@
+package se.sics.mspsim.benchmark;
+
+import se.sics.mspsim.chip.FrameListener;
+import se.sics.mspsim.chip.RadioFrame;
+import se.sics.mspsim.util.NetworkConnection;
+import se.sics.mspsim.util.PacketHub;
+
+/**
+ * Measures the frame distribution of the network connections, either in
+ * memory between connections attached to the same hub or over TCP between
+ * a client and a server hub in this process. The frames benchmarks stream
+ * frames and count the received frames. The pingpong benchmarks send one
+ * frame at a time and wait for the reply, which measures the latency.
+ */
+public class NetworkBenchmark extends Benchmark {
+
+    private static final int FRAMES = 100000;
+    private static final int ROUNDTRIPS = 10000;
+    private static final int LOOPBACK_CONNECTIONS = 8;
+    /* Frames in flight when streaming over TCP */
+    private static final int WINDOW = 1024;
+    private static final long TIMEOUT_NANOS = 10000000000L;
+
+    private final boolean tcp;
+    private final boolean pingpong;
+    private final RadioFrame frame = new RadioFrame();
+    private NetworkConnection sender;
+    private NetworkConnection receiver;
+    private volatile long received;
+
+    public NetworkBenchmark(String name, boolean tcp, boolean pingpong) {
+        super("network", name, pingpong ? "roundtrips" : "frames");
+        this.tcp = tcp;
+        this.pingpong = pingpong;
+        /* A 127 byte IEEE 802.15.4 frame with the length byte first */
+        frame.append((byte) 127);
+        for (int i = 0; i < 127; i++) {
+            frame.append((byte) i);
+        }
+    }
+
+    @Override
+    public void setup() throws Exception {
+        if (sender != null) {
+            return;
+        }
+        PacketHub senderHub = new PacketHub();
+        PacketHub receiverHub = senderHub;
+        if (tcp) {
+            receiverHub = new PacketHub();
+            int port = receiverHub.listen(0);
+            senderHub.connect("127.0.0.1", port);
+            long timeout = System.nanoTime() + TIMEOUT_NANOS;
+            while (senderHub.getPeerCount() == 0 || receiverHub.getPeerCount() == 0) {
+                checkTimeout(timeout);
+                Thread.yield();
+            }
+        }
+        sender = new NetworkConnection(senderHub);
+        receiver = new NetworkConnection(receiverHub);
+        if (pingpong) {
+            /* Reply to each frame and count the replies */
+            receiver.addFrameListener(new FrameListener() {
+                public void frameStarted() {
+                }
+
+                public void frameTransmitted(RadioFrame frame) {
+                    receiver.frameTransmitted(frame);
+                }
+            });
+            sender.addFrameListener(new FrameListener() {
+                public void frameStarted() {
+                }
+
+                public void frameTransmitted(RadioFrame frame) {
+                    received++;
+                }
+            });
+        } else {
+            receiver.addFrameListener(new FrameListener() {
+                public void frameStarted() {
+                }
+
+                public void frameTransmitted(RadioFrame frame) {
+                    received++;
+                }
+            });
+            if (!tcp) {
+                /* More connections receiving each frame */
+                for (int i = 2; i < LOOPBACK_CONNECTIONS; i++) {
+                    new NetworkConnection(senderHub);
+                }
+            }
+        }
+    }
+
+    private static void checkTimeout(long timeout) {
+        if (System.nanoTime() > timeout) {
+            throw new IllegalStateException("timeout waiting for the network");
+        }
+    }
+
+    @Override
+    public long run() throws Exception {
+        received = 0;
+        long timeout = System.nanoTime() + TIMEOUT_NANOS;
+        if (pingpong) {
+            for (int i = 1; i <= ROUNDTRIPS; i++) {
+                sender.frameTransmitted(frame);
+                while (received < i) {
+                    checkTimeout(timeout);
+                    Thread.onSpinWait();
+                }
+            }
+            return ROUNDTRIPS;
+        }
+        for (int i = 0; i < FRAMES; i++) {
+            sender.frameTransmitted(frame);
+            while (i - received >= WINDOW) {
+                checkTimeout(timeout);
+                Thread.onSpinWait();
+            }
+        }
+        while (received < FRAMES) {
+            checkTimeout(timeout);
+            Thread.onSpinWait();
+        }
+        return tcp ? FRAMES : (long) FRAMES * (LOOPBACK_CONNECTIONS - 1);
+    }
+
+}
@@ -0,0 +1,94 @@
+package se.sics.mspsim.benchmark;
+
+import java.util.ArrayList;
+
+import se.sics.mspsim.core.MSP430;
+import se.sics.mspsim.core.Profiler;
+import se.sics.mspsim.profiler.ArrayProfiler;
+import se.sics.mspsim.profiler.SimpleProfiler;
+import se.sics.mspsim.util.ELF;
+import se.sics.mspsim.util.MapEntry;
+
+/**
+ * Measures the instrumented profilers by replaying a call heavy sequence of
+ * calls and returns over the functions of a firmware. The sequence is
+ * generated once so that only the profiler is measured. The result is in
+ * profiled calls.
+ */
+public class ProfilerBenchmark extends Benchmark {
+
+    private static final int CALLS = 2000000;
+    private static final int MAX_DEPTH = 16;
+
+    private final String firmware;
+    private final boolean arrayProfiler;
+    private MSP430 cpu;
+    private MapEntry[] functions;
+    /* The index of the function to call, or -1 for a return */
+    private int[] sequence;
+    private Profiler profiler;
+
+    public ProfilerBenchmark(String name, String firmware, boolean arrayProfiler) {
+        super("profiler", name, "calls");
+        this.firmware = firmware;
+        this.arrayProfiler = arrayProfiler;
+    }
+
+    @Override
+    public void setup() throws Exception {
+        if (sequence == null) {
+            cpu = createIdleCPU();
+            ArrayList<MapEntry> list = new ArrayList<MapEntry>();
+            for (MapEntry entry : ELF.readELF(firmware).getMap().getAllEntries()) {
+                if (entry.getType() == MapEntry.TYPE.function) {
+                    list.add(entry);
+                }
+            }
+            functions = list.toArray(new MapEntry[list.size()]);
+            sequence = createSequence(functions.length);
+        }
+        profiler = arrayProfiler ? new ArrayProfiler() : new SimpleProfiler();
+        profiler.setCPU(cpu);
+    }
+
+    /* Random calls with a few hot functions and a depth below MAX_DEPTH */
+    private static int[] createSequence(int functionCount) {
+        int[] sequence = new int[CALLS * 2];
+        int seed = 4711;
+        int depth = 0;
+        int calls = 0;
+        int i = 0;
+        while (calls < CALLS || depth > 0) {
+            seed = seed * 1103515245 + 12345;
+            int r = (seed >>> 8) & 0xffff;
+            if (calls < CALLS && depth < MAX_DEPTH && (depth == 0 || (r & 1) == 0)) {
+                /* Half of the calls go to eight hot functions */
+                int f = (r & 2) == 0 ? (r >> 2) % 8 : (r >> 2) % functionCount;
+                sequence[i++] = f;
+                depth++;
+                calls++;
+            } else {
+                sequence[i++] = -1;
+                depth--;
+            }
+        }
+        return sequence;
+    }
+
+    @Override
+    public long run() {
+        Profiler profiler = this.profiler;
+        MapEntry[] functions = this.functions;
+        long cycles = 0;
+        for (int f : sequence) {
+            cycles += 7;
+            if (f >= 0) {
+                profiler.profileCall(functions[f], cycles, 0x4000);
+            } else {
+                profiler.profileReturn(cycles);
+            }
+        }
+        return CALLS;
+    }
+
+}
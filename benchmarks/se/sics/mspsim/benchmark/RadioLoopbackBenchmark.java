@@ -0,0 +1,119 @@
+package se.sics.mspsim.benchmark;
+
+import se.sics.mspsim.chip.CC2420;
+import se.sics.mspsim.core.IOPort;
+import se.sics.mspsim.core.MSP430;
+import se.sics.mspsim.core.StateChangeListener;
+import se.sics.mspsim.core.USARTListener;
+import se.sics.mspsim.core.USARTSource;
+
+/**
+ * Measures the CC2420 packet path: SPI writes to the TX FIFO of one radio,
+ * transmission over the air to a second radio and SPI reads of its RX FIFO.
+ * Both radios are connected to the same sleeping CPU. The result is in
+ * packets.
+ */
+public class RadioLoopbackBenchmark extends Benchmark {
+
+    private static final int PACKETS = 20000;
+    private static final int PAYLOAD = 20;
+
+    private MSP430 cpu;
+    private CC2420 tx;
+    private CC2420 rx;
+    private int[] payload;
+
+    /* The SPI master as seen by the radios */
+    private final USARTSource spi = new USARTSource() {
+        public void addUSARTListener(USARTListener listener) {
+        }
+        public void removeUSARTListener(USARTListener listener) {
+        }
+        public void addStateChangeListener(StateChangeListener listener) {
+        }
+        public void removeStateChangeListener(StateChangeListener listener) {
+        }
+        public boolean isReceiveFlagCleared() {
+            return true;
+        }
+        public void byteReceived(int b) {
+            spiData = b;
+        }
+    };
+    private int spiData;
+
+    public RadioLoopbackBenchmark() {
+        super("radio", "cc2420-loopback", "packets");
+    }
+
+    private CC2420 createRadio() {
+        CC2420 radio = new CC2420(cpu);
+        IOPort port1 = cpu.getIOUnit(IOPort.class, "P1");
+        IOPort port4 = cpu.getIOUnit(IOPort.class, "P4");
+        radio.setCCAPort(port1, 4);
+        radio.setFIFOPPort(port1, 0);
+        radio.setFIFOPort(port1, 3);
+        radio.setSFDPort(port4, 1);
+        radio.setVRegOn(true);
+        return radio;
+    }
+
+    private int spi(CC2420 radio, int... data) {
+        radio.setChipSelect(true);
+        for (int b : data) {
+            radio.dataReceived(spi, b);
+        }
+        radio.setChipSelect(false);
+        return spiData;
+    }
+
+    @Override
+    public void setup() {
+        cpu = createIdleCPU();
+        tx = createRadio();
+        rx = createRadio();
+        tx.addRFListener(rx);
+        advance(cpu, 10000);
+        spi(tx, CC2420.REG_SXOSCON);
+        spi(rx, CC2420.REG_SXOSCON);
+        advance(cpu, 10000);
+        /* No address decoding or auto acknowledgements */
+        spi(rx, CC2420.REG_MDMCTRL0, 0x02, 0xe2);
+        spi(rx, CC2420.REG_SRXON);
+        advance(cpu, 10000);
+
+        payload = new int[PAYLOAD + 2];
+        payload[0] = CC2420.REG_TXFIFO;
+        payload[1] = PAYLOAD + 2;
+        for (int i = 2; i < payload.length; i++) {
+            payload[i] = i;
+        }
+    }
+
+    @Override
+    public long run() {
+        for (int i = 0; i < PACKETS; i++) {
+            spi(tx, payload);
+            spi(tx, CC2420.REG_STXON);
+            do {
+                advance(cpu, 500);
+            } while (tx.getState() != CC2420.RadioState.RX_CALIBRATE);
+
+            rx.setChipSelect(true);
+            rx.dataReceived(spi, CC2420.REG_RXFIFO | CC2420.FLAG_READ);
+            rx.dataReceived(spi, 0);
+            int length = spiData;
+            if (length != PAYLOAD + 2) {
+                throw new IllegalStateException("received packet with length " + length);
+            }
+            for (int j = 0; j < length; j++) {
+                rx.dataReceived(spi, 0);
+            }
+            rx.setChipSelect(false);
+            spi(rx, CC2420.REG_SFLUSHRX);
+            spi(tx, CC2420.REG_SFLUSHTX);
+        }
+        return PACKETS;
+    }
+
+}
@@ -0,0 +1,141 @@
+package se.sics.mspsim.benchmark;
+
+import se.sics.mspsim.chip.CC2420;
+import se.sics.mspsim.chip.Radio802154;
+import se.sics.mspsim.chip.RadioMedium;
+import se.sics.mspsim.core.IOPort;
+import se.sics.mspsim.core.MSP430;
+import se.sics.mspsim.core.StateChangeListener;
+import se.sics.mspsim.core.USARTListener;
+import se.sics.mspsim.core.USARTSource;
+
+/**
+ * Measures the radio medium with CC2420 radios placed in a square lattice.
+ * The radios take turns sending a frame that is received by the radios
+ * within range. All radios are connected to the same sleeping CPU. With
+ * the spatial index the cost per frame depends on the number of neighbors
+ * and not on the number of radios. In frame mode the radios send each
+ * frame at once instead of byte by byte. The result is in frames.
+ */
+public class RadioMediumBenchmark extends Benchmark {
+
+    private static final int FRAMES = 2000;
+    private static final int PAYLOAD = 20;
+    /* About 20 neighbors within range in the lattice */
+    private static final double RANGE = 2.5;
+
+    private final int radioCount;
+    private final boolean frameMode;
+    private MSP430 cpu;
+    private CC2420[] radios;
+    private CC2420[][] neighbors;
+    private RadioMedium medium;
+    private int[] payload;
+    private int next;
+
+    /* The SPI master as seen by the radios */
+    private final USARTSource spi = new USARTSource() {
+        public void addUSARTListener(USARTListener listener) {
+        }
+        public void removeUSARTListener(USARTListener listener) {
+        }
+        public void addStateChangeListener(StateChangeListener listener) {
+        }
+        public void removeStateChangeListener(StateChangeListener listener) {
+        }
+        public boolean isReceiveFlagCleared() {
+            return true;
+        }
+        public void byteReceived(int b) {
+        }
+    };
+
+    public RadioMediumBenchmark(int radioCount, boolean frameMode) {
+        super("medium", "cc2420-" + radioCount + (frameMode ? "-framemode" : ""), "frames");
+        this.radioCount = radioCount;
+        this.frameMode = frameMode;
+    }
+
+    private void spi(CC2420 radio, int... data) {
+        radio.setChipSelect(true);
+        for (int b : data) {
+            radio.dataReceived(spi, b);
+        }
+        radio.setChipSelect(false);
+    }
+
+    @Override
+    public void setup() {
+        if (cpu != null) {
+            return;
+        }
+        cpu = createIdleCPU();
+        IOPort port1 = cpu.getIOUnit(IOPort.class, "P1");
+        IOPort port4 = cpu.getIOUnit(IOPort.class, "P4");
+        medium = new RadioMedium(RANGE);
+        radios = new CC2420[radioCount];
+        int width = (int) Math.ceil(Math.sqrt(radioCount));
+        for (int i = 0; i < radioCount; i++) {
+            CC2420 radio = new CC2420(cpu);
+            radio.setCCAPort(port1, 4);
+            radio.setFIFOPPort(port1, 0);
+            radio.setFIFOPort(port1, 3);
+            radio.setSFDPort(port4, 1);
+            radio.setVRegOn(true);
+            radio.setFrameMode(frameMode);
+            radios[i] = radio;
+            medium.addRadio(radio, i % width, i / width);
+        }
+        advance(cpu, 10000);
+        for (CC2420 radio : radios) {
+            spi(radio, CC2420.REG_SXOSCON);
+        }
+        advance(cpu, 10000);
+        for (CC2420 radio : radios) {
+            /* No address decoding or auto acknowledgements */
+            spi(radio, CC2420.REG_MDMCTRL0, 0x02, 0xe2);
+            spi(radio, CC2420.REG_SRXON);
+        }
+        advance(cpu, 10000);
+
+        neighbors = new CC2420[radioCount][];
+        for (int i = 0; i < radioCount; i++) {
+            Radio802154[] list = medium.getNeighbors(radios[i]);
+            neighbors[i] = new CC2420[list.length];
+            for (int j = 0; j < list.length; j++) {
+                neighbors[i][j] = (CC2420) list[j];
+            }
+        }
+
+        payload = new int[PAYLOAD + 2];
+        payload[0] = CC2420.REG_TXFIFO;
+        payload[1] = PAYLOAD + 2;
+        for (int i = 2; i < payload.length; i++) {
+            payload[i] = i;
+        }
+    }
+
+    @Override
+    public long run() {
+        long received = medium.getReceivedFrameCount();
+        for (int i = 0; i < FRAMES; i++) {
+            int index = next;
+            next = (next + 1) % radioCount;
+            CC2420 tx = radios[index];
+            spi(tx, payload);
+            spi(tx, CC2420.REG_STXON);
+            do {
+                advance(cpu, 500);
+            } while (tx.getState() != CC2420.RadioState.RX_CALIBRATE);
+            spi(tx, CC2420.REG_SFLUSHTX);
+            for (CC2420 rx : neighbors[index]) {
+                spi(rx, CC2420.REG_SFLUSHRX);
+            }
+        }
+        if (medium.getReceivedFrameCount() == received) {
+            throw new IllegalStateException("no frames received");
+        }
+        return FRAMES;
+    }
+
+}
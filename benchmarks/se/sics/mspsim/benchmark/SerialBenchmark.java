@@ -0,0 +1,122 @@
+package se.sics.mspsim.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+
+import se.sics.mspsim.core.MSP430;
+import se.sics.mspsim.core.SerialChannel;
+import se.sics.mspsim.core.TimeEvent;
+import se.sics.mspsim.core.USART;
+import se.sics.mspsim.core.USARTListener;
+import se.sics.mspsim.core.USARTSource;
+
+/**
+ * Measures the serial port with and without a serial channel. The output
+ * benchmarks write the bytes sent by the serial port to a file, either
+ * one write per byte from a listener or buffered by a serial channel, and
+ * the result is in bytes. The input benchmarks feed a serial port at
+ * 115200 baud while the firmware does not read, either with one event per
+ * byte or with a serial channel, and the result is in emulated
+ * milliseconds.
+ */
+public class SerialBenchmark extends Benchmark {
+
+    private static final int BYTES = 1 << 20;
+    private static final int MILLIS = 1000;
+    private static final long TIMEOUT_NANOS = 10000000000L;
+
+    private final boolean output;
+    private final boolean buffered;
+    private MSP430 cpu;
+    private USART uart;
+    private File file;
+    private USARTListener listener;
+    private SerialChannel channel;
+
+    public SerialBenchmark(String name, boolean output, boolean buffered) {
+        super("serial", name, output ? "bytes" : "ms");
+        this.output = output;
+        this.buffered = buffered;
+    }
+
+    @Override
+    public void setup() throws Exception {
+        if (cpu != null) {
+            return;
+        }
+        cpu = createIdleCPU();
+        uart = cpu.getIOUnit(USART.class, "USART 1");
+        if (output) {
+            file = File.createTempFile("mspsim-serial", ".txt");
+            file.deleteOnExit();
+            if (buffered) {
+                /* Room for all bytes as the emulation is slower than the writes */
+                channel = new SerialChannel(cpu, uart, BYTES);
+                channel.setOutput(new FileOutputStream(file));
+                listener = channel;
+            } else {
+                final PrintStream out = new PrintStream(new FileOutputStream(file));
+                listener = new USARTListener() {
+                    public void dataReceived(USARTSource source, int data) {
+                        out.write(data);
+                    }
+                };
+            }
+        } else {
+            /* Enable the receiver so that the received bytes are never read */
+            uart.enableChanged(1, 4, true);
+        }
+    }
+
+    @Override
+    public long run() throws Exception {
+        if (output) {
+            for (int i = 0; i < BYTES; i++) {
+                listener.dataReceived(uart, i & 0xff);
+            }
+            if (channel != null) {
+                if (channel.getDroppedBytes() > 0) {
+                    throw new IllegalStateException("dropped output");
+                }
+                /* Include the time to write the buffered output */
+                long timeout = System.nanoTime() + TIMEOUT_NANOS;
+                while (file.length() < channel.getOutputBytes()) {
+                    if (System.nanoTime() > timeout) {
+                        throw new IllegalStateException("timeout waiting for the output");
+                    }
+                    Thread.sleep(1);
+                }
+            }
+            return BYTES;
+        }
+
+        byte[] data = new byte[BYTES];
+        SerialChannel input = null;
+        TimeEvent perByte = null;
+        if (buffered) {
+            input = new SerialChannel(cpu, uart, BYTES);
+            input.setInput(new ByteArrayInputStream(data));
+        } else {
+            perByte = new TimeEvent(0, "serial input") {
+                public void execute(long t) {
+                    uart.byteReceived(0);
+                    cpu.scheduleTimeEventMillis(this, 10000.0 / SerialChannel.DEFAULT_BAUD_RATE);
+                }
+            };
+            cpu.scheduleTimeEventMillis(perByte, 1);
+        }
+        double end = cpu.getTimeMillis() + MILLIS;
+        while (cpu.getTimeMillis() < end) {
+            advance(cpu, 100000);
+        }
+        if (input != null) {
+            input.close();
+        } else {
+            perByte.remove();
+        }
+        return MILLIS;
+    }
+
+}
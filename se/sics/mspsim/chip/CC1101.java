@@ -527,27 +527,21 @@ public class CC1101 extends Radio802154 implements USARTListener {
             /* Send NUM_PREAMBLE preamble bytes */
             if (txSendSynchByteCnt < NUM_PREAMBLE) {
                 txSendSynchByteCnt++;
-                if (rfListener != null) {
-                    rfListener.receivedByte((byte) (0xaa));
-                }
+                transmitHeaderByte((byte) (0xaa));
                 cpu.scheduleTimeEventMillis(sendEvent, getInterByteDelayMs());
                 return;
             }
             /* Send NUM_SYNCH-1 synch bytes */
             if (txSendSynchByteCnt < NUM_PREAMBLE + NUM_SYNCH - 1) {
                 txSendSynchByteCnt++;
-                if (rfListener != null) {
-                    rfListener.receivedByte((byte) (SYNCH_BYTE_LAST + 1));
-                }
+                transmitHeaderByte((byte) (SYNCH_BYTE_LAST + 1));
                 cpu.scheduleTimeEventMillis(sendEvent, getInterByteDelayMs());
                 return;
             }
             /* Send last synch byte */
             if (txSendSynchByteCnt < NUM_PREAMBLE + NUM_SYNCH) {
                 txSendSynchByteCnt++;
-                if (rfListener != null) {
-                    rfListener.receivedByte((byte) (SYNCH_BYTE_LAST));
-                }
+                transmitHeaderByte((byte) (SYNCH_BYTE_LAST));
                 cpu.scheduleTimeEventMillis(sendEvent, getInterByteDelayMs());
 
                 txSentSynchByte = true;
@@ -559,9 +553,8 @@ public class CC1101 extends Radio802154 implements USARTListener {
 
         if (txSentFirstCRC) {
             /* send second CRC byte */
-            if (rfListener != null) {
-                rfListener.receivedByte((byte) (0xef));
-            }
+            transmitFrameByte((byte) (0xef));
+            transmissionCompleted();
             if (!txfifo.isEmpty()) {
                 System.out.println("Warning: TXFIFO not empty after sending CRC bytes");
             }
@@ -576,9 +569,7 @@ public class CC1101 extends Radio802154 implements USARTListener {
 
         if (txFooterCountdown == 0) {
             /* countdown is zero, send first CRC byte */
-            if (rfListener != null) {
-                rfListener.receivedByte((byte) (0xee));
-            }
+            transmitFrameByte((byte) (0xee));
             txSentFirstCRC = true;
             cpu.scheduleTimeEventMillis(sendEvent, getInterByteDelayMs());
             return;
@@ -587,18 +578,14 @@ public class CC1101 extends Radio802154 implements USARTListener {
         /* Send payload byte (including first FIFO length byte) */
         if (txfifo.isEmpty()) {
             System.out.println("Warning: TXFIFO is empty, sending zero-byte, txFooterCountdown=" + txFooterCountdown);
-            if (rfListener != null) {
-                rfListener.receivedByte((byte) 0);
-            }
+            transmitFrameByte((byte) 0);
 
             cpu.scheduleTimeEventMillis(sendEvent, getInterByteDelayMs());
             setState(CC1101RadioState.CC1101_STATE_TXFIFO_UNDERFLOW);
             return;
         }
 
-        if (rfListener != null) {
-            rfListener.receivedByte((byte) (txfifo.get(0).intValue()));
-        }
+        transmitFrameByte((byte) (txfifo.get(0).intValue()));
         txfifo.remove(0);
         cpu.scheduleTimeEventMillis(sendEvent, getInterByteDelayMs());
 
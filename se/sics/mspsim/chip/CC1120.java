@@ -729,27 +729,21 @@ public class CC1120 extends Radio802154 implements USARTListener {
 			/* Send NUM_PREAMBLE preamble bytes */
 			if (txSendSynchByteCnt < NUM_PREAMBLE) {
 				txSendSynchByteCnt++;
-				if (rfListener != null) {
-					rfListener.receivedByte((byte) (0xaa));
-				}
+				transmitHeaderByte((byte) (0xaa));
 				cpu.scheduleTimeEventMillis(sendEvent, BITRATE_BYTE_DURATION);
 				return;
 			}
 			/* Send NUM_SYNCH-1 synch bytes */
 			if (txSendSynchByteCnt < NUM_PREAMBLE + NUM_SYNCH - 1) {
 				txSendSynchByteCnt++;
-				if (rfListener != null) {
-					rfListener.receivedByte((byte) (SYNCH_BYTE_LAST + 1));
-				}
+				transmitHeaderByte((byte) (SYNCH_BYTE_LAST + 1));
 				cpu.scheduleTimeEventMillis(sendEvent, BITRATE_BYTE_DURATION);
 				return;
 			}
 			/* Send last synch byte */
 			if (txSendSynchByteCnt < NUM_PREAMBLE + NUM_SYNCH) {
 				txSendSynchByteCnt++;
-				if (rfListener != null) {
-					rfListener.receivedByte((byte) (SYNCH_BYTE_LAST));
-				}
+				transmitHeaderByte((byte) (SYNCH_BYTE_LAST));
 				cpu.scheduleTimeEventMillis(sendEvent, BITRATE_BYTE_DURATION);
 
 				txSentSynchByte = true;
@@ -761,9 +755,8 @@ public class CC1120 extends Radio802154 implements USARTListener {
 
 		if (txSentFirstCRC) {
 			/* send second CRC byte */
-			if (rfListener != null) {
-				rfListener.receivedByte((byte) (0xef));
-			}
+			transmitFrameByte((byte) (0xef));
+			transmissionCompleted();
 			if (!txfifo.isEmpty()) {
 				System.out.println("Warning: TXFIFO not empty after sending CRC bytes");
 			}
@@ -779,9 +772,7 @@ public class CC1120 extends Radio802154 implements USARTListener {
 
 		if (txFooterCountdown == 0) {
 			/* countdown is zero, send first CRC byte */
-			if (rfListener != null) {
-				rfListener.receivedByte((byte) (0xee));
-			}
+			transmitFrameByte((byte) (0xee));
 			txSentFirstCRC = true;
 			cpu.scheduleTimeEventMillis(sendEvent, BITRATE_BYTE_DURATION);
 			return;
@@ -790,16 +781,12 @@ public class CC1120 extends Radio802154 implements USARTListener {
 		/* Send payload byte (including first FIFO length byte) */
 		if (txfifo.isEmpty()) {
 			System.out.println("Warning: TXFIFO is empty, sending zero-byte, txFooterCountdown=" + txFooterCountdown);
-			if (rfListener != null) {
-				rfListener.receivedByte((byte) 0);
-			}
+			transmitFrameByte((byte) 0);
 			cpu.scheduleTimeEventMillis(sendEvent, BITRATE_BYTE_DURATION);
 			return;
 		}
 
-		if (rfListener != null) {
-			rfListener.receivedByte((byte) (txfifo.get(0).intValue()));
-		}
+		transmitFrameByte((byte) (txfifo.get(0).intValue()));
 		txfifo.remove(0);
 		cpu.scheduleTimeEventMillis(sendEvent, BITRATE_BYTE_DURATION);
 
@@ -254,6 +254,9 @@ public class CC2420 extends Radio802154 implements USARTListener {
   private int usartDataValue;
   private int shrPos;
   private int txfifoPos;
+  /* Set for each transmission when the header and the frame are sent at once */
+  private boolean txFrameMode;
+  private final byte[] txBuffer = new byte[256];
   private boolean txfifoFlush;	// TXFIFO is automatically flushed on next write
   private int rxfifoReadLeft; // number of bytes left to read from current packet
   private int rxlen;
@@ -488,6 +491,7 @@ public class CC2420 extends Radio802154 implements USARTListener {
 
     case TX_PREAMBLE:
       shrPos = 0;
+      txFrameMode = useFrameMode(memory[RAM_TXFIFO] & 0xff);
       SHR[0] = 0;
       SHR[1] = 0;
       SHR[2] = 0;
@@ -524,6 +528,7 @@ public class CC2420 extends Radio802154 implements USARTListener {
     case TX_ACK_PREAMBLE:
         /* same as normal preamble ?? */
         shrPos = 0;
+        txFrameMode = useFrameMode(ackBuf[0]);
         SHR[0] = 0;
         SHR[1] = 0;
         SHR[2] = 0;
@@ -1070,39 +1075,70 @@ public class CC2420 extends Radio802154 implements USARTListener {
                   "Can not move to TX_FRAME or TX_ACK after preamble since radio is in wrong mode: " +
                   stateMachine);
       }
-    } else {
-      if (rfListener != null) {
-        if (logLevel > INFO) log("transmitting byte: " + Utils.hex8(SHR[shrPos]));
-        rfListener.receivedByte(SHR[shrPos]);
+    } else if (txFrameMode) {
+      if (shrPos < 4) {
+        // Send the header at once when the SFD byte would be sent
+        cpu.scheduleTimeEventMillis(shrEvent, SYMBOL_PERIOD * 2 * (4 - shrPos));
+        shrPos = 4;
+      } else {
+        transmitHeader(SHR, 0, SHR.length);
+        shrPos = 5;
+        cpu.scheduleTimeEventMillis(shrEvent, SYMBOL_PERIOD * 2);
       }
+    } else {
+      if (logLevel > INFO) log("transmitting byte: " + Utils.hex8(SHR[shrPos]));
+      transmitHeaderByte(SHR[shrPos]);
       shrPos++;
       cpu.scheduleTimeEventMillis(shrEvent, SYMBOL_PERIOD * 2);
     }
   }
 
+  private void updateTxCRC(int len) {
+    txCrc.setCRC(0);
+    for (int i = 1; i < len - 1; i++) {
+      txCrc.addBitrev(memory[RAM_TXFIFO + i] & 0xff);
+    }
+    memory[RAM_TXFIFO + len - 1] = txCrc.getCRCHi();
+    memory[RAM_TXFIFO + len] = txCrc.getCRCLow();
+  }
+
   private void txNext() {
     if(txfifoPos <= memory[RAM_TXFIFO]) {
       int len = memory[RAM_TXFIFO] & 0xff;
-      if (txfifoPos == len - 1) {
-          txCrc.setCRC(0);
-          for (int i = 1; i < len - 1; i++) {
-            txCrc.addBitrev(memory[RAM_TXFIFO + i] & 0xff);
-          }
-          memory[RAM_TXFIFO + len - 1] = txCrc.getCRCHi();
-          memory[RAM_TXFIFO + len] = txCrc.getCRCLow();
-      }
-      if (txfifoPos > 0x7f) {
-        logw(WarningType.EXECUTION, "**** Warning - packet size too large - repeating packet bytes txfifoPos: " + txfifoPos);
-      }
-      if (rfListener != null) {
+      if (txFrameMode) {
+        if (txfifoPos < len) {
+          // Send the frame at once when the last byte would be sent
+          cpu.scheduleTimeEventMillis(sendEvent, SYMBOL_PERIOD * 2 * (len - txfifoPos));
+          txfifoPos = len;
+          return;
+        }
+        if (len > 0) {
+          updateTxCRC(len);
+        }
+        if (len > 0x7f) {
+          logw(WarningType.EXECUTION, "**** Warning - packet size too large - repeating packet bytes len: " + len);
+        }
+        for (int i = 0; i <= len; i++) {
+          txBuffer[i] = (byte) memory[RAM_TXFIFO + (i & 0x7f)];
+        }
+        transmitFrame(txBuffer, 0, len + 1);
+        txfifoPos = len + 1;
+      } else {
+        if (txfifoPos == len - 1) {
+          updateTxCRC(len);
+        }
+        if (txfifoPos > 0x7f) {
+          logw(WarningType.EXECUTION, "**** Warning - packet size too large - repeating packet bytes txfifoPos: " + txfifoPos);
+        }
         if (logLevel > INFO) log("transmitting byte: " + Utils.hex8(memory[RAM_TXFIFO + (txfifoPos & 0x7f)] & 0xFF));
-        rfListener.receivedByte((byte)(memory[RAM_TXFIFO + (txfifoPos & 0x7f)] & 0xFF));
+        transmitFrameByte((byte)(memory[RAM_TXFIFO + (txfifoPos & 0x7f)] & 0xFF));
+        txfifoPos++;
       }
-      txfifoPos++;
       // Two symbol periods to send a byte...
       cpu.scheduleTimeEventMillis(sendEvent, SYMBOL_PERIOD * 2);
     } else {
       if (logLevel > INFO) log("Completed Transmission.");
+      transmissionCompleted();
       status &= ~STATUS_TX_ACTIVE;
       setSFD(false);
       if (overflow) {
@@ -1135,16 +1171,28 @@ public class CC2420 extends Radio802154 implements USARTListener {
               ackBuf[4] = txCrc.getCRCHi();
               ackBuf[5] = txCrc.getCRCLow();
           }
-          if (rfListener != null) {
+          if (txFrameMode) {
+              if (ackPos < ackBuf.length - 1) {
+                  // Send the ACK at once when the last byte would be sent
+                  cpu.scheduleTimeEventMillis(ackEvent, SYMBOL_PERIOD * 2 * (ackBuf.length - 1 - ackPos));
+                  ackPos = ackBuf.length - 1;
+                  return;
+              }
+              for (int i = 0; i < ackBuf.length; i++) {
+                  txBuffer[i] = (byte) ackBuf[i];
+              }
+              transmitFrame(txBuffer, 0, ackBuf.length);
+              ackPos = ackBuf.length;
+          } else {
               if (logLevel > INFO) log("transmitting byte: " + Utils.hex8(memory[RAM_TXFIFO + (txfifoPos & 0x7f)] & 0xFF));
-
-              rfListener.receivedByte((byte)(ackBuf[ackPos] & 0xFF));
+              transmitFrameByte((byte)(ackBuf[ackPos] & 0xFF));
+              ackPos++;
           }
-          ackPos++;
           // Two symbol periods to send a byte...
           cpu.scheduleTimeEventMillis(ackEvent, SYMBOL_PERIOD * 2);
       } else {
           if (logLevel > INFO) log("Completed Transmission of ACK.");
+          transmissionCompleted();
           status &= ~STATUS_TX_ACTIVE;
           setSFD(false);
           setState(RadioState.RX_CALIBRATE);
@@ -1277,6 +1325,12 @@ public class CC2420 extends Radio802154 implements USARTListener {
       return getState() == RadioState.RX_SFD_SEARCH;
   }
 
+  @Override
+  protected boolean canReceiveFrame(int length) {
+      /* FIFOP is raised before the end of frames longer than the threshold */
+      return fifopThr >= length;
+  }
+
   public void updateActiveFrequency() {
     /* INVERTED: f = 5 * (c - 11) + 357 + 0x4000 */
     activeFrequency = registers[REG_FSCTRL] - 357 + 2405 - 0x4000;
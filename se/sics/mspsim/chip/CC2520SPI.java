@@ -29,6 +29,9 @@
  */
 package se.sics.mspsim.chip;
 
+import se.sics.mspsim.core.Snapshot;
+
+@Snapshot.State
 public class CC2520SPI {
 
     private final static boolean DEBUG = false;
@@ -0,0 +1,39 @@
+package se.sics.mspsim.chip;
+import se.sics.mspsim.util.ProxySupport;
+
+public interface FrameListener {
+
+    /**
+     * Called when a frame starts to be sent on the air, with the first byte
+     * of its preamble and synchronization header.
+     */
+    public void frameStarted();
+
+    /**
+     * Called when a complete frame has been sent on the air. The frame is
+     * reused by the caller and is only valid during this call.
+     */
+    public void frameTransmitted(RadioFrame frame);
+
+    public static class Proxy extends ProxySupport<FrameListener> implements FrameListener {
+        public static final Proxy INSTANCE = new Proxy();
+
+        @Override
+        public void frameStarted() {
+            FrameListener[] listeners = this.listeners;
+            for(FrameListener listener : listeners) {
+                listener.frameStarted();
+            }
+        }
+
+        @Override
+        public void frameTransmitted(RadioFrame frame) {
+            FrameListener[] listeners = this.listeners;
+            for(FrameListener listener : listeners) {
+                listener.frameTransmitted(frame);
+            }
+        }
+
+    }
+
+}
@@ -32,10 +32,12 @@ package se.sics.mspsim.chip;
 
 import java.io.IOException;
 import java.util.Arrays;
+import se.sics.mspsim.core.Snapshot;
 
 /**
  * @author Niclas Finne
  */
+@Snapshot.State
 public class MemoryStorage implements Storage {
 
     private byte[] data;
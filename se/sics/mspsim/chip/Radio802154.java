@@ -38,6 +38,17 @@ public abstract class Radio802154 extends Chip implements RFListener, RFSource {
 
     protected RFListener rfListener;
     protected ChannelListener channelListener;
+    protected FrameListener frameListener;
+
+    /* The frame being transmitted - only collected when there are frame listeners */
+    private final RadioFrame txFrame = new RadioFrame();
+    /* Set when the first header byte of a frame has been sent */
+    private boolean txStarted;
+
+    /* Set when the radio is added to a radio medium */
+    RadioMedium.Node mediumNode;
+
+    private boolean frameMode;
 
     public Radio802154(String id, String name, MSP430Core cpu) {
         super(id, name, cpu);
@@ -71,6 +82,156 @@ public abstract class Radio802154 extends Chip implements RFListener, RFSource {
         rfListener = RFListener.Proxy.INSTANCE.remove(rfListener, rf);
     }
 
+    /**
+     * Enables frame mode where the radio sends the header and the frame at
+     * once instead of scheduling an event for each byte. The frame is sent
+     * when its last byte would have been on the air, so receivers see the
+     * same SFD timing and FIFO contents but get all frame bytes at the end
+     * of the frame. The radio uses byte mode while there are RF listeners
+     * and for frames that a radio in range would signal before their end,
+     * such as frames longer than its FIFOP threshold.
+     */
+    public void setFrameMode(boolean frameMode) {
+        this.frameMode = frameMode;
+    }
+
+    public boolean isFrameModeEnabled() {
+        return frameMode;
+    }
+
+    /**
+     * Returns true if the next transmission, a frame with the specified
+     * length byte, should be sent in frame mode.
+     */
+    protected boolean useFrameMode(int length) {
+        if (!frameMode || rfListener != null) {
+            return false;
+        }
+        RadioMedium.Node node = mediumNode;
+        return node == null || node.canReceiveFrames(length);
+    }
+
+    /**
+     * Returns true if receiving a frame with the specified length byte at
+     * once at its end raises the same receive signals as receiving it byte
+     * by byte, i.e. if no threshold is reached before the last byte.
+     */
+    protected boolean canReceiveFrame(int length) {
+        return true;
+    }
+
+    public synchronized void addFrameListener(FrameListener listener) {
+        frameListener = FrameListener.Proxy.INSTANCE.add(frameListener, listener);
+    }
+
+    public synchronized void removeFrameListener(FrameListener listener) {
+        frameListener = FrameListener.Proxy.INSTANCE.remove(frameListener, listener);
+    }
+
+    /**
+     * Sends a byte of the preamble or synchronization header on the air.
+     * This starts a new frame.
+     */
+    protected void transmitHeaderByte(byte data) {
+        RFListener listener = rfListener;
+        if (listener != null) {
+            listener.receivedByte(data);
+        }
+        RadioMedium.Node node = mediumNode;
+        if (node != null) {
+            node.transmitHeaderByte(data);
+        }
+        txFrame.clear();
+        if (!txStarted) {
+            frameStarted();
+        }
+    }
+
+    /**
+     * Sends a byte of the frame on the air, starting with the length byte.
+     */
+    protected void transmitFrameByte(byte data) {
+        RFListener listener = rfListener;
+        if (listener != null) {
+            listener.receivedByte(data);
+        }
+        RadioMedium.Node node = mediumNode;
+        if (node != null) {
+            node.transmitFrameByte(data);
+        }
+        if (frameListener != null) {
+            txFrame.append(data);
+        }
+    }
+
+    /**
+     * Sends the whole preamble and synchronization header on the air in
+     * frame mode. This starts a new frame.
+     */
+    protected void transmitHeader(byte[] data, int offset, int length) {
+        RFListener listener = rfListener;
+        if (listener != null) {
+            /* Attached during the transmission */
+            for (int i = 0; i < length; i++) {
+                listener.receivedByte(data[offset + i]);
+            }
+        }
+        txFrame.clear();
+        RadioMedium.Node node = mediumNode;
+        if (node != null) {
+            node.transmitHeader(data, offset, length);
+        }
+        if (!txStarted) {
+            frameStarted();
+        }
+    }
+
+    private void frameStarted() {
+        txStarted = true;
+        FrameListener listener = frameListener;
+        if (listener != null) {
+            listener.frameStarted();
+        }
+    }
+
+    /**
+     * Sends the bytes of the frame, starting with the length byte, on the air
+     * in frame mode.
+     */
+    protected void transmitFrame(byte[] data, int offset, int length) {
+        RFListener listener = rfListener;
+        if (listener != null) {
+            /* Attached during the transmission */
+            for (int i = 0; i < length; i++) {
+                listener.receivedByte(data[offset + i]);
+            }
+        }
+        if (frameListener != null) {
+            txFrame.append(data, offset, length);
+        }
+        RadioMedium.Node node = mediumNode;
+        if (node != null) {
+            node.transmitFrame(data, offset, length);
+        }
+    }
+
+    /**
+     * Called when the last byte of a frame has been sent. Delivers the
+     * whole frame to the frame listeners.
+     */
+    protected void transmissionCompleted() {
+        FrameListener listener = frameListener;
+        if (listener != null && txFrame.getLength() > 0) {
+            listener.frameTransmitted(txFrame);
+        }
+        txFrame.clear();
+        txStarted = false;
+        RadioMedium.Node node = mediumNode;
+        if (node != null) {
+            node.transmissionCompleted();
+        }
+    }
+
     public synchronized void addChannelListener(ChannelListener listener) {
         channelListener = ChannelListener.Proxy.INSTANCE.add(channelListener, listener);
     }
@@ -0,0 +1,94 @@
+package se.sics.mspsim.chip;
+
+import se.sics.mspsim.core.Snapshot;
+
+/**
+ * A reusable buffer for one radio frame as seen on the air, starting with
+ * the length byte (the synchronization header is not included).
+ *
+ * Frames are reused between transmissions to avoid allocating new arrays
+ * for each packet. A frame passed to a listener is only valid during the
+ * call and must be copied if the listener keeps it.
+ */
+@Snapshot.State
+public class RadioFrame {
+
+    public static final int DEFAULT_CAPACITY = 128;
+
+    private byte[] data;
+    private int length;
+
+    public RadioFrame() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public RadioFrame(int capacity) {
+        data = new byte[capacity];
+    }
+
+    public void append(byte b) {
+        if (length == data.length) {
+            ensureCapacity(length + 1);
+        }
+        data[length++] = b;
+    }
+
+    public void append(byte[] buffer, int offset, int len) {
+        ensureCapacity(length + len);
+        System.arraycopy(buffer, offset, data, length, len);
+        length += len;
+    }
+
+    public void ensureCapacity(int capacity) {
+        if (capacity > data.length) {
+            byte[] tmp = new byte[Math.max(capacity, data.length * 2)];
+            System.arraycopy(data, 0, tmp, 0, length);
+            data = tmp;
+        }
+    }
+
+    public void clear() {
+        length = 0;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Sets the length of the frame, for example after the data array has
+     * been filled directly.
+     */
+    public void setLength(int length) {
+        ensureCapacity(length);
+        this.length = length;
+    }
+
+    public byte get(int index) {
+        if (index >= length) {
+            throw new IndexOutOfBoundsException("index " + index + " >= " + length);
+        }
+        return data[index];
+    }
+
+    /**
+     * Returns the backing array. Only the first getLength() bytes are part
+     * of the frame and the array is replaced if the frame grows.
+     */
+    public byte[] getData() {
+        return data;
+    }
+
+    public void copyFrom(RadioFrame frame) {
+        length = 0;
+        append(frame.data, 0, frame.length);
+    }
+
+    /* Allocates a new array - mainly for listeners expecting packets as byte arrays */
+    public byte[] toByteArray() {
+        byte[] tmp = new byte[length];
+        System.arraycopy(data, 0, tmp, 0, length);
+        return tmp;
+    }
+
+}
@@ -0,0 +1,480 @@
+package se.sics.mspsim.chip;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+/**
+ * A shared radio medium for radios in the same process. Each radio has a
+ * position and the bytes it transmits are delivered to the radios within
+ * range that listen on the same channel. The signal strength and the link
+ * quality decrease linearly with the distance and are set on the receiving
+ * radios with setRSSI() and setLQI().
+ *
+ * A radio locks on to the first transmission it is ready to receive. If
+ * another transmission within the interference range starts during the
+ * reception, the rest of the frame after the length byte is corrupted so
+ * that the CRC check fails.
+ *
+ * The radios are kept in a uniform grid with cells the size of the
+ * interference range. Only the surrounding cells are searched for
+ * neighbors, and the neighbors are cached until a radio nearby moves.
+ *
+ * Radios added with addRadio() are connected directly and must all run in
+ * the same thread. Nodes that run in parallel are instead connected by a
+ * NodeScheduler, which adds the radios with addScheduledRadio() and
+ * delivers the transmissions to the radios in range of the sender.
+ */
+public class RadioMedium {
+
+    public static final int NOISE_FLOOR = -100;
+
+    /* Signal strength and link quality at zero distance and at the range */
+    private static final int RSSI_STRONG = -10;
+    private static final int RSSI_WEAK = -90;
+    private static final int LQI_STRONG = 110;
+    private static final int LQI_WEAK = 50;
+
+    private final double range;
+    private final double interferenceRange;
+    private final HashMap<Long, ArrayList<Node>> grid = new HashMap<Long, ArrayList<Node>>();
+    private final IdentityHashMap<Radio802154, Node> nodes = new IdentityHashMap<Radio802154, Node>();
+    /* Changed whenever a radio is added, removed or moved */
+    private int topologyVersion;
+
+    private long transmissions;
+    private long receivedFrames;
+    private long collisions;
+
+    public RadioMedium(double range) {
+        this(range, range);
+    }
+
+    public RadioMedium(double range, double interferenceRange) {
+        if (range <= 0 || interferenceRange < range) {
+            throw new IllegalArgumentException("illegal range " + range + " with interference range "
+                    + interferenceRange);
+        }
+        this.range = range;
+        this.interferenceRange = interferenceRange;
+    }
+
+    public double getRange() {
+        return range;
+    }
+
+    public double getInterferenceRange() {
+        return interferenceRange;
+    }
+
+    public synchronized void addRadio(Radio802154 radio, double x, double y) {
+        if (radio.mediumNode != null || nodes.containsKey(radio)) {
+            throw new IllegalStateException("radio " + radio.getID() + " is already in a radio medium");
+        }
+        Node node = new Node(radio, x, y);
+        nodes.put(radio, node);
+        addToGrid(node);
+        radio.mediumNode = node;
+    }
+
+    /**
+     * Adds a radio whose transmissions are delivered by a scheduler. Only
+     * the position of the radio is used, to find its links.
+     */
+    public synchronized void addScheduledRadio(Radio802154 radio, double x, double y) {
+        if (radio.mediumNode != null || nodes.containsKey(radio)) {
+            throw new IllegalStateException("radio " + radio.getID() + " is already in a radio medium");
+        }
+        Node node = new Node(radio, x, y);
+        nodes.put(radio, node);
+        addToGrid(node);
+    }
+
+    public synchronized void removeRadio(Radio802154 radio) {
+        Node node = nodes.remove(radio);
+        if (node != null) {
+            if (node.isTransmitting) {
+                node.endTransmission();
+            }
+            node.rxSource = null;
+            removeFromGrid(node);
+            radio.mediumNode = null;
+        }
+    }
+
+    public synchronized void setPosition(Radio802154 radio, double x, double y) {
+        Node node = getNode(radio);
+        removeFromGrid(node);
+        node.x = x;
+        node.y = y;
+        addToGrid(node);
+    }
+
+    public synchronized double[] getPosition(Radio802154 radio) {
+        Node node = getNode(radio);
+        return new double[] { node.x, node.y };
+    }
+
+    /**
+     * Returns the radios within range of the specified radio.
+     */
+    public synchronized Radio802154[] getNeighbors(Radio802154 radio) {
+        Node node = getNode(radio);
+        node.updateNeighbors();
+        ArrayList<Radio802154> list = new ArrayList<Radio802154>();
+        for (int i = 0; i < node.neighborCount; i++) {
+            if (node.inRange[i]) {
+                list.add(node.neighbors[i].radio);
+            }
+        }
+        return list.toArray(new Radio802154[list.size()]);
+    }
+
+    /**
+     * Returns the links from the specified radio to the radios within range.
+     */
+    public synchronized Link[] getLinks(Radio802154 radio) {
+        Node node = getNode(radio);
+        node.updateNeighbors();
+        ArrayList<Link> list = new ArrayList<Link>();
+        for (int i = 0; i < node.neighborCount; i++) {
+            if (node.inRange[i]) {
+                list.add(new Link(node.neighbors[i].radio, node.neighborRssi[i], node.neighborLqi[i]));
+            }
+        }
+        return list.toArray(new Link[list.size()]);
+    }
+
+    /**
+     * Returns a number that changes whenever the links may have changed.
+     */
+    public synchronized int getTopologyVersion() {
+        return topologyVersion;
+    }
+
+    public synchronized int getRadioCount() {
+        return nodes.size();
+    }
+
+    public synchronized long getTransmissionCount() {
+        return transmissions;
+    }
+
+    /**
+     * Returns the number of frames received without collision.
+     */
+    public synchronized long getReceivedFrameCount() {
+        return receivedFrames;
+    }
+
+    public synchronized long getCollisionCount() {
+        return collisions;
+    }
+
+    private Node getNode(Radio802154 radio) {
+        Node node = nodes.get(radio);
+        if (node == null) {
+            throw new IllegalArgumentException("radio " + radio.getID() + " is not in the radio medium");
+        }
+        return node;
+    }
+
+    private static long cellKey(int cx, int cy) {
+        return ((long) cx << 32) | (cy & 0xffffffffL);
+    }
+
+    private int cell(double v) {
+        return (int) Math.floor(v / interferenceRange);
+    }
+
+    private void addToGrid(Node node) {
+        topologyVersion++;
+        node.cx = cell(node.x);
+        node.cy = cell(node.y);
+        Long key = cellKey(node.cx, node.cy);
+        ArrayList<Node> list = grid.get(key);
+        if (list == null) {
+            list = new ArrayList<Node>();
+            grid.put(key, list);
+        }
+        list.add(node);
+        invalidateNeighbors(node.cx, node.cy);
+    }
+
+    private void removeFromGrid(Node node) {
+        topologyVersion++;
+        Long key = cellKey(node.cx, node.cy);
+        ArrayList<Node> list = grid.get(key);
+        if (list != null && list.remove(node) && list.isEmpty()) {
+            grid.remove(key);
+        }
+        invalidateNeighbors(node.cx, node.cy);
+    }
+
+    /* Only radios in the surrounding cells can have the changed cell as neighbor */
+    private void invalidateNeighbors(int cx, int cy) {
+        for (int dy = -1; dy <= 1; dy++) {
+            for (int dx = -1; dx <= 1; dx++) {
+                ArrayList<Node> list = grid.get(cellKey(cx + dx, cy + dy));
+                if (list != null) {
+                    for (int i = 0, n = list.size(); i < n; i++) {
+                        list.get(i).neighborsValid = false;
+                    }
+                }
+            }
+        }
+    }
+
+    private static void addSignal(Node node, int rssi) {
+        node.signals++;
+        if (rssi > node.signalRssi) {
+            node.signalRssi = rssi;
+            node.radio.setRSSI(rssi);
+        }
+    }
+
+    private static void removeSignal(Node node) {
+        if (--node.signals <= 0) {
+            node.signals = 0;
+            node.signalRssi = NOISE_FLOOR;
+            node.radio.setRSSI(NOISE_FLOOR);
+        }
+    }
+
+    /**
+     * A link to a radio in range, with the signal strength and the link
+     * quality of the transmissions it receives over the link.
+     */
+    public static final class Link {
+
+        public final Radio802154 radio;
+        public final int rssi;
+        public final int lqi;
+
+        Link(Radio802154 radio, int rssi, int lqi) {
+            this.radio = radio;
+            this.rssi = rssi;
+            this.lqi = lqi;
+        }
+    }
+
+    /* A radio in the medium. Called by the radio when it transmits. */
+    final class Node {
+
+        final Radio802154 radio;
+        double x;
+        double y;
+        int cx;
+        int cy;
+
+        /* Cached radios within the interference range */
+        Node[] neighbors = new Node[8];
+        int[] neighborRssi = new int[8];
+        int[] neighborLqi = new int[8];
+        boolean[] inRange = new boolean[8];
+        int neighborCount;
+        boolean neighborsValid;
+
+        /* The current transmission */
+        boolean isTransmitting;
+        private boolean hasFrameBytes;
+        private final ArrayList<Node> receivers = new ArrayList<Node>();
+        private final ArrayList<Node> signalled = new ArrayList<Node>();
+
+        /* The current reception */
+        Node rxSource;
+        boolean rxCollided;
+        int signals;
+        int signalRssi = NOISE_FLOOR;
+
+        Node(Radio802154 radio, double x, double y) {
+            this.radio = radio;
+            this.x = x;
+            this.y = y;
+        }
+
+        void transmitHeaderByte(byte data) {
+            synchronized (RadioMedium.this) {
+                if (!isTransmitting || hasFrameBytes) {
+                    if (isTransmitting) {
+                        /* The previous frame was aborted */
+                        endTransmission();
+                    }
+                    startTransmission();
+                }
+                deliver(data, false);
+            }
+        }
+
+        void transmitHeader(byte[] data, int offset, int length) {
+            synchronized (RadioMedium.this) {
+                if (isTransmitting) {
+                    endTransmission();
+                }
+                startTransmission();
+                deliver(data, offset, length, false);
+            }
+        }
+
+        void transmitFrame(byte[] data, int offset, int length) {
+            synchronized (RadioMedium.this) {
+                if (!isTransmitting) {
+                    startTransmission();
+                }
+                if (length > 0) {
+                    deliver(data, offset, 1, hasFrameBytes);
+                    deliver(data, offset + 1, length - 1, true);
+                    hasFrameBytes = true;
+                }
+            }
+        }
+
+        /* Checks that the radios in range see the same signals if the frame is sent at once */
+        boolean canReceiveFrames(int length) {
+            synchronized (RadioMedium.this) {
+                updateNeighbors();
+                for (int i = 0; i < neighborCount; i++) {
+                    if (inRange[i] && !neighbors[i].radio.canReceiveFrame(length)) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        }
+
+        void transmitFrameByte(byte data) {
+            synchronized (RadioMedium.this) {
+                if (!isTransmitting) {
+                    startTransmission();
+                }
+                /* The length byte is never corrupted to keep the receivers in sync */
+                deliver(data, hasFrameBytes);
+                hasFrameBytes = true;
+            }
+        }
+
+        void transmissionCompleted() {
+            synchronized (RadioMedium.this) {
+                if (isTransmitting) {
+                    endTransmission();
+                }
+            }
+        }
+
+        private void startTransmission() {
+            isTransmitting = true;
+            hasFrameBytes = false;
+            transmissions++;
+            if (rxSource != null && !rxCollided) {
+                /* A radio can not receive while transmitting */
+                rxCollided = true;
+            }
+            updateNeighbors();
+            int channel = radio.getActiveChannel();
+            for (int i = 0; i < neighborCount; i++) {
+                Node node = neighbors[i];
+                if (node.isTransmitting || node.radio.getActiveChannel() != channel) {
+                    continue;
+                }
+                addSignal(node, neighborRssi[i]);
+                signalled.add(node);
+                if (node.rxSource != null) {
+                    if (!node.rxCollided) {
+                        node.rxCollided = true;
+                        collisions++;
+                    }
+                } else if (inRange[i] && node.radio.isReadyToReceive()) {
+                    node.rxSource = this;
+                    /* Another transmission is already on the air */
+                    node.rxCollided = node.signals > 1;
+                    node.radio.setLQI(neighborLqi[i]);
+                    receivers.add(node);
+                }
+            }
+        }
+
+        private void deliver(byte data, boolean corruptible) {
+            for (int i = 0, n = receivers.size(); i < n; i++) {
+                Node node = receivers.get(i);
+                if (node.rxSource == this && !node.isTransmitting) {
+                    node.radio.receivedByte(corruptible && node.rxCollided ? (byte) ~data : data);
+                }
+            }
+        }
+
+        private void deliver(byte[] data, int offset, int length, boolean corruptible) {
+            for (int i = 0, n = receivers.size(); i < n; i++) {
+                Node node = receivers.get(i);
+                if (node.rxSource == this && !node.isTransmitting) {
+                    boolean corrupt = corruptible && node.rxCollided;
+                    for (int j = offset, end = offset + length; j < end; j++) {
+                        node.radio.receivedByte(corrupt ? (byte) ~data[j] : data[j]);
+                    }
+                }
+            }
+        }
+
+        void endTransmission() {
+            isTransmitting = false;
+            for (int i = 0, n = receivers.size(); i < n; i++) {
+                Node node = receivers.get(i);
+                if (node.rxSource == this) {
+                    if (!node.rxCollided) {
+                        receivedFrames++;
+                    }
+                    node.rxSource = null;
+                    node.rxCollided = false;
+                }
+            }
+            receivers.clear();
+            for (int i = 0, n = signalled.size(); i < n; i++) {
+                removeSignal(signalled.get(i));
+            }
+            signalled.clear();
+        }
+
+        void updateNeighbors() {
+            if (neighborsValid) {
+                return;
+            }
+            neighborsValid = true;
+            neighborCount = 0;
+            for (int dy = -1; dy <= 1; dy++) {
+                for (int dx = -1; dx <= 1; dx++) {
+                    ArrayList<Node> list = grid.get(cellKey(cx + dx, cy + dy));
+                    if (list == null) {
+                        continue;
+                    }
+                    for (int i = 0, n = list.size(); i < n; i++) {
+                        Node node = list.get(i);
+                        if (node != this) {
+                            double distance = Math.hypot(node.x - x, node.y - y);
+                            if (distance <= interferenceRange) {
+                                addNeighbor(node, distance);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        private void addNeighbor(Node node, double distance) {
+            if (neighborCount == neighbors.length) {
+                int size = neighborCount * 2;
+                neighbors = Arrays.copyOf(neighbors, size);
+                neighborRssi = Arrays.copyOf(neighborRssi, size);
+                neighborLqi = Arrays.copyOf(neighborLqi, size);
+                inRange = Arrays.copyOf(inRange, size);
+            }
+            double ratio = distance / range;
+            neighbors[neighborCount] = node;
+            neighborRssi[neighborCount] = Math.max(NOISE_FLOOR,
+                    (int) Math.round(RSSI_STRONG + (RSSI_WEAK - RSSI_STRONG) * ratio));
+            neighborLqi[neighborCount] = Math.max(0, (int) Math.round(LQI_STRONG + (LQI_WEAK - LQI_STRONG) * ratio));
+            inRange[neighborCount] = distance <= range;
+            neighborCount++;
+        }
+    }
+
+}
@@ -31,7 +31,9 @@
 package se.sics.mspsim.chip;
 
 import java.util.ArrayList;
+import se.sics.mspsim.core.Snapshot;
 
+@Snapshot.State
 public class SPICommand {
 
     private static final boolean DEBUG = false;
@@ -49,6 +51,7 @@ public class SPICommand {
 
     private final BitField[] bitFields;
 
+    @Snapshot.State
     public static class BitField {
         public final String name;
         public final int startBit;
@@ -102,7 +102,13 @@ public class CommandContext {
   }
   
   public int getArgumentAsAddress(int index) {
-    String adr = getArgument(index);
+    return getAddress(getArgument(index));
+  }
+
+  /**
+   * Returns the address of a number or symbol, or -1 if unknown.
+   */
+  public int getAddress(String adr) {
     if (adr == null || adr.length() == 0) return 0;
     char c = adr.charAt(0);
     if (!Character.isLetter(c) && c != '_' && c != '.') {
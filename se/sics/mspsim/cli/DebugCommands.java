@@ -33,6 +33,9 @@
  * Created : Mon Feb 11 2008
  */
 package se.sics.mspsim.cli;
+import java.io.File;
+import java.io.IOException;
+
 import se.sics.mspsim.core.DbgInstruction;
 import se.sics.mspsim.core.DisAsm;
 import se.sics.mspsim.core.EmulationException;
@@ -47,6 +50,9 @@ import se.sics.mspsim.core.Memory.AccessType;
 import se.sics.mspsim.core.MemoryMonitor;
 import se.sics.mspsim.core.RegisterMonitor;
 import se.sics.mspsim.core.TimeEvent;
+import se.sics.mspsim.core.TraceRecorder;
+import se.sics.mspsim.core.WatchCondition;
+import se.sics.mspsim.core.WatchPoint;
 import se.sics.mspsim.platform.GenericNode;
 import se.sics.mspsim.util.ComponentRegistry;
 import se.sics.mspsim.util.DebugInfo;
@@ -73,6 +79,7 @@ public class DebugCommands implements CommandBundle {
           "<address or symbol>") {
         private int address;
         private MemoryMonitor monitor;
+        private WatchPoint watchPoint;
         public int executeCommand(final CommandContext context) {
           address = context.getArgumentAsAddress(0);
           if (address < 0) {
@@ -90,46 +97,76 @@ public class DebugCommands implements CommandBundle {
                   }
               }
           };
-          cpu.addWatchPoint(address, monitor);
+          watchPoint = new WatchPoint(address, 1, WatchPoint.EXECUTE, null, monitor);
+          cpu.addWatchPoint(watchPoint);
           context.err.println("Breakpoint set at $" + cpu.getAddressAsString(address));
           return 0;
         }
         public void stopCommand(CommandContext context) {
-          cpu.removeWatchPoint(address, monitor);
+          cpu.removeWatchPoint(watchPoint);
         }
       });
 
       ch.registerCommand("watch",
-          new BasicAsyncCommand("add a write/read watch to a given address or symbol", "<address or symbol> [length] [char | hex | break]") {
+          new BasicAsyncCommand("add a write/read watch to a given address or symbol",
+              "<address or symbol>[..<end>] [length] [r|w|x|rw|rwx] [eq|ne|lt|le|gt|ge|and <value>] [char | hex | break]") {
         int mode = 0;
         int address = 0;
         int length = 1;
-        MemoryMonitor monitor;
+        WatchPoint watchPoint;
         public int executeCommand(final CommandContext context) {
-          address = context.getArgumentAsAddress(0);
+          String range = context.getArgument(0);
+          int split = range.indexOf("..");
+          address = context.getAddress(split > 0 ? range.substring(0, split) : range);
           if (address < 0) {
-            context.err.println("unknown symbol: " + context.getArgument(0));
+            context.err.println("unknown symbol: " + range);
             return -1;
           }
-          if (context.getArgumentCount() > 1) {
-              for (int i = 1; i < context.getArgumentCount(); i++) {
-                  String modeStr = context.getArgument(i);
-                  if (Character.isDigit(modeStr.charAt(0))) {
-                      length = Integer.parseInt(modeStr);
-                  } else if ("char".equals(modeStr)) {
-                      mode = Utils.ASCII_UNMODIFIED; // 4
-                  } else if ("break".equals(modeStr)) {
-                      mode = 10;
-                  } else if ("hex".equals(modeStr)) {
-                      mode = Utils.HEX; // 2
+          if (split > 0) {
+              int end = context.getAddress(range.substring(split + 2));
+              if (end < address) {
+                  context.err.println("illegal range: " + range);
+                  return -1;
+              }
+              length = end - address + 1;
+          }
+          int access = WatchPoint.ALL;
+          WatchCondition condition = null;
+          for (int i = 1; i < context.getArgumentCount(); i++) {
+              String modeStr = context.getArgument(i);
+              if (Character.isDigit(modeStr.charAt(0))) {
+                  length = Integer.parseInt(modeStr);
+              } else if ("char".equals(modeStr)) {
+                  mode = Utils.ASCII_UNMODIFIED; // 4
+              } else if ("break".equals(modeStr)) {
+                  mode = 10;
+              } else if ("hex".equals(modeStr)) {
+                  mode = Utils.HEX; // 2
+              } else if (modeStr.matches("[rwx]+")) {
+                  access = (modeStr.indexOf('r') >= 0 ? WatchPoint.READ : 0)
+                      | (modeStr.indexOf('w') >= 0 ? WatchPoint.WRITE : 0)
+                      | (modeStr.indexOf('x') >= 0 ? WatchPoint.EXECUTE : 0);
+              } else if (WatchCondition.isOperator(modeStr)) {
+                  if (i + 1 == context.getArgumentCount()) {
+                      context.err.println("missing value after " + modeStr);
+                      return -1;
                   }
+                  try {
+                      condition = WatchCondition.create(modeStr, context.getArgument(++i));
+                  } catch (IllegalArgumentException e) {
+                      context.err.println(e.getMessage());
+                      return -1;
+                  }
+              } else {
+                  context.err.println("illegal argument: " + modeStr);
+                  return -1;
               }
           }
           if (length < 1) {
               context.err.println("please specify a length of at least one byte");
               return -1;
           }
-          monitor = new MemoryMonitor.Adapter() {
+          MemoryMonitor monitor = new MemoryMonitor.Adapter() {
               private void cpuAction(AccessType type, int adr, int data) {
                   if (mode == 0 || mode == 10) {
                       int pc = cpu.getPC();
@@ -169,20 +206,27 @@ public class DebugCommands implements CommandBundle {
             }
           };
 
-          for (int i = 0; i < length; i++) {
-              cpu.addWatchPoint(address + i, monitor);
+          try {
+              watchPoint = new WatchPoint(address, length, access, condition, monitor);
+              cpu.addWatchPoint(watchPoint);
+          } catch (IllegalArgumentException e) {
+              context.err.println(e.getMessage());
+              return -1;
           }
           if (length > 1) {
-              context.err.println("Watch set at $" + cpu.getAddressAsString(address) + " - $" + cpu.getAddressAsString(address + length - 1));
+              context.err.print("Watch set at $" + cpu.getAddressAsString(address) + " - $" + cpu.getAddressAsString(address + length - 1));
           } else {
-              context.err.println("Watch set at $" + cpu.getAddressAsString(address));
+              context.err.print("Watch set at $" + cpu.getAddressAsString(address));
           }
+          context.err.println(access != WatchPoint.ALL || condition != null
+              ? " (" + WatchPoint.getAccessAsString(access) + (condition != null ? " " + condition : "") + ")"
+              : "");
           return 0;
         }
 
         public void stopCommand(CommandContext context) {
-            for (int i = 0; i < length; i++) {
-                cpu.removeWatchPoint(address + i, monitor);
+            if (watchPoint != null) {
+                cpu.removeWatchPoint(watchPoint);
             }
             context.exit(0);
         }
@@ -273,6 +317,17 @@ public class DebugCommands implements CommandBundle {
           }
       });
 
+      ch.registerCommand("translate", new BasicCommand("set translation of hot code to on or off", "[0/1]") {
+          public int executeCommand(final CommandContext context) {
+              if (context.getArgumentCount() > 0) {
+                  cpu.setBlockTranslationEnabled(context.getArgumentAsBoolean(0));
+              }
+              context.out.println("Translation is set to " + cpu.isBlockTranslationEnabled()
+                      + " (" + cpu.getBlockTranslator().getBlockCount() + " translated blocks)");
+              return 0;
+          }
+      });
+
       ch.registerCommand("line", new BasicCommand("print line number of address/symbol", "<address or symbol>") {
         public int executeCommand(final CommandContext context) {
           int adr = context.getArgumentAsAddress(0);
@@ -313,6 +368,37 @@ public class DebugCommands implements CommandBundle {
             return 0;
           }
         });
+        ch.registerCommand("snapshot", new BasicCommand("save the state of the node", "<file>") {
+          public int executeCommand(CommandContext context) {
+            if (cpu.isRunning()) {
+                context.err.println("Can not save a snapshot when emulation is running.");
+                return 1;
+            }
+            try {
+                node.saveSnapshot(context.getArgument(0));
+            } catch (IOException e) {
+                context.err.println("Failed to save snapshot: " + e.getMessage());
+                return 1;
+            }
+            return 0;
+          }
+        });
+        ch.registerCommand("restore", new BasicCommand("restore the state of the node from a snapshot", "<file>") {
+          public int executeCommand(CommandContext context) {
+            if (cpu.isRunning()) {
+                context.err.println("Can not restore a snapshot when emulation is running.");
+                return 1;
+            }
+            try {
+                node.loadSnapshot(context.getArgument(0));
+            } catch (IOException e) {
+                context.err.println("Failed to restore snapshot: " + e.getMessage());
+                return 1;
+            }
+            context.out.println("CPU restored at: $" + cpu.getAddressAsString(cpu.getPC()));
+            return 0;
+          }
+        });
         ch.registerCommand("throw", new BasicCommand("throw an Emulation Exception", "[message]") {
             public int executeCommand(CommandContext context) {
                 final String msg = context.getArgumentCount() > 0 ? context.getArgument(0) : "by request";
@@ -375,9 +461,10 @@ public class DebugCommands implements CommandBundle {
           public int executeCommand(CommandContext context) {
             int adr = context.getArgumentAsAddress(0);
             if (adr >= 0) {
-              int value = cpu.memory[adr];
+              cpu.unshareMemory(adr, adr + 2);
+              int value = cpu.memory[adr] & 0xff;
               if (adr >= 0x100 && adr + 1 < cpu.MAX_MEM) {
-                  value |= cpu.memory[adr + 1] << 8;
+                  value |= (cpu.memory[adr + 1] & 0xff) << 8;
               }
               context.out.println(context.getArgument(0) + " = $" + Utils.hex16(value));
               return 0;
@@ -471,6 +558,8 @@ public class DebugCommands implements CommandBundle {
             // Does not yet handle signed data...
             DisAsm disAsm = cpu.getDisAsm();
             for (int i = 0; i < count; i++) {
+                /* Instructions are at most 8 bytes */
+                cpu.unshareMemory(start, start + 8);
                 if (mode == Utils.DIS_ASM) {
                     DbgInstruction dbg = disAsm.disassemble(start, cpu.memory, cpu.reg, new DbgInstruction(),
                             0);
@@ -482,9 +571,9 @@ public class DebugCommands implements CommandBundle {
                     start += dbg.getSize();
                 } else {
                     int data = 0;
-                    data = cpu.memory[start++];
+                    data = cpu.memory[start++] & 0xff;
                     if (Utils.size(type) == 2) {
-                        data = data  + (cpu.memory[start++] << 8);
+                        data = data  + ((cpu.memory[start++] & 0xff) << 8);
                     }
                     context.out.print((mode != Utils.ASCII ? " " : "") + 
                             Utils.toString(data, type, mode));
@@ -691,11 +780,40 @@ public class DebugCommands implements CommandBundle {
             }
         });
 
-        ch.registerCommand("trace", new BasicCommand("store a trace of execution positions.", "[trace size | show]") {
+        ch.registerCommand("trace", new BasicCommand("store a trace of execution positions.",
+                "[trace size | show | record <file> | stop]") {
             @Override
             public int executeCommand(CommandContext context) {
                 if (context.getArgumentCount() > 0) {
-                    if ("show".equals(context.getArgument(0))) {
+                    if ("record".equals(context.getArgument(0))) {
+                        if (context.getArgumentCount() != 2) {
+                            context.err.println("Usage: trace record <file>");
+                            return 1;
+                        }
+                        File file = new File(context.getArgument(1));
+                        try {
+                            cpu.startTraceRecording(file);
+                        } catch (IOException e) {
+                            context.err.println("Failed to record trace to " + file + ": " + e.getMessage());
+                            return 1;
+                        }
+                        context.out.println("Recording trace to " + file);
+                        return 0;
+                    } else if ("stop".equals(context.getArgument(0))) {
+                        try {
+                            TraceRecorder recorder = cpu.stopTraceRecording();
+                            if (recorder == null) {
+                                context.err.println("No trace is being recorded.");
+                                return 1;
+                            }
+                            context.out.println("Stopped recording trace to " + recorder.getFile()
+                                    + " after " + recorder.getRecordCount() + " records.");
+                        } catch (IOException e) {
+                            context.err.println("Failed to end trace: " + e.getMessage());
+                            return 1;
+                        }
+                        return 0;
+                    } else if ("show".equals(context.getArgument(0))) {
                         int size = cpu.getTraceSize();
                         if (size > 0) {
                             DisAsm disAsm = cpu.getDisAsm();
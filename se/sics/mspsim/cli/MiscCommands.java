@@ -49,9 +49,12 @@ import java.util.regex.Pattern;
 import se.sics.mspsim.chip.RFListener;
 import se.sics.mspsim.chip.RFSource;
 import se.sics.mspsim.core.Chip;
+import se.sics.mspsim.core.IOUnit;
 import se.sics.mspsim.core.MSP430;
 import se.sics.mspsim.core.MSP430Constants;
+import se.sics.mspsim.core.SerialChannel;
 import se.sics.mspsim.core.TimeEvent;
+import se.sics.mspsim.core.USARTSource;
 import se.sics.mspsim.util.ComponentRegistry;
 import se.sics.mspsim.util.ConfigManager;
 import se.sics.mspsim.util.PluginRepository;
@@ -129,7 +132,8 @@ public class MiscCommands implements CommandBundle {
       }
     });
 
-    handler.registerCommand("speed", new BasicCommand("set the speed factor for the CPU", "[factor]") {
+    handler.registerCommand("speed", new BasicCommand("set the speed factor for the CPU",
+        "[factor|realtime|max]") {
       public int executeCommand(CommandContext context) {
         MSP430 cpu = registry.getComponent(MSP430.class);
         if (cpu == null) {
@@ -138,16 +142,30 @@ public class MiscCommands implements CommandBundle {
         } else if (context.getArgumentCount() == 0) {
           /* No speed specified. Simply show current speed. */
         } else {
-          double rate = context.getArgumentAsDouble(0);
-          if (rate > 0.0) {
-            cpu.setExecutionRate(rate);
+          String arg = context.getArgument(0);
+          if ("realtime".equals(arg)) {
+            cpu.setExecutionRate(1.0);
+          } else if ("max".equals(arg)) {
+            cpu.setExecutionRate(0.0);
           } else {
-            context.err.println("Speed factor must be larger than zero.");
-            return 1;
+            double rate = context.getArgumentAsDouble(0);
+            if (rate < MSP430.MIN_EXECUTION_RATE || rate > MSP430.MAX_EXECUTION_RATE) {
+              context.err.printf("Speed factor must be between %.1f and %.1f.\n",
+                  MSP430.MIN_EXECUTION_RATE, MSP430.MAX_EXECUTION_RATE);
+              return 1;
+            }
+            cpu.setExecutionRate(rate);
           }
         }
         double rate = cpu.getExecutionRate();
-        context.out.printf("Speed factor is set to %.2f\n", rate);
+        if (rate > 0.0) {
+          context.out.printf("Speed factor is set to %.2f\n", rate);
+        } else {
+          context.out.println("Speed is set to max (no real-time pacing)");
+        }
+        if (cpu.isRunning()) {
+          context.out.printf("Achieved speed factor is %.2f\n", cpu.getAchievedExecutionRate());
+        }
         return 0;
       }
     });
@@ -426,6 +444,73 @@ public class MiscCommands implements CommandBundle {
 
     });
 
+    handler.registerCommand("serialchannel", new BasicAsyncCommand("connect a serial port to files or named pipes",
+        "[-b baudrate] [-i input] [-o output] <uart>") {
+      SerialChannel channel;
+
+      public int executeCommand(CommandContext context) {
+        MSP430 cpu = registry.getComponent(MSP430.class);
+        if (cpu == null) {
+          context.err.println("could not access the CPU.");
+          return 1;
+        }
+        int baudRate = SerialChannel.DEFAULT_BAUD_RATE;
+        String input = null;
+        String output = null;
+        int index = 0;
+        while (index + 1 < context.getArgumentCount() && context.getArgument(index).startsWith("-")) {
+          String a = context.getArgument(index);
+          if (a.equals("-b")) {
+            baudRate = context.getArgumentAsInt(index + 1);
+          } else if (a.equals("-i")) {
+            input = context.getArgument(index + 1);
+          } else if (a.equals("-o")) {
+            output = context.getArgument(index + 1);
+          } else {
+            context.err.println("illegal option: " + a);
+            return 1;
+          }
+          index += 2;
+        }
+        if (index + 1 != context.getArgumentCount()) {
+          context.err.println("usage: serialchannel " + getArgumentHelp("serialchannel"));
+          return 1;
+        }
+        if (input == null && output == null) {
+          context.err.println("no input or output specified");
+          return 1;
+        }
+        if (baudRate <= 0) {
+          context.err.println("illegal baud rate: " + baudRate);
+          return 1;
+        }
+        String name = context.getArgument(index);
+        IOUnit unit = cpu.getIOUnit(name);
+        if (!(unit instanceof USARTSource)) {
+          context.err.println("Error: could not find serial port '" + name + '\'');
+          return 1;
+        }
+        channel = new SerialChannel(cpu, (USARTSource) unit);
+        channel.setBaudRate(baudRate);
+        if (output != null) {
+          channel.setOutput(new File(output));
+        }
+        if (input != null) {
+          channel.setInput(new File(input));
+        }
+        return 0;
+      }
+
+      public void stopCommand(CommandContext context) {
+        if (channel != null) {
+          channel.close();
+          context.out.println("Serial channel closed after " + channel.getInputBytes() + " input bytes, "
+              + channel.getOutputBytes() + " output bytes (" + channel.getDroppedBytes() + " dropped)");
+          channel = null;
+        }
+      }
+    });
+
     handler.registerCommand("sysinfo", new BasicCommand("show info about the MSPSim system", "[-registry] [-config]") {
         public int executeCommand(CommandContext context) {
             ConfigManager config = registry.getComponent(ConfigManager.class, "config");
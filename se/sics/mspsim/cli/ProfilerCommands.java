@@ -46,6 +46,8 @@ import se.sics.mspsim.core.EventListener;
 import se.sics.mspsim.core.EventSource;
 import se.sics.mspsim.core.MSP430;
 import se.sics.mspsim.core.Profiler;
+import se.sics.mspsim.profiler.ArrayProfiler;
+import se.sics.mspsim.profiler.SamplingProfiler;
 import se.sics.mspsim.profiler.SimpleProfiler;
 import se.sics.mspsim.ui.CPUHeatMap;
 import se.sics.mspsim.ui.WindowManager;
@@ -139,6 +141,49 @@ public class ProfilerCommands implements CommandBundle {
         }
       });
 
+      ch.registerCommand("sampleprof", new BasicCommand("sampling profiler",
+          "<start [cycles] | stop | clear | summary | collapsed>") {
+        public int executeCommand(CommandContext context) {
+          SamplingProfiler profiler = registry.getComponent(SamplingProfiler.class);
+          String cmd = context.getArgument(0);
+          if ("start".equals(cmd)) {
+            if (profiler == null) {
+              profiler = new SamplingProfiler(cpu, cpu.getDisAsm().getMap());
+              registry.registerComponent("samplingProfiler", profiler);
+            }
+            if (context.getArgumentCount() > 1) {
+              int period = context.getArgumentAsInt(1, -1);
+              if (period < 1) {
+                context.err.println("Sample period must be at least one cycle.");
+                return 1;
+              }
+              profiler.setPeriod(period);
+            }
+            profiler.start();
+            context.out.println("Sampling every " + profiler.getPeriod() + " cycles.");
+            return 0;
+          }
+          if (profiler == null) {
+            context.err.println("The sampling profiler has not been started.");
+            return 1;
+          }
+          if ("stop".equals(cmd)) {
+            profiler.stop();
+            context.out.println("Stopped after " + profiler.getSampleCount() + " samples.");
+          } else if ("clear".equals(cmd)) {
+            profiler.clear();
+          } else if ("summary".equals(cmd)) {
+            profiler.printSummary(context.out);
+          } else if ("collapsed".equals(cmd)) {
+            profiler.printCollapsedStacks(context.out);
+          } else {
+            context.err.println("Unknown command: " + cmd);
+            return 1;
+          }
+          return 0;
+        }
+      });
+
       ch.registerCommand("stackprof", new BasicCommand("Start stack profiler", "") {
           public int executeCommand(CommandContext context) {
               new StackMonitor(cpu);
@@ -222,6 +267,10 @@ public class ProfilerCommands implements CommandBundle {
             return 1;
           }
           Profiler profiler = cpu.getProfiler();
+          if (!(profiler instanceof SimpleProfiler)) {
+            context.err.println("Tag profiling requires the simple profiler.");
+            return 1;
+          }
           SimpleProfiler sprof = (SimpleProfiler) profiler;
           sprof.addProfileTag(context.getArgument(2), chipE1, chip1[1],
               chipE2, chip2[1]);
@@ -232,6 +281,10 @@ public class ProfilerCommands implements CommandBundle {
       ch.registerCommand("printtags", new BasicCommand("print tags profile", "") {
         public int executeCommand(CommandContext context) {
           Profiler profiler = cpu.getProfiler();
+          if (!(profiler instanceof SimpleProfiler)) {
+            context.err.println("Tag profiling requires the simple profiler.");
+            return 1;
+          }
           SimpleProfiler sprof = (SimpleProfiler) profiler;
           sprof.printTagProfile(context.out);
           return 0;
@@ -261,7 +314,7 @@ public class ProfilerCommands implements CommandBundle {
           "<command> <arguments>") {
             public int executeCommand(CommandContext context) {
               // TODO: add more API's to the Profiler???
-              SimpleProfiler profiler = (SimpleProfiler) cpu.getProfiler();
+              Profiler profiler = cpu.getProfiler();
               if (profiler == null) {
                 context.err.println("No profiler found.");
                 return 1;
@@ -269,10 +322,19 @@ public class ProfilerCommands implements CommandBundle {
               String cmd = context.getArgument(0);
               if ("hide".equals(cmd)) {
                 for (int j = 1, n = context.getArgumentCount(); j < n; j++) {
-                  profiler.addIgnoreFunction(context.getArgument(j));
+                  if (profiler instanceof SimpleProfiler) {
+                    ((SimpleProfiler) profiler).addIgnoreFunction(context.getArgument(j));
+                  } else if (profiler instanceof ArrayProfiler) {
+                    ((ArrayProfiler) profiler).addIgnoreFunction(context.getArgument(j));
+                  }
                 }
               } else if ("hideirq".equals(cmd)) {
-                profiler.setHideIRQ(context.getArgumentAsBoolean(1));
+                boolean hide = context.getArgumentAsBoolean(1);
+                if (profiler instanceof SimpleProfiler) {
+                  ((SimpleProfiler) profiler).setHideIRQ(hide);
+                } else if (profiler instanceof ArrayProfiler) {
+                  ((ArrayProfiler) profiler).setHideIRQ(hide);
+                }
               }
               return 0;
             }
@@ -159,7 +159,7 @@ public class CC430f5137Config extends MSP430Config {
         return Utils.hex20(addr);
     }
 
-    public ClockSystem createClockSystem(MSP430Core cpu, int[] memory, Timer[] timers) {
+    public ClockSystem createClockSystem(MSP430Core cpu, byte[] memory, Timer[] timers) {
         return new UnifiedClockSystem(cpu, memory, 0, timers);
     }
 
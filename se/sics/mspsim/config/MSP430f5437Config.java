@@ -143,7 +143,7 @@ public class MSP430f5437Config extends MSP430Config {
     }
 
     @Override
-    public ClockSystem createClockSystem(MSP430Core cpu, int[] memory, Timer[] timers) {
+    public ClockSystem createClockSystem(MSP430Core cpu, byte[] memory, Timer[] timers) {
         return new UnifiedClockSystem(cpu, memory, 0, timers);
     }
 
@@ -151,6 +151,7 @@ public class AES128 extends IOUnit {
 	 */
 
 	/* avoid using NIO resources */
+	@Snapshot.State
 	private static class ByteBuffer {
 	    byte[] buffer;
 	    int pos;
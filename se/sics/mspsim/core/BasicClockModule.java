@@ -81,7 +81,7 @@ public class BasicClockModule extends ClockSystem {
    * Creates a new <code>BasicClockModule</code> instance.
    *
    */
-  public BasicClockModule(MSP430Core core, int[] memory, int offset, Timer[] timers, int maxClockSpeed) {
+  public BasicClockModule(MSP430Core core, byte[] memory, int offset, Timer[] timers, int maxClockSpeed) {
 
     super("BasicClockModule", core, memory, offset);
     MAX_DCO_FRQ = maxClockSpeed;
@@ -110,9 +110,9 @@ public class BasicClockModule extends ClockSystem {
 
   // do nothing?
   public int read(int address, boolean word, long cycles) {
-    int val = memory[address];
+    int val = memory[address] & 0xff;
     if (word) {
-      val |= memory[(address + 1) & 0xffff] << 8;
+      val |= (memory[(address + 1) & 0xffff] & 0xff) << 8;
     }
     return val;
   }
@@ -122,8 +122,8 @@ public class BasicClockModule extends ClockSystem {
     if (DEBUG) log("Write to BasicClockModule: " +
 		       Utils.hex16(address) + " => " + Utils.hex16(data));
 
-    memory[address] = data & 0xff;
-    if (word) memory[address + 1] = (data >> 8) & 0xff;
+    memory[address] = (byte) data;
+    if (word) memory[address + 1] = (byte) (data >> 8);
 
 
     switch (address) {
@@ -0,0 +1,293 @@
+package se.sics.mspsim.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Finds hot code by counting taken branches per target address and
+ * translates the instructions starting at hot targets into blocks that the
+ * CPU core can execute without decoding each instruction again.
+ *
+ * A block ends at the first jump or at the first instruction that can not be
+ * translated (calls, returns, MSP430X instructions, writes to PC or SR, etc).
+ * All blocks are dropped when any decoded instruction is invalidated.
+ */
+public class BlockTranslator implements MSP430Constants {
+
+    public static final int HOT_THRESHOLD = 64;
+    public static final int MAX_BLOCK_LENGTH = 32;
+
+    private static final int PAGE_ENTRIES = Memory.SEGMENT_SIZE >> 1;
+
+    private final MSP430Core cpu;
+    private final InstructionCache instructionCache;
+    private final TranslatedBlock[][] blocks;
+    private final int[][] branchCounters;
+    private int cacheVersion;
+    private int blockCount;
+
+    public BlockTranslator(MSP430Core cpu, InstructionCache instructionCache) {
+        this.cpu = cpu;
+        this.instructionCache = instructionCache;
+        this.blocks = new TranslatedBlock[cpu.MAX_MEM >> 8][];
+        this.branchCounters = new int[cpu.MAX_MEM >> 8][];
+        this.cacheVersion = instructionCache.getVersion();
+    }
+
+    public int getBlockCount() {
+        return blockCount;
+    }
+
+    public TranslatedBlock getBlock(int address) {
+        TranslatedBlock[] page = blocks[address >> 8];
+        TranslatedBlock block = page == null ? null : page[(address & 0xff) >> 1];
+        return block == TranslatedBlock.NONE ? null : block;
+    }
+
+    public void clear() {
+        Arrays.fill(blocks, null);
+        Arrays.fill(branchCounters, null);
+        blockCount = 0;
+        cacheVersion = instructionCache.getVersion();
+    }
+
+    void branchTaken(int address) {
+        if (address >= cpu.MAX_MEM) {
+            return;
+        }
+        if (cacheVersion != instructionCache.getVersion()) {
+            clear();
+        }
+        int page = address >> 8;
+        int index = (address & 0xff) >> 1;
+        TranslatedBlock[] blockPage = blocks[page];
+        if (blockPage != null && blockPage[index] != null) {
+            return;
+        }
+        int[] counters = branchCounters[page];
+        if (counters == null) {
+            branchCounters[page] = counters = new int[PAGE_ENTRIES];
+        }
+        if (++counters[index] >= HOT_THRESHOLD) {
+            counters[index] = 0;
+            if (blockPage == null) {
+                blocks[page] = blockPage = new TranslatedBlock[PAGE_ENTRIES];
+            }
+            TranslatedBlock block = translate(address);
+            blockPage[index] = block;
+            if (block != TranslatedBlock.NONE) {
+                blockCount++;
+            }
+        }
+    }
+
+    /**
+     * Executes the translated block starting at the specified address.
+     * Execution stops at the end of the block or before an instruction when
+     * events are due, maxCycles has been reached or the CPU should stop.
+     *
+     * @return the address of the last executed instruction or -1 if no
+     * instruction was executed
+     */
+    int execute(int pc, long maxCycles) throws EmulationException {
+        TranslatedBlock[] page = blocks[pc >> 8];
+        if (page == null) {
+            return -1;
+        }
+        TranslatedBlock block = page[(pc & 0xff) >> 1];
+        if (block == null || block == TranslatedBlock.NONE) {
+            return -1;
+        }
+        if (cacheVersion != instructionCache.getVersion()) {
+            /* Code has been modified - translate again when needed */
+            clear();
+            return -1;
+        }
+
+        TranslatedBlock.Operation[] operations = block.operations;
+        int[] execCounter = cpu.execCounter;
+        long startCycles = cpu.cycles;
+        long operationStartCycles = startCycles;
+        int lastPC = -1;
+        try {
+            for (int i = 0, n = operations.length; i < n; i++) {
+                if (cpu.isStopping) {
+                    break;
+                }
+                if (lastPC >= 0 && (cpu.cycles >= cpu.nextEventCycles
+                        || (maxCycles >= 0 && cpu.cycles >= maxCycles)
+                        || cacheVersion != instructionCache.getVersion())) {
+                    break;
+                }
+                TranslatedBlock.Operation operation = operations[i];
+                operationStartCycles = cpu.cycles;
+                int result = operation.execute(cpu);
+                if (result == TranslatedBlock.Operation.NOT_EXECUTED) {
+                    break;
+                }
+                if (lastPC >= 0 && execCounter != null) {
+                    execCounter[lastPC]++;
+                }
+                lastPC = operation.address;
+                cpu.instruction = operation.instruction;
+                if (result == TranslatedBlock.Operation.EXECUTED_IO && !cpu.canContinueBlock()) {
+                    /* An IO unit has requested an interrupt or changed the execution */
+                    break;
+                }
+            }
+        } catch (EmulationException e) {
+            /* Account for the instructions executed before the failing one as the interpreter would */
+            if (lastPC >= 0) {
+                if (execCounter != null) {
+                    execCounter[lastPC]++;
+                }
+                cpu.cpuCycles += operationStartCycles - startCycles;
+            }
+            throw e;
+        }
+        return lastPC;
+    }
+
+    private TranslatedBlock translate(int address) {
+        ArrayList<TranslatedBlock.Operation> operations = new ArrayList<TranslatedBlock.Operation>();
+        int pc = address;
+        while (operations.size() < MAX_BLOCK_LENGTH) {
+            DecodedInstruction instruction = cpu.getCachedInstruction(pc);
+            if (instruction == null) {
+                break;
+            }
+            TranslatedBlock.Operation operation = createOperation(instruction);
+            if (operation == null) {
+                break;
+            }
+            operations.add(operation);
+            if (operation instanceof TranslatedBlock.Jump) {
+                break;
+            }
+            pc += instruction.size;
+        }
+        if (operations.isEmpty()) {
+            return TranslatedBlock.NONE;
+        }
+        return new TranslatedBlock(address, operations.toArray(new TranslatedBlock.Operation[operations.size()]));
+    }
+
+    private static TranslatedBlock.Operation createOperation(DecodedInstruction decoded) {
+        if (decoded.extWord != 0) {
+            return null;
+        }
+        int instruction = decoded.instruction;
+        switch (instruction >> 12) {
+        case 0:
+            /* MSP430X address instructions */
+            return null;
+        case 1: {
+            int op = instruction & 0xff80;
+            int ad = (instruction >> 4) & 3;
+            int register = instruction & 0xf;
+            if ((op == RRC || op == RRA || op == SWPB || op == SXT) && ad == AM_REG && register > CG2) {
+                return new TranslatedBlock.SingleOperand(decoded, 1);
+            }
+            return null;
+        }
+        case 2:
+        case 3:
+            return new TranslatedBlock.Jump(decoded);
+        default:
+            return createDoubleOperand(decoded);
+        }
+    }
+
+    private static TranslatedBlock.Operation createDoubleOperand(DecodedInstruction decoded) {
+        int instruction = decoded.instruction;
+        int op = instruction >> 12;
+        if (op == DADD) {
+            return null;
+        }
+        boolean word = (instruction & 0x40) == 0;
+        int mask = word ? 0xffff : 0xff;
+        int dstRegister = instruction & 0xf;
+        int srcRegister = (instruction >> 8) & 0xf;
+        int as = (instruction >> 4) & 3;
+        boolean dstRegMode = ((instruction >> 7) & 1) == 0;
+        if (dstRegMode && (dstRegister == PC || dstRegister == SR)) {
+            return null;
+        }
+
+        /* PC as it is when the instruction is executed */
+        int pc = decoded.address + 2;
+        int srcMode;
+        int srcValue = 0;
+        int cycles;
+        if ((srcRegister == CG1 && as > AM_INDEX) || srcRegister == CG2) {
+            srcMode = TranslatedBlock.DoubleOperand.SRC_CONST;
+            srcValue = CREG_VALUES[srcRegister - 2][as] & mask;
+            cycles = dstRegMode ? 1 : 4;
+        } else {
+            switch (as) {
+            case AM_REG:
+                if (srcRegister == PC) {
+                    srcMode = TranslatedBlock.DoubleOperand.SRC_CONST;
+                    srcValue = pc & mask;
+                } else {
+                    srcMode = TranslatedBlock.DoubleOperand.SRC_REG;
+                }
+                cycles = dstRegMode ? 1 : 4;
+                break;
+            case AM_INDEX:
+                if (srcRegister == PC || srcRegister == SR) {
+                    /* symbolic and absolute mode */
+                    int sval = srcRegister == PC ? pc : CREG_VALUES[0][AM_INDEX];
+                    srcMode = TranslatedBlock.DoubleOperand.SRC_ABS;
+                    srcValue = (MSP430Core.convertTwoComplement16(decoded.getArgument(pc)) + sval)
+                            & (sval <= 0xffff ? 0xffff : 0xfffff);
+                } else {
+                    srcMode = TranslatedBlock.DoubleOperand.SRC_INDEX;
+                    srcValue = MSP430Core.convertTwoComplement16(decoded.getArgument(pc));
+                }
+                pc += 2;
+                cycles = dstRegMode ? 3 : 6;
+                break;
+            case AM_IND_REG:
+                if (srcRegister == PC) {
+                    srcMode = TranslatedBlock.DoubleOperand.SRC_ABS;
+                    srcValue = pc;
+                } else {
+                    srcMode = TranslatedBlock.DoubleOperand.SRC_IND;
+                }
+                cycles = dstRegMode ? 2 : 5;
+                break;
+            default:
+                if (srcRegister == PC) {
+                    /* immediate */
+                    srcMode = TranslatedBlock.DoubleOperand.SRC_CONST;
+                    srcValue = decoded.getArgument(pc);
+                    if (!word) {
+                        srcValue &= 0xff;
+                    }
+                    pc += 2;
+                } else {
+                    srcMode = TranslatedBlock.DoubleOperand.SRC_AUTOINC;
+                }
+                cycles = dstRegMode ? 2 : 5;
+                break;
+            }
+        }
+
+        int dstAbsolute = -1;
+        int dstIndex = 0;
+        if (!dstRegMode) {
+            if (dstRegister == SR) {
+                dstAbsolute = decoded.getArgument(pc);
+            } else if (dstRegister == PC) {
+                dstAbsolute = (MSP430Core.convertTwoComplement16(decoded.getArgument(pc)) + pc)
+                        & (pc <= 0xffff ? 0xffff : 0xfffff);
+            } else {
+                dstIndex = MSP430Core.convertTwoComplement16(decoded.getArgument(pc));
+            }
+        }
+        return new TranslatedBlock.DoubleOperand(decoded, cycles, srcMode, srcRegister, srcValue,
+                dstRegMode, dstRegister, dstAbsolute, dstIndex);
+    }
+
+}
@@ -56,13 +56,13 @@ public abstract class Chip implements Loggable, EventSource {
   private ConfigurationChangeListener[] ccListeners;
 
   private EventListener eventListener;
-  protected boolean sendEvents = false;
+  @Snapshot.Exclude protected boolean sendEvents = false;
   private String[] modeNames = null;
   private int mode;
   private int chipState;
   protected EmulationLogger logger;
-  protected boolean DEBUG = false;
-  protected int logLevel;
+  @Snapshot.Exclude protected boolean DEBUG = false;
+  @Snapshot.Exclude protected int logLevel;
 
   public Chip(String id, MSP430Core cpu) {
     this(id, id, cpu);
@@ -0,0 +1,210 @@
+package se.sics.mspsim.core;
+
+/**
+ * A busy-wait loop that polls a timer counter until it reaches a value,
+ * such as while (TAR < t). The loop must be one of
+ *
+ *   cmp x, &TAR        or  cmp &TAR, rn
+ *   jcc loop
+ *
+ *   mov &TAR, rn
+ *   cmp x, rn          or  cmp rn, x  or  sub x, rn
+ *   jcc loop
+ *
+ * where x is a constant or a register that the loop does not change. Each
+ * iteration then only depends on the counter value it reads, which lets the
+ * CPU core find the first counter value that ends the loop and the cycle the
+ * value is read at, without executing the iterations before it.
+ */
+final class CounterPoll implements MSP430Constants {
+
+    private static final int FLAGS = CARRY | ZERO | NEGATIVE | OVERFLOW;
+
+    private final int op;
+    /* True if the counter value is the destination operand of the compare */
+    private final boolean counterIsDst;
+    private final int other;
+    /* The register the counter value is copied to or -1 */
+    private final int copyRegister;
+    private final int jump;
+
+    private CounterPoll(int op, boolean counterIsDst, int other, int copyRegister, int jump) {
+        this.op = op;
+        this.counterIsDst = counterIsDst;
+        this.other = other;
+        this.copyRegister = copyRegister;
+        this.jump = jump;
+    }
+
+    /**
+     * Returns the loop made of the instructions at the specified addresses,
+     * that reads the counter at the specified address, or null if it is not
+     * a supported counter poll.
+     */
+    static CounterPoll decode(MSP430Core cpu, int[] instructions, int length, int counterAddress) {
+        if (length != 2 && length != 3) {
+            return null;
+        }
+        int pc = instructions[0];
+        int copyRegister = -1;
+        if (length == 3) {
+            DecodedInstruction mov = cpu.getCachedInstruction(pc);
+            if (mov == null || !isWordOperation(mov, MOV) || getSourceAddress(mov) != counterAddress
+                    || !isRegister(mov.instruction & 0xf) || (mov.instruction & 0x80) != 0) {
+                return null;
+            }
+            copyRegister = mov.instruction & 0xf;
+            pc += mov.size;
+            if (instructions[1] != pc) {
+                return null;
+            }
+        }
+
+        DecodedInstruction cmp = cpu.getCachedInstruction(pc);
+        if (cmp == null || !(isWordOperation(cmp, CMP) || (copyRegister >= 0 && isWordOperation(cmp, SUB)))) {
+            return null;
+        }
+        int op = cmp.instruction >> 12;
+        int srcRegister = (cmp.instruction >> 8) & 0xf;
+        int as = (cmp.instruction >> 4) & 3;
+        int dstRegister = cmp.instruction & 0xf;
+        boolean dstRegMode = (cmp.instruction & 0x80) == 0;
+        boolean counterIsDst;
+        int other;
+        if (copyRegister < 0 ? !dstRegMode && dstRegister == SR && getDestinationAddress(cmp) == counterAddress
+                : dstRegMode && dstRegister == copyRegister) {
+            /* cmp x, &TAR or cmp x, rn or sub x, rn */
+            counterIsDst = true;
+            other = getSourceValue(cpu, cmp, copyRegister);
+        } else if (dstRegMode && isRegister(dstRegister) && dstRegister != copyRegister && op == CMP
+                && (copyRegister < 0 ? getSourceAddress(cmp) == counterAddress
+                        : as == AM_REG && srcRegister == copyRegister)) {
+            /* cmp &TAR, rn or cmp rn, x */
+            counterIsDst = false;
+            other = cpu.reg[dstRegister] & 0xffff;
+        } else {
+            return null;
+        }
+        if (other < 0) {
+            return null;
+        }
+        pc += cmp.size;
+
+        DecodedInstruction jmp = cpu.getCachedInstruction(pc);
+        if (jmp == null || instructions[length - 1] != pc || jmp.extWord != 0) {
+            return null;
+        }
+        int jump = jmp.instruction & 0xfc00;
+        int offset = jmp.instruction & 0x3ff;
+        offset = (offset & 0x200) == 0 ? 2 * offset : -(2 * (0x200 - (offset & 0x1ff)));
+        if ((jmp.instruction >> 13) != 1 || jump == JMP || pc + 2 + offset != instructions[0]) {
+            return null;
+        }
+        return new CounterPoll(op, counterIsDst, other, copyRegister, jump);
+    }
+
+    /**
+     * Returns true if the loop continues when the counter has the specified
+     * value.
+     */
+    boolean continues(int value) {
+        int sr = getFlags(value);
+        switch (jump) {
+        case JNE:
+            return (sr & ZERO) == 0;
+        case JEQ:
+            return (sr & ZERO) != 0;
+        case JNC:
+            return (sr & CARRY) == 0;
+        case JC:
+            return (sr & CARRY) != 0;
+        case JN:
+            return (sr & NEGATIVE) != 0;
+        case JGE:
+            return (sr & NEGATIVE) != 0 == ((sr & OVERFLOW) != 0);
+        default:
+            /* JL */
+            return (sr & NEGATIVE) != 0 != ((sr & OVERFLOW) != 0);
+        }
+    }
+
+    /**
+     * Sets the registers as they are after an iteration that read the
+     * specified counter value.
+     */
+    void apply(int[] reg, int value) {
+        if (copyRegister >= 0) {
+            reg[copyRegister] = op == SUB ? getResult(value) : value;
+        }
+        reg[SR] = (reg[SR] & ~FLAGS) | getFlags(value);
+    }
+
+    /* Same as MSP430Core.emulateOP() for CMP and SUB */
+    private int getFlags(int value) {
+        int dst = counterIsDst ? value : other;
+        int src = counterIsDst ? other : value;
+        int sr;
+        if (op == CMP) {
+            sr = dst >= src ? CARRY : 0;
+            int tmp = dst - src;
+            if (((src ^ tmp) & 0x8000) == 0 && ((src ^ dst) & 0x8000) != 0) {
+                sr |= OVERFLOW;
+            }
+        } else {
+            src ^= 0xffff;
+            int tmp = dst + src + 1;
+            sr = tmp > 0xffff ? CARRY : 0;
+            if (((src ^ dst) & 0x8000) == 0 && ((src ^ tmp) & 0x8000) != 0) {
+                sr |= OVERFLOW;
+            }
+        }
+        int result = getResult(value);
+        return sr | (result == 0 ? ZERO : 0) | ((result & 0x8000) != 0 ? NEGATIVE : 0);
+    }
+
+    private int getResult(int value) {
+        return counterIsDst ? (value - other) & 0xffff : (other - value) & 0xffff;
+    }
+
+    private static boolean isWordOperation(DecodedInstruction decoded, int op) {
+        return decoded.extWord == 0 && (decoded.instruction >> 12) == op && (decoded.instruction & 0x40) == 0;
+    }
+
+    /* Registers that hold plain values */
+    private static boolean isRegister(int register) {
+        return register == SP || register > CG2;
+    }
+
+    /* The address of an absolute source operand or -1 */
+    private static int getSourceAddress(DecodedInstruction decoded) {
+        int srcRegister = (decoded.instruction >> 8) & 0xf;
+        int as = (decoded.instruction >> 4) & 3;
+        return srcRegister == SR && as == AM_INDEX ? decoded.arg1 & 0xffff : -1;
+    }
+
+    /* The address of an absolute destination operand */
+    private static int getDestinationAddress(DecodedInstruction decoded) {
+        int srcRegister = (decoded.instruction >> 8) & 0xf;
+        int as = (decoded.instruction >> 4) & 3;
+        boolean srcArgument = (as == AM_INDEX && srcRegister != CG2)
+                || (as == AM_IND_AUTOINC && srcRegister == PC);
+        return (srcArgument ? decoded.arg2 : decoded.arg1) & 0xffff;
+    }
+
+    /* The value of a constant or register source operand other than the excluded register, or -1 */
+    private static int getSourceValue(MSP430Core cpu, DecodedInstruction decoded, int excluded) {
+        int srcRegister = (decoded.instruction >> 8) & 0xf;
+        int as = (decoded.instruction >> 4) & 3;
+        if ((srcRegister == CG1 && as > AM_INDEX) || srcRegister == CG2) {
+            return CREG_VALUES[srcRegister - 2][as] & 0xffff;
+        }
+        if (srcRegister == PC && as == AM_IND_AUTOINC) {
+            return decoded.arg1 & 0xffff;
+        }
+        if (as == AM_REG && isRegister(srcRegister) && srcRegister != excluded) {
+            return cpu.reg[srcRegister] & 0xffff;
+        }
+        return -1;
+    }
+
+}
@@ -36,6 +36,7 @@ public class DMA extends IOUnit {
     
     private InterruptMultiplexer interruptMultiplexer;
     
+    @Snapshot.State
     class Channel implements InterruptHandler {
         int channelNo;
         /* public registers */
@@ -131,13 +132,13 @@ public class DMA extends IOUnit {
             /* perform memory move and possibly clear triggering flag!!! */
             /* NOTE: show config byte/word also !!! */
             if (enable) {
-                int data = cpu.currentSegment.read(currentSourceAddress, Memory.AccessMode.BYTE, Memory.AccessType.READ);
+                int data = cpu.readMemory(currentSourceAddress, Memory.AccessMode.BYTE, Memory.AccessType.READ);
                 if (DEBUG) log("DMA Triggered reading from: " +
                         currentSourceAddress + " => " + data + " " + (char) data +
                         " size:" + size + " index:" + index);
                 // flag already cleared by the memory read above
 //                trigger.clearDMATrigger(index);
-                DMA.this.cpu.currentSegment.write(currentDestinationAddress, data, Memory.AccessMode.BYTE);
+                DMA.this.cpu.writeMemory(currentDestinationAddress, data, Memory.AccessMode.BYTE);
                 
                 currentSourceAddress += srcIncr;
                 currentDestinationAddress += dstIncr;
@@ -182,7 +183,7 @@ public class DMA extends IOUnit {
     private DMATrigger[] dmaTrigger = new DMATrigger[16];
     private int[] dmaTriggerIndex = new int[16];
     
-    public DMA(String id, MSP430Core cpu, int[] memory, int offset) {
+    public DMA(String id, MSP430Core cpu, byte[] memory, int offset) {
         super(id, cpu, memory, offset);
         channels[0] = new Channel(0);
         channels[1] = new Channel(1);
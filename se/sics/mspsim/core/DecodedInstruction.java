@@ -0,0 +1,158 @@
+package se.sics.mspsim.core;
+
+import se.sics.mspsim.util.Utils;
+
+/**
+ * An instruction as fetched by the CPU core: the instruction word, the fields
+ * of an optional MSP430X extension word and the argument words (index,
+ * absolute address or immediate) that follow the instruction. The operands
+ * are decoded from the instruction word when it is executed.
+ *
+ * Instructions that can not be cached are fetched into one instance per CPU
+ * core that is overwritten by the next fetch. Cached instances are never
+ * changed.
+ */
+public class DecodedInstruction implements MSP430Constants {
+
+    /* Extension word + instruction + two argument words */
+    public static final int MAX_SIZE = 8;
+
+    public int address;
+    public int instruction;
+    public int size;
+
+    /* MSP430X extension word - zero if none */
+    public int extWord;
+    public int ext3_0;
+    public int extSrc;
+    public int extDst;
+    public boolean repeatsInDstReg;
+    public boolean wordx20;
+
+    /* The argument words in the order they follow the instruction */
+    public int arg1;
+    public int arg2;
+    private int argAddress;
+
+    DecodedInstruction() {
+    }
+
+    /* A copy of the instruction that can be cached */
+    DecodedInstruction(DecodedInstruction decoded) {
+        address = decoded.address;
+        instruction = decoded.instruction;
+        size = decoded.size;
+        extWord = decoded.extWord;
+        ext3_0 = decoded.ext3_0;
+        extSrc = decoded.extSrc;
+        extDst = decoded.extDst;
+        repeatsInDstReg = decoded.repeatsInDstReg;
+        wordx20 = decoded.wordx20;
+        arg1 = decoded.arg1;
+        arg2 = decoded.arg2;
+        argAddress = decoded.argAddress;
+    }
+
+    void set(int address, int extWord, int instruction, int arg1, int arg2, int argCount) {
+        this.address = address;
+        this.extWord = extWord;
+        this.instruction = instruction;
+        this.arg1 = arg1;
+        this.arg2 = arg2;
+        this.argAddress = address + (extWord != 0 ? 4 : 2);
+        this.size = argAddress - address + argCount * 2;
+        if (extWord != 0) {
+            ext3_0 = extWord & 0xf; /* bit 3 - 0 - either repeat count or dest 19-16 */
+            extSrc = ((extWord >> 7) & 0xf) << 16; /* bit 10 - 7 - src 19-16 */
+            extDst = ext3_0 << 16;
+            // Bit 7 in the extension word indicates that the number of
+            // repeats is found in the register pointed to by ext3_0. If
+            // the bit is 0, ext3_0 contains the number of repeats. If the
+            // bit is 1, ext3_0 contains the register number that holds
+            // the number of repeats.
+            repeatsInDstReg = (extWord & EXTWORD_REPEAT) == EXTWORD_REPEAT;
+            // Bit 6 indicates whether or not the data length mode should
+            // be 20 bits. A one means traditional MSP430 mode; a zero
+            // indicates 20 bit mode. (XXX: there is a reserved data
+            // length mode if this bit is zero and the MSP430 instruction
+            // that follows the extension word also has a zero bit data
+            // length mode.)
+            wordx20 = (extWord & EXTWORD_AL) == 0;
+        } else {
+            ext3_0 = 0;
+            extSrc = 0;
+            extDst = 0;
+            repeatsInDstReg = false;
+            wordx20 = false;
+        }
+    }
+
+    /**
+     * Returns the argument word stored at the specified address.
+     */
+    public int getArgument(int address) {
+        if (address == argAddress) {
+            return arg1;
+        }
+        if (address == argAddress + 2 && size - (argAddress - this.address) > 2) {
+            return arg2;
+        }
+        throw new EmulationException("No argument at $" + Utils.hex(address, 4)
+                + " for instruction $" + Utils.hex16(instruction) + " at $" + Utils.hex(this.address, 4));
+    }
+
+    public static boolean isExtensionWord(int word) {
+        return (word & 0xf800) == 0x1800;
+    }
+
+    /**
+     * Returns the number of argument words that follows the specified
+     * instruction word.
+     */
+    public static int getArgumentCount(int instruction) {
+        switch (instruction >> 12) {
+        case 0:
+            switch (instruction & 0xf0f0) {
+            case MOVA_ABS2REG:
+            case MOVA_INDX2REG:
+            case MOVA_REG2ABS:
+            case MOVA_REG2INDX:
+            case MOVA_IMM2REG:
+            case ADDA_IMM:
+            case CMPA_IMM:
+            case SUBA_IMM:
+                return 1;
+            default:
+                return 0;
+            }
+        case 1: {
+            int op = instruction & CALLA_MASK;
+            if (op > RETI) {
+                return (op == CALLA_INDEX || op == CALLA_IMM || op == CALLA_ABS) ? 1 : 0;
+            }
+            int dstRegister = instruction & 0xf;
+            int ad = (instruction >> 4) & 3;
+            if ((dstRegister == CG1 && ad > AM_INDEX) || dstRegister == CG2) {
+                return 0;
+            }
+            return (ad == AM_INDEX || (ad == AM_IND_AUTOINC && dstRegister == PC)) ? 1 : 0;
+        }
+        case 2:
+        case 3:
+            return 0;
+        default: {
+            int count = (instruction & 0x80) != 0 ? 1 : 0;
+            int srcRegister = (instruction >> 8) & 0xf;
+            int as = (instruction >> 4) & 3;
+            if ((srcRegister == CG1 && as > AM_INDEX) || srcRegister == CG2) {
+                return count;
+            }
+            if (as == AM_INDEX || (as == AM_IND_AUTOINC && srcRegister == PC)) {
+                count++;
+            }
+            return count;
+        }
+        }
+    }
+
+}
@@ -42,10 +42,20 @@
 package se.sics.mspsim.core;
 
 import java.io.PrintStream;
+import java.util.Arrays;
 
+/**
+ * Priority queue of time events implemented as a binary heap. Each event
+ * keeps its position in the heap so that it can be removed or rescheduled
+ * in O(log n) without searching.
+ *
+ * Events scheduled at the same time are executed in reverse scheduling order,
+ * i.e. the most recently scheduled event first.
+ */
 public class EventQueue {
 
-  private TimeEvent first;
+  private TimeEvent[] heap = new TimeEvent[16];
+  private long sequence;
   public long nextTime;
   public int eventCount = 0;
 
@@ -58,114 +68,128 @@ public class EventQueue {
   }
 
   public void addEvent(TimeEvent event) {
+    if (event.scheduledIn == this) {
+      /* Already in this queue - just move it to its new position */
+      event.sequence = ++sequence;
+      int index = event.queueIndex;
+      siftUp(index, event);
+      if (heap[index] == event) {
+        siftDown(index, event);
+      }
+      nextTime = heap[0].time;
+      return;
+    }
     if (event.scheduledIn != null) {
       event.remove();
     }
-    if (first == null) {
-      first = event;
-    } else {
-      TimeEvent pos = first;
-      TimeEvent lastPos = first;
-      while (pos != null && pos.time < event.time) {
-        lastPos = pos;
-        pos = pos.nextEvent;
-      }
-      // Here pos will be the first TE after event
-      // and lastPos the first before
-      if (pos == first) {
-        // Before all other
-        event.nextEvent = pos;
-        first = event;
-      } else {
-        event.nextEvent = pos;
-        lastPos.nextEvent = event;
-      }
-    }
-    if (first != null) {
-      nextTime = first.time;
-    } else {
-      nextTime = 0;
+    if (eventCount == heap.length) {
+      heap = Arrays.copyOf(heap, eventCount * 2);
     }
+    event.sequence = ++sequence;
     event.scheduledIn = this;
-    eventCount++;
+    siftUp(eventCount++, event);
+    nextTime = heap[0].time;
   }
 
-  // Not yet impl.
   public boolean removeEvent(TimeEvent event) {
-    TimeEvent pos = first;
-    TimeEvent lastPos = first;
-//  System.out.println("Removing: " + event.getShort() + "  Before remove: ");
-//  print();
-    while (pos != null && pos != event) {
-      lastPos = pos;
-      pos = pos.nextEvent;
-    }
-    if (pos == null) return false;
-    // pos == event!
-    if (pos == first) {
-      // remove it from first pos.
-      first = pos.nextEvent;
-    } else {
-      // else link prev to next...
-      lastPos.nextEvent = pos.nextEvent;
+    if (event.scheduledIn != this) {
+      return false;
     }
-    // unlink
-    pos.nextEvent = null;
-
-    if (first != null) {
-      nextTime = first.time;
-    } else {
-      nextTime = 0;
-    }
-//  System.out.println("Removed =>");
-//  print();
-    event.scheduledIn = null;
-    eventCount--;
+    removeAt(event.queueIndex);
     return true;
   }
 
   public TimeEvent popFirst() {
-    TimeEvent tmp = first;
-    if (tmp != null) {
-      first = tmp.nextEvent;
-      // Unlink.
-      tmp.nextEvent = null;
-
-      // No longer scheduled!
-      tmp.scheduledIn = null;
-
-      eventCount--;
-    }
-
-    if (first != null) {
-      nextTime = first.time;
-    } else {
+    if (eventCount == 0) {
       nextTime = 0;
+      return null;
     }
+    TimeEvent tmp = heap[0];
+    removeAt(0);
     return tmp;
   }
 
   public void removeAll() {
-    TimeEvent t = first;
-    while(t != null) {
-      TimeEvent clr = t;
-      t = t.nextEvent;
-      clr.nextEvent = null;
+    for (int i = 0; i < eventCount; i++) {
+      TimeEvent clr = heap[i];
+      heap[i] = null;
+      clr.queueIndex = -1;
       clr.time = 0;
       clr.scheduledIn = null;
     }
-    first = null;
     eventCount = 0;
   }
-  
+
+  /* Returns the scheduled events in execution order */
+  public TimeEvent[] getEvents() {
+    TimeEvent[] events = Arrays.copyOf(heap, eventCount);
+    Arrays.sort(events, (a, b) -> a == b ? 0 : (isBefore(a, b) ? -1 : 1));
+    return events;
+  }
+
   public void print(PrintStream out) {
-    TimeEvent t = first;
+    TimeEvent[] events = getEvents();
     out.print("nxt: " + nextTime + " [");
-    while(t != null) {
-      out.print(t.getShort());
-      t = t.nextEvent;
-      if (t != null) out.print(", ");
+    for (int i = 0; i < events.length; i++) {
+      if (i > 0) out.print(", ");
+      out.print(events[i].getShort());
     }
     out.println("]");
   }
-} // LLEventQueue
+
+  private void removeAt(int index) {
+    TimeEvent event = heap[index];
+    int last = --eventCount;
+    TimeEvent moved = heap[last];
+    heap[last] = null;
+    if (index != last) {
+      siftDown(index, moved);
+      if (heap[index] == moved) {
+        siftUp(index, moved);
+      }
+    }
+    event.queueIndex = -1;
+    event.scheduledIn = null;
+    nextTime = eventCount > 0 ? heap[0].time : 0;
+  }
+
+  private void siftUp(int index, TimeEvent event) {
+    while (index > 0) {
+      int parent = (index - 1) >>> 1;
+      TimeEvent p = heap[parent];
+      if (!isBefore(event, p)) {
+        break;
+      }
+      heap[index] = p;
+      p.queueIndex = index;
+      index = parent;
+    }
+    heap[index] = event;
+    event.queueIndex = index;
+  }
+
+  private void siftDown(int index, TimeEvent event) {
+    int half = eventCount >>> 1;
+    while (index < half) {
+      int child = (index << 1) + 1;
+      TimeEvent c = heap[child];
+      int right = child + 1;
+      if (right < eventCount && isBefore(heap[right], c)) {
+        c = heap[child = right];
+      }
+      if (!isBefore(c, event)) {
+        break;
+      }
+      heap[index] = c;
+      c.queueIndex = index;
+      index = child;
+    }
+    heap[index] = event;
+    event.queueIndex = index;
+  }
+
+  private static boolean isBefore(TimeEvent a, TimeEvent b) {
+    return a.time < b.time || (a.time == b.time && a.sequence > b.sequence);
+  }
+
+} // EventQueue
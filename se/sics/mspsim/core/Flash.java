@@ -178,15 +178,15 @@ public class Flash extends IOUnit {
     }
   };
   
-  public Flash(MSP430Core cpu, int[] memory, FlashRange main_range,
+  public Flash(MSP430Core cpu, byte[] memory, FlashRange main_range,
       FlashRange info_range, int offset) {
     super("Flash", "Internal Flash", cpu, memory, offset);
     this.main_range = main_range;
     this.info_range = info_range;
     locked = true;
 
-    Arrays.fill(memory, main_range.start, main_range.end, 0xff);
-    Arrays.fill(memory, info_range.start, info_range.end, 0xff);
+    Arrays.fill(memory, main_range.start, main_range.end, (byte) 0xff);
+    Arrays.fill(memory, info_range.start, info_range.end, (byte) 0xff);
 
     reset(MSP430.RESET_POR);
   }
@@ -292,9 +292,11 @@ public class Flash extends IOUnit {
 	    ": erasing area " + Utils.hex(area_start, 4) + "-" +
 	    Utils.hex(area_end, 4));
       }
+      cpu.unshareMemory(area_start, area_end);
       for (int i = area_start; i < area_end; i++) {
-	memory[i] = 0xff;
+	memory[i] = (byte) 0xff;
       }
+      cpu.instructionCache.invalidate(area_start, area_end - area_start);
       waitFlashProcess(SEGMENT_ERASE_TIME);
       break;
       
@@ -302,19 +304,24 @@ public class Flash extends IOUnit {
       if (! main_range.isInRange(address)) {
 	return;
       }
+      cpu.unshareMemory(main_range.start, main_range.end);
       for (int i = main_range.start; i < main_range.end; i++) {
-	memory[i] = 0xff;
+	memory[i] = (byte) 0xff;
       }
+      cpu.instructionCache.invalidate(main_range.start, main_range.end - main_range.start);
       waitFlashProcess(MASS_ERASE_TIME);
       break;
       
     case ERASE_ALL:
+      cpu.unshareMemory(main_range.start, main_range.end);
+      cpu.unshareMemory(info_range.start, info_range.end);
       for (int i = main_range.start; i < main_range.end; i++) {
-	memory[i] = 0xff;
+	memory[i] = (byte) 0xff;
       }
       for (int i = info_range.start; i < main_range.end; i++) {
-	memory[i] = 0xff;
+	memory[i] = (byte) 0xff;
       }
+      cpu.instructionCache.clear();
       waitFlashProcess(MASS_ERASE_TIME);
       break;
     case WRITE_SINGLE:
@@ -338,6 +345,7 @@ public class Flash extends IOUnit {
         wait_time = WRITE_TIME;
       }
       /* Flash memory allows clearing bits only */
+      cpu.unshareMemory(address, address + dataMode.bytes);
       memory[address] &= data & 0xff;
       if (dataMode != AccessMode.BYTE) {
           memory[address + 1] &= (data >> 8) & 0xff;
@@ -347,6 +355,7 @@ public class Flash extends IOUnit {
               memory[address + 3] &= (data >> 24) & 0xff;
           }
       }
+      cpu.instructionCache.invalidate(address, dataMode.bytes);
       if (DEBUG) {
         log("Writing $" + Utils.hex20(data) + " to $" + Utils.hex(address, 4) + " (" + dataMode.bytes + " bytes)");
       }
@@ -397,6 +406,12 @@ public class Flash extends IOUnit {
     end[0] = start[0] + segsize;
   }
   
+  @Override
+  public boolean isPollable(int address) {
+    /* The busy flag is cleared by a time event */
+    return true;
+  }
+
   public int read(int address, boolean word, long cycles) {
     address = address - offset;
       
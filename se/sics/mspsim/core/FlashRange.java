@@ -34,6 +34,7 @@
  */
 package se.sics.mspsim.core;
 
+@Snapshot.State
 public class FlashRange {
   public int start;
   public int end;
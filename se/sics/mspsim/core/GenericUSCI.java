@@ -88,7 +88,7 @@ public class GenericUSCI extends IOUnit implements DMATrigger, USARTSource {
 	
 	private ArrayDeque<Integer> txBuffer = new ArrayDeque<Integer>(100);
 
-    public GenericUSCI(MSP430Core cpu, int uartIndex, int[] memory, MSP430Config config) {
+    public GenericUSCI(MSP430Core cpu, int uartIndex, byte[] memory, MSP430Config config) {
         super(config.uartConfig[uartIndex].name, cpu, memory, config.uartConfig[uartIndex].offset);
         /* do some stuff ? */
         
@@ -345,6 +345,12 @@ public class GenericUSCI extends IOUnit implements DMATrigger, USARTSource {
       }
     }
 
+    @Override
+    public boolean isPollable(int address) {
+        /* Reading the receive buffer clears the interrupt flag */
+        return address - offset != RXBUF;
+    }
+
     public int read(int address, boolean word, long cycles) {
         int op = address - offset;
         switch (op) {
@@ -86,14 +86,14 @@ public class IOPort extends IOUnit {
      * Creates a new <code>IOPort</code> instance.
      *
      */
-    public IOPort(MSP430Core cpu, int port, int interrupt, int[] memory, int offset) {
+    public IOPort(MSP430Core cpu, int port, int interrupt, byte[] memory, int offset) {
         this(cpu, port, interrupt, memory, offset,
                 interrupt == 0 ? PORTMAP_NO_INTERRUPT : PORTMAP_INTERRUPT);
     }
 
     /* Create an IOPort with a special PortMap */
     public IOPort(MSP430Core cpu, int port,
-            int interrupt, int[] memory, int offset, PortReg[] portMap) {
+            int interrupt, byte[] memory, int offset, PortReg[] portMap) {
         super("P" + port, "Port " + port, cpu, memory, offset);
         this.port = port;
         this.interrupt = interrupt;
@@ -336,6 +336,13 @@ public class IOPort extends IOUnit {
     }
 
 
+    @Override
+    public boolean isPollable(int address) {
+        /* Reading the interrupt vector clears the highest interrupt flag */
+        PortReg reg = portMap[address - offset];
+        return reg != PortReg.IV_L && reg != PortReg.IV_H;
+    }
+
     public int read(int address, boolean word, long cycles) {
         PortReg reg = portMap[address - offset];
         /* only byte read allowed if not having an ioPair */
@@ -1,6 +1,7 @@
 package se.sics.mspsim.core;
 
 import java.util.Arrays;
+import java.util.List;
 import se.sics.mspsim.util.Utils;
 
 public class IOSegment implements Memory {
@@ -32,6 +33,33 @@ public class IOSegment implements Memory {
         }
     }
 
+    /* Adds the IO units not already in the list, in address order */
+    void addIOUnits(List<Object> units) {
+        IOUnit last = null;
+        for (IOUnit io : mem) {
+            if (io != last && !units.contains(io)) {
+                units.add(io);
+            }
+            last = io;
+        }
+    }
+
+    /* True if the IO registers can be polled in busy-wait loops, see IOUnit.isPollable() */
+    boolean isPollable(int address, AccessMode mode) {
+        return mem[address].isPollable(address)
+                && (mode != AccessMode.WORD20 || mem[address + 2].isPollable(address + 2));
+    }
+
+    /* The value of a counter register at the cycle or -1, see IOUnit.getCounter() */
+    long getCounter(int address, long cycles) {
+        return mem[address].getCounter(address, cycles);
+    }
+
+    /* Reads a word as it was read at the specified cycle */
+    int read(int address, long cycles) {
+        return mem[address].read(address, true, cycles);
+    }
+
     @Override
     public int read(int address, AccessMode mode, AccessType type) throws EmulationException {
         boolean word = mode != AccessMode.BYTE;
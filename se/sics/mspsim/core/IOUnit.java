@@ -41,7 +41,7 @@ import se.sics.mspsim.core.EmulationLogger.WarningType;
 public abstract class IOUnit implements InterruptHandler, Loggable {
 
   protected final MSP430Core cpu;
-  protected final int[] memory;
+  protected final byte[] memory;
   protected final int offset;
 
   protected final String id;
@@ -49,16 +49,16 @@ public abstract class IOUnit implements InterruptHandler, Loggable {
 
   private StateChangeListener stateListener;
   private int ioState;
-  protected int logLevel;
-  protected boolean DEBUG = false;
+  @Snapshot.Exclude protected int logLevel;
+  @Snapshot.Exclude protected boolean DEBUG = false;
 
   protected EmulationLogger logger;
 
-  public IOUnit(String id, MSP430Core cpu, int[] memory, int offset) {
+  public IOUnit(String id, MSP430Core cpu, byte[] memory, int offset) {
     this(id, id, cpu, memory, offset);
   }
 
-  public IOUnit(String id, String name, MSP430Core cpu, int[] memory, int offset) {
+  public IOUnit(String id, String name, MSP430Core cpu, byte[] memory, int offset) {
     this.id = id;
     this.name = name;
     this.cpu = cpu;
@@ -114,6 +114,29 @@ public abstract class IOUnit implements InterruptHandler, Loggable {
   // read a value from the IO unit
   public abstract int read(int address, boolean word, long cycles);
 
+  /**
+   * Returns true if reading the address has no side effects and the value
+   * can only change when the IO unit is written, by time events or by
+   * interrupts. Busy-wait loops that only poll such addresses are skipped
+   * until the next event. Values calculated from the cycles, such as timer
+   * counters, are not pollable.
+   */
+  public boolean isPollable(int address) {
+      return false;
+  }
+
+  /**
+   * Returns the value that a read of the counter register at the address
+   * returns at the specified cycle, before it wraps to the register size,
+   * or -1 if the address is not a counter that counts up with the cycles.
+   * The value is only valid until the IO unit is written or has an event,
+   * and the counter is not updated. Busy-wait loops that poll a counter
+   * until it reaches a value are skipped to the cycle the value is read.
+   */
+  public long getCounter(int address, long cycles) {
+      return -1;
+  }
+
   public String getID() {
       return id;
   }
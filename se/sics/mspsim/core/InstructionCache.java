@@ -0,0 +1,102 @@
+package se.sics.mspsim.core;
+
+import java.util.Arrays;
+
+/**
+ * Keeps fetched instructions per address so that the CPU core does not need
+ * to read the instruction and argument words from memory every time the
+ * instruction is executed. The operands, addressing modes and cycles are
+ * still decoded by the CPU core for each execution.
+ * The cache is split into pages of Memory.SEGMENT_SIZE bytes which are only
+ * allocated for memory that has been executed.
+ *
+ * All writes to memory that might contain code must invalidate the cache.
+ */
+public class InstructionCache {
+
+    private static final int PAGE_ENTRIES = Memory.SEGMENT_SIZE >> 1;
+
+    private final DecodedInstruction[][] pages;
+
+    private int entryCount;
+
+    /* Changed every time decoded instructions are removed */
+    private int version;
+
+    public InstructionCache(int maxMem) {
+        pages = new DecodedInstruction[maxMem >> 8][];
+    }
+
+    public DecodedInstruction get(int address) {
+        DecodedInstruction[] page = pages[address >> 8];
+        return page == null ? null : page[(address & 0xff) >> 1];
+    }
+
+    public void put(DecodedInstruction instruction) {
+        int address = instruction.address;
+        DecodedInstruction[] page = pages[address >> 8];
+        if (page == null) {
+            pages[address >> 8] = page = new DecodedInstruction[PAGE_ENTRIES];
+        }
+        if (page[(address & 0xff) >> 1] == null) {
+            entryCount++;
+        }
+        page[(address & 0xff) >> 1] = instruction;
+    }
+
+    public int getEntryCount() {
+        return entryCount;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * Removes all decoded instructions that overlap the specified memory range.
+     */
+    public void invalidate(int address, int size) {
+        /* An instruction starting up to MAX_SIZE - 1 bytes before the address may overlap it */
+        int start = address - DecodedInstruction.MAX_SIZE + 1;
+        if (start < 0) {
+            start = 0;
+        }
+        int last = address + size - 1;
+        if (last >> 8 >= pages.length) {
+            last = (pages.length << 8) - 1;
+        }
+        if (pages[start >> 8] == null && pages[last >> 8] == null
+                && (last >> 8) - (start >> 8) <= 1) {
+            /* Nothing has been executed in this memory area */
+            return;
+        }
+        invalidateRange(start & ~1, address, last);
+    }
+
+    private void invalidateRange(int start, int address, int last) {
+        int a = start;
+        while (a <= last) {
+            DecodedInstruction[] page = pages[a >> 8];
+            if (page == null) {
+                /* Nothing cached in this page - continue with the next */
+                a = (a & ~0xff) + Memory.SEGMENT_SIZE;
+                continue;
+            }
+            int index = (a & 0xff) >> 1;
+            DecodedInstruction i = page[index];
+            if (i != null && a + i.size > address) {
+                page[index] = null;
+                entryCount--;
+                version++;
+            }
+            a += 2;
+        }
+    }
+
+    public void clear() {
+        Arrays.fill(pages, null);
+        entryCount = 0;
+        version++;
+    }
+
+}
@@ -36,7 +36,11 @@
  */
 
 package se.sics.mspsim.core;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.PrintStream;
+import java.util.concurrent.locks.LockSupport;
 
 import se.sics.mspsim.profiler.SimpleProfiler;
 import se.sics.mspsim.util.ArrayUtils;
@@ -45,20 +49,37 @@ import se.sics.mspsim.util.MapTable;
 
 public class MSP430 extends MSP430Core {
 
-  private int[] execCounter;
-  private int[] trace;
-  private int tracePos;
+  @Snapshot.Exclude private int[] trace;
+  @Snapshot.Exclude private int tracePos;
   
-  private boolean debug = false;
-  private boolean running = false;
-  private boolean isBreaking = false;
-  private double rate = 2.0;
+  @Snapshot.Exclude private boolean debug = false;
+  @Snapshot.Exclude private boolean stepping = false;
+  @Snapshot.Exclude private boolean running = false;
+  @Snapshot.Exclude private boolean isBreaking = false;
+  @Snapshot.Exclude private double rate = 2.0;
+
+  /* Real-time pacing - emulated time is compared with the wall clock
+   * every PACE_PERIOD_NANOS of emulated time. */
+  public static final double MIN_EXECUTION_RATE = 0.1;
+  public static final double MAX_EXECUTION_RATE = 100.0;
+  private static final long PACE_PERIOD_NANOS = 1000000L;
+  /* Give up catching up when running this far behind the wall clock */
+  private static final long PACE_MAX_LAG_NANOS = 200000000L;
+  /* Sleep at most this long at a time so that stop() is noticed */
+  private static final long PACE_MAX_PARK_NANOS = 10000000L;
+  private static final long SPEED_WINDOW_NANOS = 500000000L;
+  @Snapshot.Exclude private volatile boolean paceReset = true;
+  @Snapshot.Exclude private long paceStartNanos;
+  @Snapshot.Exclude private double paceStartMillis;
+  @Snapshot.Exclude private long nextPace;
+  @Snapshot.Exclude private long speedStartNanos;
+  @Snapshot.Exclude private double speedStartMillis;
+  @Snapshot.Exclude private double achievedRate;
 
   // Debug time - measure cycles
   private long lastCycles = 0;
   private long lastCpuCycles = 0;
   private long time;
-  private long nextSleep = 0;
   private long nextOut = 0;
 
   private double lastCPUPercent = 0d;
@@ -92,6 +113,7 @@ public class MSP430 extends MSP430Core {
     try {
         // ??? - power-up  should be executed?!
         time = System.currentTimeMillis();
+        paceReset = true;
         run();
     } finally {
         setRunning(false);
@@ -111,6 +133,10 @@ public class MSP430 extends MSP430Core {
 	if (execCounter != null) {
 	  execCounter[pc]++;
 	}
+	TraceRecorder recorder = traceRecorder;
+	if (recorder != null) {
+	  recorder.recordInstruction(pc, cycles, reg[SR]);
+	}
 	if (trace != null) {
 	    trace[tracePos++] = pc;
 	    if (tracePos >= trace.length)
@@ -128,15 +154,8 @@ public class MSP430 extends MSP430Core {
 	}
       }
 
-      /* Just a test to see if it gets down to a reasonable speed */
-      if (cycles > nextSleep) {
-	try {
-	  Thread.sleep(100);
-	} catch (Exception e) {
-	}
-	// Frequency = 100 * cycles ratio
-	// Ratio = Frq / 100
-	nextSleep = cycles + (long)(rate * dcoFrq / 10);
+      if (cycles >= nextPace) {
+        pace();
       }
 
 //       if ((instruction & 0xff80) == CALL) {
@@ -146,6 +165,44 @@ public class MSP430 extends MSP430Core {
     isStopping = isBreaking = false;
   }
 
+  /* Keeps emulated time at rate times the wall clock. The comparison is
+   * done in small batches so the pacing never lags by more than a batch. */
+  private void pace() {
+    long now = System.nanoTime();
+    double millis = getTimeMillis();
+    nextPace = cycles + Math.max(1, dcoFrq / (1000000000L / PACE_PERIOD_NANOS));
+    if (paceReset) {
+      paceReset = false;
+      paceStartNanos = speedStartNanos = now;
+      paceStartMillis = speedStartMillis = millis;
+      return;
+    }
+    if (now - speedStartNanos >= SPEED_WINDOW_NANOS) {
+      achievedRate = (millis - speedStartMillis) * 1000000.0 / (now - speedStartNanos);
+      speedStartNanos = now;
+      speedStartMillis = millis;
+    }
+
+    double rate = this.rate;
+    if (rate <= 0.0) {
+      /* As fast as possible */
+      return;
+    }
+    long target = paceStartNanos + (long) ((millis - paceStartMillis) * 1000000.0 / rate);
+    long delay = target - now;
+    if (delay > 0) {
+      /* A long LPM or a skipped busy wait can ask for a long sleep */
+      while (delay > 0 && !isStopping) {
+        LockSupport.parkNanos(Math.min(delay, PACE_MAX_PARK_NANOS));
+        delay = target - System.nanoTime();
+      }
+    } else if (delay < -PACE_MAX_LAG_NANOS) {
+      /* The emulation can not keep up - do not try to catch up later */
+      paceStartNanos = now;
+      paceStartMillis = millis;
+    }
+  }
+
   /* Use stepInstructions or stepMicros instead */
   @Deprecated public long step() throws EmulationException {
     return stepMicros(1, 1);
@@ -156,6 +213,9 @@ public class MSP430 extends MSP430Core {
       throw new IllegalStateException("step not possible when CPU is running");
     }
     setRunning(true);
+    /* Translated blocks execute several instructions at once */
+    stepping = true;
+    updateBlockExecution();
     try {
     while (count > 0 && !isStopping) {
       int pc = emulateOP(-1);
@@ -164,6 +224,10 @@ public class MSP430 extends MSP430Core {
         if (execCounter != null) {
           execCounter[pc]++;
         }
+        TraceRecorder recorder = traceRecorder;
+        if (recorder != null) {
+          recorder.recordInstruction(pc, cycles, reg[SR]);
+        }
         if (trace != null) {
   	  trace[tracePos++] = pc;
           if (tracePos >= trace.length) {
@@ -184,6 +248,8 @@ public class MSP430 extends MSP430Core {
       }
     }
     } finally { 
+        stepping = false;
+        updateBlockExecution();
         setRunning(false);
     }
     isStopping = isBreaking = false;
@@ -258,6 +324,10 @@ public class MSP430 extends MSP430Core {
             if (execCounter != null) {
                 execCounter[pc]++;
             }
+            TraceRecorder recorder = traceRecorder;
+            if (recorder != null) {
+              recorder.recordInstruction(pc, cycles, reg[SR]);
+            }
             if (trace != null) {
               if (tracePos >= trace.length) {
                 tracePos = 0;
@@ -307,6 +377,78 @@ public class MSP430 extends MSP430Core {
     return lastReturnedMicros;
   }
 
+  /* Ends the execution in runUntilMillis */
+  @Snapshot.Exclude private boolean runUntilReached;
+  @Snapshot.Exclude private final TimeEvent runUntilEvent = new TimeEvent(0, "run until") {
+    public void execute(long t) {
+      runUntilReached = true;
+    }
+  };
+
+  /**
+   * Executes until the emulated time has reached the specified time in
+   * milliseconds. A sleeping CPU will not jump past the end time, which
+   * makes it possible to run several nodes in lockstep.
+   *
+   * @return true if the end time was reached and false if the CPU was stopped
+   */
+  public boolean runUntilMillis(double endMillis) throws EmulationException {
+    if (isRunning()) {
+      throw new IllegalStateException("step not possible when CPU is running");
+    }
+    try {
+      while (getTimeMillis() < endMillis) {
+        /* A time event ends at the same time whatever the DCO speed. It is
+         * scheduled at least one time unit ahead to never be in the past. */
+        long endTime = Math.max(getTime() + 1, getTimeOfMillis(endMillis));
+        runUntilReached = false;
+        scheduleTimeEvent(runUntilEvent, endTime);
+        while (!runUntilReached) {
+          /* Keeps a sleeping CPU from jumping past the end to the next
+           * event. The cycle of the end changes with every DCO update. */
+          int pc = emulateOP(convertVTime(endTime) + 1);
+          if (pc >= 0) {
+            if (execCounter != null) {
+              execCounter[pc]++;
+            }
+            TraceRecorder recorder = traceRecorder;
+            if (recorder != null) {
+              recorder.recordInstruction(pc, cycles, reg[SR]);
+            }
+            if (trace != null) {
+              trace[tracePos++] = pc;
+              if (tracePos >= trace.length) {
+                tracePos = 0;
+              }
+            }
+            if (debug) {
+              if (servicedInterrupt >= 0) {
+                disAsm.disassemble(pc, memory, reg, servicedInterrupt);
+              } else {
+                disAsm.disassemble(pc, memory, reg);
+              }
+            }
+          }
+          if (isStopping) {
+            isStopping = false;
+            if (isBreaking) {
+              isBreaking = false;
+              throw new BreakpointException();
+            }
+            return false;
+          }
+          if (!runUntilReached && !runUntilEvent.isScheduled()) {
+            /* The events were removed by a reset */
+            scheduleTimeEvent(runUntilEvent, Math.max(getTime() + 1, endTime));
+          }
+        }
+      }
+      return true;
+    } finally {
+      runUntilEvent.remove();
+    }
+  }
+
   public void stop() {
       isStopping = true;
   }
@@ -343,6 +485,7 @@ public class MSP430 extends MSP430Core {
 	  trace = new int[size];
       }
       tracePos = 0;
+      updateBlockExecution();
   }
   
   public int getBackTrace(int pos) {
@@ -357,6 +500,43 @@ public class MSP430 extends MSP430Core {
       return trace == null ? 0 : trace.length;
   }
 
+  /**
+   * Starts recording a binary trace of the execution to the specified
+   * file. Any previous recording is ended first.
+   */
+  public void startTraceRecording(File file) throws IOException {
+      stopTraceRecording();
+      traceRecorder = new TraceRecorder(file, this);
+      updateBlockExecution();
+  }
+
+  /**
+   * Ends the current trace recording. A running CPU ends the trace itself
+   * between two instructions and this method waits until it has done so.
+   *
+   * @return the ended recording or null if no trace was recorded
+   */
+  public TraceRecorder stopTraceRecording() throws IOException {
+      TraceRecorder recorder = traceRecorder;
+      if (recorder != null) {
+          recorder.requestClose();
+          try {
+              recorder.awaitClose(this);
+          } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+              throw new InterruptedIOException("interrupted while ending trace " + recorder.getFile());
+          }
+          /* The CPU thread no longer uses the recorder */
+          traceRecorder = null;
+          updateBlockExecution();
+      }
+      return recorder;
+  }
+
+  public TraceRecorder getTraceRecorder() {
+      return traceRecorder;
+  }
+
   
   private void printCPUSpeed(int pc) {
     // Passed time
@@ -398,6 +578,20 @@ public class MSP430 extends MSP430Core {
 
   public void setDebug(boolean db) {
     debug = db;
+    updateBlockExecution();
+  }
+
+  @Override
+  protected boolean canExecuteBlocks() {
+    /* Every executed instruction is needed when tracing or debugging */
+    return super.canExecuteBlocks() && !stepping && !debug && trace == null
+        && traceRecorder == null;
+  }
+
+  @Override
+  protected boolean canSkipBusyWait() {
+    return super.canSkipBusyWait() && !stepping && !debug && trace == null
+        && traceRecorder == null;
   }
 
   public void setMap(MapTable map) {
@@ -427,16 +621,52 @@ public class MSP430 extends MSP430Core {
     }
   }
 
+  @Override
+  protected void resetDone() {
+    SimEventListener[] listeners = this.simEventListeners;
+    if (listeners != null) {
+      SimEvent event = new SimEvent(SimEvent.Type.RESET);
+      for(SimEventListener l : listeners) {
+        l.simChanged(event);
+      }
+    }
+  }
+
   public boolean isRunning() {
     return running;
   }
 
+  /**
+   * Returns the requested speed as a factor of real time, or zero if the
+   * emulation runs as fast as possible.
+   */
   public double getExecutionRate() {
     return rate;
   }
 
+  /**
+   * Sets the speed as a factor of real time between MIN_EXECUTION_RATE
+   * and MAX_EXECUTION_RATE. A factor of zero or less runs the emulation as
+   * fast as possible without ever sleeping.
+   */
   public void setExecutionRate(double rate) {
+    if (rate <= 0.0) {
+      rate = 0.0;
+    } else if (rate < MIN_EXECUTION_RATE) {
+      rate = MIN_EXECUTION_RATE;
+    } else if (rate > MAX_EXECUTION_RATE) {
+      rate = MAX_EXECUTION_RATE;
+    }
     this.rate = rate;
+    paceReset = true;
+  }
+
+  /**
+   * Returns the speed, as a factor of real time, measured over the last
+   * half second of execution, or zero if not yet known.
+   */
+  public double getAchievedExecutionRate() {
+    return running ? achievedRate : 0.0;
   }
 
   public synchronized void addSimEventListener(SimEventListener l) {
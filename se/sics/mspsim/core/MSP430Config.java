@@ -160,7 +160,7 @@ public abstract class MSP430Config {
         maxMemIO = size;
     }
 
-    public ClockSystem createClockSystem(MSP430Core cpu, int[] memory, Timer[] timers) {
+    public ClockSystem createClockSystem(MSP430Core cpu, byte[] memory, Timer[] timers) {
         return new BasicClockModule(cpu, memory, 0, timers, getMaxClockSpeed());
     }
 
@@ -39,6 +39,7 @@ package se.sics.mspsim.core;
 import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import se.sics.mspsim.core.EmulationLogger.WarningType;
 import se.sics.mspsim.core.Memory.AccessMode;
@@ -71,15 +72,66 @@ public class MSP430Core extends Chip implements MSP430Constants {
   private final RegisterMonitor[] regReadMonitors = new RegisterMonitor[16];
 
   // true => breakpoints can occur!
-  boolean breakpointActive = true;
+  @Snapshot.Exclude boolean breakpointActive = true;
 
-  public final int memory[];
+  public final byte memory[];
   private final Flash flash;
   boolean isFlashBusy;
-  boolean isStopping = false;
-
-  private final Memory memorySegments[];
-  Memory currentSegment;
+  @Snapshot.Exclude boolean isStopping = false;
+
+  final Memory memorySegments[];
+  @Snapshot.Exclude Memory currentSegment;
+  /* Type of each memory page for the inline access in readMemory/writeMemory */
+  static final byte PAGE_DISPATCH = 0;
+  static final byte PAGE_RAM = 1;
+  static final byte PAGE_FLASH = 2;
+  static final byte PAGE_SHARED = 3;
+  @Snapshot.Exclude final byte[] pageTypes;
+  /*
+   * RAM and flash pages shared with other nodes, null for pages kept in
+   * memory[]. A shared page is read from the shared copy and is copied into
+   * memory[] before it is written. The shared copies are never modified.
+   */
+  @Snapshot.Exclude byte[][] sharedPages;
+  private final IOSegment ioSegment;
+
+  // Fetched instructions for code executed from RAM or flash
+  final InstructionCache instructionCache;
+  @Snapshot.Exclude private boolean instructionCacheEnabled = true;
+  /* The last fetched instruction that could not be cached */
+  @Snapshot.Exclude private final DecodedInstruction uncachedInstruction = new DecodedInstruction();
+
+  // Hot code translated into blocks of pre-decoded operations
+  final BlockTranslator blockTranslator;
+  @Snapshot.Exclude private boolean blockTranslationEnabled = false;
+  @Snapshot.Exclude private boolean hasRegisterMonitors = false;
+  /* true when translated blocks can be executed - see canExecuteBlocks() */
+  @Snapshot.Exclude boolean executeBlocks = false;
+
+  // Number of times each address has been executed or null if not monitored
+  @Snapshot.Exclude int[] execCounter;
+  /* Records the execution to a file when set */
+  @Snapshot.Exclude TraceRecorder traceRecorder;
+
+  // Busy-wait loop detection - see checkBusyWait()
+  private static final int MAX_LOOP_INSTRUCTIONS = 16;
+  private static final int LOOP_MATCHES = 2;
+  @Snapshot.Exclude private boolean busyWaitSkipping = false;
+  @Snapshot.Exclude private int loopPC = -1;
+  @Snapshot.Exclude private long loopCycles;
+  @Snapshot.Exclude private boolean loopClean;
+  @Snapshot.Exclude private int loopMatches;
+  @Snapshot.Exclude private int loopLength = -1;
+  @Snapshot.Exclude private final int[] loopInstructions = new int[MAX_LOOP_INSTRUCTIONS];
+  @Snapshot.Exclude private final int[] loopRegisters = new int[16];
+  @Snapshot.Exclude private long skippedCycles;
+  /* The counter read in the current loop iteration or -1 - see CounterPoll */
+  @Snapshot.Exclude private int loopCounterAddress = -1;
+  @Snapshot.Exclude private long loopCounterCycles;
+
+  /* Tasks from other threads - run by the emulation thread with the events */
+  @Snapshot.Exclude private final ConcurrentLinkedQueue<Runnable> pendingTasks = new ConcurrentLinkedQueue<Runnable>();
+  @Snapshot.Exclude private volatile boolean hasPendingTasks;
 
   public long cycles = 0;
   public long cpuCycles = 0;
@@ -148,8 +200,11 @@ public class MSP430Core extends Chip implements MSP430Constants {
     MAX_MEM = config.maxMem;
     MSP430XArch = config.MSP430XArch;
 
-    memory = new int[MAX_MEM];
+    memory = new byte[MAX_MEM];
     memorySegments = new Memory[MAX_MEM >> 8];
+    pageTypes = new byte[MAX_MEM >> 8];
+    instructionCache = new InstructionCache(MAX_MEM);
+    blockTranslator = new BlockTranslator(this, instructionCache);
 
     flash = new Flash(this, memory,
             new FlashRange(config.mainFlashStart, config.mainFlashStart + config.mainFlashSize, 512, 64),
@@ -162,6 +217,13 @@ public class MSP430Core extends Chip implements MSP430Constants {
             if (address >= MAX_MEM) {
             	throw new EmulationException("Reading outside memory: 0x" + Utils.hex(address, 4));
             }
+            if (isSharedPage(address >> 8)) {
+                if (!isFlashBusy || !(memorySegments[address >> 8] instanceof FlashSegment)) {
+                    return readSharedMemory(address, mode);
+                }
+                /* The flash controller must see the read */
+                unshareMemory(address, address + mode.bytes);
+            }
             return memorySegments[address >> 8].read(address, mode, type);
         }
         @Override
@@ -169,6 +231,8 @@ public class MSP430Core extends Chip implements MSP430Constants {
             if (address >= MAX_MEM) {
                 throw new EmulationException("Writing outside memory: 0x" + Utils.hex(address, 4));
             }
+            loopClean = false;
+            unshareMemory(address, address + mode.bytes);
             memorySegments[address >> 8].write(address, data, mode);
         }
         @Override
@@ -176,6 +240,9 @@ public class MSP430Core extends Chip implements MSP430Constants {
             if (address >= MAX_MEM) {
                 throw new EmulationException("Reading outside memory: 0x" + Utils.hex(address, 4));
             }
+            if (isSharedPage(address >> 8)) {
+                return readSharedMemory(address, mode);
+            }
             return memorySegments[address >> 8].get(address, mode);
         }
         @Override
@@ -183,6 +250,8 @@ public class MSP430Core extends Chip implements MSP430Constants {
             if (address >= MAX_MEM) {
                 throw new EmulationException("Writing outside memory: 0x" + Utils.hex(address, 4));
             }
+            loopClean = false;
+            unshareMemory(address, address + mode.bytes);
             memorySegments[address >> 8].set(address, data, mode);
         }
     };
@@ -207,7 +276,7 @@ public class MSP430Core extends Chip implements MSP430Constants {
     Memory ramSegment = new RAMSegment(this);
     RAMOffsetSegment ramMirrorSegment = null;
     Memory flashSegment = new FlashSegment(this, flash);
-    IOSegment ioSegment = new IOSegment(this, MAX_MEM_IO, voidIO);
+    ioSegment = new IOSegment(this, MAX_MEM_IO, voidIO);
     Memory noMemorySegment = new NoMemSegment(this);
     for (int i = 0; i < maxSeg; i++) {
         if (config.isRAM(i << 8)) {
@@ -231,6 +300,7 @@ public class MSP430Core extends Chip implements MSP430Constants {
             memorySegments[i] = noMemorySegment;
         }
     }
+    updatePageTypes();
 
     this.registry = registry;
     this.config = config;
@@ -278,6 +348,186 @@ public class MSP430Core extends Chip implements MSP430Constants {
     bcs.reset(0);
   }
 
+  /* Tags the pages that can be accessed directly in memory[] without the segments */
+  private void updatePageTypes() {
+      for (int i = 0; i < pageTypes.length; i++) {
+          if (isSharedPage(i) && !canSharePage(i)) {
+              /* Watched pages are accessed in memory[] by the watched segment */
+              unshareMemory(i << 8, (i + 1) << 8);
+          }
+          pageTypes[i] = getPageType(i);
+      }
+  }
+
+  private byte getPageType(int page) {
+      Memory segment = memorySegments[page];
+      if (currentSegment instanceof GlobalWatchedMemory) {
+          return PAGE_DISPATCH;
+      } else if (isSharedPage(page)) {
+          return PAGE_SHARED;
+      } else if (segment instanceof RAMSegment) {
+          return PAGE_RAM;
+      } else if (segment instanceof FlashSegment) {
+          return PAGE_FLASH;
+      }
+      return PAGE_DISPATCH;
+  }
+
+  private boolean canSharePage(int page) {
+      Memory segment = memorySegments[page];
+      return segment instanceof RAMSegment || segment instanceof FlashSegment;
+  }
+
+  private boolean isSharedPage(int page) {
+      return sharedPages != null && sharedPages[page] != null;
+  }
+
+  /*
+   * Sets the memory to the specified pages, where null is a page of zeros.
+   * RAM and flash pages are shared with the specified pages until they are
+   * written. The pages must never be modified.
+   */
+  void setMemoryPages(byte[][] pages) {
+      byte[][] shared = new byte[pageTypes.length][];
+      for (int i = 0, p = 0; i < pages.length; i++, p += Memory.SEGMENT_SIZE) {
+          if (pages[i] != null && canSharePage(i)) {
+              shared[i] = pages[i];
+          } else if (pages[i] != null) {
+              System.arraycopy(pages[i], 0, memory, p, Memory.SEGMENT_SIZE);
+          } else {
+              Arrays.fill(memory, p, p + Memory.SEGMENT_SIZE, (byte) 0);
+          }
+      }
+      sharedPages = shared;
+      updatePageTypes();
+  }
+
+  /* Returns the shared copy of the page or null if the page is kept in memory[] */
+  byte[] getSharedPage(int page) {
+      return isSharedPage(page) ? sharedPages[page] : null;
+  }
+
+  /**
+   * Copies the shared memory pages in the address range into memory[]. Code
+   * that accesses memory[] directly instead of through the memory segments,
+   * for example debuggers and firmware loaders, must call this first for the
+   * addresses it accesses. Only nodes restored from in-memory snapshots have
+   * shared pages.
+   */
+  public void unshareMemory(int start, int end) {
+      byte[][] shared = sharedPages;
+      if (shared == null) {
+          return;
+      }
+      int last = (Math.min(end, MAX_MEM) - 1) >> 8;
+      for (int page = Math.max(start, 0) >> 8; page <= last; page++) {
+          if (shared[page] != null) {
+              System.arraycopy(shared[page], 0, memory, page << 8, Memory.SEGMENT_SIZE);
+              shared[page] = null;
+              pageTypes[page] = getPageType(page);
+          }
+      }
+  }
+
+  /* Reads a shared page as RAMSegment and FlashSegment read memory[] */
+  private int readSharedMemory(int address, AccessMode mode) {
+      int val = getSharedByte(address);
+      if (mode != AccessMode.BYTE) {
+          if ((address & 1) != 0) {
+              printWarning(WarningType.MISALIGNED_READ, address);
+          }
+          val |= getSharedByte(address + 1) << 8;
+          if (mode == AccessMode.WORD20) {
+              val |= (getSharedByte(address + 2) & 0x0f) << 16;
+          }
+      }
+      return val;
+  }
+
+  private int getSharedByte(int address) {
+      byte[] page = sharedPages[address >> 8];
+      return (page != null ? page[address & 0xff] : memory[address]) & 0xff;
+  }
+
+  /*
+   * Memory access used by the interpreter. RAM, and flash when the flash
+   * controller is idle, are read and written inline as in RAMSegment and
+   * FlashSegment. Everything else goes through currentSegment.
+   */
+  final int readMemory(int address, AccessMode mode, AccessType type) throws EmulationException {
+      int page = address >>> 8;
+      if (page < pageTypes.length) {
+          int pageType = pageTypes[page];
+          if (pageType == PAGE_RAM || (pageType == PAGE_FLASH && !isFlashBusy)) {
+              int val = memory[address] & 0xff;
+              if (mode != AccessMode.BYTE) {
+                  if ((address & 1) != 0) {
+                      printWarning(WarningType.MISALIGNED_READ, address);
+                  }
+                  val |= (memory[address + 1] & 0xff) << 8;
+                  if (mode == AccessMode.WORD20) {
+                      val |= (memory[address + 2] & 0x0f) << 16;
+                  }
+              }
+              return val;
+          }
+          if (pageType == PAGE_SHARED && !isFlashBusy) {
+              return readSharedMemory(address, mode);
+          }
+      }
+      if (loopClean && !isPollable(address, mode)) {
+          loopClean = isCounterRead(address, mode);
+      }
+      return currentSegment.read(address, mode, type);
+  }
+
+  /* True if the address is a counter register and the first counter read in the loop iteration */
+  private boolean isCounterRead(int address, AccessMode mode) {
+      if (mode != AccessMode.WORD || loopCounterAddress >= 0
+          || address < 0 || address + 2 > MAX_MEM_IO
+          || memorySegments[address >> 8] != ioSegment
+          || currentSegment instanceof GlobalWatchedMemory
+          || ioSegment.getCounter(address, cycles) < 0) {
+          return false;
+      }
+      loopCounterAddress = address;
+      loopCounterCycles = cycles;
+      return true;
+  }
+
+  /* True if the address is an IO register that can be polled in a busy-wait loop */
+  private boolean isPollable(int address, AccessMode mode) {
+      return address >= 0 && address + mode.bytes <= MAX_MEM_IO
+          && memorySegments[address >> 8] == ioSegment
+          && !(currentSegment instanceof GlobalWatchedMemory)
+          && ioSegment.isPollable(address, mode);
+  }
+
+  final void writeMemory(int address, int data, AccessMode mode) throws EmulationException {
+      TraceRecorder recorder = traceRecorder;
+      if (recorder != null) {
+          recorder.recordWrite(address, data, mode);
+      }
+      int page = address >>> 8;
+      if (page < pageTypes.length && pageTypes[page] == PAGE_RAM) {
+          loopClean = false;
+          memory[address] = (byte) data;
+          if (mode != AccessMode.BYTE) {
+              memory[address + 1] = (byte) (data >> 8);
+              if ((address & 1) != 0) {
+                  printWarning(WarningType.MISALIGNED_WRITE, address);
+              }
+              if (mode != AccessMode.WORD) {
+                  memory[address + 2] = (byte) (data >> 16);
+                  memory[address + 3] = (byte) (data >> 24);
+              }
+          }
+          instructionCache.invalidate(address, mode.bytes);
+          return;
+      }
+      currentSegment.write(address, data, mode);
+  }
+
   public void setIORange(int address, int range, IOUnit io) {
       if (address + range > MAX_MEM_IO) {
           throw new IllegalStateException("Outside IO memory: 0x" + Utils.hex(address, 4));
@@ -304,6 +554,8 @@ public class MSP430Core extends Chip implements MSP430Constants {
           currentSegment = gwm = new GlobalWatchedMemory(currentSegment);
       }
       gwm.addGlobalMonitor(mon);
+      updatePageTypes();
+      updateBlockExecution();
   }
 
   public synchronized void removeGlobalMonitor(MemoryMonitor mon) {
@@ -313,6 +565,8 @@ public class MSP430Core extends Chip implements MSP430Constants {
           if (!gwm.hasGlobalMonitor()) {
               // No more monitors - switch back to normal memory
               currentSegment = gwm.getWatchedMemory();
+              updatePageTypes();
+              updateBlockExecution();
           }
       }
   }
@@ -400,25 +654,84 @@ public class MSP430Core extends Chip implements MSP430Constants {
       return false;
   }
 
+  /**
+   * Adds a watch point on a single address for all types of accesses.
+   */
   public synchronized void addWatchPoint(int address, MemoryMonitor mon) {
-      int seg = address >> 8;
-      WatchedMemory wm;
-      if (memorySegments[seg] instanceof WatchedMemory) {
-          wm = (WatchedMemory) memorySegments[seg];
-      } else {
-          wm = new WatchedMemory(address & 0xfff00, memorySegments[seg]);
-          memorySegments[seg] = wm;
-      }
-      wm.addWatchPoint(address, mon);
+      addWatchPoint(new WatchPoint(address, 1, WatchPoint.ALL, null, mon));
   }
 
   public synchronized void removeWatchPoint(int address, MemoryMonitor mon) {
       if (memorySegments[address >> 8] instanceof WatchedMemory) {
           WatchedMemory wm = (WatchedMemory) memorySegments[address >> 8];
-          wm.removeWatchPoint(address, mon);
+          WatchPoint wp = wm.findWatchPoint(address, mon);
+          if (wp != null) {
+              removeWatchPoint(wp);
+          }
       }
   }
 
+  /**
+   * Adds a watch point. Only the pages covered by the watch point are
+   * accessed through a watched memory, all other pages keep running at
+   * full speed.
+   */
+  public synchronized void addWatchPoint(WatchPoint wp) {
+      if (wp.getStart() < 0 || wp.getEnd() > MAX_MEM) {
+          throw new IllegalArgumentException("watch point outside memory: " + wp);
+      }
+      for (int seg = wp.getStart() >> 8, last = (wp.getEnd() - 1) >> 8; seg <= last; seg++) {
+          WatchedMemory wm;
+          if (memorySegments[seg] instanceof WatchedMemory) {
+              wm = (WatchedMemory) memorySegments[seg];
+          } else {
+              /* The watched segment accesses memory[] directly */
+              unshareMemory(seg << 8, (seg + 1) << 8);
+              wm = new WatchedMemory(seg << 8, memorySegments[seg]);
+              memorySegments[seg] = wm;
+              pageTypes[seg] = PAGE_DISPATCH;
+              /* Instructions in this segment must now be fetched through the watched memory */
+              instructionCache.invalidate(seg << 8, Memory.SEGMENT_SIZE);
+          }
+          wm.addWatchPoint(wp);
+      }
+  }
+
+  public synchronized void removeWatchPoint(WatchPoint wp) {
+      boolean unwrapped = false;
+      for (int seg = wp.getStart() >> 8, last = (wp.getEnd() - 1) >> 8; seg <= last; seg++) {
+          if (seg >= 0 && seg < memorySegments.length
+              && memorySegments[seg] instanceof WatchedMemory) {
+              WatchedMemory wm = (WatchedMemory) memorySegments[seg];
+              if (wm.removeWatchPoint(wp) && wm.isEmpty()) {
+                  /* No more watches - restore the page to full speed */
+                  memorySegments[seg] = wm.getWatchedMemory();
+                  unwrapped = true;
+              }
+          }
+      }
+      if (unwrapped) {
+          updatePageTypes();
+      }
+  }
+
+  /**
+   * Returns all watch points in the order of their first address.
+   */
+  public synchronized WatchPoint[] getWatchPoints() {
+      ArrayList<WatchPoint> list = new ArrayList<WatchPoint>();
+      for (Memory segment : memorySegments) {
+          if (segment instanceof WatchedMemory) {
+              for (WatchPoint wp : ((WatchedMemory) segment).getWatchPoints()) {
+                  if (!list.contains(wp)) {
+                      list.add(wp);
+                  }
+              }
+          }
+      }
+      return list.toArray(new WatchPoint[list.size()]);
+  }
+
   public synchronized void addRegisterMonitor(int r, RegisterMonitor mon) {
       addRegisterWriteMonitor(r, mon);
       addRegisterReadMonitor(r, mon);
@@ -431,18 +744,34 @@ public class MSP430Core extends Chip implements MSP430Constants {
 
   public synchronized void addRegisterWriteMonitor(int r, RegisterMonitor mon) {
       regWriteMonitors[r] = RegisterMonitor.Proxy.INSTANCE.add(regWriteMonitors[r], mon);
+      updateRegisterMonitors();
   }
 
   public synchronized void removeRegisterWriteMonitor(int r, RegisterMonitor mon) {
       regWriteMonitors[r] = RegisterMonitor.Proxy.INSTANCE.remove(regWriteMonitors[r], mon);
+      updateRegisterMonitors();
   }
 
   public synchronized void addRegisterReadMonitor(int r, RegisterMonitor mon) {
       regReadMonitors[r] = RegisterMonitor.Proxy.INSTANCE.add(regReadMonitors[r], mon);
+      updateRegisterMonitors();
   }
 
   public synchronized void removeRegisterReadMonitor(int r, RegisterMonitor mon) {
       regReadMonitors[r] = RegisterMonitor.Proxy.INSTANCE.remove(regReadMonitors[r], mon);
+      updateRegisterMonitors();
+  }
+
+  private void updateRegisterMonitors() {
+      boolean monitors = false;
+      for (int i = 0; i < 16; i++) {
+          if (regWriteMonitors[i] != null || regReadMonitors[i] != null) {
+              monitors = true;
+              break;
+          }
+      }
+      hasRegisterMonitors = monitors;
+      updateBlockExecution();
   }
 
   public void writeRegister(int r, int value) {
@@ -588,6 +917,12 @@ public class MSP430Core extends Chip implements MSP430Constants {
     lastMicrosDelta = 0;
 
     currentDCOFactor = 1.0 * bcs.getMaxDCOFrequency() / frequency;
+    if (vTimeEventQueue.eventCount > 0) {
+      /* The pending time events are due at other cycles with the new speed */
+      nextVTimeEventCycles = convertVTime(vTimeEventQueue.nextTime);
+      nextEventCycles = nextCycleEventCycles < nextVTimeEventCycles ?
+          nextCycleEventCycles : nextVTimeEventCycles;
+    }
 
     /*    System.out.println("*** DCO: MAX:" + bcs.getMaxDCOFrequency() +
 	  " current: " + frequency + " DCO_FAC = " + currentDCOFactor);*/
@@ -608,18 +943,28 @@ public class MSP430Core extends Chip implements MSP430Constants {
 
   // Converts a virtual time to a cycles time according to the current
   // cycle speed
-  private long convertVTime(long vTime) {
+  long convertVTime(long vTime) {
     long tmpTime = lastCyclesTime + (long) ((vTime - lastVTime) / currentDCOFactor);
 //    System.out.println("ConvertVTime: vTime=" + vTime + " => " + tmpTime);
     return tmpTime;
   }
   
+  /* Returns the first emulated time at or after the time in milliseconds */
+  protected long getTimeOfMillis(double msec) {
+    return (long) Math.ceil(msec / 1000 * bcs.getMaxDCOFrequency());
+  }
+
   // get elapsed time in seconds
   public double getTimeMillis() {
       return 1000.0 * getTime() / bcs.getMaxDCOFrequency();
   }
   
   private void executeEvents() {
+    /* Events can change what busy-wait loops read */
+    loopClean = false;
+    if (hasPendingTasks) {
+      runPendingTasks();
+    }
     if (cycles >= nextVTimeEventCycles) {
       if (vTimeEventQueue.eventCount == 0) {
         nextVTimeEventCycles = cycles + 10000;
@@ -674,7 +1019,26 @@ public class MSP430Core extends Chip implements MSP430Constants {
     }
   }
 
-  
+  /**
+   * Runs the task in the emulation thread before the next time event, or
+   * when the emulation continues if the CPU is stopped. The event queues,
+   * the memory and the IO units may only be changed by the emulation
+   * thread, and this is how other threads, such as the CLI, can change
+   * them while the CPU is running.
+   */
+  public void invokeLater(Runnable task) {
+    pendingTasks.add(task);
+    hasPendingTasks = true;
+  }
+
+  private void runPendingTasks() {
+    hasPendingTasks = false;
+    Runnable task;
+    while ((task = pendingTasks.poll()) != null) {
+      task.run();
+    }
+  }
+
   /**
    * Schedules a new Time event using the virtual time clock
    * @param event
@@ -764,11 +1128,15 @@ public class MSP430Core extends Chip implements MSP430Constants {
     servicedInterruptUnit = null;
     servicedInterrupt = -1;
     interruptMax = -1;
+    loopClean = false;
     writeRegister(SR, 0);
    
     cycleEventQueue.removeAll();
     vTimeEventQueue.removeAll();
 
+    /* Memory might have been reloaded since the last reset */
+    instructionCache.clear();
+
     for (Chip chip : chips) {
       chip.notifyReset();
     }
@@ -778,6 +1146,11 @@ public class MSP430Core extends Chip implements MSP430Constants {
     if (profiler != null) {
         profiler.resetProfile();
     }
+    resetDone();
+  }
+
+  /* Called after a reset when all events have been removed */
+  protected void resetDone() {
   }
 
   public EmulationLogger getLogger() {
@@ -896,6 +1269,10 @@ public class MSP430Core extends Chip implements MSP430Constants {
     if (profiler != null) {
       profiler.profileInterrupt(interruptMax, cycles);
     }
+    TraceRecorder recorder = traceRecorder;
+    if (recorder != null) {
+      recorder.recordInterrupt(interruptMax, cycles);
+    }
         
     if (flash.blocksCPU()) {
       /* TODO: how should this error/warning be handled ?? */
@@ -909,16 +1286,16 @@ public class MSP430Core extends Chip implements MSP430Constants {
       // Push PC and SR to stack
       // store on stack - always move 2 steps (W) even if B.
       writeRegister(SP, sp = spBefore - 2);
-      currentSegment.write(sp, pc, AccessMode.WORD);
+      writeMemory(sp, pc, AccessMode.WORD);
 
       writeRegister(SP, sp = sp - 2);
-      currentSegment.write(sp, (sr & 0x0fff) | ((pc & 0xf0000) >> 4), AccessMode.WORD);
+      writeMemory(sp, (sr & 0x0fff) | ((pc & 0xf0000) >> 4), AccessMode.WORD);
     }
     // Clear SR
     writeRegister(SR, 0); // sr & ~CPUOFF & ~SCG1 & ~OSCOFF);
 
     // Jump to the address specified in the interrupt vector
-    pc = currentSegment.read(0xfffe - (MAX_INTERRUPT - interruptMax) * 2, AccessMode.WORD, AccessType.READ);
+    pc = readMemory(0xfffe - (MAX_INTERRUPT - interruptMax) * 2, AccessMode.WORD, AccessType.READ);
     writeRegister(PC, pc);
 
     servicedInterrupt = interruptMax;
@@ -956,6 +1333,145 @@ public class MSP430Core extends Chip implements MSP430Constants {
     return pc;
   }
 
+  public boolean isInstructionCacheEnabled() {
+    return instructionCacheEnabled;
+  }
+
+  public void setInstructionCacheEnabled(boolean enabled) {
+    instructionCacheEnabled = enabled;
+    if (!enabled) {
+      instructionCache.clear();
+    }
+    updateBlockExecution();
+  }
+
+  public boolean isBlockTranslationEnabled() {
+    return blockTranslationEnabled;
+  }
+
+  /**
+   * Enables translation of hot code into blocks that are executed without
+   * decoding each instruction. The emulation result is the same as when
+   * interpreting every instruction but the blocks are not used while
+   * debugging with register monitors or global memory monitors.
+   */
+  public void setBlockTranslationEnabled(boolean enabled) {
+    blockTranslationEnabled = enabled;
+    if (!enabled) {
+      blockTranslator.clear();
+    }
+    updateBlockExecution();
+  }
+
+  public BlockTranslator getBlockTranslator() {
+    return blockTranslator;
+  }
+
+  protected boolean canExecuteBlocks() {
+    return blockTranslationEnabled && instructionCacheEnabled && !hasRegisterMonitors
+        && !(currentSegment instanceof GlobalWatchedMemory);
+  }
+
+  protected void updateBlockExecution() {
+    executeBlocks = canExecuteBlocks();
+  }
+
+  /* Checks the conditions that the interpreter checks between instructions */
+  boolean canContinueBlock() {
+    return executeBlocks && !isFlashBusy && !flash.blocksCPU() && !cpuOff
+        && !(interruptsEnabled && servicedInterrupt == -1 && interruptMax >= 0);
+  }
+
+  EventQueue getVTimeEventQueue() {
+    return vTimeEventQueue;
+  }
+
+  EventQueue getCycleEventQueue() {
+    return cycleEventQueue;
+  }
+
+  /* The chips and IO units saved in snapshots, including the IO units only reachable via the IO memory */
+  Object[] getStateComponents() {
+    ArrayList<Object> components = new ArrayList<Object>(chips);
+    components.addAll(ioUnits);
+    ioSegment.addIOUnits(components);
+    return components.toArray();
+  }
+
+  /**
+   * Clears all decoded instructions. Must be called after the memory has been
+   * modified without using the memory segments, for example when loading firmware.
+   */
+  public void invalidateInstructionCache() {
+    instructionCache.clear();
+    loopClean = false;
+  }
+
+  /* Returns the instruction at the address if it is cached or can be cached */
+  DecodedInstruction getCachedInstruction(int pc) throws EmulationException {
+    int last = pc + DecodedInstruction.MAX_SIZE - 1;
+    if (pc < 0 || last >= MAX_MEM || !canCacheInstructions()
+        || !isCacheableSegment(memorySegments[pc >> 8])
+        || !isCacheableSegment(memorySegments[last >> 8])) {
+      return null;
+    }
+    return fetchInstruction(pc);
+  }
+
+  /* Instructions are only cached when fetched from memory without side effects */
+  private boolean canCacheInstructions() {
+    return instructionCacheEnabled && !isFlashBusy && !(currentSegment instanceof GlobalWatchedMemory);
+  }
+
+  /*
+   * Returns the instruction at the address. Instructions that can not be
+   * cached are fetched into uncachedInstruction which is only valid until
+   * the next fetch.
+   */
+  private DecodedInstruction fetchInstruction(int pc) throws EmulationException {
+    if (pc >= MAX_MEM || !canCacheInstructions()) {
+      return decodeInstruction(pc, uncachedInstruction);
+    }
+    DecodedInstruction decoded = instructionCache.get(pc);
+    if (decoded == null) {
+      decoded = decodeInstruction(pc, uncachedInstruction);
+      int last = pc + decoded.size - 1;
+      if (last < MAX_MEM && isCacheableSegment(memorySegments[pc >> 8])
+          && isCacheableSegment(memorySegments[last >> 8])) {
+        decoded = new DecodedInstruction(decoded);
+        instructionCache.put(decoded);
+      }
+    }
+    return decoded;
+  }
+
+  private static boolean isCacheableSegment(Memory segment) {
+    return segment instanceof RAMSegment || segment instanceof FlashSegment;
+  }
+
+  private DecodedInstruction decodeInstruction(int pc, DecodedInstruction decoded) throws EmulationException {
+    int address = pc;
+    int extWord = 0;
+    int instruction = readMemory(pc, AccessMode.WORD, AccessType.EXECUTE);
+    /* check for extension words */
+    if (DecodedInstruction.isExtensionWord(instruction)) {
+      extWord = instruction;
+      pc += 2;
+      instruction = readMemory(pc, AccessMode.WORD, AccessType.EXECUTE);
+    }
+    int argCount = DecodedInstruction.getArgumentCount(instruction);
+    int arg1 = 0;
+    int arg2 = 0;
+    if (argCount > 0) {
+      arg1 = readMemory(pc + 2, AccessMode.WORD, AccessType.READ);
+      if (argCount > 1) {
+        arg2 = readMemory(pc + 4, AccessMode.WORD, AccessType.READ);
+      }
+    }
+    decoded.set(address, extWord, instruction, arg1, arg2, argCount);
+    return decoded;
+  }
+
   /* returns true if any instruction was emulated - false if CpuOff */
   public int emulateOP(long maxCycles) throws EmulationException {
     //System.out.println("CYCLES BEFORE: " + cycles);
@@ -984,6 +1500,12 @@ public class MSP430Core extends Chip implements MSP430Constants {
         executeEvents();
       }
 
+      TraceRecorder recorder = traceRecorder;
+      if (recorder != null) {
+        /* A stopped trace must end even if the CPU never wakes up */
+        recorder.closeIfRequested();
+      }
+
       if (interruptsEnabled && interruptMax > 0) {
           /* can not allow for jumping to nextEventCycles since that would jump too far */
           return -1;
@@ -998,49 +1520,42 @@ public class MSP430Core extends Chip implements MSP430Constants {
       return -1;
     }
 
+    if (executeBlocks && !isFlashBusy) {
+      int lastPC = blockTranslator.execute(pc, maxCycles);
+      if (lastPC >= 0) {
+        while (cycles >= nextEventCycles) {
+          executeEvents();
+        }
+        cpuCycles += cycles - startCycles;
+        return lastPC;
+      }
+    }
+
     int pcBefore = pc;
-    instruction = currentSegment.read(pc, AccessMode.WORD, AccessType.EXECUTE);
+    if (loopLength >= 0) {
+      if (loopLength < MAX_LOOP_INSTRUCTIONS) {
+        loopInstructions[loopLength++] = pc;
+      } else {
+        /* Too long to be a busy-wait loop */
+        loopLength = -1;
+      }
+    }
+    DecodedInstruction decoded = fetchInstruction(pc);
     if (isStopping) {
         // Signaled to stop the execution before performing the instruction
         return -2;
     }
-    int ext3_0 = 0;
-    int ext10_7 = 0;
-    int extSrc = 0;
-    int extDst = 0;
-    boolean repeatsInDstReg = false;
-    boolean wordx20 = false;
-
-    /* check for extension words */
-    if ((instruction & 0xf800) == 0x1800) {
-        extWord = instruction;
-        ext3_0 = instruction & 0xf; /* bit 3 - 0 - either repeat count or dest 19-16 */
-        ext10_7 = (instruction >> 7) & 0xf; /* bit 10 - 7 - src 19-16 */
-        extSrc = ext10_7 << 16;
-        extDst = ext3_0 << 16;
+    instruction = decoded.instruction;
+    extWord = decoded.extWord;
+    int ext3_0 = decoded.ext3_0;
+    int extSrc = decoded.extSrc;
+    int extDst = decoded.extDst;
+    boolean repeatsInDstReg = decoded.repeatsInDstReg;
+    boolean wordx20 = decoded.wordx20;
+
+    if (extWord != 0) {
+        /* skip the extension word */
         pc += 2;
-
-	// Bit 7 in the extension word indicates that the number of
-	// repeats is found in the register pointed to by ext3_0. If
-	// the bit is 0, ext3_0 contains the number of repeats. If the
-	// bit is 1, ext3_0 contains the register number that holds
-	// the number of repeats.
-	if ((instruction & 0x80) == 0x80) {
-	    repeatsInDstReg = true;
-	}
-	// Bit 6 indicates whether or not the data length mode should
-	// be 20 bits. A one means traditional MSP430 mode; a zero
-	// indicates 20 bit mode. (XXX: there is a reserved data
-	// length mode if this bit is zero and the MSP430 instruction
-	// that follows the extension word also has a zero bit data
-	// length mode.)
-	wordx20 = (instruction & 0x40) == 0;
-
-	instruction = currentSegment.read(pc, AccessMode.WORD, AccessType.EXECUTE);
-        /*System.out.println("*** Extension word!!! " + Utils.hex16(extWord) +
-                "  read the instruction too: " + Utils.hex16(instruction) + " at " + Utils.hex16(pc - 2));*/
-    } else {
-        extWord = 0;
     }
     
     op = instruction >> 12;
@@ -1064,6 +1579,7 @@ public class MSP430Core extends Chip implements MSP430Constants {
 
     boolean write = false;
     boolean updateStatus = true;
+    boolean backwardJump = false;
 
     // When is PC increased  probably immediately (e.g. here)?
     pc += 2;
@@ -1089,7 +1605,7 @@ public class MSP430Core extends Chip implements MSP430Constants {
         // 20 bit register write
         case MOVA_IND:
         	/* Read from address in src register (20-bit?), move to destination register (=20 bit). */
-        	writeRegister(dstData, currentSegment.read(readRegister(srcData), mode, AccessType.READ));
+        	writeRegister(dstData, readMemory(readRegister(srcData), mode, AccessType.READ));
         	updateStatus = false;
         	cycles += 3;
             break;
@@ -1102,7 +1618,7 @@ public class MSP430Core extends Chip implements MSP430Constants {
             src = readRegister(srcData);
 //            System.out.println("Reading $" + getAddressAsString(src) +
 //                    " from register: " + srcData);
-            dst = currentSegment.read(src, mode, AccessType.READ);
+            dst = readMemory(src, mode, AccessType.READ);
 //            System.out.println("Reading from mem: $" + getAddressAsString(dst));
             writeRegister(srcData, src + 4);
 //            System.out.println("*** Writing $" + getAddressAsString(dst) + " to reg: " + dstData);
@@ -1111,11 +1627,11 @@ public class MSP430Core extends Chip implements MSP430Constants {
 	    cycles += 3;
             break;
         case MOVA_ABS2REG:
-            src = currentSegment.read(pc, AccessMode.WORD, AccessType.READ);
+            src = decoded.getArgument(pc);
             writeRegister(PC, pc += 2);
             dst = src + (srcData << 16);
             //System.out.println(Utils.hex20(pc) + " MOVA &ABS Reading from $" + getAddressAsString(dst) + " to reg: " + dstData);
-            dst = currentSegment.read(dst, mode,  AccessType.READ);
+            dst = readMemory(dst, mode,  AccessType.READ);
             //System.out.println("   => $" + getAddressAsString(dst));
             writeRegister(dstData, dst);
             updateStatus = false;
@@ -1124,22 +1640,22 @@ public class MSP430Core extends Chip implements MSP430Constants {
 	case MOVA_INDX2REG:
 		/* Read data from address in memory, indexed by source
 		 * register, and place into destination register. */
-		int index = currentSegment.read(pc, AccessMode.WORD, AccessType.READ);
+		int index = decoded.getArgument(pc);
 		int indexModifier = readRegister(srcData);
 
 		index = convertTwoComplement16(index);
 		indexModifier = convertTwoComplement20(indexModifier);
 
-		writeRegister(dstData, currentSegment.read(indexModifier + index, mode, AccessType.READ));
+		writeRegister(dstData, readMemory(indexModifier + index, mode, AccessType.READ));
 		writeRegister(PC, pc += 2);
 		updateStatus = false;
 		cycles += 4;
 		break;
 
 	case MOVA_REG2ABS:
-            dst = currentSegment.read(pc, AccessMode.WORD, AccessType.READ);
+            dst = decoded.getArgument(pc);
             writeRegister(PC, pc += 2);
-	    currentSegment.write(dst + (dstData << 16), readRegister(srcData), mode);
+	    writeMemory(dst + (dstData << 16), readRegister(srcData), mode);
             updateStatus = false;
 	    cycles += 4;
             break;
@@ -1147,20 +1663,20 @@ public class MSP430Core extends Chip implements MSP430Constants {
 	case MOVA_REG2INDX:
 		/* Read data from register, write to address in memory,
 		 * indexed by source register. */
-		index = currentSegment.read(pc, AccessMode.WORD, AccessType.READ);
+		index = decoded.getArgument(pc);
 		indexModifier = readRegister(dstData);
 
 		index = convertTwoComplement16(index);
 		indexModifier = convertTwoComplement20(indexModifier);
 
-		currentSegment.write(indexModifier + index, readRegister(srcData), mode);
+		writeMemory(indexModifier + index, readRegister(srcData), mode);
 		writeRegister(PC, pc += 2);
 		updateStatus = false;
 		cycles += 4;
 		break;
 
         case MOVA_IMM2REG:
-            src = currentSegment.read(pc, AccessMode.WORD, AccessType.READ);
+            src = decoded.getArgument(pc);
             writeRegister(PC, pc += 2);
             dst = src + (srcData << 16);
 //            System.out.println("*** Writing $" + getAddressAsString(dst) + " to reg: " + dstData);
@@ -1176,7 +1692,7 @@ public class MSP430Core extends Chip implements MSP430Constants {
         	// the data is stored in the following word (PC + 2) and
         	// the high 4 bits in the instruction word, which we have
         	// masked out as srcData.
-        	int immData = currentSegment.read(pc, AccessMode.WORD, AccessType.READ) + (srcData << 16);
+        	int immData = decoded.getArgument(pc) + (srcData << 16);
         	writeRegister(PC, pc += 2);
         	int dstArg = readRegister(dstData);
         	dst = dstArg + immData;
@@ -1198,7 +1714,7 @@ public class MSP430Core extends Chip implements MSP430Constants {
 	       operand delivers a negative result, or if the subtraction of a positive source
 	       operand from a negative destination operand delivers a positive result, reset
 	       otherwise (no overflow) */
-		immData = currentSegment.read(pc, AccessMode.WORD, AccessType.READ) + (srcData << 16);
+		immData = decoded.getArgument(pc) + (srcData << 16);
 		writeRegister(PC, pc += 2);
 		sr = readRegister(SR);
 
@@ -1228,7 +1744,7 @@ public class MSP430Core extends Chip implements MSP430Constants {
 		break;
 	}
         case SUBA_IMM:
-            immData = currentSegment.read(pc, AccessMode.WORD, AccessType.READ) + (srcData << 16);
+            immData = decoded.getArgument(pc) + (srcData << 16);
             writeRegister(PC, pc += 2);
 	    dst = readRegister(dstData) - immData;
 	    writeRegister(dstData, dst);
@@ -1403,7 +1919,7 @@ public class MSP430Core extends Chip implements MSP430Constants {
 
               /* what happens if wrapping here??? */
               /* read the index which is from -15 bit - +15 bit. - so extend sign to 20-bit */
-              int index = currentSegment.read(pc, AccessMode.WORD, AccessType.READ);
+              int index = decoded.getArgument(pc);
               index = convertTwoComplement16(index);
 
 //              System.out.println("CALLA INDX: Reg = " + Utils.hex20(dst) + " INDX: " +  index);
@@ -1412,7 +1928,7 @@ public class MSP430Core extends Chip implements MSP430Constants {
               dst &= 0xfffff;
 
 //              System.out.println("CALLA INDX => " + Utils.hex20(dst));
-              dst = currentSegment.read(dst, AccessMode.WORD20, AccessType.READ);
+              dst = readMemory(dst, AccessMode.WORD20, AccessType.READ);
 //              System.out.println("CALLA Read from INDX => " + Utils.hex20(dst));
               cycles += 5;
               pc += 2;
@@ -1422,7 +1938,7 @@ public class MSP430Core extends Chip implements MSP430Constants {
               sp = readRegister(SP) - 2;
               writeRegister(SP, sp);
 
-              dst = (dstRegister << 16) | currentSegment.read(pc, AccessMode.WORD, AccessType.READ);
+              dst = (dstRegister << 16) | decoded.getArgument(pc);
               pc += 2;
               cycles += 5;
               break;
@@ -1432,7 +1948,7 @@ public class MSP430Core extends Chip implements MSP430Constants {
 
               dstAddress = readRegister(dstRegister);
               
-              dst = currentSegment.read(dstAddress, AccessMode.WORD20, AccessType.READ);
+              dst = readMemory(dstAddress, AccessMode.WORD20, AccessType.READ);
               cycles += 5;
               break;
           case CALLA_ABS:
@@ -1440,8 +1956,8 @@ public class MSP430Core extends Chip implements MSP430Constants {
               writeRegister(SP, sp);
 
               /* read the address of where the address to call is */
-              dst = (dstRegister << 16) | currentSegment.read(pc, AccessMode.WORD, AccessType.READ);
-              dst = currentSegment.read(dst, AccessMode.WORD20, AccessType.READ);
+              dst = (dstRegister << 16) | decoded.getArgument(pc);
+              dst = readMemory(dst, AccessMode.WORD20, AccessType.READ);
               pc += 2;
               cycles += 7;
               break;
@@ -1466,7 +1982,7 @@ public class MSP430Core extends Chip implements MSP430Constants {
         		  for(int i = 0; i < n; i++) {
         			  sp -= size;
         			  cycles += 2;
-        			  currentSegment.write(sp, this.reg[regNo], type);
+        			  writeMemory(sp, this.reg[regNo], type);
         			  /*System.out.println("Saved reg: " + (regNo) + " was " + reg[regNo]);*/
         			  regNo--;
 
@@ -1486,7 +2002,7 @@ public class MSP430Core extends Chip implements MSP430Constants {
 
         		  for(int i = 0; i < n; i++) {
         			  cycles += 2;
-        			  this.reg[regNo] = currentSegment.read(sp, type, AccessType.READ);
+        			  this.reg[regNo] = readMemory(sp, type, AccessType.READ);
         			  regNo++;
         			  //                      System.out.println("Restored reg: " + (regNo - 1) + " to " + reg[regNo - 1]);
         			  sp += size;
@@ -1505,9 +2021,9 @@ public class MSP430Core extends Chip implements MSP430Constants {
           // store current PC on stack. (current PC points to next instr.)
           /* store 20 bits on stack (costs two words) */
           if (dst != -1) {
-              currentSegment.write(sp, (pc >> 16) & 0xf, AccessMode.WORD);
+              writeMemory(sp, (pc >> 16) & 0xf, AccessMode.WORD);
               sp = sp - 2;
-              currentSegment.write(sp, pc & 0xffff, AccessMode.WORD);
+              writeMemory(sp, pc & 0xffff, AccessMode.WORD);
               writeRegister(SP, sp);
               writeRegister(PC, dst);
               
@@ -1552,7 +2068,7 @@ public class MSP430Core extends Chip implements MSP430Constants {
                      * "The operand address is the sum of the 20-bit CPU register
                      * content and the 20-bit index."
                      */
-                    dstAddress = currentSegment.read(pc, AccessMode.WORD, AccessType.READ);
+                    dstAddress = decoded.getArgument(pc);
                     dstAddress += extDst;
                     dstAddress += rval;
                     dstAddress &= 0xfffff;
@@ -1564,7 +2080,7 @@ public class MSP430Core extends Chip implements MSP430Constants {
                        * after the addition of the CPU register Rn and the signed
                        * 16-bit index."
                        */
-                      dstAddress = convertTwoComplement16(currentSegment.read(pc, AccessMode.WORD, AccessType.READ));
+                      dstAddress = convertTwoComplement16(decoded.getArgument(pc));
                       dstAddress += rval;
                       dstAddress &= 0xffff;
                     } else {
@@ -1573,7 +2089,7 @@ public class MSP430Core extends Chip implements MSP430Constants {
                        * "The operand may be located in memory in the range Rn +-32
                        * KB, because the index, X, is a signed 16-bit value"
                        */
-                      dstAddress = convertTwoComplement16(currentSegment.read(pc, AccessMode.WORD, AccessType.READ));
+                      dstAddress = convertTwoComplement16(decoded.getArgument(pc));
                       dstAddress += rval;
                       dstAddress &= 0xfffff;
                     }
@@ -1595,7 +2111,10 @@ public class MSP430Core extends Chip implements MSP430Constants {
                   if (dstRegister == PC) {
                       dstAddress = pc;
 
-                      dst = currentSegment.read(dstAddress, mode != AccessMode.BYTE ? AccessMode.WORD : AccessMode.BYTE, AccessType.READ);
+                      dst = decoded.getArgument(pc);
+                      if (mode == AccessMode.BYTE) {
+                          dst &= 0xff;
+                      }
                       
                       dst += extDst;
                       pc += 2;
@@ -1627,7 +2146,7 @@ public class MSP430Core extends Chip implements MSP430Constants {
 //                  System.out.println("*** Repeat " + repeats + " ZeroCarry: " + zeroCarry);
 //              }
           } else if (dst == -1) {
-              dst = currentSegment.read(dstAddress, mode, AccessType.READ);
+              dst = readMemory(dstAddress, mode, AccessType.READ);
           }
           
           /* TODO: test add the loop here! */
@@ -1679,7 +2198,7 @@ public class MSP430Core extends Chip implements MSP430Constants {
                       sp = readRegister(SP) - 2;
                       writeRegister(SP, sp);
                   }
-                  currentSegment.write(sp, dst, mode);
+                  writeMemory(sp, dst, mode);
 
                   /* if REG or INDIRECT AUTOINC then add 2 cycles, otherwise 1 */
                   cycles += (ad == AM_REG || ad == AM_IND_AUTOINC) ? 2 : 1;
@@ -1692,7 +2211,7 @@ public class MSP430Core extends Chip implements MSP430Constants {
 
                   //	memory[sp] = pc & 0xff;
                   //	memory[sp + 1] = pc >> 8;
-                  currentSegment.write(sp, pc, AccessMode.WORD);
+                  writeMemory(sp, pc, AccessMode.WORD);
                   writeRegister(PC, dst);
 
                   /* Additional cycles: REG => 3, AM_IND_AUTO => 2, other => 1 */
@@ -1710,13 +2229,13 @@ public class MSP430Core extends Chip implements MSP430Constants {
                   // Put Top of stack to Status DstRegister (TOS -> SR)
                   servicedInterrupt = -1; /* needed before write to SR!!! */
                   sp = readRegister(SP);
-                  sr = currentSegment.read(sp, AccessMode.WORD, AccessType.READ);
+                  sr = readMemory(sp, AccessMode.WORD, AccessType.READ);
                   writeRegister(SR, sr & 0x0fff);
                   sp = sp + 2;
                   //	writeRegister(SR, memory[sp++] + (memory[sp++] << 8));
                   // TOS -> PC
                   //	writeRegister(PC, memory[sp++] + (memory[sp++] << 8));
-                  writeRegister(PC, currentSegment.read(sp, AccessMode.WORD, AccessType.READ) | (sr & 0xf000) << 4);
+                  writeRegister(PC, readMemory(sp, AccessMode.WORD, AccessType.READ) | (sr & 0xf000) << 4);
                   sp = sp + 2;
                   writeRegister(SP, sp);
                   write = false;
@@ -1790,6 +2309,10 @@ public class MSP430Core extends Chip implements MSP430Constants {
       // Perform the Jump
       if (jump) {
         writeRegister(PC, pc + jmpOffset);
+        if (executeBlocks) {
+          blockTranslator.branchTaken(reg[PC]);
+        }
+        backwardJump = jmpOffset < 0;
       }
       updateStatus = false;
       break;
@@ -1850,7 +2373,7 @@ public class MSP430Core extends Chip implements MSP430Constants {
 	     * "The operand address is the sum of the 20-bit CPU register
 	     * content and the 20-bit index."
 	     */
-	    srcAddress = currentSegment.read(pc, AccessMode.WORD, AccessType.READ);
+	    srcAddress = decoded.getArgument(pc);
 	    srcAddress += extSrc;
 	    srcAddress += sval;
 	    srcAddress &= 0xfffff;
@@ -1862,7 +2385,7 @@ public class MSP430Core extends Chip implements MSP430Constants {
 	       * after the addition of the CPU register Rn and the signed
 	       * 16-bit index."
 	       */
-	      srcAddress = convertTwoComplement16(currentSegment.read(pc, AccessMode.WORD, AccessType.READ));
+	      srcAddress = convertTwoComplement16(decoded.getArgument(pc));
 	      srcAddress += sval;
 	      srcAddress &= 0xffff;
 	    } else {
@@ -1871,7 +2394,7 @@ public class MSP430Core extends Chip implements MSP430Constants {
 	       * "The operand may be located in memory in the range Rn +-32
 	       * KB, because the index, X, is a signed 16-bit value"
 	       */
-	      srcAddress = convertTwoComplement16(currentSegment.read(pc, AccessMode.WORD, AccessType.READ));
+	      srcAddress = convertTwoComplement16(decoded.getArgument(pc));
 	      srcAddress += sval;
 	      srcAddress &= 0xfffff;
 	    }
@@ -1891,11 +2414,9 @@ public class MSP430Core extends Chip implements MSP430Constants {
 		if (srcRegister == PC) {
 			/* PC is always handled as word */
 			if (mode == AccessMode.BYTE) {
-				src = currentSegment.read(pc, AccessMode.BYTE,
-						AccessType.READ);
+				src = decoded.getArgument(pc) & 0xff;
 			} else {
-				src = currentSegment.read(pc, AccessMode.WORD,
-						AccessType.READ);
+				src = decoded.getArgument(pc);
 			}
 			src += extSrc;
 
@@ -1928,7 +2449,7 @@ public class MSP430Core extends Chip implements MSP430Constants {
 
         if (dstRegister == 2) {
           /* absolute mode */
-          dstAddress = currentSegment.read(pc, AccessMode.WORD, AccessType.READ); //memory[pc] + (memory[pc + 1] << 8);
+          dstAddress = decoded.getArgument(pc); //memory[pc] + (memory[pc + 1] << 8);
           dstAddress += extDst;
         } else {
           // CG here - probably not!???
@@ -1944,7 +2465,7 @@ public class MSP430Core extends Chip implements MSP430Constants {
              * "The operand address is the sum of the 20-bit CPU register
              * content and the 20-bit index."
              */
-            dstAddress = currentSegment.read(pc, AccessMode.WORD, AccessType.READ);
+            dstAddress = decoded.getArgument(pc);
             dstAddress += extDst;
             dstAddress += rval;
             dstAddress &= 0xfffff;
@@ -1956,7 +2477,7 @@ public class MSP430Core extends Chip implements MSP430Constants {
                * after the addition of the CPU register Rn and the signed
                * 16-bit index."
                */
-              dstAddress = convertTwoComplement16(currentSegment.read(pc, AccessMode.WORD, AccessType.READ));
+              dstAddress = convertTwoComplement16(decoded.getArgument(pc));
               dstAddress += rval;
               dstAddress &= 0xffff;
             } else {
@@ -1965,7 +2486,7 @@ public class MSP430Core extends Chip implements MSP430Constants {
                * "The operand may be located in memory in the range Rn +-32
                * KB, because the index, X, is a signed 16-bit value"
                */
-              dstAddress = convertTwoComplement16(currentSegment.read(pc, AccessMode.WORD, AccessType.READ));
+              dstAddress = convertTwoComplement16(decoded.getArgument(pc));
               dstAddress += rval;
               dstAddress &= 0xfffff;
             }
@@ -1973,7 +2494,7 @@ public class MSP430Core extends Chip implements MSP430Constants {
         }
 
         if (op != MOV) {
-        	dst = currentSegment.read(dstAddress, mode, AccessType.READ);
+        	dst = readMemory(dstAddress, mode, AccessType.READ);
         }
         pc += 2;
         incRegister(PC, 2);
@@ -1986,9 +2507,9 @@ public class MSP430Core extends Chip implements MSP430Constants {
 //            System.out.println("SrcAddress is: " + Utils.hex20(srcAddress));
 //        }
 //	srcAddress = srcAddress & 0xffff;
-        src = currentSegment.read(srcAddress, mode, AccessType.READ);
+        src = readMemory(srcAddress, mode, AccessType.READ);
 
-//	src = currentSegment.read(srcAddress, word ? AccessMode.WORD : AccessMode.BYTE, AccessType.READ);
+//	src = readMemory(srcAddress, word ? AccessMode.WORD : AccessMode.BYTE, AccessType.READ);
 
 	// 	  if (debug) {
 	// 	    System.out.println("Reading from " + getAddressAsString(srcAddress) +
@@ -2152,7 +2673,7 @@ public class MSP430Core extends Chip implements MSP430Constants {
       if (dstRegMode) {
 	writeRegister(dstRegister, dst);
       } else {
-        currentSegment.write(dstAddress, dst, mode);
+        writeMemory(dstAddress, dst, mode);
       }
     }
     if (updateStatus) {
@@ -2169,6 +2690,10 @@ public class MSP430Core extends Chip implements MSP430Constants {
     // -------------------------------------------------------------------
     // Event processing (when CPU is awake)
     // -------------------------------------------------------------------
+    if (backwardJump && busyWaitSkipping) {
+      checkBusyWait(pcBefore, maxCycles);
+    }
+
     while (cycles >= nextEventCycles) {
       executeEvents();
     }
@@ -2179,7 +2704,136 @@ public class MSP430Core extends Chip implements MSP430Constants {
     return pcBefore;
   }
   
-  private static int convertTwoComplement16(int index) {
+  /*
+   * Called after each taken backward jump. A loop iteration that ends with
+   * the same registers as it started with, without writing to memory,
+   * without events, and only reading RAM, flash and IO registers that can
+   * not change by themselves, will be repeated exactly until the next event.
+   * Such busy-wait loops are fast-forwarded by whole iterations to just
+   * before the next event, which then occurs at the same instruction as
+   * without the fast-forward. Loops that poll a timer counter until it
+   * reaches a value are fast-forwarded to the iteration that reads the
+   * value, see skipCounterPoll().
+   */
+  private void checkBusyWait(int jumpPC, long maxCycles) {
+    if (jumpPC == loopPC && loopClean && loopLength > 0 && loopCounterAddress >= 0) {
+      if (canSkipBusyWait()) {
+        skipCounterPoll(maxCycles);
+      }
+      loopMatches = 0;
+    } else if (jumpPC == loopPC && loopClean && loopLength > 0
+        && Arrays.equals(reg, loopRegisters)) {
+      if (++loopMatches >= LOOP_MATCHES && canSkipBusyWait()) {
+        long limit = maxCycles >= 0 && maxCycles < nextEventCycles ? maxCycles : nextEventCycles;
+        long length = cycles - loopCycles;
+        long iterations = (limit - cycles - 1) / length;
+        if (iterations > 0) {
+          cycles += iterations * length;
+          skippedCycles += iterations * length;
+          if (execCounter != null) {
+            for (int i = 0; i < loopLength; i++) {
+              execCounter[loopInstructions[i]] += iterations;
+            }
+          }
+        }
+      }
+    } else {
+      loopMatches = 0;
+      System.arraycopy(reg, 0, loopRegisters, 0, loopRegisters.length);
+    }
+    loopPC = jumpPC;
+    loopCycles = cycles;
+    loopLength = 0;
+    loopClean = true;
+    loopCounterAddress = -1;
+  }
+
+  /*
+   * Called after an iteration of a loop that read a counter once and
+   * otherwise did the same as a busy-wait loop. Iteration k from now reads
+   * the counter at cycles + k * length + offset. The counter values up to
+   * the next event are checked for the first one that ends the loop, and
+   * the iterations that read the counter before it reaches that value are
+   * skipped with the registers set as after the last of them.
+   */
+  private void skipCounterPoll(long maxCycles) {
+    CounterPoll poll = CounterPoll.decode(this, loopInstructions, loopLength, loopCounterAddress);
+    if (poll == null) {
+      return;
+    }
+    long limit = maxCycles >= 0 && maxCycles < nextEventCycles ? maxCycles : nextEventCycles;
+    long length = cycles - loopCycles;
+    long maxIterations = (limit - cycles - 1) / length;
+    if (maxIterations <= 0) {
+      return;
+    }
+    long first = cycles + loopCounterCycles - loopCycles;
+    long last = first + (maxIterations - 1) * length;
+    long start = ioSegment.getCounter(loopCounterAddress, first);
+    long end = Math.min(ioSegment.getCounter(loopCounterAddress, last), start + 0xffff);
+    long iterations = maxIterations;
+    for (long value = start; value <= end; value++) {
+      if (!poll.continues((int) value & 0xffff)) {
+        /* The first cycle the counter has the value */
+        long low = first;
+        long high = last;
+        while (low < high) {
+          long middle = (low + high) >>> 1;
+          if (ioSegment.getCounter(loopCounterAddress, middle) >= value) {
+            high = middle;
+          } else {
+            low = middle + 1;
+          }
+        }
+        iterations = (low - first + length - 1) / length;
+        break;
+      }
+    }
+    if (iterations <= 0) {
+      return;
+    }
+    cycles += iterations * length;
+    skippedCycles += iterations * length;
+    if (execCounter != null) {
+      for (int i = 0; i < loopLength; i++) {
+        execCounter[loopInstructions[i]] += iterations;
+      }
+    }
+    /* The last skipped iteration read the counter and updated the timer */
+    int value = ioSegment.read(loopCounterAddress, first + (iterations - 1) * length);
+    poll.apply(reg, value);
+  }
+
+  protected boolean canSkipBusyWait() {
+    return !hasRegisterMonitors;
+  }
+
+  public boolean isBusyWaitSkipping() {
+    return busyWaitSkipping;
+  }
+
+  /**
+   * Enables fast-forwarding of busy-wait loops that poll IO registers until
+   * the next event or a timer counter until it reaches a value. The
+   * emulation result is the same as when executing every iteration of the
+   * loops. Disabled by default.
+   */
+  public void setBusyWaitSkipping(boolean enabled) {
+    busyWaitSkipping = enabled;
+    loopPC = -1;
+    loopLength = -1;
+    loopClean = false;
+    loopCounterAddress = -1;
+  }
+
+  /**
+   * Returns the number of cycles skipped in busy-wait loops.
+   */
+  public long getBusyWaitSkippedCycles() {
+    return skippedCycles;
+  }
+
+  static int convertTwoComplement16(int index) {
 	  if(index > 0x8000) {
 		  return -(0x10000 - index);
 	  }
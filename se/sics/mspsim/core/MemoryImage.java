@@ -0,0 +1,53 @@
+package se.sics.mspsim.core;
+
+/**
+ * Accessors for memory kept as byte arrays. Words are stored in little
+ * endian order as in the MSP430. 20-bit words use four bytes where the
+ * highest byte is unused.
+ */
+public final class MemoryImage {
+
+    private MemoryImage() {
+    }
+
+    public static int readByte(byte[] memory, int address) {
+        return memory[address] & 0xff;
+    }
+
+    public static int readWord(byte[] memory, int address) {
+        return (memory[address] & 0xff) | ((memory[address + 1] & 0xff) << 8);
+    }
+
+    public static int readWord20(byte[] memory, int address) {
+        return (memory[address] & 0xff) | ((memory[address + 1] & 0xff) << 8)
+                | ((memory[address + 2] & 0x0f) << 16);
+    }
+
+    public static int read(byte[] memory, int address, boolean word) {
+        return word ? readWord(memory, address) : memory[address] & 0xff;
+    }
+
+    public static void writeByte(byte[] memory, int address, int data) {
+        memory[address] = (byte) data;
+    }
+
+    public static void writeWord(byte[] memory, int address, int data) {
+        memory[address] = (byte) data;
+        memory[address + 1] = (byte) (data >> 8);
+    }
+
+    public static void writeWord20(byte[] memory, int address, int data) {
+        memory[address] = (byte) data;
+        memory[address + 1] = (byte) (data >> 8);
+        memory[address + 2] = (byte) (data >> 16);
+        memory[address + 3] = (byte) (data >> 24);
+    }
+
+    public static void write(byte[] memory, int address, int data, boolean word) {
+        memory[address] = (byte) data;
+        if (word) {
+            memory[address + 1] = (byte) (data >> 8);
+        }
+    }
+
+}
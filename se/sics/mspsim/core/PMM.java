@@ -39,7 +39,7 @@ public class PMM extends IOUnit {
 
     private int baseAddress;
 
-    public PMM(MSP430Core cpu, int[] memory, int address) {
+    public PMM(MSP430Core cpu, byte[] memory, int address) {
         super("PMM", "PMM", cpu, memory, address);
         baseAddress = address;
         reset(0);
@@ -47,13 +47,13 @@ public class PMM extends IOUnit {
 
     public void reset(int type) {
         /* Initial values */
-        memory[baseAddress + 0x0] = 0x9600; /* PMMCTL0 */
-        memory[baseAddress + 0x2] = 0x0000; /* PMMCTL1 */
-        memory[baseAddress + 0x4] = 0x4400; /* SVSMHCTL */
-        memory[baseAddress + 0x6] = 0x4400; /* SVSMLCTL */
-        memory[baseAddress + 0x8] = 0x0020; /* SVSMIO */
-        memory[baseAddress + 0xc] = 0x0000; /* PMMIFG */
-        memory[baseAddress + 0xe] = 0x1100; /* PMMRIE */
+        MemoryImage.writeWord(memory, baseAddress + 0x0, 0x9600); /* PMMCTL0 */
+        MemoryImage.writeWord(memory, baseAddress + 0x2, 0x0000); /* PMMCTL1 */
+        MemoryImage.writeWord(memory, baseAddress + 0x4, 0x4400); /* SVSMHCTL */
+        MemoryImage.writeWord(memory, baseAddress + 0x6, 0x4400); /* SVSMLCTL */
+        MemoryImage.writeWord(memory, baseAddress + 0x8, 0x0020); /* SVSMIO */
+        MemoryImage.writeWord(memory, baseAddress + 0xc, 0x0000); /* PMMIFG */
+        MemoryImage.writeWord(memory, baseAddress + 0xe, 0x1100); /* PMMRIE */
     }
 
     public void write(int address, int value, boolean word, long cycles) {
@@ -61,7 +61,7 @@ public class PMM extends IOUnit {
             log(this.getName() + ": Write to: "
                     + String.format("0x%05x = 0x%05x", address, value));
 
-        memory[address] = value;
+        MemoryImage.write(memory, address, value, word);
     }
 
     public int read(int address, boolean word, long cycles) {
@@ -76,10 +76,10 @@ public class PMM extends IOUnit {
         if (DEBUG) {
             log(this.getName()
                     + ": Read from: "
-                    + String.format("0x%05x = 0x%05x", address, memory[address]));
+                    + String.format("0x%05x = 0x%05x", address, MemoryImage.read(memory, address, word)));
         }
 
-        return memory[address];
+        return MemoryImage.read(memory, address, word);
     }
 
     public void interruptServiced(int vector) {
@@ -32,7 +32,7 @@ package se.sics.mspsim.core;
 public class PMMDummy extends IOUnit {
     public static int SIZE = 0x10;
 
-    public PMMDummy(MSP430Core cpu, int[] memory, int address) {
+    public PMMDummy(MSP430Core cpu, byte[] memory, int address) {
         super("PMMDummy", "PMMDummy", cpu, memory, address);
         reset(0);
     }
@@ -41,11 +41,11 @@ public class PMMDummy extends IOUnit {
     }
 
     public void write(int address, int value, boolean word, long cycles) {
-        memory[address] = value;
+        MemoryImage.write(memory, address, value, word);
     }
 
     public int read(int address, boolean word, long cycles) {
-        return memory[address];
+        return MemoryImage.read(memory, address, word);
     }
 
     public void interruptServiced(int vector) {
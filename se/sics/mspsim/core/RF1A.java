@@ -69,7 +69,7 @@ public class RF1A extends IOUnit implements InterruptHandler {
     private boolean interruptOnCC1101GDO0 = false;
     private boolean gdo0IsHigh = false;
 
-    public RF1A(final MSP430Core cpu, int[] memory) {
+    public RF1A(final MSP430Core cpu, byte[] memory) {
         super("RF1A", "RF1A", cpu, memory, ADDRESS);
         cc1101 = new CC1101(cpu);
         cc1101.setGDO0Listener(new GDOListener() {
@@ -67,7 +67,7 @@ public class SFR extends IOUnit {
   private boolean[] autoclear = new boolean[64];
   private int[] irqTriggeredPos = new int[64];
 
-  public SFR(MSP430Core cpu, int[] memory) {
+  public SFR(MSP430Core cpu, byte[] memory) {
     super("SFR", "Special Function Register", cpu, memory, 0);
     reset(0);
   }
@@ -114,7 +114,12 @@ public class SFR extends IOUnit {
     case ME2:
       updateME(address - ME1, value);
     }
-    memory[address] = value;
+    MemoryImage.write(memory, address, value, word);
+  }
+
+  @Override
+  public boolean isPollable(int address) {
+    return true;
   }
 
   // read
@@ -135,7 +140,7 @@ public class SFR extends IOUnit {
     case ME2:
       return me2;
     default:
-      return memory[address];
+      return MemoryImage.read(memory, address, word);
     }
   }
 
@@ -0,0 +1,523 @@
+package se.sics.mspsim.core;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+import se.sics.mspsim.util.ArrayUtils;
+
+/**
+ * A buffered serial channel for a UART or USCI. The output of the serial
+ * port is collected in a ring buffer by the emulation thread and written
+ * to a stream or file by a background thread shared by all channels. When
+ * the buffer is full the output is dropped instead of slowing down the
+ * emulation.
+ *
+ * The input is read from a stream or file by a background thread and fed
+ * to the serial port no faster than the baud rate. While the firmware has
+ * not read the previous byte, the input waits for the receive flag to be
+ * cleared instead of scheduling an event for each byte time.
+ *
+ * Regular files are read into the buffer when the input is set, so that
+ * a short input is fed at the same emulated time in every run. Named pipes
+ * are opened by the background threads and do not block the emulation
+ * until the other end is opened.
+ *
+ * The channel can be set up and closed from any thread. The input event is
+ * only scheduled by the emulation thread, which stops feeding the input
+ * when it sees that the channel is closed.
+ */
+public class SerialChannel implements USARTListener, StateChangeListener, SimEventListener {
+
+    public static final int DEFAULT_BAUD_RATE = 115200;
+    public static final int DEFAULT_BUFFER_SIZE = 1 << 16;
+
+    /* How long the drain thread sleeps when there is no output */
+    private static final long DRAIN_INTERVAL_MILLIS = 5;
+    /* Emulated time between checks when there is no input or the firmware
+     * has not read the previous byte */
+    private static final double INPUT_POLL_MILLIS = 10;
+
+    /* Longer than one unit of the emulated time so that an input event is
+     * never scheduled before the current cycle */
+    private static final double MIN_DELAY_MILLIS = 0.001;
+
+    private static SerialChannel[] drainChannels;
+    private static Thread drainThread;
+
+    private final MSP430 cpu;
+    private final USARTSource uart;
+    private double byteMillis;
+
+    private final Ring output;
+    private OutputStream outputStream;
+    private volatile boolean isOutputOpen;
+    private volatile boolean isClosed;
+    private volatile IOException outputError;
+    private long droppedBytes;
+
+    private final Ring input;
+    private volatile boolean isInputClosed = true;
+    private Thread inputThread;
+    private boolean isWaitingForRead;
+    private long inputBytes;
+    private double nextInputMillis;
+
+    private final TimeEvent inputEvent = new TimeEvent(0, "SerialChannel input") {
+        public void execute(long t) {
+            sendInput();
+        }
+    };
+
+    private final Runnable inputStarter = new Runnable() {
+        public void run() {
+            if (!isClosed) {
+                cpu.scheduleTimeEventMillis(inputEvent, MIN_DELAY_MILLIS);
+            }
+        }
+    };
+
+    public SerialChannel(MSP430 cpu, USARTSource uart) {
+        this(cpu, uart, DEFAULT_BUFFER_SIZE);
+    }
+
+    public SerialChannel(MSP430 cpu, USARTSource uart, int bufferSize) {
+        this.cpu = cpu;
+        this.uart = uart;
+        this.output = new Ring(bufferSize);
+        this.input = new Ring(bufferSize);
+        setBaudRate(DEFAULT_BAUD_RATE);
+    }
+
+    public USARTSource getUART() {
+        return uart;
+    }
+
+    /**
+     * Sets the baud rate used to pace the input. A byte takes ten bits
+     * including the start and stop bits.
+     */
+    public void setBaudRate(int baudRate) {
+        if (baudRate <= 0) {
+            throw new IllegalArgumentException("illegal baud rate: " + baudRate);
+        }
+        byteMillis = 10000.0 / baudRate;
+    }
+
+    /**
+     * Writes the output of the serial port to the stream. The stream is
+     * closed when the channel is closed.
+     */
+    public void setOutput(OutputStream out) {
+        startOutput(out, null);
+    }
+
+    /**
+     * Writes the output of the serial port to the file, which may be a
+     * named pipe.
+     */
+    public void setOutput(File file) {
+        startOutput(null, file);
+    }
+
+    private synchronized void startOutput(OutputStream out, final File file) {
+        if (outputStream != null || isOutputOpen) {
+            throw new IllegalStateException("output already set");
+        }
+        if (file != null) {
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        openOutput(new FileOutputStream(file));
+                    } catch (IOException e) {
+                        outputError = e;
+                        System.err.println("SerialChannel: failed to open " + file + ": " + e.getMessage());
+                    }
+                }
+            }, "SerialChannel open " + file);
+            thread.setDaemon(true);
+            thread.start();
+        } else {
+            openOutput(out);
+        }
+        uart.addUSARTListener(this);
+    }
+
+    private void openOutput(OutputStream out) {
+        synchronized (output) {
+            outputStream = out;
+            isOutputOpen = true;
+            if (isClosed) {
+                /* Closed before the other end of the pipe was opened */
+                closeOutput();
+                return;
+            }
+        }
+        addDrainChannel(this);
+    }
+
+    /**
+     * Feeds the data from the stream to the serial port. The stream is read
+     * until the end by a background thread.
+     */
+    public void setInput(InputStream in) {
+        startInput(in, null);
+    }
+
+    /**
+     * Feeds the data from the file, which may be a named pipe, to the
+     * serial port.
+     */
+    public void setInput(File file) {
+        startInput(null, file);
+    }
+
+    private synchronized void startInput(InputStream in, final File file) {
+        if (inputThread != null || !isInputClosed) {
+            throw new IllegalStateException("input already set");
+        }
+        isInputClosed = false;
+        uart.addStateChangeListener(this);
+        cpu.addSimEventListener(this);
+        /* The CPU might be running in another thread */
+        cpu.invokeLater(inputStarter);
+        try {
+            boolean isRegularFile = in == null && file.isFile();
+            if (isRegularFile) {
+                /* Only named pipes might block when opened */
+                in = new FileInputStream(file);
+            }
+            if (in != null && fillInput(in, isRegularFile)) {
+                /* All input fitted in the buffer */
+                closeInput(in);
+                return;
+            }
+        } catch (IOException e) {
+            System.err.println("SerialChannel: failed to read input: " + e.getMessage());
+            closeInput(in);
+            return;
+        }
+        final InputStream stream = in;
+        inputThread = new Thread(new Runnable() {
+            public void run() {
+                readInput(stream, file);
+            }
+        }, "SerialChannel input");
+        inputThread.setDaemon(true);
+        inputThread.start();
+    }
+
+    /* Reads the input that is available without blocking, so that the
+     * start of the input does not depend on when the input thread runs.
+     * Returns true at the end of the stream. */
+    private boolean fillInput(InputStream in, boolean isRegularFile) throws IOException {
+        byte[] buffer = new byte[4096];
+        int len;
+        while (input.available() < input.data.length) {
+            int max = Math.min(buffer.length, input.data.length - input.available());
+            if (!isRegularFile) {
+                max = Math.min(max, in.available());
+                if (max <= 0) {
+                    return false;
+                }
+            }
+            if ((len = in.read(buffer, 0, max)) < 0) {
+                return true;
+            }
+            input.write(buffer, 0, len);
+        }
+        return false;
+    }
+
+    private void readInput(InputStream in, File file) {
+        byte[] buffer = new byte[4096];
+        try {
+            if (in == null) {
+                in = new FileInputStream(file);
+            }
+            int len;
+            while (!isInputClosed && (len = in.read(buffer)) >= 0) {
+                for (int offset = 0; offset < len && !isInputClosed; ) {
+                    int count = input.write(buffer, offset, len - offset);
+                    if (count == 0) {
+                        /* Wait for the firmware to read */
+                        Thread.sleep(DRAIN_INTERVAL_MILLIS);
+                    }
+                    offset += count;
+                }
+            }
+        } catch (IOException e) {
+            if (!isInputClosed) {
+                System.err.println("SerialChannel: failed to read input: " + e.getMessage());
+            }
+        } catch (InterruptedException e) {
+            // Closed
+        } finally {
+            closeInput(in);
+        }
+    }
+
+    private void closeInput(InputStream in) {
+        isInputClosed = true;
+        if (in != null) {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+
+    private void sendInput() {
+        if (isClosed) {
+            return;
+        }
+        if (!uart.isReceiveFlagCleared()) {
+            /* Continue when the firmware has read the previous byte. The
+             * firmware might also clear the flag in the IFG register, which
+             * is not reported, so check again now and then. */
+            isWaitingForRead = true;
+            cpu.scheduleTimeEventMillis(inputEvent, INPUT_POLL_MILLIS);
+            return;
+        }
+        isWaitingForRead = false;
+        int data = input.get();
+        if (data >= 0) {
+            uart.byteReceived(data);
+            inputBytes++;
+            nextInputMillis = cpu.getTimeMillis() + byteMillis;
+            cpu.scheduleTimeEventMillis(inputEvent, byteMillis);
+        } else if (!isInputClosed || input.available() > 0) {
+            cpu.scheduleTimeEventMillis(inputEvent, INPUT_POLL_MILLIS);
+        }
+    }
+
+    @Override
+    public void stateChanged(Object source, int oldState, int newState) {
+        if (newState == USARTListener.RXFLAG_CLEARED && isWaitingForRead && !isClosed) {
+            isWaitingForRead = false;
+            cpu.scheduleTimeEventMillis(inputEvent,
+                    Math.max(MIN_DELAY_MILLIS, nextInputMillis - cpu.getTimeMillis()));
+        }
+    }
+
+    @Override
+    public void simChanged(SimEvent event) {
+        if (event.getType() == SimEvent.Type.RESET && !isClosed) {
+            /* The reset removed the input event */
+            isWaitingForRead = false;
+            cpu.scheduleTimeEventMillis(inputEvent, MIN_DELAY_MILLIS);
+        }
+    }
+
+    @Override
+    public void dataReceived(USARTSource source, int data) {
+        if (!output.put((byte) data)) {
+            droppedBytes++;
+        }
+    }
+
+    /**
+     * Returns the number of output bytes collected from the serial port.
+     */
+    public long getOutputBytes() {
+        return output.head.get();
+    }
+
+    /**
+     * Returns the number of output bytes dropped because the buffer was full.
+     */
+    public long getDroppedBytes() {
+        return droppedBytes;
+    }
+
+    /**
+     * Returns the number of input bytes fed to the serial port.
+     */
+    public long getInputBytes() {
+        return inputBytes;
+    }
+
+    /**
+     * Writes the buffered output to the stream.
+     */
+    public void flush() throws IOException {
+        if (outputError != null) {
+            throw outputError;
+        }
+        drain();
+    }
+
+    /**
+     * Stops the input and the output and writes the buffered output.
+     */
+    public synchronized void close() {
+        uart.removeUSARTListener(this);
+        uart.removeStateChangeListener(this);
+        cpu.removeSimEventListener(this);
+        isInputClosed = true;
+        if (inputThread != null) {
+            inputThread.interrupt();
+        }
+        /* The input event is not rescheduled when the emulation thread
+         * sees the flag */
+        isClosed = true;
+        removeDrainChannel(this);
+        synchronized (output) {
+            if (isOutputOpen) {
+                closeOutput();
+            }
+        }
+    }
+
+    private void closeOutput() {
+        drain();
+        try {
+            outputStream.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+        isOutputOpen = false;
+    }
+
+    /* Writes the buffered output. Returns the number of written bytes. */
+    private int drain() {
+        synchronized (output) {
+            if (!isOutputOpen) {
+                return 0;
+            }
+            try {
+                int count = output.drainTo(outputStream);
+                if (count > 0) {
+                    outputStream.flush();
+                }
+                return count;
+            } catch (IOException e) {
+                if (outputError == null) {
+                    outputError = e;
+                    System.err.println("SerialChannel: failed to write output: " + e.getMessage());
+                }
+                /* Discard the output */
+                output.tail.lazySet(output.head.get());
+                return 0;
+            }
+        }
+    }
+
+    private static synchronized void addDrainChannel(SerialChannel channel) {
+        drainChannels = ArrayUtils.add(SerialChannel.class, drainChannels, channel);
+        if (drainThread == null) {
+            drainThread = new Thread(new Runnable() {
+                public void run() {
+                    drainAll();
+                }
+            }, "SerialChannel drain");
+            drainThread.setDaemon(true);
+            drainThread.start();
+        }
+    }
+
+    private static synchronized void removeDrainChannel(SerialChannel channel) {
+        drainChannels = ArrayUtils.remove(drainChannels, channel);
+    }
+
+    private static synchronized SerialChannel[] getDrainChannels() {
+        return drainChannels;
+    }
+
+    private static void drainAll() {
+        while (true) {
+            SerialChannel[] channels = getDrainChannels();
+            int count = 0;
+            if (channels != null) {
+                for (SerialChannel channel : channels) {
+                    count += channel.drain();
+                }
+            }
+            if (count == 0) {
+                try {
+                    Thread.sleep(DRAIN_INTERVAL_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /* A byte ring buffer for one producer thread and one consumer thread */
+    private static final class Ring {
+
+        final byte[] data;
+        final int mask;
+        final AtomicLong head = new AtomicLong();
+        final AtomicLong tail = new AtomicLong();
+        /* Producer side copy of how far the producer may write */
+        private long limit;
+
+        Ring(int size) {
+            if (size <= 0 || (size & (size - 1)) != 0) {
+                throw new IllegalArgumentException("buffer size must be a power of two: " + size);
+            }
+            data = new byte[size];
+            mask = size - 1;
+            limit = size;
+        }
+
+        int available() {
+            return (int) (head.get() - tail.get());
+        }
+
+        boolean put(byte b) {
+            long h = head.get();
+            if (h == limit) {
+                limit = tail.get() + data.length;
+                if (h == limit) {
+                    return false;
+                }
+            }
+            data[(int) h & mask] = b;
+            head.lazySet(h + 1);
+            return true;
+        }
+
+        int write(byte[] buffer, int offset, int len) {
+            long h = head.get();
+            int count = (int) Math.min(len, tail.get() + data.length - h);
+            for (int i = 0; i < count; i++) {
+                data[(int) (h + i) & mask] = buffer[offset + i];
+            }
+            head.lazySet(h + count);
+            return count;
+        }
+
+        int get() {
+            long t = tail.get();
+            if (t == head.get()) {
+                return -1;
+            }
+            int b = data[(int) t & mask] & 0xff;
+            tail.lazySet(t + 1);
+            return b;
+        }
+
+        int drainTo(OutputStream out) throws IOException {
+            long t = tail.get();
+            int count = (int) (head.get() - t);
+            if (count > 0) {
+                int start = (int) t & mask;
+                int first = Math.min(count, data.length - start);
+                out.write(data, start, first);
+                if (first < count) {
+                    out.write(data, 0, count - first);
+                }
+                tail.lazySet(t + count);
+            }
+            return count;
+        }
+    }
+
+}
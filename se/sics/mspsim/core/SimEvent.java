@@ -49,7 +49,9 @@ public class SimEvent {
 
   public enum Type {
     START,
-    STOP
+    STOP,
+    /* The CPU has been reset and all scheduled events removed */
+    RESET
   };
 
   private Type type;
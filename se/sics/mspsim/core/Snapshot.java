@@ -0,0 +1,779 @@
+package se.sics.mspsim.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Inherited;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+
+import se.sics.mspsim.chip.MemoryStorage;
+import se.sics.mspsim.chip.Storage;
+import se.sics.mspsim.core.EmulationLogger.WarningType;
+
+/**
+ * Saves and restores the complete state of an emulated node: registers,
+ * memory, the state of all IO units and chips, and the scheduled time
+ * events.
+ *
+ * A snapshot can only be loaded into a node of the same type that has been
+ * set up in the same way as the node it was saved from, since only the
+ * state is saved and not the structure of the node. The state of the IO
+ * units and chips is found by walking their fields. References to other IO
+ * units and chips are saved as references, while helper objects of classes
+ * marked with {@link State}, such as FIFOs and time events, are saved as
+ * part of the component that owns them. Listeners and other objects outside
+ * the emulated hardware are not part of the snapshot. Fields that are not
+ * part of the emulated state, such as emulator settings and caches, are
+ * marked with {@link Exclude}.
+ *
+ * Time events that can not be reached from the components, for example
+ * events scheduled by the CLI, are not saved.
+ *
+ * Snapshots can also be kept in memory, for example to run many variants
+ * from one booted node. An in-memory snapshot taken with a base snapshot
+ * shares all memory pages that are unchanged since the base (copy on write
+ * with the granularity of the memory segments). A node restored from an
+ * in-memory snapshot reads its RAM and flash pages from the snapshot and
+ * copies a page first when it writes to it. Variants thereby only copy
+ * the pages they write, and their snapshots only keep those pages.
+ */
+public class Snapshot {
+
+    private static final int MAGIC = 0x4d535053; /* "MSPS" */
+    private static final int VERSION = 2;
+
+    private static final int STORAGE_PAGE_SIZE = 4096;
+
+    /* Value tags */
+    private static final int T_SKIP = 0;
+    private static final int T_NULL = 1;
+    private static final int T_BOOLEAN = 2;
+    private static final int T_BYTE = 3;
+    private static final int T_CHAR = 4;
+    private static final int T_SHORT = 5;
+    private static final int T_INT = 6;
+    private static final int T_LONG = 7;
+    private static final int T_FLOAT = 8;
+    private static final int T_DOUBLE = 9;
+    private static final int T_STRING = 10;
+    private static final int T_ENUM = 11;
+    private static final int T_ARRAY = 12;
+    private static final int T_OBJECT = 13;
+    private static final int T_REF = 14;
+    private static final int T_COMPONENT = 15;
+    private static final int T_COLLECTION = 16;
+    private static final int T_STORAGE = 17;
+
+    /**
+     * Marks the classes of objects that are saved as part of the IO unit or
+     * chip that references them. Subclasses are also saved.
+     */
+    @Documented
+    @Inherited
+    @Retention(RetentionPolicy.RUNTIME)
+    @Target(ElementType.TYPE)
+    public @interface State {
+    }
+
+    /**
+     * Marks fields that are not saved in snapshots and keep their current
+     * value when a snapshot is restored.
+     */
+    @Documented
+    @Retention(RetentionPolicy.RUNTIME)
+    @Target(ElementType.FIELD)
+    public @interface Exclude {
+    }
+
+    private static final ClassValue<Field[]> FIELDS = new ClassValue<Field[]>() {
+        @Override
+        protected Field[] computeValue(Class<?> type) {
+            ArrayList<Field> list = new ArrayList<Field>();
+            if (type.getSuperclass() != null && type.getSuperclass() != Object.class) {
+                list.addAll(Arrays.asList(get(type.getSuperclass())));
+            }
+            Field[] declared = type.getDeclaredFields();
+            Arrays.sort(declared, Comparator.comparing(Field::getName));
+            for (Field f : declared) {
+                int m = f.getModifiers();
+                if (Modifier.isStatic(m) || f.isSynthetic() || f.isAnnotationPresent(Exclude.class)) {
+                    continue;
+                }
+                Class<?> t = f.getType();
+                if (Modifier.isFinal(m) && (t.isPrimitive() || t == String.class || t.isEnum())) {
+                    /* Constants */
+                    continue;
+                }
+                f.setAccessible(true);
+                list.add(f);
+            }
+            return list.toArray(new Field[list.size()]);
+        }
+    };
+
+    /* Memory pages of Memory.SEGMENT_SIZE, null for unused pages. Pages are never modified. */
+    private final byte[][] pages;
+    private final byte[] state;
+
+    private Snapshot(byte[][] pages, byte[] state) {
+        this.pages = pages;
+        this.state = state;
+    }
+
+    /**
+     * Takes an in-memory snapshot of a stopped CPU.
+     */
+    public static Snapshot take(MSP430Core cpu) {
+        return take(cpu, null);
+    }
+
+    /**
+     * Takes an in-memory snapshot of a stopped CPU. The memory pages that
+     * are equal to the pages in the base snapshot are shared with the base.
+     *
+     * @param base a snapshot of the same node or of the node it was forked from, or null
+     */
+    public static Snapshot take(MSP430Core cpu, Snapshot base) {
+        byte[] memory = cpu.memory;
+        byte[][] pages = new byte[memory.length / Memory.SEGMENT_SIZE][];
+        if (base != null && base.pages.length != pages.length) {
+            throw new IllegalArgumentException("the base snapshot is from a different type of node");
+        }
+        for (int i = 0, p = 0; i < pages.length; i++, p += Memory.SEGMENT_SIZE) {
+            byte[] basePage = base != null ? base.pages[i] : null;
+            /* Pages the CPU still shares with a snapshot are kept shared */
+            byte[] shared = cpu.getSharedPage(i);
+            if (basePage != null && (basePage == shared || shared == null
+                    && Arrays.equals(memory, p, p + Memory.SEGMENT_SIZE, basePage, 0, Memory.SEGMENT_SIZE))) {
+                pages[i] = basePage;
+            } else if (shared != null) {
+                pages[i] = shared;
+            } else if (!isZero(memory, p)) {
+                pages[i] = Arrays.copyOfRange(memory, p, p + Memory.SEGMENT_SIZE);
+            }
+        }
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try {
+            DataOutputStream out = new DataOutputStream(output);
+            new Writer(cpu, out, false).write();
+            out.flush();
+        } catch (IOException e) {
+            /* Should not happen when writing to memory */
+            throw new IllegalStateException("failed to take snapshot", e);
+        }
+        return new Snapshot(pages, output.toByteArray());
+    }
+
+    /**
+     * Restores a stopped CPU to the state in this snapshot.
+     */
+    public void restore(MSP430Core cpu) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(state));
+        new Reader(cpu, in, pages).read();
+    }
+
+    /**
+     * Returns the number of used memory pages in this snapshot.
+     */
+    public int getPageCount() {
+        int count = 0;
+        for (byte[] page : pages) {
+            if (page != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of memory pages shared with the specified snapshot.
+     */
+    public int getSharedPageCount(Snapshot other) {
+        int count = 0;
+        for (int i = 0, n = Math.min(pages.length, other.pages.length); i < n; i++) {
+            if (pages[i] != null && pages[i] == other.pages[i]) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Saves the state of a stopped CPU and everything connected to it.
+     */
+    public static void save(MSP430Core cpu, OutputStream output) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(output, 65536));
+        new Writer(cpu, out, true).write();
+        out.flush();
+    }
+
+    /**
+     * Restores the state of a stopped CPU from a snapshot saved from a node
+     * of the same type.
+     */
+    public static void load(MSP430Core cpu, InputStream input) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(input, 65536));
+        new Reader(cpu, in, null).read();
+    }
+
+    static boolean isPartOfState(Object value) {
+        Class<?> type = value.getClass();
+        return !type.isSynthetic() && type.isAnnotationPresent(State.class);
+    }
+
+    static boolean isBoxed(Object value) {
+        return value instanceof Number || value instanceof Boolean || value instanceof Character;
+    }
+
+    private static boolean isZero(byte[] memory, int p) {
+        int used = 0;
+        for (int i = 0; i < Memory.SEGMENT_SIZE; i++) {
+            used |= memory[p + i];
+        }
+        return used == 0;
+    }
+
+    /* Only the used pages are saved */
+    private static void writeMemory(DataOutputStream out, MSP430Core cpu) throws IOException {
+        byte[] memory = cpu.memory;
+        for (int p = 0; p < memory.length; p += Memory.SEGMENT_SIZE) {
+            byte[] shared = cpu.getSharedPage(p / Memory.SEGMENT_SIZE);
+            if (shared != null) {
+                out.writeInt(p);
+                out.write(shared);
+            } else if (!isZero(memory, p)) {
+                out.writeInt(p);
+                out.write(memory, p, Memory.SEGMENT_SIZE);
+            }
+        }
+        out.writeInt(-1);
+    }
+
+    private static void readMemory(DataInputStream in, byte[] memory) throws IOException {
+        Arrays.fill(memory, (byte) 0);
+        int p;
+        while ((p = in.readInt()) >= 0) {
+            if (p + Memory.SEGMENT_SIZE > memory.length) {
+                throw new IOException("memory page outside memory: 0x" + Integer.toHexString(p));
+            }
+            in.readFully(memory, p, Memory.SEGMENT_SIZE);
+        }
+    }
+
+    private static class Writer {
+        private final MSP430Core cpu;
+        private final DataOutputStream out;
+        private final boolean withMemory;
+        private final Object[] components;
+        private final IdentityHashMap<Object,Integer> componentIndex = new IdentityHashMap<Object,Integer>();
+        private final IdentityHashMap<Object,Integer> objects = new IdentityHashMap<Object,Integer>();
+        private final IdentityHashMap<Class<?>,Integer> classes = new IdentityHashMap<Class<?>,Integer>();
+
+        Writer(MSP430Core cpu, DataOutputStream out, boolean withMemory) {
+            this.cpu = cpu;
+            this.out = out;
+            this.withMemory = withMemory;
+            this.components = cpu.getStateComponents();
+            for (int i = 0; i < components.length; i++) {
+                componentIndex.put(components[i], i);
+            }
+        }
+
+        void write() throws IOException {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(cpu.config.getClass().getName());
+            out.writeInt(cpu.memory.length);
+            out.writeInt(components.length);
+            for (Object c : components) {
+                out.writeUTF(c.getClass().getName());
+            }
+
+            out.writeBoolean(withMemory);
+            if (withMemory) {
+                writeMemory(out, cpu);
+            }
+            /* The memory is referenced by most IO units */
+            objects.put(cpu.memory, objects.size());
+
+            for (Object c : components) {
+                objects.put(c, objects.size());
+                writeFields(c);
+            }
+
+            writeEvents(cpu.getVTimeEventQueue());
+            writeEvents(cpu.getCycleEventQueue());
+        }
+
+        private void writeEvents(EventQueue queue) throws IOException {
+            TimeEvent[] events = queue.getEvents();
+            int count = 0;
+            for (TimeEvent event : events) {
+                if (objects.containsKey(event)) {
+                    count++;
+                } else {
+                    cpu.logw(WarningType.EMULATION_ERROR, "event not part of snapshot: " + event.getShort());
+                }
+            }
+            out.writeInt(count);
+            for (TimeEvent event : events) {
+                Integer index = objects.get(event);
+                if (index != null) {
+                    out.writeInt(index);
+                    out.writeLong(event.time);
+                }
+            }
+        }
+
+        private void writeClass(Class<?> type) throws IOException {
+            Integer index = classes.get(type);
+            if (index != null) {
+                out.writeShort(index);
+            } else {
+                out.writeShort(-1);
+                out.writeUTF(type.getName());
+                classes.put(type, classes.size());
+            }
+        }
+
+        private void writeFields(Object o) throws IOException {
+            Field[] fields = FIELDS.get(o.getClass());
+            out.writeShort(fields.length);
+            try {
+                for (Field f : fields) {
+                    writeValue(f.get(o));
+                }
+            } catch (IllegalAccessException e) {
+                throw new IOException("failed to save " + o.getClass().getName(), e);
+            }
+        }
+
+        private void writeValue(Object value) throws IOException {
+            if (value == null) {
+                out.writeByte(T_NULL);
+            } else if (value instanceof Integer) {
+                out.writeByte(T_INT);
+                out.writeInt((Integer) value);
+            } else if (value instanceof Boolean) {
+                out.writeByte(T_BOOLEAN);
+                out.writeBoolean((Boolean) value);
+            } else if (value instanceof Long) {
+                out.writeByte(T_LONG);
+                out.writeLong((Long) value);
+            } else if (value instanceof Double) {
+                out.writeByte(T_DOUBLE);
+                out.writeDouble((Double) value);
+            } else if (value instanceof Byte) {
+                out.writeByte(T_BYTE);
+                out.writeByte((Byte) value);
+            } else if (value instanceof Character) {
+                out.writeByte(T_CHAR);
+                out.writeChar((Character) value);
+            } else if (value instanceof Short) {
+                out.writeByte(T_SHORT);
+                out.writeShort((Short) value);
+            } else if (value instanceof Float) {
+                out.writeByte(T_FLOAT);
+                out.writeFloat((Float) value);
+            } else if (value instanceof String) {
+                out.writeByte(T_STRING);
+                out.writeUTF((String) value);
+            } else if (value instanceof Enum) {
+                out.writeByte(T_ENUM);
+                out.writeShort(((Enum<?>) value).ordinal());
+            } else if (componentIndex.containsKey(value)) {
+                out.writeByte(T_COMPONENT);
+                out.writeShort(componentIndex.get(value));
+            } else if (objects.containsKey(value)) {
+                out.writeByte(T_REF);
+                out.writeInt(objects.get(value));
+            } else if (value.getClass().isArray()) {
+                objects.put(value, objects.size());
+                writeArray(value);
+            } else if (value instanceof Collection) {
+                writeCollection((Collection<?>) value);
+            } else if (value instanceof Storage && !(value instanceof MemoryStorage)) {
+                writeStorage((Storage) value);
+            } else if (isPartOfState(value)) {
+                objects.put(value, objects.size());
+                out.writeByte(T_OBJECT);
+                writeClass(value.getClass());
+                writeFields(value);
+            } else {
+                out.writeByte(T_SKIP);
+            }
+        }
+
+        private void writeArray(Object array) throws IOException {
+            Class<?> type = array.getClass();
+            int length = Array.getLength(array);
+            out.writeByte(T_ARRAY);
+            writeClass(type);
+            out.writeInt(length);
+            if (type == int[].class) {
+                for (int v : (int[]) array) out.writeInt(v);
+            } else if (type == byte[].class) {
+                out.write((byte[]) array);
+            } else if (type == boolean[].class) {
+                for (boolean v : (boolean[]) array) out.writeBoolean(v);
+            } else if (type == long[].class) {
+                for (long v : (long[]) array) out.writeLong(v);
+            } else if (type == double[].class) {
+                for (double v : (double[]) array) out.writeDouble(v);
+            } else if (type == char[].class) {
+                for (char v : (char[]) array) out.writeChar(v);
+            } else if (type == short[].class) {
+                for (short v : (short[]) array) out.writeShort(v);
+            } else if (type == float[].class) {
+                for (float v : (float[]) array) out.writeFloat(v);
+            } else {
+                for (Object v : (Object[]) array) writeValue(v);
+            }
+        }
+
+        private void writeCollection(Collection<?> list) throws IOException {
+            for (Object v : list) {
+                if (!isBoxed(v)) {
+                    /* Only collections of values, not listeners etc */
+                    out.writeByte(T_SKIP);
+                    return;
+                }
+            }
+            out.writeByte(T_COLLECTION);
+            out.writeInt(list.size());
+            for (Object v : list) {
+                writeValue(v);
+            }
+        }
+
+        private void writeStorage(Storage storage) throws IOException {
+            long size = storage.getMaxSize();
+            if (size <= 0) {
+                out.writeByte(T_SKIP);
+                return;
+            }
+            out.writeByte(T_STORAGE);
+            out.writeLong(size);
+            byte[] page = new byte[STORAGE_PAGE_SIZE];
+            for (long p = 0; p < size; p += STORAGE_PAGE_SIZE) {
+                int len = (int) Math.min(STORAGE_PAGE_SIZE, size - p);
+                storage.read(p, page, 0, len);
+                int used = 0;
+                for (int i = 0; i < len; i++) {
+                    used |= page[i];
+                }
+                if (used != 0) {
+                    out.writeLong(p);
+                    out.writeShort(len);
+                    out.write(page, 0, len);
+                }
+            }
+            out.writeLong(-1);
+        }
+    }
+
+    private static class Reader {
+        private final MSP430Core cpu;
+        private final DataInputStream in;
+        private final byte[][] pages;
+        private final Object[] components;
+        private final ArrayList<Object> objects = new ArrayList<Object>();
+        private final ArrayList<Class<?>> classes = new ArrayList<Class<?>>();
+
+        Reader(MSP430Core cpu, DataInputStream in, byte[][] pages) {
+            this.cpu = cpu;
+            this.in = in;
+            this.pages = pages;
+            this.components = cpu.getStateComponents();
+        }
+
+        void read() throws IOException {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("not a snapshot");
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("unsupported snapshot version: " + version);
+            }
+            String config = in.readUTF();
+            if (!config.equals(cpu.config.getClass().getName())) {
+                throw new IOException("snapshot of a different MCU: " + config);
+            }
+            if (in.readInt() != cpu.memory.length) {
+                throw new IOException("snapshot memory size does not match");
+            }
+            int count = in.readInt();
+            if (count != components.length) {
+                throw new IOException("snapshot has " + count + " components but the node has " + components.length);
+            }
+            for (Object c : components) {
+                String name = in.readUTF();
+                if (!name.equals(c.getClass().getName())) {
+                    throw new IOException("snapshot component " + name + " does not match " + c.getClass().getName());
+                }
+            }
+
+            EventQueue vTimeQueue = cpu.getVTimeEventQueue();
+            EventQueue cycleQueue = cpu.getCycleEventQueue();
+            vTimeQueue.removeAll();
+            cycleQueue.removeAll();
+
+            if (in.readBoolean()) {
+                cpu.unshareMemory(0, cpu.memory.length);
+                readMemory(in, cpu.memory);
+            } else if (pages != null) {
+                /* The CPU reads the pages until it writes them */
+                cpu.setMemoryPages(pages);
+            } else {
+                throw new IOException("the snapshot does not contain the memory");
+            }
+            objects.add(cpu.memory);
+
+            for (Object c : components) {
+                objects.add(c);
+                readFields(c);
+            }
+
+            readEvents(vTimeQueue);
+            readEvents(cycleQueue);
+
+            cpu.invalidateInstructionCache();
+        }
+
+        private void readEvents(EventQueue queue) throws IOException {
+            int count = in.readInt();
+            TimeEvent[] events = new TimeEvent[count];
+            long[] times = new long[count];
+            for (int i = 0; i < count; i++) {
+                Object event = objects.get(in.readInt());
+                times[i] = in.readLong();
+                if (!(event instanceof TimeEvent)) {
+                    throw new IOException("snapshot event does not match node: " + event);
+                }
+                events[i] = (TimeEvent) event;
+            }
+            /* Events at the same time are executed in reverse scheduling order */
+            for (int i = count - 1; i >= 0; i--) {
+                queue.addEvent(events[i], times[i]);
+            }
+        }
+
+        private Class<?> readClass() throws IOException {
+            int index = in.readShort();
+            if (index >= 0) {
+                return classes.get(index);
+            }
+            String name = in.readUTF();
+            Class<?> type;
+            try {
+                type = Class.forName(name, false, Snapshot.class.getClassLoader());
+            } catch (ClassNotFoundException e) {
+                /* Only used to compare with the current object */
+                type = null;
+            }
+            classes.add(type);
+            return type;
+        }
+
+        /* Restores the fields of the object - or just reads them if the object is null */
+        private void readFields(Object o) throws IOException {
+            int count = in.readShort();
+            Field[] fields = o != null ? FIELDS.get(o.getClass()) : null;
+            if (fields != null && fields.length != count) {
+                throw new IOException("snapshot of " + o.getClass().getName() + " does not match");
+            }
+            try {
+                for (int i = 0; i < count; i++) {
+                    if (fields == null) {
+                        readValue(null, null);
+                        continue;
+                    }
+                    Field f = fields[i];
+                    Object current = f.get(o);
+                    Object value = readValue(current, f.getType());
+                    if (value != current && !Modifier.isFinal(f.getModifiers())) {
+                        if (value == null ? !f.getType().isPrimitive() : isAssignable(f.getType(), value)) {
+                            f.set(o, value);
+                        }
+                    }
+                }
+            } catch (IllegalAccessException e) {
+                throw new IOException("failed to restore " + o.getClass().getName(), e);
+            }
+        }
+
+        private static boolean isAssignable(Class<?> type, Object value) {
+            if (type.isPrimitive()) {
+                return isBoxed(value);
+            }
+            return type.isInstance(value);
+        }
+
+        /*
+         * Reads a value. Objects are restored into the current object when
+         * possible. Returns the value that the field should have, where type
+         * is the declared type of the field or null if unknown.
+         */
+        private Object readValue(Object current, Class<?> type) throws IOException {
+            int tag = in.readByte();
+            switch (tag) {
+            case T_SKIP:
+                return current;
+            case T_NULL:
+                return null;
+            case T_BOOLEAN:
+                return in.readBoolean();
+            case T_BYTE:
+                return in.readByte();
+            case T_CHAR:
+                return in.readChar();
+            case T_SHORT:
+                return in.readShort();
+            case T_INT:
+                return in.readInt();
+            case T_LONG:
+                return in.readLong();
+            case T_FLOAT:
+                return in.readFloat();
+            case T_DOUBLE:
+                return in.readDouble();
+            case T_STRING:
+                return in.readUTF();
+            case T_ENUM: {
+                int ordinal = in.readShort();
+                Object[] values = current instanceof Enum ? ((Enum<?>) current).getDeclaringClass().getEnumConstants()
+                    : type != null && type.isEnum() ? type.getEnumConstants() : null;
+                return values != null && ordinal < values.length ? values[ordinal] : current;
+            }
+            case T_COMPONENT: {
+                int index = in.readShort();
+                return index < components.length ? components[index] : current;
+            }
+            case T_REF: {
+                Object value = objects.get(in.readInt());
+                return value != null ? value : current;
+            }
+            case T_ARRAY:
+                return readArray(current);
+            case T_COLLECTION:
+                return readCollection(current);
+            case T_STORAGE:
+                readStorage(current instanceof Storage ? (Storage) current : null);
+                return current;
+            case T_OBJECT: {
+                Class<?> objectType = readClass();
+                Object target = current != null && current.getClass() == objectType ? current : null;
+                objects.add(target);
+                readFields(target);
+                return current;
+            }
+            default:
+                throw new IOException("corrupt snapshot: unknown tag " + tag);
+            }
+        }
+
+        private Object readArray(Object current) throws IOException {
+            Class<?> type = readClass();
+            int length = in.readInt();
+            Object array = current;
+            if (array == null || array.getClass() != type || Array.getLength(array) != length) {
+                /* Arrays of objects are never replaced since the objects can not be created */
+                array = type != null && type.getComponentType().isPrimitive()
+                    ? Array.newInstance(type.getComponentType(), length) : null;
+            }
+            objects.add(array);
+            if (type == int[].class) {
+                int[] a = (int[]) array;
+                for (int i = 0; i < length; i++) a[i] = in.readInt();
+            } else if (type == byte[].class) {
+                in.readFully((byte[]) array);
+            } else if (type == boolean[].class) {
+                boolean[] a = (boolean[]) array;
+                for (int i = 0; i < length; i++) a[i] = in.readBoolean();
+            } else if (type == long[].class) {
+                long[] a = (long[]) array;
+                for (int i = 0; i < length; i++) a[i] = in.readLong();
+            } else if (type == double[].class) {
+                double[] a = (double[]) array;
+                for (int i = 0; i < length; i++) a[i] = in.readDouble();
+            } else if (type == char[].class) {
+                char[] a = (char[]) array;
+                for (int i = 0; i < length; i++) a[i] = in.readChar();
+            } else if (type == short[].class) {
+                short[] a = (short[]) array;
+                for (int i = 0; i < length; i++) a[i] = in.readShort();
+            } else if (type == float[].class) {
+                float[] a = (float[]) array;
+                for (int i = 0; i < length; i++) a[i] = in.readFloat();
+            } else {
+                Object[] a = (Object[]) array;
+                for (int i = 0; i < length; i++) {
+                    Object value = readValue(a != null ? a[i] : null, type != null ? type.getComponentType() : null);
+                    if (a != null && (value == null || a.getClass().getComponentType().isInstance(value))) {
+                        a[i] = value;
+                    }
+                }
+            }
+            return array != null ? array : current;
+        }
+
+        @SuppressWarnings("unchecked")
+        private Object readCollection(Object current) throws IOException {
+            int size = in.readInt();
+            Collection<Object> list = current instanceof Collection ? (Collection<Object>) current : null;
+            if (list != null) {
+                list.clear();
+            }
+            for (int i = 0; i < size; i++) {
+                Object value = readValue(null, null);
+                if (list != null) {
+                    list.add(value);
+                }
+            }
+            return current;
+        }
+
+        private void readStorage(Storage storage) throws IOException {
+            long size = in.readLong();
+            byte[] page = new byte[STORAGE_PAGE_SIZE];
+            byte[] empty = new byte[STORAGE_PAGE_SIZE];
+            long next = 0;
+            long p;
+            while ((p = in.readLong()) >= 0) {
+                int len = in.readUnsignedShort();
+                in.readFully(page, 0, len);
+                if (storage != null) {
+                    for (; next < p; next += STORAGE_PAGE_SIZE) {
+                        storage.write(next, empty, 0, (int) Math.min(STORAGE_PAGE_SIZE, size - next));
+                    }
+                    storage.write(p, page, 0, len);
+                    next = p + STORAGE_PAGE_SIZE;
+                }
+            }
+            if (storage != null) {
+                for (; next < size; next += STORAGE_PAGE_SIZE) {
+                    storage.write(next, empty, 0, (int) Math.min(STORAGE_PAGE_SIZE, size - next));
+                }
+            }
+        }
+    }
+
+}
@@ -50,7 +50,7 @@ System NMI vector generator SYSSNIV 1Ch
 Reset vector generator SYSRSTIV 1Eh
 	 */
 
-	public SysReg(MSP430Core cpu, int[] memory) {
+	public SysReg(MSP430Core cpu, byte[] memory) {
 		super("SysReg", "System registers", cpu, memory, SysReg.ADDRESS);
 		reset(0);
 	}
@@ -62,15 +62,15 @@ Reset vector generator SYSRSTIV 1Eh
 		if (DEBUG)
 			log(this.getName() + ": Write to: "
 					+ String.format("0x%05x = 0x%05x", address, value));
-		memory[address] = value;
+		MemoryImage.write(memory, address, value, word);
 	}
 
 	public int read(int address, boolean word, long cycles) {
 		if (DEBUG)
 			log(this.getName()
 					+ ": Read from: "
-					+ String.format("0x%05x = 0x%05x", address, memory[address]));
-		return memory[address];
+					+ String.format("0x%05x = 0x%05x", address, MemoryImage.read(memory, address, word)));
+		return MemoryImage.read(memory, address, word);
 	}
 
 	public void interruptServiced(int vector) {
@@ -41,13 +41,14 @@
 
 package se.sics.mspsim.core;
 
+@Snapshot.State
 public abstract class TimeEvent {
-  // For linking events...
-  TimeEvent nextEvent;
-  TimeEvent prevEvent;
+  // Position and scheduling order in the event queue
+  @Snapshot.Exclude int queueIndex = -1;
+  @Snapshot.Exclude long sequence;
 
   // Keeps track of where this is scheduled
-  EventQueue scheduledIn = null;
+  @Snapshot.Exclude EventQueue scheduledIn = null;
   String name;
   
   protected long time;
@@ -395,7 +395,8 @@ public class Timer extends IOUnit {
           
           
           if (lastTIV == 0 && interruptEnable) {
-              lastTIV = memory[tiv] = timerOverflow;
+              memory[tiv] = (byte) timerOverflow;
+              lastTIV = timerOverflow;
               cpu.flagInterrupt(ccr1Vector, Timer.this, true);
           } else {
 //              System.out.println("*** Did not trigger interrupt: " + interruptEnable);
@@ -414,7 +415,7 @@ public class Timer extends IOUnit {
    *
    */
 
-  public Timer(MSP430Core cpu, int[] memory, MSP430Config.TimerConfig config) {
+  public Timer(MSP430Core cpu, byte[] memory, MSP430Config.TimerConfig config) {
     super(config.name, config.name, cpu, memory, config.offset);
     this.srcMap = config.srcMap;
     // noCompare = (srcMap.length / 4) - 1;
@@ -470,6 +471,29 @@ public class Timer extends IOUnit {
       inputDivider = 1;
   }
 
+  @Override
+  public boolean isPollable(int address) {
+    /* The counter follows the cycles and reading TIV resets it */
+    int index = address - offset;
+    return address != tiv && (index == TCTL || (index >= TCCR0 && index <= TCCR6 && (index & 1) == 0));
+  }
+
+  @Override
+  public long getCounter(int address, long cycles) {
+    if (address != offset + TR || mode != CONTIN) {
+      return -1;
+    }
+    /* Same as updateCounter() but without wrapping the counter */
+    double divider = 1;
+    if (clockSource == SRC_ACLK) {
+      divider = 1.0 * cpu.smclkFrq / cpu.aclkFrq;
+    }
+    divider = divider * inputDivider;
+    long cycctr = cycles - counterStart;
+    double tick = cycctr / divider;
+    return (long) (tick + counterAcc);
+  }
+
   // Should handle read of byte also (currently ignores that...)
   public int read(int address, boolean word, long cycles) {
 
@@ -0,0 +1,239 @@
+package se.sics.mspsim.core;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import se.sics.mspsim.core.Memory.AccessMode;
+import se.sics.mspsim.util.ELF;
+import se.sics.mspsim.util.MapTable;
+import se.sics.mspsim.util.Utils;
+
+/**
+ * Reads a trace recorded by TraceRecorder. The memory image is kept up to
+ * date with the recorded writes so that the instructions can be
+ * disassembled as they were executed.
+ */
+public class TraceReader implements Closeable {
+
+    private final DataInputStream input;
+    private final byte[] memory;
+    private final int[] reg = new int[16];
+
+    private int type = -1;
+    private int pc;
+    private long cycles;
+    private int interrupt = -1;
+    private int address;
+    private int value;
+    private AccessMode mode;
+
+    public TraceReader(String file) throws IOException {
+        input = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+        if (input.readInt() != TraceRecorder.MAGIC) {
+            input.close();
+            throw new IOException("not an MSPSim trace: " + file);
+        }
+        int version = input.readInt();
+        if (version != TraceRecorder.VERSION) {
+            input.close();
+            throw new IOException("unsupported trace version " + version);
+        }
+        memory = new byte[input.readInt()];
+        pc = input.readInt();
+        reg[MSP430Constants.PC] = pc;
+        reg[MSP430Constants.SR] = input.readInt();
+        cycles = input.readLong();
+        input.readFully(memory);
+    }
+
+    /**
+     * Reads the next record and applies it to the memory image.
+     *
+     * @return false when the end of the trace has been reached
+     */
+    public boolean next() throws IOException {
+        if (type == TraceRecorder.TYPE_END) {
+            return false;
+        }
+        int tag;
+        try {
+            tag = input.readUnsignedByte();
+        } catch (EOFException e) {
+            /* The recording was never closed */
+            type = TraceRecorder.TYPE_END;
+            return false;
+        }
+        type = tag & 3;
+        switch (type) {
+        case TraceRecorder.TYPE_INSTRUCTION:
+            pc += (int) readSigned();
+            readCycles(tag);
+            if ((tag & TraceRecorder.FLAG_SR) != 0) {
+                reg[MSP430Constants.SR] = (int) readVarLong();
+            }
+            reg[MSP430Constants.PC] = pc;
+            return true;
+        case TraceRecorder.TYPE_INTERRUPT:
+            interrupt = (int) readVarLong();
+            readCycles(tag);
+            return true;
+        case TraceRecorder.TYPE_WRITE:
+            mode = AccessMode.values()[(tag >> TraceRecorder.MODE_SHIFT) & 3];
+            address += (int) readSigned();
+            value = (int) readVarLong();
+            if (address >= 0 && address + mode.bytes <= memory.length) {
+                switch (mode) {
+                case BYTE:
+                    MemoryImage.writeByte(memory, address, value);
+                    break;
+                case WORD:
+                    MemoryImage.writeWord(memory, address, value);
+                    break;
+                case WORD20:
+                    MemoryImage.writeWord20(memory, address, value);
+                    break;
+                }
+            }
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    private void readCycles(int tag) throws IOException {
+        int delta = tag >> TraceRecorder.CYCLES_SHIFT;
+        cycles += delta == TraceRecorder.CYCLES_ESCAPE ? readSigned() : delta;
+    }
+
+    private long readVarLong() throws IOException {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = input.readUnsignedByte();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+
+    private long readSigned() throws IOException {
+        long v = readVarLong();
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    /* The PC of the last executed instruction */
+    public int getPC() {
+        return pc;
+    }
+
+    public int getSR() {
+        return reg[MSP430Constants.SR];
+    }
+
+    public long getCycles() {
+        return cycles;
+    }
+
+    /* The vector of the last serviced interrupt */
+    public int getInterrupt() {
+        return interrupt;
+    }
+
+    public int getAddress() {
+        return address;
+    }
+
+    public int getValue() {
+        return value;
+    }
+
+    public AccessMode getMode() {
+        return mode;
+    }
+
+    public byte[] getMemory() {
+        return memory;
+    }
+
+    public int[] getRegisters() {
+        return reg;
+    }
+
+    @Override
+    public void close() throws IOException {
+        input.close();
+    }
+
+    private static void usage() {
+        System.err.println("Usage: TraceReader [-writes] <trace> [firmware.elf | mapfile]");
+        System.exit(1);
+    }
+
+    public static void main(String[] args) throws IOException {
+        boolean showWrites = false;
+        int index = 0;
+        if (args.length > 0 && "-writes".equals(args[0])) {
+            showWrites = true;
+            index++;
+        }
+        if (args.length - index < 1 || args.length - index > 2) {
+            usage();
+        }
+
+        DisAsm disAsm = new DisAsm();
+        MapTable map = null;
+        if (args.length - index == 2) {
+            String symbols = args[index + 1];
+            if (symbols.endsWith(".map")) {
+                map = new MapTable(symbols);
+            } else {
+                map = ELF.readELF(symbols).getMap();
+            }
+            disAsm.setMap(map);
+        }
+
+        TraceReader reader = new TraceReader(args[index]);
+        try {
+            DbgInstruction dbg = new DbgInstruction();
+            String lastFunction = null;
+            long instructions = 0;
+            while (reader.next()) {
+                switch (reader.getType()) {
+                case TraceRecorder.TYPE_INTERRUPT:
+                    System.out.println(reader.getCycles() + "\t#### Interrupt " + reader.getInterrupt());
+                    break;
+                case TraceRecorder.TYPE_WRITE:
+                    if (showWrites) {
+                        System.out.println("\t\t  write $" + Utils.hex(reader.getAddress(), 5)
+                                + " = $" + Utils.hex(reader.getValue(), reader.getMode().bytes * 2));
+                    }
+                    break;
+                case TraceRecorder.TYPE_INSTRUCTION:
+                    instructions++;
+                    disAsm.disassemble(reader.getPC(), reader.getMemory(), reader.getRegisters(), dbg, 0);
+                    String function = dbg.getFunction();
+                    if (function != null && !function.equals(lastFunction)) {
+                        System.out.println("//// " + function);
+                        lastFunction = function;
+                    }
+                    System.out.println(reader.getCycles() + "\t" + dbg.getASMLine(false)
+                            + "\tSR=" + Utils.hex16(reader.getSR()));
+                    break;
+                }
+            }
+            System.out.println("Trace ended after " + instructions + " instructions at cycle "
+                    + reader.getCycles());
+        } finally {
+            reader.close();
+        }
+    }
+
+}
@@ -0,0 +1,250 @@
+package se.sics.mspsim.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import se.sics.mspsim.core.Memory.AccessMode;
+
+/**
+ * Records a binary trace of the execution into a memory-mapped file. The
+ * trace starts with a header and the memory image when the recording was
+ * started, followed by one record per executed instruction, serviced
+ * interrupt and memory write. Program counters, cycles and write addresses
+ * are stored as deltas to the previous record which makes most
+ * instructions take two bytes. Use TraceReader to read the trace.
+ */
+public class TraceRecorder {
+
+    public static final int MAGIC = 0x4d535054; /* "MSPT" */
+    public static final int VERSION = 1;
+
+    /* The record type is stored in the low two bits of the tag byte */
+    public static final int TYPE_INSTRUCTION = 0;
+    public static final int TYPE_INTERRUPT = 1;
+    public static final int TYPE_WRITE = 2;
+    public static final int TYPE_END = 3;
+
+    /* Instruction records: the SR follows when it has changed */
+    static final int FLAG_SR = 0x04;
+    /* Cycle deltas up to 30 are stored in the tag byte, larger follow */
+    static final int CYCLES_SHIFT = 3;
+    static final int CYCLES_ESCAPE = 31;
+    /* Write records: access mode ordinal */
+    static final int MODE_SHIFT = 2;
+
+    private static final int MAP_SIZE = 16 * 1024 * 1024;
+    /* Magic, version, memory size, PC, SR and cycles */
+    private static final int HEADER_SIZE = 28;
+    /* Largest record: tag + three 10 byte varints */
+    private static final int MAX_RECORD = 32;
+
+    private final File file;
+    private final RandomAccessFile raFile;
+    private final FileChannel channel;
+    private MappedByteBuffer buffer;
+    private long bufferStart;
+
+    private int lastPC;
+    private int lastSR;
+    private long lastCycles;
+    private int lastAddress;
+    private long records;
+    private volatile boolean closeRequested;
+
+    public TraceRecorder(File file, MSP430Core cpu) throws IOException {
+        this.file = file;
+        this.raFile = new RandomAccessFile(file, "rw");
+        this.raFile.setLength(0);
+        this.channel = raFile.getChannel();
+        map(0);
+        ensure(HEADER_SIZE);
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putInt(cpu.MAX_MEM);
+        buffer.putInt(cpu.reg[MSP430Constants.PC]);
+        buffer.putInt(cpu.reg[MSP430Constants.SR]);
+        buffer.putLong(cpu.cycles);
+        /* The memory may be larger than a mapped region */
+        cpu.unshareMemory(0, cpu.MAX_MEM);
+        for (int pos = 0; pos < cpu.MAX_MEM; ) {
+            int len = Math.min(cpu.MAX_MEM - pos, MAP_SIZE / 2);
+            ensure(len);
+            buffer.put(cpu.memory, pos, len);
+            pos += len;
+        }
+        lastPC = cpu.reg[MSP430Constants.PC];
+        lastSR = cpu.reg[MSP430Constants.SR];
+        lastCycles = cpu.cycles;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long getRecordCount() {
+        return records;
+    }
+
+    public long getSize() {
+        return buffer == null ? bufferStart : bufferStart + buffer.position();
+    }
+
+    private void map(long position) throws IOException {
+        if (buffer != null) {
+            buffer.force();
+        }
+        bufferStart = position;
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, position, MAP_SIZE);
+    }
+
+    private void ensure(int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            map(bufferStart + buffer.position());
+        }
+    }
+
+    /* Returns false if the recording has ended */
+    private boolean ensureRecord() throws EmulationException {
+        if (closeRequested || buffer == null) {
+            try {
+                close();
+            } catch (IOException e) {
+                throw new EmulationException("failed to close trace " + file + ": " + e.getMessage());
+            }
+            return false;
+        }
+        if (buffer.remaining() < MAX_RECORD) {
+            try {
+                map(bufferStart + buffer.position());
+            } catch (IOException e) {
+                throw new EmulationException("failed to extend trace " + file + ": " + e.getMessage());
+            }
+        }
+        return true;
+    }
+
+    private void putVarLong(long value) {
+        while ((value & ~0x7fL) != 0) {
+            buffer.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    private void putSigned(long value) {
+        putVarLong((value << 1) ^ (value >> 63));
+    }
+
+    /* Returns the cycles since the last record */
+    private long cycleDelta(long cycles) {
+        long delta = cycles - lastCycles;
+        lastCycles = cycles;
+        return delta;
+    }
+
+    private static int cycleTag(long delta) {
+        return (delta >= 0 && delta < CYCLES_ESCAPE ? (int) delta : CYCLES_ESCAPE) << CYCLES_SHIFT;
+    }
+
+    public void recordInstruction(int pc, long cycles, int sr) throws EmulationException {
+        if (!ensureRecord()) {
+            return;
+        }
+        long delta = cycleDelta(cycles);
+        int tag = TYPE_INSTRUCTION | cycleTag(delta);
+        if (sr != lastSR) {
+            tag |= FLAG_SR;
+        }
+        buffer.put((byte) tag);
+        putSigned(pc - lastPC);
+        lastPC = pc;
+        if (delta < 0 || delta >= CYCLES_ESCAPE) {
+            putSigned(delta);
+        }
+        if (sr != lastSR) {
+            putVarLong(sr & 0xffffffffL);
+            lastSR = sr;
+        }
+        records++;
+    }
+
+    public void recordInterrupt(int vector, long cycles) throws EmulationException {
+        if (!ensureRecord()) {
+            return;
+        }
+        long delta = cycleDelta(cycles);
+        buffer.put((byte) (TYPE_INTERRUPT | cycleTag(delta)));
+        putVarLong(vector);
+        if (delta < 0 || delta >= CYCLES_ESCAPE) {
+            putSigned(delta);
+        }
+        records++;
+    }
+
+    public void recordWrite(int address, int data, AccessMode mode) throws EmulationException {
+        if (!ensureRecord()) {
+            return;
+        }
+        buffer.put((byte) (TYPE_WRITE | (mode.ordinal() << MODE_SHIFT)));
+        putSigned(address - lastAddress);
+        lastAddress = address;
+        putVarLong(data & (mode == AccessMode.WORD20 ? 0xffffffffL : mode.mask));
+        records++;
+    }
+
+    /**
+     * Asks the recording thread to end the trace before its next record.
+     */
+    public void requestClose() {
+        closeRequested = true;
+    }
+
+    /* Called by the recording thread while the CPU sleeps and records nothing */
+    void closeIfRequested() throws EmulationException {
+        if (closeRequested) {
+            ensureRecord();
+        }
+    }
+
+    /**
+     * Waits until the recording thread has ended the trace. The trace is
+     * ended here instead if the CPU is not running.
+     */
+    synchronized void awaitClose(MSP430 cpu) throws IOException, InterruptedException {
+        while (buffer != null && cpu.isRunning()) {
+            wait(100);
+        }
+        close();
+    }
+
+    public boolean isClosed() {
+        return buffer == null;
+    }
+
+    /**
+     * Ends the trace and truncates the file to the recorded size.
+     */
+    public synchronized void close() throws IOException {
+        if (buffer == null) {
+            return;
+        }
+        ensure(1);
+        buffer.put((byte) TYPE_END);
+        long size = bufferStart + buffer.position();
+        buffer.force();
+        buffer = null;
+        bufferStart = size;
+        try {
+            channel.truncate(size);
+        } catch (IOException e) {
+            /* Some platforms do not allow truncating a mapped file - the
+             * end record still marks the end of the trace. */
+        }
+        raFile.close();
+        notifyAll();
+    }
+
+}
@@ -0,0 +1,399 @@
+package se.sics.mspsim.core;
+
+import se.sics.mspsim.core.Memory.AccessMode;
+import se.sics.mspsim.core.Memory.AccessType;
+
+/**
+ * A sequence of MSP430 instructions translated into operations with all
+ * operands decoded in advance. The operations have exactly the same effect
+ * on registers, memory and cycles as MSP430Core.emulateOP() but skip the
+ * decoding and the checks for interrupts and events between instructions.
+ *
+ * All memory accesses are made through the memory segments in the same
+ * order and with the same CPU state as in the interpreter. Operations that
+ * access other segments than RAM and flash report this so that the block can
+ * check for interrupts and other changes made by IO units before continuing.
+ */
+public class TranslatedBlock implements MSP430Constants {
+
+    /* Block that marks an address that can not be translated */
+    static final TranslatedBlock NONE = new TranslatedBlock(-1, new Operation[0]);
+
+    public final int address;
+    final Operation[] operations;
+
+    TranslatedBlock(int address, Operation[] operations) {
+        this.address = address;
+        this.operations = operations;
+    }
+
+    public int getInstructionCount() {
+        return operations.length;
+    }
+
+    static abstract class Operation implements MSP430Constants {
+        /* The operation could not be executed - nothing has been changed */
+        static final int NOT_EXECUTED = 0;
+        static final int EXECUTED = 1;
+        /* The operation was executed and accessed IO or watched memory */
+        static final int EXECUTED_IO = 2;
+
+        final int address;
+        final int instruction;
+        final int nextPC;
+        final int cycles;
+
+        Operation(DecodedInstruction instruction, int cycles) {
+            this.address = instruction.address;
+            this.instruction = instruction.instruction;
+            this.nextPC = instruction.address + instruction.size;
+            this.cycles = cycles;
+        }
+
+        abstract int execute(MSP430Core cpu) throws EmulationException;
+    }
+
+    /**
+     * Double operand instruction without extension word and with a
+     * destination other than PC and SR in register mode.
+     */
+    static class DoubleOperand extends Operation {
+
+        static final int SRC_CONST = 0;   /* constant generator, immediate or PC */
+        static final int SRC_REG = 1;
+        static final int SRC_ABS = 2;     /* absolute, symbolic or @PC */
+        static final int SRC_INDEX = 3;
+        static final int SRC_IND = 4;
+        static final int SRC_AUTOINC = 5;
+
+        private final int op;
+        private final boolean word;
+        private final AccessMode mode;
+        private final int mask;
+        private final int msb;
+
+        private final int srcMode;
+        private final int srcRegister;
+        private final int srcValue;
+
+        private final boolean dstRegMode;
+        private final int dstRegister;
+        /* absolute destination address or -1 if indexed by dstRegister */
+        private final int dstAbsolute;
+        private final int dstIndex;
+
+        private final boolean readDst;
+        private final boolean write;
+
+        DoubleOperand(DecodedInstruction instruction, int cycles, int srcMode, int srcRegister, int srcValue,
+                boolean dstRegMode, int dstRegister, int dstAbsolute, int dstIndex) {
+            super(instruction, cycles);
+            this.op = instruction.instruction >> 12;
+            this.word = (instruction.instruction & 0x40) == 0;
+            this.mode = word ? AccessMode.WORD : AccessMode.BYTE;
+            this.mask = mode.mask;
+            this.msb = mode.msb;
+            this.srcMode = srcMode;
+            this.srcRegister = srcRegister;
+            this.srcValue = srcValue;
+            this.dstRegMode = dstRegMode;
+            this.dstRegister = dstRegister;
+            this.dstAbsolute = dstAbsolute;
+            this.dstIndex = dstIndex;
+            this.readDst = op != MOV;
+            this.write = op != CMP && op != BIT;
+        }
+
+        @Override
+        int execute(MSP430Core cpu) throws EmulationException {
+            int[] reg = cpu.reg;
+            int src = 0;
+            int srcAddress = -1;
+            switch (srcMode) {
+            case SRC_CONST:
+                src = srcValue;
+                break;
+            case SRC_REG:
+                src = reg[srcRegister] & mask;
+                break;
+            case SRC_ABS:
+                srcAddress = srcValue;
+                break;
+            case SRC_INDEX: {
+                int sval = reg[srcRegister];
+                srcAddress = (srcValue + sval) & (sval <= 0xffff ? 0xffff : 0xfffff);
+                break;
+            }
+            default:
+                srcAddress = reg[srcRegister];
+                break;
+            }
+
+            int dstAddress = -1;
+            if (!dstRegMode) {
+                if (dstAbsolute >= 0) {
+                    dstAddress = dstAbsolute;
+                } else {
+                    int rval = reg[dstRegister];
+                    if (srcMode == SRC_AUTOINC && srcRegister == dstRegister) {
+                        /* the source register is incremented before the destination address is calculated */
+                        rval += mode.bytes;
+                    }
+                    dstAddress = (dstIndex + rval) & (rval <= 0xffff ? 0xffff : 0xfffff);
+                }
+            }
+            if (srcAddress >= cpu.MAX_MEM || dstAddress >= cpu.MAX_MEM) {
+                /* Let the interpreter report the illegal access */
+                return NOT_EXECUTED;
+            }
+
+            /* Registers and cycles are updated before the memory accesses as in the interpreter */
+            int result = EXECUTED;
+            cpu.cycles += cycles;
+            if (srcMode == SRC_AUTOINC) {
+                reg[srcRegister] += mode.bytes;
+            }
+            int dst = 0;
+            if (readDst) {
+                if (dstRegMode) {
+                    dst = reg[dstRegister] & mask;
+                } else {
+                    reg[PC] = nextPC - 2;
+                    if (cpu.pageTypes[dstAddress >> 8] == MSP430Core.PAGE_DISPATCH) {
+                        result = EXECUTED_IO;
+                    }
+                    dst = cpu.readMemory(dstAddress, mode, AccessType.READ);
+                }
+            }
+            reg[PC] = nextPC;
+            if (srcAddress != -1) {
+                if (cpu.pageTypes[srcAddress >> 8] == MSP430Core.PAGE_DISPATCH) {
+                    result = EXECUTED_IO;
+                }
+                src = cpu.readMemory(srcAddress, mode, AccessType.READ);
+            }
+
+            int sr = reg[SR];
+            boolean updateStatus = true;
+            int tmpAdd = 0;
+            switch (op) {
+            case MOV:
+                dst = src;
+                updateStatus = false;
+                break;
+            case SUB:
+                tmpAdd = 1;
+                src = (src ^ 0xffff) & 0xffff;
+                dst = add(cpu, sr, src, dst, tmpAdd);
+                break;
+            case SUBC:
+                tmpAdd = (sr & CARRY) > 0 ? 1 : 0;
+                src = (src ^ 0xffff) & 0xffff;
+                dst = add(cpu, sr, src, dst, tmpAdd);
+                break;
+            case ADDC:
+                tmpAdd = (sr & CARRY) > 0 ? 1 : 0;
+                dst = add(cpu, sr, src, dst, tmpAdd);
+                break;
+            case ADD:
+                dst = add(cpu, sr, src, dst, tmpAdd);
+                break;
+            case CMP: {
+                sr = (sr & ~(CARRY | OVERFLOW)) | (dst >= src ? CARRY : 0);
+                int tmp = dst - src;
+                if (((src ^ tmp) & msb) == 0 && (((src ^ dst) & msb) != 0)) {
+                    sr |= OVERFLOW;
+                }
+                cpu.writeRegister(SR, sr);
+                dst = tmp;
+                break;
+            }
+            case BIT:
+            case AND:
+                dst = src & dst;
+                sr = sr & ~(CARRY | OVERFLOW);
+                if (dst != 0) {
+                    sr |= CARRY;
+                }
+                cpu.writeRegister(SR, sr);
+                break;
+            case BIC:
+                dst = (~src) & dst;
+                updateStatus = false;
+                break;
+            case BIS:
+                dst = src | dst;
+                updateStatus = false;
+                break;
+            case XOR:
+                sr = sr & ~(CARRY | OVERFLOW);
+                if ((src & msb) != 0 && (dst & msb) != 0) {
+                    sr |= OVERFLOW;
+                }
+                dst = src ^ dst;
+                if (dst != 0) {
+                    sr |= CARRY;
+                }
+                cpu.writeRegister(SR, sr);
+                break;
+            }
+
+            dst &= mask;
+            if (write) {
+                if (dstRegMode) {
+                    reg[dstRegister] = dst;
+                } else {
+                    if (cpu.pageTypes[dstAddress >> 8] != MSP430Core.PAGE_RAM) {
+                        result = EXECUTED_IO;
+                    }
+                    cpu.writeMemory(dstAddress, dst, mode);
+                }
+            }
+            if (updateStatus) {
+                sr = reg[SR];
+                sr = (sr & ~(ZERO | NEGATIVE)) | ((dst == 0) ? ZERO : 0) | ((dst & msb) > 0 ? NEGATIVE : 0);
+                cpu.writeRegister(SR, sr);
+            }
+            return result;
+        }
+
+        private int add(MSP430Core cpu, int sr, int src, int dst, int tmpAdd) {
+            sr &= ~(OVERFLOW | CARRY);
+            int b = word ? 0x8000 : 0x80;
+            int tmp = (src ^ dst) & b;
+            dst = dst + src + tmpAdd;
+            if (dst > (word ? 0xffff : 0xff)) {
+                sr |= CARRY;
+            }
+            if (tmp == 0 && ((src ^ dst) & b) != 0) {
+                sr |= OVERFLOW;
+            }
+            cpu.writeRegister(SR, sr);
+            return dst;
+        }
+    }
+
+    /**
+     * RRC, RRA, SWPB and SXT on a general purpose register.
+     */
+    static class SingleOperand extends Operation {
+
+        private final int op;
+        private final int register;
+        private final int mask;
+        private final int msb;
+
+        SingleOperand(DecodedInstruction instruction, int cycles) {
+            super(instruction, cycles);
+            this.op = instruction.instruction & 0xff80;
+            this.register = instruction.instruction & 0xf;
+            AccessMode mode = (instruction.instruction & 0x40) == 0 ? AccessMode.WORD : AccessMode.BYTE;
+            this.mask = mode.mask;
+            this.msb = mode.msb;
+        }
+
+        @Override
+        int execute(MSP430Core cpu) {
+            int[] reg = cpu.reg;
+            reg[PC] = nextPC;
+            int dst = reg[register] & mask;
+            int sr = reg[SR];
+            boolean updateStatus = true;
+            switch (op) {
+            case RRC: {
+                int nxtCarry = (dst & 1) > 0 ? CARRY : 0;
+                dst = dst >> 1;
+                dst |= (sr & CARRY) > 0 ? msb : 0;
+                cpu.writeRegister(SR, (sr & ~(CARRY | OVERFLOW)) | nxtCarry);
+                break;
+            }
+            case SWPB:
+                dst = ((dst >> 8) & 0xff) + ((dst << 8) & 0xff00);
+                updateStatus = false;
+                break;
+            case RRA: {
+                int nxtCarry = (dst & 1) > 0 ? CARRY : 0;
+                dst = (dst & msb) | dst >> 1;
+                cpu.writeRegister(SR, (sr & ~(CARRY | OVERFLOW)) | nxtCarry);
+                break;
+            }
+            case SXT:
+                dst = (dst & 0x80) > 0 ? dst | 0xfff00 : dst & 0x7f;
+                sr = sr & ~(CARRY | OVERFLOW);
+                if (dst != 0) {
+                    sr |= CARRY;
+                }
+                cpu.writeRegister(SR, sr);
+                break;
+            }
+            dst &= mask;
+            reg[register] = dst;
+            if (updateStatus) {
+                sr = reg[SR];
+                sr = (sr & ~(ZERO | NEGATIVE)) | ((dst == 0) ? ZERO : 0) | ((dst & msb) > 0 ? NEGATIVE : 0);
+                cpu.writeRegister(SR, sr);
+            }
+            cpu.cycles += cycles;
+            return EXECUTED;
+        }
+    }
+
+    /**
+     * Conditional and unconditional jumps. Always the last operation in a block.
+     */
+    static class Jump extends Operation {
+
+        private final int condition;
+        private final int target;
+
+        Jump(DecodedInstruction instruction) {
+            super(instruction, 2);
+            this.condition = instruction.instruction & 0xfc00;
+            int jmpOffset = instruction.instruction & 0x3ff;
+            jmpOffset = (jmpOffset & 0x200) == 0 ?
+                    2 * jmpOffset : -(2 * (0x200 - (jmpOffset & 0x1ff)));
+            this.target = (nextPC + jmpOffset) & 0xfffff;
+        }
+
+        @Override
+        int execute(MSP430Core cpu) {
+            int sr = cpu.reg[SR];
+            boolean jump;
+            switch (condition) {
+            case JNE:
+                jump = (sr & ZERO) == 0;
+                break;
+            case JEQ:
+                jump = (sr & ZERO) > 0;
+                break;
+            case JNC:
+                jump = (sr & CARRY) == 0;
+                break;
+            case JC:
+                jump = (sr & CARRY) > 0;
+                break;
+            case JN:
+                jump = (sr & NEGATIVE) > 0;
+                break;
+            case JGE:
+                jump = (sr & NEGATIVE) > 0 == (sr & OVERFLOW) > 0;
+                break;
+            case JL:
+                jump = (sr & NEGATIVE) > 0 != (sr & OVERFLOW) > 0;
+                break;
+            default:
+                jump = true;
+                break;
+            }
+            cpu.cycles += cycles;
+            if (jump) {
+                cpu.reg[PC] = target;
+                cpu.blockTranslator.branchTaken(target);
+            } else {
+                cpu.reg[PC] = nextPC;
+            }
+            return EXECUTED;
+        }
+    }
+
+}
@@ -132,7 +132,7 @@ public class USART extends IOUnit implements SFRModule, DMATrigger, USARTSource
    * Creates a new <code>USART</code> instance.
    *
    */
-  public USART(MSP430Core cpu, int uartID, int[] memory, int offset) {
+  public USART(MSP430Core cpu, int uartID, byte[] memory, int offset) {
     super("USART" + uartID, "USART " + uartID, cpu, memory, offset);
     this.uartID = uartID;
     sfr = cpu.getSFR();
@@ -304,6 +304,12 @@ public class USART extends IOUnit implements SFRModule, DMATrigger, USARTSource
     }
   }
 
+  @Override
+  public boolean isPollable(int address) {
+    /* Reading the receive buffer clears the interrupt flag */
+    return address - offset != URXBUF;
+  }
+
   public int read(int address, boolean word, long cycles) {
     address = address - offset;
 //     System.out.println(">>>>> Read from " + getName() + " at " +
@@ -137,7 +137,7 @@ public class USCI extends IOUnit implements SFRModule, DMATrigger, USARTSource {
    * Creates a new <code>USART</code> instance.
    *
    */
-  public USCI(MSP430Core cpu, int uartID, int[] memory, MSP430Config config) {
+  public USCI(MSP430Core cpu, int uartID, byte[] memory, MSP430Config config) {
     super(config.uartConfig[uartID].name, cpu, memory, config.uartConfig[uartID].offset);
     this.uartID = uartID;
     MSP430Config.UARTConfig uartConfig = config.uartConfig[uartID];
@@ -222,7 +222,7 @@ public class USCI extends IOUnit implements SFRModule, DMATrigger, USARTSource {
   private int getIFG() {
       if (sfr != null)
           return sfr.getIFG(sfrAddress);
-      return memory[ifgAddress];
+      return memory[ifgAddress] & 0xff;
   }
 
   private boolean isIEBitsSet(int bits) {
@@ -245,7 +245,7 @@ public class USCI extends IOUnit implements SFRModule, DMATrigger, USARTSource {
   // Only 8 bits / read!
   public void write(int address, int data, boolean word, long cycles) {
     if (address == ieAddress || address == ifgAddress) {
-        memory[address] = data;
+        memory[address] = (byte) data;
     }
     address = address - offset;
 
@@ -329,9 +329,19 @@ public class USCI extends IOUnit implements SFRModule, DMATrigger, USARTSource {
     }
   }
 
+  @Override
+  public boolean isPollable(int address) {
+    if (address == ieAddress || address == ifgAddress) {
+      return true;
+    }
+    /* Reading the receive buffer clears the interrupt flag */
+    address = address - offset;
+    return address != UAxRXBUF && address != UBxRXBUF;
+  }
+
   public int read(int address, boolean word, long cycles) {
       if (address == ieAddress || address == ifgAddress) {
-          return memory[address];
+          return memory[address] & 0xff;
       }
     address = address - offset;
 //    System.out.println(">>>>> Read from " + getName() + " at " +
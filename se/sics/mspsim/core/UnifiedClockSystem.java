@@ -299,7 +299,7 @@ public class UnifiedClockSystem extends ClockSystem {
    * Creates a new <code>UnifiedClockSystem</code> instance.
    *
    */
-  public UnifiedClockSystem(MSP430Core cpu, int[] memory, int offset, Timer[] timers) {
+  public UnifiedClockSystem(MSP430Core cpu, byte[] memory, int offset, Timer[] timers) {
     super("UnifiedClockSystem", cpu, memory, offset);
     this.timers = timers;
   }
@@ -331,9 +331,9 @@ public class UnifiedClockSystem extends ClockSystem {
 
   // do nothing?
   public int read(int address, boolean word, long cycles) {
-    int val = memory[address];
+    int val = memory[address] & 0xff;
     if (word) {
-      val |= memory[(address + 1) & 0xffff] << 8;
+      val |= (memory[(address + 1) & 0xffff] & 0xff) << 8;
     }
     return val;
   }
@@ -343,8 +343,8 @@ public class UnifiedClockSystem extends ClockSystem {
     if (DEBUG) log("Write to UnifiedClockSystem: " +
 		       Utils.hex16(address) + " => " + Utils.hex16(data));
 
-    memory[address] = data & 0xff;
-    if (word) memory[address + 1] = (data >> 8) & 0xff;
+    memory[address] = (byte) data;
+    if (word) memory[address + 1] = (byte) (data >> 8);
 
     setConfiguration(cycles);
   }
@@ -0,0 +1,103 @@
+package se.sics.mspsim.core;
+
+import se.sics.mspsim.util.Utils;
+
+/**
+ * A condition on the value accessed by a watch point, such as "eq 0" or
+ * "and 0x80". The condition is parsed once into a test that is cheap to
+ * evaluate for every access. The operators are words since the CLI
+ * treats &gt; and &lt; as redirections.
+ */
+public abstract class WatchCondition {
+
+    private static final String[] OPERATORS = { "eq", "ne", "lt", "le", "gt", "ge", "and" };
+    private static final String[] SYMBOLS = { "==", "!=", "<", "<=", ">", ">=", "&" };
+
+    private final int type;
+    protected final int operand;
+
+    private WatchCondition(int type, int operand) {
+        this.type = type;
+        this.operand = operand;
+    }
+
+    /**
+     * Tests the value written, or the value to be read, by an access.
+     */
+    public abstract boolean test(int value);
+
+    public String getOperator() {
+        return OPERATORS[type];
+    }
+
+    public int getOperand() {
+        return operand;
+    }
+
+    public static boolean isOperator(String operator) {
+        return indexOf(operator) >= 0;
+    }
+
+    private static int indexOf(String operator) {
+        for (int i = 0; i < OPERATORS.length; i++) {
+            if (OPERATORS[i].equals(operator)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Creates a condition from an operator (eq, ne, lt, le, gt, ge or and
+     * for any of the bits set) and an operand such as 0, $ff or 0x80.
+     *
+     * @throws IllegalArgumentException if the operator or operand is unknown
+     */
+    public static WatchCondition create(String operator, String operand) {
+        int type = indexOf(operator);
+        if (type < 0) {
+            throw new IllegalArgumentException("illegal operator: " + operator);
+        }
+        int value;
+        try {
+            value = Utils.decodeInt(operand);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("illegal value: " + operand);
+        }
+        switch (type) {
+        case 0:
+            return new WatchCondition(type, value) {
+                public boolean test(int v) { return v == operand; }
+            };
+        case 1:
+            return new WatchCondition(type, value) {
+                public boolean test(int v) { return v != operand; }
+            };
+        case 2:
+            return new WatchCondition(type, value) {
+                public boolean test(int v) { return v < operand; }
+            };
+        case 3:
+            return new WatchCondition(type, value) {
+                public boolean test(int v) { return v <= operand; }
+            };
+        case 4:
+            return new WatchCondition(type, value) {
+                public boolean test(int v) { return v > operand; }
+            };
+        case 5:
+            return new WatchCondition(type, value) {
+                public boolean test(int v) { return v >= operand; }
+            };
+        default:
+            return new WatchCondition(type, value) {
+                public boolean test(int v) { return (v & operand) != 0; }
+            };
+        }
+    }
+
+    public String toString() {
+        return SYMBOLS[type] + " $" + Utils.hex(operand, 2);
+    }
+
+}
@@ -0,0 +1,119 @@
+package se.sics.mspsim.core;
+
+import se.sics.mspsim.core.Memory.AccessMode;
+import se.sics.mspsim.core.Memory.AccessType;
+
+/**
+ * A watch on a range of addresses. The monitor is notified about the
+ * accesses of the selected types that overlap the range and, if a
+ * condition is given, access a value that satisfies the condition. An
+ * access that only partly overlaps the range is tested on the overlapping
+ * bytes.
+ */
+public class WatchPoint {
+
+    public static final int READ = 1;
+    public static final int WRITE = 2;
+    public static final int EXECUTE = 4;
+    public static final int ALL = READ | WRITE | EXECUTE;
+
+    private final int start;
+    private final int end;
+    private final int access;
+    private final WatchCondition condition;
+    private final MemoryMonitor monitor;
+
+    /**
+     * Creates a new watch point.
+     *
+     * @param start the first watched address
+     * @param length the number of watched bytes
+     * @param access the watched access types (READ, WRITE and EXECUTE)
+     * @param condition the condition on the accessed value or null
+     * @param monitor the monitor to notify
+     */
+    public WatchPoint(int start, int length, int access, WatchCondition condition,
+            MemoryMonitor monitor) {
+        if (length < 1) {
+            throw new IllegalArgumentException("length must be at least one byte");
+        }
+        if ((access & ALL) == 0) {
+            throw new IllegalArgumentException("no access type to watch");
+        }
+        this.start = start;
+        this.end = start + length;
+        this.access = access;
+        this.condition = condition;
+        this.monitor = monitor;
+    }
+
+    public int getStart() {
+        return start;
+    }
+
+    /* The address after the last watched address */
+    public int getEnd() {
+        return end;
+    }
+
+    public int getLength() {
+        return end - start;
+    }
+
+    public int getAccess() {
+        return access;
+    }
+
+    public WatchCondition getCondition() {
+        return condition;
+    }
+
+    public MemoryMonitor getMonitor() {
+        return monitor;
+    }
+
+    public static int getAccess(AccessType type) {
+        switch (type) {
+        case WRITE:
+            return WRITE;
+        case EXECUTE:
+            return EXECUTE;
+        default:
+            return READ;
+        }
+    }
+
+    boolean matches(int address, AccessMode mode, int accessBit, int value) {
+        return (access & accessBit) != 0
+            && address < end && address + mode.bytes > start
+            && (condition == null || condition.test(getWatchedValue(address, mode, value)));
+    }
+
+    /* Returns the bytes of an access that are within the watched range */
+    private int getWatchedValue(int address, AccessMode mode, int value) {
+        value &= mode.mask;
+        if (address >= start && address + mode.bytes <= end) {
+            return value;
+        }
+        int first = Math.max(address, start);
+        int last = Math.min(address + mode.bytes, end);
+        /* Memory is little endian: the byte at address + n is bits 8n to 8n + 7 */
+        int bits = (last - first) * 8;
+        int watched = value >>> ((first - address) * 8);
+        return bits < 32 ? watched & ((1 << bits) - 1) : watched;
+    }
+
+    public static String getAccessAsString(int access) {
+        StringBuilder sb = new StringBuilder();
+        if ((access & READ) != 0) sb.append('r');
+        if ((access & WRITE) != 0) sb.append('w');
+        if ((access & EXECUTE) != 0) sb.append('x');
+        return sb.toString();
+    }
+
+    public String toString() {
+        return "$" + Integer.toHexString(start) + "-$" + Integer.toHexString(end - 1)
+            + ' ' + getAccessAsString(access) + (condition != null ? " " + condition : "");
+    }
+
+}
@@ -1,41 +1,78 @@
 package se.sics.mspsim.core;
 
+/**
+ * Wraps a memory segment that has watch points. A bit per address tells
+ * if any watch point covers the address, so accesses to unwatched
+ * addresses only cost a bit test. Pages without watch points are not
+ * wrapped at all.
+ */
 public class WatchedMemory implements Memory {
 
+    private static final WatchPoint[] NO_WATCH_POINTS = new WatchPoint[0];
+
     private final int start;
     private final Memory wrappedMemory;
-    private final MemoryMonitor watchPoints[] = new MemoryMonitor[Memory.SEGMENT_SIZE];
+    private final long[] watched = new long[Memory.SEGMENT_SIZE / 64];
+    private WatchPoint[] watchPoints = NO_WATCH_POINTS;
+    private boolean hasConditions;
 
     WatchedMemory(int start, Memory wrapped) {
         this.start = start;
         this.wrappedMemory = wrapped;
     }
 
+    public Memory getWatchedMemory() {
+        return wrappedMemory;
+    }
+
+    private boolean isWatched(int address, int bytes) {
+        for (int a = address - start, end = Math.min(a + bytes, Memory.SEGMENT_SIZE); a < end; a++) {
+            if ((watched[a >> 6] & (1L << a)) != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     @Override
     public int read(int address, AccessMode mode, AccessType type) throws EmulationException {
-        final int a = address - start;
-        int val;
-        MemoryMonitor mon = watchPoints[a];
-        if (mon != null) {
-            mon.notifyReadBefore(address, mode, type);
-            val = wrappedMemory.read(address, mode, type);
-            mon.notifyReadAfter(address, mode, type);
-        } else {
-            val = wrappedMemory.read(address, mode, type);
+        if (!isWatched(address, mode.bytes)) {
+            return wrappedMemory.read(address, mode, type);
+        }
+        final WatchPoint[] wps = watchPoints;
+        final int access = WatchPoint.getAccess(type);
+        final int value = hasConditions ? wrappedMemory.get(address, mode) : 0;
+        for (WatchPoint wp : wps) {
+            if (wp.matches(address, mode, access, value)) {
+                wp.getMonitor().notifyReadBefore(address, mode, type);
+            }
+        }
+        int val = wrappedMemory.read(address, mode, type);
+        for (WatchPoint wp : wps) {
+            if (wp.matches(address, mode, access, value)) {
+                wp.getMonitor().notifyReadAfter(address, mode, type);
+            }
         }
         return val;
     }
 
     @Override
     public void write(int dstAddress, int dst, AccessMode mode) throws EmulationException {
-        final int a = dstAddress - start;
-        final MemoryMonitor mon = watchPoints[a];
-        if (mon != null) {
-            mon.notifyWriteBefore(dstAddress, dst, mode);
-            wrappedMemory.write(dstAddress, dst, mode);
-            mon.notifyWriteAfter(dstAddress, dst, mode);
-        } else {
+        if (!isWatched(dstAddress, mode.bytes)) {
             wrappedMemory.write(dstAddress, dst, mode);
+            return;
+        }
+        final WatchPoint[] wps = watchPoints;
+        for (WatchPoint wp : wps) {
+            if (wp.matches(dstAddress, mode, WatchPoint.WRITE, dst)) {
+                wp.getMonitor().notifyWriteBefore(dstAddress, dst, mode);
+            }
+        }
+        wrappedMemory.write(dstAddress, dst, mode);
+        for (WatchPoint wp : wps) {
+            if (wp.matches(dstAddress, mode, WatchPoint.WRITE, dst)) {
+                wp.getMonitor().notifyWriteAfter(dstAddress, dst, mode);
+            }
         }
     }
 
@@ -50,18 +87,62 @@ public class WatchedMemory implements Memory {
     }
 
     public boolean hasWatchPoint(int address) {
-        MemoryMonitor mon = watchPoints[address - start];
-        return mon != null;
+        return isWatched(address, 1);
     }
 
-    public synchronized void addWatchPoint(int address, MemoryMonitor mon) {
-        final int a = address - start;
-        watchPoints[a] = MemoryMonitor.Proxy.INSTANCE.add(watchPoints[a], mon);
+    public boolean isEmpty() {
+        return watchPoints.length == 0;
     }
 
-    public synchronized void removeWatchPoint(int address, MemoryMonitor mon) {
-        final int a = address - start;
-        watchPoints[a] = MemoryMonitor.Proxy.INSTANCE.remove(watchPoints[a], mon);
+    public WatchPoint[] getWatchPoints() {
+        return watchPoints;
+    }
+
+    public synchronized void addWatchPoint(WatchPoint wp) {
+        WatchPoint[] wps = new WatchPoint[watchPoints.length + 1];
+        System.arraycopy(watchPoints, 0, wps, 0, watchPoints.length);
+        wps[watchPoints.length] = wp;
+        setWatchPoints(wps);
+    }
+
+    public synchronized boolean removeWatchPoint(WatchPoint wp) {
+        for (int i = 0; i < watchPoints.length; i++) {
+            if (watchPoints[i] == wp) {
+                WatchPoint[] wps = new WatchPoint[watchPoints.length - 1];
+                System.arraycopy(watchPoints, 0, wps, 0, i);
+                System.arraycopy(watchPoints, i + 1, wps, i, wps.length - i);
+                setWatchPoints(wps);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /* Finds a single address watch point added for the monitor */
+    WatchPoint findWatchPoint(int address, MemoryMonitor mon) {
+        for (WatchPoint wp : watchPoints) {
+            if (wp.getMonitor() == mon && wp.getStart() == address && wp.getLength() == 1) {
+                return wp;
+            }
+        }
+        return null;
+    }
+
+    private void setWatchPoints(WatchPoint[] wps) {
+        long[] bits = new long[watched.length];
+        boolean conditions = false;
+        for (WatchPoint wp : wps) {
+            int from = Math.max(wp.getStart(), start) - start;
+            int to = Math.min(wp.getEnd(), start + Memory.SEGMENT_SIZE) - start;
+            for (int a = from; a < to; a++) {
+                bits[a >> 6] |= 1L << a;
+            }
+            conditions |= wp.getCondition() != null;
+        }
+        /* Publish the new watch points before the index to never miss a watch */
+        watchPoints = wps;
+        hasConditions = conditions;
+        System.arraycopy(bits, 0, watched, 0, bits.length);
     }
 
 }
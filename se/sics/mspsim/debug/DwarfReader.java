@@ -41,6 +41,11 @@ package se.sics.mspsim.debug;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.PriorityQueue;
 
 import se.sics.mspsim.util.DebugInfo;
 import se.sics.mspsim.util.ELF;
@@ -115,6 +120,13 @@ public class DwarfReader implements ELFDebug {
 
     private ArrayList<Arange> aranges = new ArrayList<Arange>();
 
+    /* Sorted address intervals with their line and file */
+    private int[] lineStarts = new int[0];
+    private int[] lineEnds = new int[0];
+    private int[] lineNumbers = new int[0];
+    private int[] lineFiles = new int[0];
+    private String[] lineFileNames = new String[0];
+
     public DwarfReader(ELF elfFile) {
         this.elfFile = elfFile;
     }
@@ -130,6 +142,7 @@ public class DwarfReader implements ELFDebug {
                 readLines(sec);
             }
         }
+        buildLineIndex();
     }
 
     private void readLines(ELFSection sec) {
@@ -437,34 +450,112 @@ public class DwarfReader implements ELFDebug {
         } while (pos < sec.getSize());
     }
 
-    /* Access methods for data... */
-    public DebugInfo getDebugInfo(int address) {
+    /*
+     * Builds the lookup table for getDebugInfo() as sorted, non overlapping
+     * address intervals. Each line entry covers the addresses up to the next
+     * entry in its table and the first table and entry in order wins where
+     * entries from different tables overlap.
+     */
+    private void buildLineIndex() {
+        /* All entry intervals as (start, end, order) */
+        ArrayList<int[]> intervals = new ArrayList<int[]>();
         for (int i = 0; i < lineInfo.size(); i++) {
-            LineData data = lineInfo.get(i);
-            int start = data.lineEntries[0].address;
-            int end = data.lineEntries[data.lineEntries.length - 1].address;
+            LineEntry[] entries = lineInfo.get(i).lineEntries;
+            int start = entries[0].address;
+            int end = entries[entries.length - 1].address;
             /* XXX ignore all line entries starting on address 0 */
             if (start == 0) continue;
-
-            if (address <= end && address >= start) {
-                for (int j = 0; j < data.lineEntries.length; j++) {
-                  LineEntry lineEntry = data.lineEntries[j];
-                  int startEntry = lineEntry.address;
-                  int endEntry;
-                  if (j+1 < data.lineEntries.length) {
-                    endEntry = data.lineEntries[j+1].address-1;
-                  } else {
-                    /* do not match prologue entries */
-                    continue;
-                  }
-                  if (address >= startEntry &&
-                      address <= endEntry) {
-                    return new DebugInfo(lineEntry.line, null, data.sourceFiles[lineEntry.file-1], "* not available");
-                  }
+            /* the last entry does not cover any addresses - do not match prologue entries */
+            for (int j = 0; j + 1 < entries.length; j++) {
+                int from = Math.max(entries[j].address, start);
+                int to = Math.min(entries[j + 1].address - 1, end);
+                if (from <= to) {
+                    intervals.add(new int[] { from, to, intervals.size(), i, j });
                 }
             }
         }
-        return null;
+
+        /* Split the address space where any interval starts or ends */
+        int[] points = new int[intervals.size() * 2];
+        int n = 0;
+        for (int[] interval : intervals) {
+            points[n++] = interval[0];
+            points[n++] = interval[1] + 1;
+        }
+        Arrays.sort(points, 0, n);
+
+        Collections.sort(intervals, new Comparator<int[]>() {
+            public int compare(int[] o1, int[] o2) {
+                return Integer.compare(o1[0], o2[0]);
+            }
+        });
+        /* The covering intervals with the first in order on top */
+        PriorityQueue<int[]> active = new PriorityQueue<int[]>(11, new Comparator<int[]>() {
+            public int compare(int[] o1, int[] o2) {
+                return Integer.compare(o1[2], o2[2]);
+            }
+        });
+
+        int[] starts = new int[n];
+        int[] ends = new int[n];
+        int[] lines = new int[n];
+        int[] files = new int[n];
+        ArrayList<String> fileNames = new ArrayList<String>();
+        HashMap<String,Integer> fileIndex = new HashMap<String,Integer>();
+        int count = 0;
+        int next = 0;
+        for (int p = 0; p < n; p++) {
+            int point = points[p];
+            if (p > 0 && point == points[p - 1]) continue;
+            while (next < intervals.size() && intervals.get(next)[0] <= point) {
+                active.add(intervals.get(next++));
+            }
+            while (!active.isEmpty() && active.peek()[1] < point) {
+                active.poll();
+            }
+            if (active.isEmpty()) continue;
+            /* The segment ends before the next split point */
+            int q = p + 1;
+            while (q < n && points[q] == point) q++;
+            int end = q < n ? points[q] - 1 : point;
+            int[] top = active.peek();
+            LineData data = lineInfo.get(top[3]);
+            LineEntry entry = data.lineEntries[top[4]];
+            String fileName = data.sourceFiles[entry.file - 1];
+            Integer file = fileIndex.get(fileName);
+            if (file == null) {
+                file = fileNames.size();
+                fileNames.add(fileName);
+                fileIndex.put(fileName, file);
+            }
+            if (count > 0 && ends[count - 1] == point - 1
+                    && lines[count - 1] == entry.line && files[count - 1] == file) {
+                ends[count - 1] = end;
+            } else {
+                starts[count] = point;
+                ends[count] = end;
+                lines[count] = entry.line;
+                files[count] = file;
+                count++;
+            }
+        }
+        lineStarts = Arrays.copyOf(starts, count);
+        lineEnds = Arrays.copyOf(ends, count);
+        lineNumbers = Arrays.copyOf(lines, count);
+        lineFiles = Arrays.copyOf(files, count);
+        lineFileNames = fileNames.toArray(new String[fileNames.size()]);
+    }
+
+    /* Access methods for data... */
+    public DebugInfo getDebugInfo(int address) {
+        int index = Arrays.binarySearch(lineStarts, address);
+        if (index < 0) {
+            index = -index - 2;
+        }
+        if (index < 0 || address > lineEnds[index]) {
+            return null;
+        }
+        return new DebugInfo(lineNumbers[index], null, lineFileNames[lineFiles[index]], "* not available");
     }
 
     public ArrayList<Integer> getExecutableAddresses() {
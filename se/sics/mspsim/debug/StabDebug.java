@@ -39,6 +39,7 @@
 
 package se.sics.mspsim.debug;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 import se.sics.mspsim.util.DebugInfo;
 import se.sics.mspsim.util.ELF;
@@ -50,6 +51,13 @@ public class StabDebug implements ELFDebug {
 
   private Stab[] stabs;
 
+  /* Sorted stop addresses for lookups and the line info, or -1 for none */
+  private int[] lineKeys;
+  private int[] lineNumbers;
+  private String[] linePaths;
+  private String[] lineFiles;
+  private String[] lineFunctions;
+
   public static final int N_FUN = 0x24;
   public static final int N_STSYM = 0x26; // Data segment file-scope variable; 
   public static final int N_LCSYM = 0x28; // BSS segment file-scope variable;
@@ -94,6 +102,7 @@ public class StabDebug implements ELFDebug {
       addr += dbgStab.getEntrySize();
     }
     // getStabFiles();
+    buildLineIndex();
   }
 
   public StabFile[] getStabFiles() {
@@ -119,68 +128,86 @@ public class StabDebug implements ELFDebug {
   }
   
   
-  /* Just pick up file + some other things */
-  public DebugInfo getDebugInfo(int address) {
+  /*
+   * Builds the lookup table for getDebugInfo(). A lookup walks the stabs in
+   * order and stops at the first file or function stab at or above the
+   * address (no info) or the first line stab ending at or above the address.
+   * These stop addresses do not depend on the looked up address, so the
+   * answer is given by the first stab whose stop address is at or above
+   * the address. Only the stabs that raise the maximum stop address so far
+   * can be first, which gives a sorted array to binary search.
+   */
+  private void buildLineIndex() {
+    int[] keys = new int[stabs.length];
+    int[] lines = new int[stabs.length];
+    String[] paths = new String[stabs.length];
+    String[] files = new String[stabs.length];
+    String[] functions = new String[stabs.length];
+    int count = 0;
     String currentPath = null;
     String currentFile = null;
     String currentFunction = null;
     int lastAddress = 0;
-    int currentLine = 0;
-    int currentLineAdr = 0;
-    for (int i = 0, n = stabs.length; i < n; i++) {
-      Stab stab = stabs[i];
+    for (Stab stab : stabs) {
+      int key;
+      boolean isLine = false;
       switch(stab.type) {
       case N_SO:
-	if (stab.value < address) {
-	  if (stab.data != null && stab.data.endsWith("/")) {
-	    currentPath = stab.data;
-          } else {
-	    currentFile = stab.data;
-          }
-          lastAddress = stab.value;
-          currentFunction = null;
+        key = stab.value;
+        if (stab.data != null && stab.data.endsWith("/")) {
+          currentPath = stab.data;
         } else {
-	  /* requires sorted order of all file entries in stab section */
-	  if (DEBUG) {
-	    System.out.println("FILE: Already passed address..." +
-			       currentPath + " " +
-			       currentFile + " " + currentFunction);
-	  }
-	  return null;
-	}
-	break;
+          currentFile = stab.data;
+        }
+        lastAddress = stab.value;
+        currentFunction = null;
+        break;
       case N_SLINE:
-	if (currentPath != null) { /* only files with path... */
-	  if (currentLineAdr < address) {
-	    currentLine = stab.desc;
-	    currentLineAdr = lastAddress + stab.value;
-	    if (currentLineAdr >= address) {
-	      // Finished!!!
-	      if (DEBUG) {
-		System.out.println("File: " + currentPath + " " + currentFile);
-		System.out.println("Function: " + currentFunction);
-		System.out.println("Line No: " + currentLine);
-	      }
-	      return new DebugInfo(currentLine, currentPath, currentFile,
-				   currentFunction);
-	    }
-	  }
-	}
-	break;
+        if (currentPath == null) { /* only files with path... */
+          continue;
+        }
+        key = lastAddress + stab.value;
+        isLine = true;
+        break;
       case N_FUN:
-	if (stab.value < address) {
-	  currentFunction = stab.data;
-	  lastAddress = stab.value;
-	} else {
-	  if (DEBUG) {
-	    System.out.println("FUN: Already passed address...");
-	  }
-	  return null;
-	}
-	break;
+        key = stab.value;
+        currentFunction = stab.data;
+        lastAddress = stab.value;
+        break;
+      default:
+        continue;
+      }
+      if (count == 0 || key > keys[count - 1]) {
+        keys[count] = key;
+        if (isLine) {
+          lines[count] = stab.desc;
+          paths[count] = currentPath;
+          files[count] = currentFile;
+          functions[count] = currentFunction;
+        } else {
+          lines[count] = -1;
+        }
+        count++;
       }
     }
-    return null;
+    lineKeys = Arrays.copyOf(keys, count);
+    lineNumbers = Arrays.copyOf(lines, count);
+    linePaths = Arrays.copyOf(paths, count);
+    lineFiles = Arrays.copyOf(files, count);
+    lineFunctions = Arrays.copyOf(functions, count);
+  }
+
+  /* Just pick up file + some other things */
+  public DebugInfo getDebugInfo(int address) {
+    int index = Arrays.binarySearch(lineKeys, address);
+    if (index < 0) {
+      index = -index - 1;
+    }
+    if (index >= lineKeys.length || lineNumbers[index] < 0) {
+      return null;
+    }
+    return new DebugInfo(lineNumbers[index], linePaths[index], lineFiles[index],
+                         lineFunctions[index]);
   }
 
   public ArrayList<Integer> getExecutableAddresses() {
@@ -36,17 +36,32 @@
  * Created : 11 oct 2012
  */
 
+
 package se.sics.mspsim.emulink;
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.Reader;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.Hashtable;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import se.sics.json.JSONArray;
 import se.sics.json.JSONObject;
@@ -56,21 +71,102 @@ import se.sics.mspsim.core.MSP430Constants;
 import se.sics.mspsim.platform.GenericNode;
 import se.sics.mspsim.util.Utils;
 
+/**
+ * Emulation link to a network simulator.
+ *
+ * The simulator either sends JSON messages, or selects the binary protocol
+ * by sending BINARY_MAGIC first. Each binary message is framed by its
+ * length as a 32 bit integer, followed by the message type and the
+ * arguments, all in network byte order. Strings are sent as in
+ * DataOutput.writeUTF. The binary protocol addresses the nodes by their
+ * index, in order of creation:
+ * <pre>
+ * MSG_CREATE  platform:str count:int id:str*    -&gt; status first:int count:int
+ * MSG_WRITE   file:str count:int index:int*     -&gt; status
+ * MSG_STEP    micros:long count:int index:int*  -&gt; status count:int node*
+ *             node = index:int status:byte pc:int micros:long
+ *                    serial:int byte* radio:int byte*
+ * MSG_SERIAL  index:int length:int byte*        (no reply)
+ * MSG_RADIO   index:int length:int byte*        (no reply)
+ * MSG_CLOSE                                     -&gt; status
+ * </pre>
+ * A step runs the nodes in parallel until the absolute emulated time and
+ * returns the output of the nodes since the last step. A count of -1
+ * selects all nodes. The replies start with the type of the request.
+ * Serial and radio input is only replied to, with an error status, when
+ * the length does not match the message.
+ */
 public class EmuLink {
 
+    public static final int DEFAULT_PORT = 8000;
+
+    public static final int BINARY_MAGIC = 0x454d4c42; /* "EMLB" */
+    public static final int BINARY_VERSION = 1;
+
+    public static final int MSG_CREATE = 1;
+    public static final int MSG_WRITE = 2;
+    public static final int MSG_STEP = 3;
+    public static final int MSG_SERIAL = 4;
+    public static final int MSG_RADIO = 5;
+    public static final int MSG_CLOSE = 6;
+
+    public static final int STATUS_OK = 0;
+    public static final int STATUS_STOPPED = 1;
+    public static final int STATUS_ERROR = 2;
+
+    private static final int MAX_MESSAGE_SIZE = 16 * 1024 * 1024;
+
+    private final int port;
+    private final int threads;
+    private ExecutorService workers;
+    private boolean verbose;
+
     private Socket socket;
-    private BufferedReader in;
+    private Reader in;
     private PrintWriter out;
     private boolean isConnected = false;
     private long globalEtime = 0L;
     private long globalLastTime = 0L;
 
-    private final Hashtable<String, GenericNode> nodes = new Hashtable<String, GenericNode>();
+    /* Only used by the connection thread */
+    private final HashMap<String, LinkNode> nodes = new HashMap<String, LinkNode>();
+    private final ArrayList<LinkNode> nodeList = new ArrayList<LinkNode>();
+
+    public EmuLink() {
+        this(DEFAULT_PORT, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param port the port to wait for the simulator on
+     * @param threads the number of threads used to step the nodes
+     */
+    public EmuLink(int port, int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("at least one thread is needed: " + threads);
+        }
+        this.port = port;
+        this.threads = threads;
+    }
 
     public boolean isConnected() {
         return !isConnected;
     }
 
+    public boolean isVerbose() {
+        return verbose;
+    }
+
+    /**
+     * Prints the received JSON messages and the progress of the nodes.
+     */
+    public void setVerbose(boolean verbose) {
+        this.verbose = verbose;
+    }
+
+    public int getNodeCount() {
+        return nodeList.size();
+    }
+
     String[] getNodes(JSONObject json) {
         JSONArray nodes;
         String node;
@@ -88,21 +184,24 @@ public class EmuLink {
         return nString;
     }
     
-    private boolean createNode(String type, String id) {
+    private LinkNode createNode(String type, String id) {
         String nt = Main.getNodeTypeByPlatform(type);
-        System.out.println("EmuLink: Creating node '" + id + "' of type '" + type + "' => " + nt);
+        if (verbose) {
+            System.out.println("EmuLink: Creating node '" + id + "' of type '" + type + "' => " + nt);
+        }
         GenericNode node = Main.createNode(nt);
         if (node == null) {
             System.err.println("EmuLink: failed to create node '" + id + "' of type '" + type + "'");
-            return false;
+            return null;
         }
-        nodes.put(id, node);
-        return true;
+        LinkNode linkNode = new LinkNode(id, nodeList.size(), type, node);
+        nodes.put(id, linkNode);
+        nodeList.add(linkNode);
+        return linkNode;
     }
     
     private boolean createNodes(JSONObject json) {
         String type = json.getAsString("type");
-        System.out.println("Should create: " + type);
 
         String[] nodes = getNodes(json);
         if (nodes != null) {
@@ -113,6 +212,45 @@ public class EmuLink {
         return true;
     }
 
+    private boolean loadFirmware(LinkNode node, String file) {
+        try {
+            node.loadFirmware(file);
+            return true;
+        } catch (IOException e) {
+            System.err.println("EmuLink: failed to load firmware '" + file + "'");
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Serves a connection from the simulator until it is closed. The
+     * protocol is selected by the first bytes sent by the simulator.
+     */
+    public void handleConnection(InputStream input, OutputStream output) throws IOException, ParseException {
+        BufferedInputStream bin = new BufferedInputStream(input, 65536);
+        bin.mark(4);
+        DataInputStream din = new DataInputStream(bin);
+        int magic;
+        try {
+            magic = din.readInt();
+        } catch (EOFException e) {
+            return;
+        }
+        if (magic == BINARY_MAGIC) {
+            DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(output, 65536));
+            dout.writeInt(BINARY_MAGIC);
+            dout.writeInt(BINARY_VERSION);
+            dout.flush();
+            processBinary(din, dout);
+        } else {
+            bin.reset();
+            out = new PrintWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8), true);
+            in = new InputStreamReader(bin, StandardCharsets.UTF_8);
+            processInput(in);
+        }
+    }
+
     protected void processInput(Reader input) throws IOException, ParseException {
         StringBuilder sb = new StringBuilder();
         int brackets = 0;
@@ -152,7 +290,9 @@ public class EmuLink {
     };
 
     protected boolean handleMessage(JSONObject json) {
-        System.out.println("EmuLink: RECV " + json.toJSONString());
+        if (verbose) {
+            System.out.println("EmuLink: RECV " + json.toJSONString());
+        }
         String event = json.getAsString("event");
         if ("emulation_control".equals(event)) {
             String command = json.getAsString("data");
@@ -162,14 +302,14 @@ public class EmuLink {
 
                 if (etime == 0) {
                     if (nodes == null) {
-                        for (GenericNode node : this.nodes.values()) {
-                            node.start();
+                        for (LinkNode node : nodeList) {
+                            node.node.start();
                         }
                     } else {
                         for(String id : nodes) {
-                            GenericNode node = this.nodes.get(id);
+                            LinkNode node = this.nodes.get(id);
                             if (node != null) {
-                                node.start();
+                                node.node.start();
                             } else {
                                 System.err.println("EmuLink: could not find node '" + id + "'");
                             }
@@ -179,27 +319,15 @@ public class EmuLink {
                     // Execute for specified time
                     globalEtime += etime;
                     if (nodes == null) {
-                        for (GenericNode node : this.nodes.values()) {
-                            long t0 = System.nanoTime(), t1;
-                            node.getCPU().stepMicros(globalLastTime, etime);
-                            t1 = System.nanoTime();
-                            System.out.println("EmuLink: node " + node.getID()
-                                    + " is now at $" + Utils.hex(node.getCPU().getRegister(MSP430Constants.PC), 4)
-                                    + " " + (long)(node.getCPU().getTimeMillis() + 0.5) + "/" + (globalEtime / 1000)
-                                    + " (elapsed " + (t1 - t0) + " ns)");
+                        for (LinkNode node : nodeList) {
+                            stepNode(node, etime);
                         }
 
                     } else {
                         for(String id : nodes) {
-                            GenericNode node = this.nodes.get(id);
+                            LinkNode node = this.nodes.get(id);
                             if (node != null) {
-                                long t0 = System.nanoTime(), t1;
-                                node.getCPU().stepMicros(globalLastTime, etime);
-                                t1 = System.nanoTime();
-                                System.out.println("EmuLink: node " + node.getID()
-                                        + " is now at $" + Utils.hex(node.getCPU().getRegister(MSP430Constants.PC), 4)
-                                        + " " + (long)(node.getCPU().getTimeMillis() + 0.5) + "/" + (globalEtime / 1000)
-                                        + " (elapsed " + (t1 - t0) + " ns)");
+                                stepNode(node, etime);
                             } else {
                                 System.err.println("EmuLink: could not find node '" + id + "'");
                             }
@@ -210,14 +338,14 @@ public class EmuLink {
             } else if ("stop".equals(command)) {
                 String[] nodes = getNodes(json);
                 if (nodes == null) {
-                    for (GenericNode node : this.nodes.values()) {
-                        node.stop();
+                    for (LinkNode node : nodeList) {
+                        node.node.stop();
                     }
                 } else {
                     for(String id : nodes) {
-                        GenericNode node = this.nodes.get(id);
+                        LinkNode node = this.nodes.get(id);
                         if (node != null) {
-                            node.stop();
+                            node.node.stop();
                         } else {
                             System.err.println("EmuLink: could not find node '" + id + "'");
                         }
@@ -245,18 +373,12 @@ public class EmuLink {
                 System.err.println("EmuLink: could not find file '" + file + "' for write");
             } else {
                 for(String id : nodes) {
-                    GenericNode node = this.nodes.get(id);
+                    LinkNode node = this.nodes.get(id);
                     if (node == null) {
                         System.err.println("EmuLink: could not find node '" + id + "'");
                         continue;
                     }
-                    try {
-                        node.loadFirmware(file);
-                        node.getCPU().reset();
-                    } catch (IOException e) {
-                        System.err.println("EmuLink: failed to load firmware '" + file + "'");
-                        e.printStackTrace();
-                    }
+                    loadFirmware(node, file);
                 }
             }
             sendToSimulator("{\"response\":\"write\",\"data\":1}");
@@ -286,6 +408,18 @@ public class EmuLink {
         return true;
     }
 
+    private void stepNode(LinkNode node, long etime) {
+        long t0 = System.nanoTime(), t1;
+        node.cpu.stepMicros(globalLastTime, etime);
+        t1 = System.nanoTime();
+        if (verbose) {
+            System.out.println("EmuLink: node " + node.id
+                    + " is now at $" + Utils.hex(node.cpu.getRegister(MSP430Constants.PC), 4)
+                    + " " + (long)(node.cpu.getTimeMillis() + 0.5) + "/" + (globalEtime / 1000)
+                    + " (elapsed " + (t1 - t0) + " ns)");
+        }
+    }
+
     protected void sendToSimulator(String message) {
         if (out != null) {
             out.write(message);
@@ -294,6 +428,203 @@ public class EmuLink {
     }
 
     protected void sendSerialToNode(String node, int data) {
+        LinkNode linkNode = nodes.get(node);
+        if (linkNode != null) {
+            linkNode.addSerialInput(new byte[] { (byte) data }, 0, 1);
+        }
+    }
+
+    protected void processBinary(DataInputStream input, DataOutputStream output) throws IOException {
+        byte[] message = new byte[256];
+        ByteBuffer reply = ByteBuffer.allocate(4096);
+        while (true) {
+            int length;
+            try {
+                length = input.readInt();
+            } catch (EOFException e) {
+                break;
+            }
+            if (length < 1 || length > MAX_MESSAGE_SIZE) {
+                throw new IOException("illegal message length: " + length);
+            }
+            if (length > message.length) {
+                message = new byte[Math.max(length, message.length * 2)];
+            }
+            input.readFully(message, 0, length);
+            ByteBuffer request = ByteBuffer.wrap(message, 0, length);
+            int type = request.get();
+            reply.clear();
+            reply.put((byte) type);
+            switch (type) {
+            case MSG_CREATE: {
+                String platform = getString(request);
+                int count = request.getInt();
+                int first = nodeList.size();
+                int status = STATUS_OK;
+                for (int i = 0; i < count; i++) {
+                    if (createNode(platform, getString(request)) == null) {
+                        status = STATUS_ERROR;
+                    }
+                }
+                reply.put((byte) status);
+                reply.putInt(first);
+                reply.putInt(nodeList.size() - first);
+                break;
+            }
+            case MSG_WRITE: {
+                String file = getString(request);
+                int status = STATUS_OK;
+                for (int i = 0, n = request.getInt(); i < n; i++) {
+                    LinkNode node = getNode(request.getInt());
+                    if (node == null || !loadFirmware(node, file)) {
+                        status = STATUS_ERROR;
+                    }
+                }
+                reply.put((byte) status);
+                break;
+            }
+            case MSG_STEP:
+                reply = step(request, reply);
+                break;
+            case MSG_SERIAL:
+            case MSG_RADIO: {
+                LinkNode node = getNode(request.getInt());
+                int count = request.getInt();
+                if (count < 0 || count > request.remaining()) {
+                    /* Only an invalid request gets a reply */
+                    System.err.println("EmuLink: illegal input length " + count);
+                    reply.put((byte) STATUS_ERROR);
+                    break;
+                }
+                if (node != null) {
+                    if (type == MSG_SERIAL) {
+                        node.addSerialInput(message, request.position(), count);
+                    } else {
+                        node.addRadioInput(message, request.position(), count);
+                    }
+                }
+                /* No reply */
+                continue;
+            }
+            case MSG_CLOSE:
+                reply.put((byte) STATUS_OK);
+                sendReply(output, reply);
+                return;
+            default:
+                System.err.println("EmuLink: ignoring unhandled message type " + type);
+                reply.put((byte) STATUS_ERROR);
+                break;
+            }
+            sendReply(output, reply);
+        }
+    }
+
+    private ByteBuffer step(ByteBuffer request, ByteBuffer reply) throws IOException {
+        final long micros = request.getLong();
+        int count = request.getInt();
+        LinkNode[] selected;
+        if (count < 0) {
+            selected = nodeList.toArray(new LinkNode[nodeList.size()]);
+        } else {
+            selected = new LinkNode[count];
+            for (int i = 0; i < count; i++) {
+                selected[i] = getNode(request.getInt());
+            }
+        }
+
+        if (threads == 1 || selected.length == 1) {
+            for (LinkNode node : selected) {
+                if (node != null) {
+                    node.runUntil(micros);
+                }
+            }
+        } else {
+            if (workers == null) {
+                workers = Executors.newFixedThreadPool(threads, r -> {
+                    Thread thread = new Thread(r, "EmuLink worker");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+            ArrayList<Future<?>> futures = new ArrayList<Future<?>>(selected.length);
+            for (final LinkNode node : selected) {
+                if (node != null) {
+                    futures.add(workers.submit(() -> node.runUntil(micros)));
+                }
+            }
+            try {
+                for (Future<?> future : futures) {
+                    future.get();
+                }
+            } catch (InterruptedException e) {
+                throw new IOException("interrupted while stepping nodes", e);
+            } catch (ExecutionException e) {
+                throw new IOException("failed to step nodes", e.getCause());
+            }
+        }
+
+        int status = STATUS_OK;
+        int size = 9;
+        for (LinkNode node : selected) {
+            if (node == null) {
+                status = STATUS_ERROR;
+            } else {
+                size += 25 + node.serialOutputLength + node.radioOutputLength;
+            }
+        }
+        reply = ensureCapacity(reply, size);
+        reply.put((byte) status);
+        int countPosition = reply.position();
+        reply.putInt(0);
+        int replied = 0;
+        for (LinkNode node : selected) {
+            if (node == null) {
+                continue;
+            }
+            reply.putInt(node.index);
+            reply.put((byte) node.status);
+            reply.putInt(node.cpu.getPC());
+            reply.putLong(node.getTimeMicros());
+            reply.putInt(node.serialOutputLength);
+            reply.put(node.serialOutput, 0, node.serialOutputLength);
+            reply.putInt(node.radioOutputLength);
+            reply.put(node.radioOutput, 0, node.radioOutputLength);
+            node.clearOutput();
+            replied++;
+        }
+        reply.putInt(countPosition, replied);
+        return reply;
+    }
+
+    private LinkNode getNode(int index) {
+        if (index < 0 || index >= nodeList.size()) {
+            System.err.println("EmuLink: could not find node " + index);
+            return null;
+        }
+        return nodeList.get(index);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        int length = buffer.getShort() & 0xffff;
+        String s = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return s;
+    }
+
+    private static ByteBuffer ensureCapacity(ByteBuffer buffer, int size) {
+        if (buffer.remaining() >= size) {
+            return buffer;
+        }
+        ByteBuffer tmp = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + size));
+        buffer.flip();
+        tmp.put(buffer);
+        return tmp;
+    }
+
+    private static void sendReply(DataOutputStream output, ByteBuffer reply) throws IOException {
+        output.writeInt(reply.position());
+        output.write(reply.array(), 0, reply.position());
+        output.flush();
     }
 
     protected void disconnect() {
@@ -325,23 +656,22 @@ public class EmuLink {
     }
 
     public void run() {
-        try (ServerSocket serverSocket = new ServerSocket(8000)) {
+        try (ServerSocket serverSocket = new ServerSocket(port)) {
 
             while(true) {
 
                 System.out.println("EmuLink: Waiting for connection...");
                 try {
                     socket = serverSocket.accept();
+                    socket.setTcpNoDelay(true);
                 } catch (IOException e) {
-                    System.out.println("Accept failed: 8000");
+                    System.out.println("Accept failed: " + port);
                     System.exit(-1);
                 }
                 System.out.println("EmuLink: Connection accepted...");
 
                 try {
-                    out = new PrintWriter(socket.getOutputStream(), true);
-                    in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                    processInput(in);
+                    handleConnection(socket.getInputStream(), socket.getOutputStream());
                 } catch (Exception e) {
                     System.err.println("EmuLink: emulator link connection failed");
                     e.printStackTrace();
@@ -350,13 +680,29 @@ public class EmuLink {
                 }
             }
         } catch (IOException e) {
-            System.out.println("Could not listen on port: 8000");
+            System.out.println("Could not listen on port: " + port);
             System.exit(-1);
         }
     }
 
     public static void main(String[] args) {
-        EmuLink el = new EmuLink();
+        int port = DEFAULT_PORT;
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean verbose = false;
+        for (int i = 0; i < args.length; i++) {
+            if ("-v".equals(args[i])) {
+                verbose = true;
+            } else if ("-threads".equals(args[i]) && i + 1 < args.length) {
+                threads = Integer.parseInt(args[++i]);
+            } else if ("-port".equals(args[i]) && i + 1 < args.length) {
+                port = Integer.parseInt(args[++i]);
+            } else {
+                System.err.println("Usage: EmuLink [-v] [-threads N] [-port port]");
+                System.exit(1);
+            }
+        }
+        EmuLink el = new EmuLink(port, threads);
+        el.setVerbose(verbose);
         el.run();
     }
 
@@ -0,0 +1,165 @@
+package se.sics.mspsim.emulink;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import se.sics.mspsim.chip.RFListener;
+import se.sics.mspsim.chip.Radio802154;
+import se.sics.mspsim.core.EmulationException;
+import se.sics.mspsim.core.MSP430;
+import se.sics.mspsim.core.StateChangeListener;
+import se.sics.mspsim.core.USARTListener;
+import se.sics.mspsim.core.USARTSource;
+import se.sics.mspsim.platform.GenericNode;
+import se.sics.mspsim.util.ArgumentManager;
+
+/**
+ * A node controlled over the emulation link. Collects the serial and radio
+ * output of the node between steps and feeds it serial input when the
+ * serial port is ready to receive.
+ */
+class LinkNode implements USARTListener, RFListener, StateChangeListener {
+
+    final String id;
+    final int index;
+    final String platform;
+    final GenericNode node;
+    final MSP430 cpu;
+
+    private boolean isSetup;
+    private USARTSource uart;
+    private Radio802154 radio;
+
+    /* The status of the last step */
+    int status;
+
+    /* Output since the last step reply - only used by the thread running the node */
+    byte[] serialOutput = new byte[64];
+    int serialOutputLength;
+    byte[] radioOutput = new byte[64];
+    int radioOutputLength;
+
+    /* Serial input waiting for the serial port */
+    private byte[] serialInput = new byte[64];
+    private int serialInputPos;
+    private int serialInputLength;
+
+    LinkNode(String id, int index, String platform, GenericNode node) {
+        this.id = id;
+        this.index = index;
+        this.platform = platform;
+        this.node = node;
+        this.cpu = node.getCPU();
+    }
+
+    /**
+     * Loads the firmware and resets the node. The node is set up when the
+     * first firmware is loaded.
+     */
+    void loadFirmware(String file) throws IOException {
+        node.loadFirmware(file);
+        if (!isSetup) {
+            isSetup = true;
+            ArgumentManager config = new ArgumentManager();
+            config.setProperty("nogui", "true");
+            config.setProperty("cli", "false");
+            node.setup(config);
+
+            uart = node.getDefaultUART();
+            if (uart != null) {
+                uart.addUSARTListener(this);
+                uart.addStateChangeListener(this);
+            }
+            radio = cpu.getChip(Radio802154.class);
+            if (radio != null) {
+                radio.addRFListener(this);
+            }
+        } else {
+            cpu.reset();
+        }
+    }
+
+    /**
+     * Runs the node until the specified emulated time.
+     */
+    void runUntil(long micros) {
+        try {
+            status = cpu.runUntilMillis(micros / 1000.0) ? EmuLink.STATUS_OK : EmuLink.STATUS_STOPPED;
+        } catch (EmulationException e) {
+            status = EmuLink.STATUS_ERROR;
+        } catch (IllegalStateException e) {
+            /* Already running on its own */
+            status = EmuLink.STATUS_ERROR;
+        }
+    }
+
+    long getTimeMicros() {
+        return (long) (cpu.getTimeMillis() * 1000);
+    }
+
+    void clearOutput() {
+        serialOutputLength = 0;
+        radioOutputLength = 0;
+    }
+
+    synchronized void addSerialInput(byte[] data, int offset, int length) {
+        if (uart == null) {
+            return;
+        }
+        if (serialInputLength + length > serialInput.length) {
+            /* Remove the sent data before growing */
+            int count = serialInputLength - serialInputPos;
+            System.arraycopy(serialInput, serialInputPos, serialInput, 0, count);
+            serialInputPos = 0;
+            serialInputLength = count;
+            if (count + length > serialInput.length) {
+                serialInput = Arrays.copyOf(serialInput, Math.max(serialInput.length * 2, count + length));
+            }
+        }
+        System.arraycopy(data, offset, serialInput, serialInputLength, length);
+        serialInputLength += length;
+        sendSerialInput();
+    }
+
+    private synchronized void sendSerialInput() {
+        while (serialInputPos < serialInputLength && uart.isReceiveFlagCleared()) {
+            uart.byteReceived(serialInput[serialInputPos++] & 0xff);
+        }
+        if (serialInputPos == serialInputLength) {
+            serialInputPos = serialInputLength = 0;
+        }
+    }
+
+    void addRadioInput(byte[] data, int offset, int length) {
+        if (radio != null) {
+            for (int i = 0; i < length; i++) {
+                radio.receivedByte(data[offset + i]);
+            }
+        }
+    }
+
+    @Override
+    public void stateChanged(Object source, int oldState, int newState) {
+        if (newState == USARTListener.RXFLAG_CLEARED) {
+            sendSerialInput();
+        }
+    }
+
+    @Override
+    public void dataReceived(USARTSource source, int data) {
+        if (serialOutputLength == serialOutput.length) {
+            serialOutput = Arrays.copyOf(serialOutput, serialOutputLength * 2);
+        }
+        serialOutput[serialOutputLength++] = (byte) data;
+    }
+
+    @Override
+    public void receivedByte(byte data) {
+        /* Called by the radio of this node when transmitting */
+        if (radioOutputLength == radioOutput.length) {
+            radioOutput = Arrays.copyOf(radioOutput, radioOutputLength * 2);
+        }
+        radioOutput[radioOutputLength++] = data;
+    }
+
+}
@@ -93,11 +93,7 @@ public class CC2420PacketHandler extends AbstractPacketHandler implements RFList
         /* the packet is in!!! */
 //        CC2420Packet packet = new CC2420Packet();
 //        packet.setPayload(packetBuffer, PREAMBLE.length + 1, packetLen - 2);
-        Packet packet = new Packet();
-        packet.setBytes(packetBuffer, PREAMBLE.length + 1, packetLen - 2);
-        packet.setAttribute(CC2420_LEN, packet.getTotalLength());
-        dispatch(-1, packet);
-        System.out.println("CC2420: Packet received");
+        dispatchFrame(packetBuffer, PREAMBLE.length + 1, packetLen - 2);
 
         /* this is a packet that has passed the stack! */
         mode = SFD_SEARCH;
@@ -107,7 +103,15 @@ public class CC2420PacketHandler extends AbstractPacketHandler implements RFList
     }
   }
 
-  
+  /* The upper layers keep the packet so it can not be reused */
+  private void dispatchFrame(byte[] buffer, int offset, int len) {
+    Packet packet = new Packet();
+    packet.setBytes(buffer, offset, len);
+    packet.setAttribute(CC2420_LEN, packet.getTotalLength());
+    dispatch(-1, packet);
+    System.out.println("CC2420: Packet received");
+  }
+
   public void printPacket(PrintStream out, Packet packet) {
     int payloadLen = packet.getAttributeAsInt(CC2420_LEN);
     out.print("CC2420 | len:" + payloadLen + " | ");
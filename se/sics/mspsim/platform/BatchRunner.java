@@ -0,0 +1,424 @@
+package se.sics.mspsim.platform;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import se.sics.json.JSONArray;
+import se.sics.json.JSONObject;
+import se.sics.json.ParseException;
+import se.sics.mspsim.Main;
+import se.sics.mspsim.cli.BasicCommand;
+import se.sics.mspsim.cli.CommandContext;
+import se.sics.mspsim.cli.CommandHandler;
+import se.sics.mspsim.core.BreakpointException;
+import se.sics.mspsim.core.Chip;
+import se.sics.mspsim.core.MSP430;
+import se.sics.mspsim.core.Profiler;
+import se.sics.mspsim.core.SerialChannel;
+import se.sics.mspsim.core.USARTListener;
+import se.sics.mspsim.core.USARTSource;
+import se.sics.mspsim.util.ArgumentManager;
+import se.sics.mspsim.util.IHexReader;
+import se.sics.mspsim.util.MultiDataSource;
+
+/**
+ * Runs a batch of independent simulations in one headless process.
+ *
+ * The jobs are read from a JSON manifest:
+ * <pre>
+ * {
+ *   "threads": 4,
+ *   "jobs": [
+ *     { "name": "blink", "platform": "sky", "firmware": "firmware/sky/blink.sky",
+ *       "duration": 10, "script": "test.sc", "commands": [ "log CC2420 >cc2420.log" ],
+ *       "uart": "USART1", "uartInput": "input.txt", "profile": true,
+ *       "properties": { "translate": "true" } }
+ *   ]
+ * }
+ * </pre>
+ * The duration is in emulated seconds. Relative firmware, script and
+ * serial input paths are resolved against the directory of the manifest.
+ * The serial input is fed to the serial port at the "uartBaudRate". The jobs run on a
+ * fixed number of threads, one job per thread at a time, and the exit
+ * status, the serial output, the CLI output, the duty cycle of all chips
+ * and optionally the profile of each job are written to one JSON file.
+ *
+ * The "exit" and "quit" commands end the job instead of the process.
+ */
+public class BatchRunner {
+
+    public static final String STATUS_COMPLETED = "completed";
+    public static final String STATUS_EXITED = "exited";
+    public static final String STATUS_STOPPED = "stopped";
+    public static final String STATUS_ERROR = "error";
+
+    /* The serial output kept per job */
+    public static final int DEFAULT_UART_LIMIT = 1024 * 1024;
+
+    private final int threads;
+
+    public BatchRunner(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("at least one thread is needed: " + threads);
+        }
+        this.threads = threads;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Runs the jobs and returns their results in the same order.
+     *
+     * @param jobs the job descriptions from the manifest
+     * @param baseDir the directory relative paths are resolved against, or null
+     */
+    public JSONArray run(JSONArray jobs, File baseDir) throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            ArrayList<Future<JSONObject>> futures = new ArrayList<Future<JSONObject>>();
+            for (int i = 0, n = jobs.size(); i < n; i++) {
+                JSONObject job = jobs.getJSONObject(i);
+                if (job == null) {
+                    throw new IllegalArgumentException("job " + i + " is not an object");
+                }
+                futures.add(pool.submit(new Job(job, i, baseDir)::run));
+            }
+            JSONArray results = new JSONArray();
+            for (Future<JSONObject> future : futures) {
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException e) {
+                    /* Job.run() reports its own errors */
+                    throw new IllegalStateException(e.getCause());
+                }
+            }
+            return results;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        /* No GUI is ever shown - make sure AWT does not try to connect to a display */
+        System.setProperty("java.awt.headless", "true");
+
+        int threads = -1;
+        int index = 0;
+        while (index < args.length && args[index].startsWith("-")) {
+            if ("-threads".equals(args[index]) && index + 1 < args.length) {
+                threads = Integer.parseInt(args[index + 1]);
+            } else {
+                index = args.length;
+                break;
+            }
+            index += 2;
+        }
+        if (args.length - index != 2) {
+            System.err.println("Usage: BatchRunner [-threads N] <manifest.json> <result.json>");
+            System.exit(1);
+        }
+        File manifestFile = new File(args[index]);
+        File resultFile = new File(args[index + 1]);
+
+        JSONObject manifest;
+        try (Reader reader = new InputStreamReader(new FileInputStream(manifestFile), StandardCharsets.UTF_8)) {
+            manifest = JSONObject.parseJSONObject(reader);
+        } catch (ParseException e) {
+            System.err.println("Failed to parse the manifest " + manifestFile + ": " + e);
+            System.exit(1);
+            return;
+        }
+        if (manifest == null || manifest.getJSONArray("jobs") == null) {
+            System.err.println("No jobs found in the manifest " + manifestFile);
+            System.exit(1);
+        }
+        if (threads < 0) {
+            threads = manifest.getAsInt("threads", Runtime.getRuntime().availableProcessors());
+        }
+
+        BatchRunner runner = new BatchRunner(threads);
+        long start = System.currentTimeMillis();
+        JSONArray results = runner.run(manifest.getJSONArray("jobs"), manifestFile.getAbsoluteFile().getParentFile());
+        long elapsed = System.currentTimeMillis() - start;
+
+        int failed = 0;
+        for (int i = 0, n = results.size(); i < n; i++) {
+            if (STATUS_ERROR.equals(results.getJSONObject(i).getAsString("status"))) {
+                failed++;
+            }
+        }
+        JSONObject result = new JSONObject();
+        result.put("threads", threads);
+        result.put("wallMillis", elapsed);
+        result.put("failed", failed);
+        result.put("jobs", results);
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(resultFile), StandardCharsets.UTF_8)) {
+            result.writeJSONString(out);
+        }
+        System.out.println("Ran " + results.size() + " jobs in " + elapsed + " ms using " + threads
+                + " threads, " + failed + " failed");
+        System.exit(failed > 0 ? 1 : 0);
+    }
+
+    private static class Job implements USARTListener {
+
+        private final JSONObject description;
+        private final String name;
+        private final File baseDir;
+        private final JSONObject result = new JSONObject();
+        private final StringBuilder uart = new StringBuilder();
+        private int uartLimit;
+        private boolean uartTruncated;
+        private boolean exited;
+        private MSP430 cpu;
+        private SerialChannel input;
+
+        Job(JSONObject description, int index, File baseDir) {
+            this.description = description;
+            this.name = description.getAsString("name", "job" + index);
+            this.baseDir = baseDir;
+        }
+
+        JSONObject run() {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            PrintStream out = createPrintStream(output);
+            String platform = description.getAsString("platform", "sky");
+            String firmware = description.getAsString("firmware");
+            double duration = description.getAsDouble("duration", 1.0);
+            uartLimit = description.getAsInt("uartLimit", DEFAULT_UART_LIMIT);
+
+            result.put("name", name);
+            result.put("platform", platform);
+            result.put("firmware", firmware);
+
+            long start = System.currentTimeMillis();
+            String status;
+            try {
+                if (firmware == null) {
+                    throw new IllegalArgumentException("no firmware specified");
+                }
+                GenericNode node = Main.createNode(Main.getNodeTypeByPlatform(platform));
+                if (node == null) {
+                    throw new IllegalArgumentException("MSPSim does not currently support the platform '" + platform + "'.");
+                }
+                cpu = node.getCPU();
+                status = runNode(node, out, platform, resolve(firmware), duration);
+            } catch (BreakpointException e) {
+                status = STATUS_STOPPED;
+                result.put("message", "breakpoint at $" + Integer.toHexString(cpu.getPC()));
+            } catch (Exception e) {
+                status = STATUS_ERROR;
+                result.put("message", e.toString());
+            } catch (StackOverflowError e) {
+                status = STATUS_ERROR;
+                result.put("message", e.toString());
+            }
+            if (input != null) {
+                input.close();
+            }
+            long elapsed = System.currentTimeMillis() - start;
+            out.flush();
+
+            result.put("status", status);
+            result.put("exitCode", getExitCode(status));
+            result.put("wallMillis", elapsed);
+            if (cpu != null) {
+                result.put("simulatedMillis", cpu.getTimeMillis());
+                result.put("cycles", cpu.cycles);
+            }
+            synchronized (uart) {
+                result.put("uart", uart.toString());
+                if (uartTruncated) {
+                    result.put("uartTruncated", true);
+                }
+            }
+            result.put("output", toString(output));
+            return result;
+        }
+
+        private String runNode(GenericNode node, PrintStream out, String platform, String firmware,
+                double duration) throws Exception {
+            ArgumentManager config = new ArgumentManager();
+            config.setProperty("nogui", "true");
+            config.setProperty("cli", "true");
+            JSONObject properties = description.getJSONObject("properties");
+            if (properties != null) {
+                for (String key : properties.getKeys()) {
+                    config.setProperty(key, String.valueOf(properties.get(key)));
+                }
+            }
+
+            /* A command handler without an input stream that writes to the job output */
+            CommandHandler ch = new CommandHandler(out, out);
+            node.setCommandHandler(ch);
+
+            if (firmware.endsWith("ihex")) {
+                IHexReader reader = new IHexReader();
+                reader.readFile(cpu.memory, firmware);
+                cpu.invalidateInstructionCache();
+            } else {
+                node.loadFirmware(firmware);
+            }
+            config.setProperty("firmwareFile", firmware);
+            node.setup(config);
+
+            registerExitCommands(ch);
+
+            String uartName = description.getAsString("uart");
+            USARTSource uart = uartName != null
+                    ? cpu.getIOUnit(USARTSource.class, uartName) : node.getDefaultUART();
+            if (uart != null) {
+                uart.addUSARTListener(this);
+                String uartInput = description.getAsString("uartInput");
+                if (uartInput != null) {
+                    input = new SerialChannel(cpu, uart);
+                    input.setBaudRate(description.getAsInt("uartBaudRate", SerialChannel.DEFAULT_BAUD_RATE));
+                    input.setInput(new File(resolve(uartInput)));
+                }
+            } else if (uartName != null) {
+                out.println("Warning: no serial port named '" + uartName + "'");
+            } else {
+                out.println("Warning: platform '" + platform + "' has no serial port");
+            }
+
+            String[] chips = null;
+            MultiDataSource[] duty = null;
+            if (node.stats != null) {
+                /* Not all platforms monitor the CPU */
+                if (node.stats.getChip(cpu.getID()) == null) {
+                    node.stats.addMonitor(cpu);
+                }
+                Chip[] monitored = node.stats.getChips();
+                chips = new String[monitored.length];
+                duty = new MultiDataSource[monitored.length];
+                for (int i = 0; i < monitored.length; i++) {
+                    chips[i] = monitored[i].getID();
+                    duty[i] = node.stats.getMultiDataSource(chips[i]);
+                }
+            }
+
+            String script = description.getAsString("script");
+            if (script != null) {
+                ch.lineRead("source \"" + resolve(script).replace('\\', '/') + '"');
+            }
+            JSONArray commands = description.getJSONArray("commands");
+            if (commands != null) {
+                for (int i = 0, n = commands.size(); i < n && !exited; i++) {
+                    ch.lineRead(commands.getAsString(i));
+                }
+            }
+
+            boolean completed = exited || cpu.runUntilMillis(duration * 1000);
+
+            if (duty != null) {
+                JSONObject dutyResult = new JSONObject();
+                for (int i = 0; i < chips.length; i++) {
+                    if (duty[i] == null) {
+                        continue;
+                    }
+                    Chip chip = node.stats.getChip(chips[i]);
+                    JSONObject modes = new JSONObject();
+                    for (int mode = 0, n = duty[i].getModeMax(); mode <= n; mode++) {
+                        String modeName = chip.getModeName(mode);
+                        modes.put(modeName != null ? modeName : Integer.toString(mode), duty[i].getDoubleValue(mode));
+                    }
+                    dutyResult.put(chips[i], modes);
+                }
+                result.put("duty", dutyResult);
+            }
+            if (description.getAsBoolean("profile", false)) {
+                Profiler profiler = cpu.getProfiler();
+                if (profiler != null) {
+                    ByteArrayOutputStream profile = new ByteArrayOutputStream();
+                    PrintStream profileOut = createPrintStream(profile);
+                    profiler.printProfile(profileOut);
+                    profileOut.flush();
+                    result.put("profile", toString(profile));
+                }
+            }
+
+            if (exited) {
+                return STATUS_EXITED;
+            }
+            return completed ? STATUS_COMPLETED : STATUS_STOPPED;
+        }
+
+        /* Replaces the commands that would end the whole process */
+        private void registerExitCommands(CommandHandler ch) {
+            BasicCommand exit = new BasicCommand("end this simulation job", "") {
+                public int executeCommand(CommandContext context) {
+                    exited = true;
+                    cpu.stop();
+                    return 0;
+                }
+            };
+            ch.registerCommand("exit", exit);
+            ch.registerCommand("quit", exit);
+        }
+
+        private String resolve(String path) {
+            File file = new File(path);
+            if (!file.isAbsolute() && baseDir != null) {
+                file = new File(baseDir, path);
+            }
+            return file.getPath();
+        }
+
+        @Override
+        public void dataReceived(USARTSource source, int data) {
+            synchronized (uart) {
+                if (uart.length() < uartLimit) {
+                    uart.append((char) (data & 0xff));
+                } else {
+                    uartTruncated = true;
+                }
+            }
+        }
+
+        private static int getExitCode(String status) {
+            switch (status) {
+            case STATUS_COMPLETED:
+            case STATUS_EXITED:
+                return 0;
+            case STATUS_STOPPED:
+                return 1;
+            default:
+                return 2;
+            }
+        }
+
+        private static PrintStream createPrintStream(ByteArrayOutputStream output) {
+            try {
+                return new PrintStream(output, true, "UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private static String toString(ByteArrayOutputStream output) {
+            try {
+                return output.toString("UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+}
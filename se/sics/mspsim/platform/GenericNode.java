@@ -37,11 +37,16 @@ package se.sics.mspsim.platform;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.net.URISyntaxException;
 import java.net.URL;
 import javax.swing.JFrame;
+import se.sics.mspsim.chip.Radio802154;
 import se.sics.mspsim.cli.CommandHandler;
 import se.sics.mspsim.cli.DebugCommands;
 import se.sics.mspsim.cli.FileCommands;
@@ -55,7 +60,10 @@ import se.sics.mspsim.core.EmulationException;
 import se.sics.mspsim.core.MSP430;
 import se.sics.mspsim.core.MSP430Config;
 import se.sics.mspsim.core.MSP430Constants;
+import se.sics.mspsim.core.Snapshot;
+import se.sics.mspsim.core.USARTSource;
 import se.sics.mspsim.extutil.highlight.HighlightSourceViewer;
+import se.sics.mspsim.profiler.ArrayProfiler;
 import se.sics.mspsim.ui.ConsoleUI;
 import se.sics.mspsim.ui.ControlUI;
 import se.sics.mspsim.ui.JFrameWindowManager;
@@ -65,6 +73,7 @@ import se.sics.mspsim.util.ArgumentManager;
 import se.sics.mspsim.util.ComponentRegistry;
 import se.sics.mspsim.util.ConfigManager;
 import se.sics.mspsim.util.ELF;
+import se.sics.mspsim.util.FirmwareCache;
 import se.sics.mspsim.util.IHexReader;
 import se.sics.mspsim.util.MapTable;
 import se.sics.mspsim.util.OperatingModeStatistics;
@@ -98,6 +107,15 @@ public abstract class GenericNode extends Chip implements Runnable {
     return cpu;
   }
 
+  /**
+   * Returns the serial port used for text output, or null if the node has
+   * none. The port is known when the node has been set up.
+   */
+  public USARTSource getDefaultUART() {
+    Object serial = registry.getComponent("serialio");
+    return serial instanceof USARTSource ? (USARTSource) serial : null;
+  }
+
   public abstract void setupNode();
 
   public void setCommandHandler(CommandHandler handler) {
@@ -138,9 +156,11 @@ public abstract class GenericNode extends Chip implements Runnable {
 
     if (firmwareFile.endsWith("ihex")) {
       // IHEX Reading
-      int[] memory = cpu.memory;
+      cpu.unshareMemory(0, cpu.MAX_MEM);
+      byte[] memory = cpu.memory;
       IHexReader reader = new IHexReader();
       reader.readFile(memory, firmwareFile);
+      cpu.invalidateInstructionCache();
     } else {
       loadFirmware(firmwareFile);
     }
@@ -251,9 +271,27 @@ public abstract class GenericNode extends Chip implements Runnable {
 
     // Monitor execution
     cpu.setMonitorExec(true);
+
+    // Translate hot code when requested with -translate
+    cpu.setBlockTranslationEnabled(config.getPropertyAsBoolean("translate", false));
+
+    // Fast-forward busy-wait loops when requested with -skipbusywait
+    cpu.setBusyWaitSkipping(config.getPropertyAsBoolean("skipbusywait", false));
+
+    // Use the allocation-free profiler with -profiler=array
+    if ("array".equals(config.getProperty("profiler"))) {
+      cpu.setProfiler(new ArrayProfiler());
+    }
     
     setupNode();
 
+    // Send whole radio frames instead of single bytes with -radioframemode
+    if (config.getPropertyAsBoolean("radioframemode", false)) {
+      for (Radio802154 radio : cpu.getChips(Radio802154.class)) {
+        radio.setFrameMode(true);
+      }
+    }
+
     registry.start();
 
     cpu.reset();
@@ -305,22 +343,30 @@ public abstract class GenericNode extends Chip implements Runnable {
       byteStream.write(firmwareData, 0, read);
     }
     inputStream.close();
-    ELF elf = new ELF(byteStream.toByteArray());
-    elf.readAll();
-    return loadFirmware(elf);
+    return loadFirmware(FirmwareCache.getFirmware(byteStream.toByteArray()));
   }
 
   public ELF loadFirmware(String name) throws IOException {
-    return loadFirmware(ELF.readELF(firmwareFile = name));
+    return loadFirmware(FirmwareCache.getFirmware(firmwareFile = name));
+  }
+
+  /* The firmware is shared with all other nodes running it */
+  private ELF loadFirmware(FirmwareCache.Firmware firmware) {
+    return loadFirmware(firmware.getELF(), firmware.getMap());
   }
 
   public ELF loadFirmware(ELF elf) {
+    return loadFirmware(elf, elf.getMap());
+  }
+
+  private ELF loadFirmware(ELF elf, MapTable map) {
     if (cpu.isRunning()) {
         stop();
     }
     this.elf = elf;
+    cpu.unshareMemory(0, cpu.MAX_MEM);
     elf.loadPrograms(cpu.memory);
-    MapTable map = elf.getMap();
+    cpu.invalidateInstructionCache();
     cpu.getDisAsm().setMap(map);
     cpu.setMap(map);
     registry.registerComponent("elf", elf);
@@ -328,6 +374,91 @@ public abstract class GenericNode extends Chip implements Runnable {
     return elf;
   }
 
+  /**
+   * Saves the complete state of the node. The node must be stopped.
+   */
+  public void saveSnapshot(OutputStream out) throws IOException {
+    if (cpu.isRunning()) {
+      throw new IllegalStateException("the node must be stopped to save a snapshot");
+    }
+    Snapshot.save(cpu, out);
+  }
+
+  public void saveSnapshot(String file) throws IOException {
+    try (OutputStream out = new FileOutputStream(file)) {
+      saveSnapshot(out);
+    }
+  }
+
+  /**
+   * Restores the state of the node from a snapshot saved from a node of the
+   * same type and with the same setup. The node must be stopped.
+   */
+  public void loadSnapshot(InputStream in) throws IOException {
+    if (cpu.isRunning()) {
+      throw new IllegalStateException("the node must be stopped to load a snapshot");
+    }
+    Snapshot.load(cpu, in);
+  }
+
+  public void loadSnapshot(String file) throws IOException {
+    try (InputStream in = new FileInputStream(file)) {
+      loadSnapshot(in);
+    }
+  }
+
+  /**
+   * Takes an in-memory snapshot of the node. The node must be stopped.
+   *
+   * @param base a snapshot to share unchanged memory pages with, or null
+   */
+  public Snapshot takeSnapshot(Snapshot base) {
+    if (cpu.isRunning()) {
+      throw new IllegalStateException("the node must be stopped to take a snapshot");
+    }
+    return Snapshot.take(cpu, base);
+  }
+
+  /**
+   * Restores the node to an in-memory snapshot. The RAM and flash pages are
+   * shared with the snapshot until the node writes them.
+   */
+  public void restoreSnapshot(Snapshot snapshot) throws IOException {
+    if (cpu.isRunning()) {
+      throw new IllegalStateException("the node must be stopped to restore a snapshot");
+    }
+    snapshot.restore(cpu);
+  }
+
+  /**
+   * Creates a new node of the same type, set up with the configuration of
+   * this node, and restores it to the specified snapshot of this node.
+   *
+   * The child reads its RAM and flash pages from the snapshot and copies a
+   * page into its own memory first when it writes to it, so all children
+   * forked from one snapshot share the pages they have not written.
+   * Snapshots of the child taken with the parent snapshot as base share the
+   * same pages. Apart from the memory pages, the firmware and the map table,
+   * the child is set up like a new node.
+   */
+  public GenericNode fork(Snapshot snapshot) throws IOException {
+    GenericNode child;
+    try {
+      child = getClass().getDeclaredConstructor().newInstance();
+    } catch (ReflectiveOperationException e) {
+      throw new IOException("failed to create node of type " + getClass().getName(), e);
+    }
+    if (elf != null) {
+      child.firmwareFile = firmwareFile;
+      /* Shared like the map table of a cached firmware */
+      MapTable map = registry.getComponent(MapTable.class, "mapTable");
+      child.loadFirmware(elf, map != null ? map : elf.getMap());
+    }
+    child.setup(config);
+    child.restoreSnapshot(snapshot);
+    return child;
+  }
+
   public int getConfiguration(int param) {
       return 0;
   }
@@ -0,0 +1,551 @@
+package se.sics.mspsim.platform;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import se.sics.mspsim.Main;
+import se.sics.mspsim.chip.FrameListener;
+import se.sics.mspsim.chip.RFListener;
+import se.sics.mspsim.chip.Radio802154;
+import se.sics.mspsim.chip.RadioFrame;
+import se.sics.mspsim.chip.RadioMedium;
+import se.sics.mspsim.core.EmulationException;
+import se.sics.mspsim.core.MSP430;
+import se.sics.mspsim.core.TimeEvent;
+import se.sics.mspsim.util.ArgumentManager;
+
+/**
+ * Runs several nodes in the same process and connects their 802.15.4 radios.
+ *
+ * The nodes are advanced in parallel in time windows no longer than the
+ * radio latency. A byte transmitted during a window is due at the receivers
+ * no earlier than the end of the window, so it is enough to exchange the
+ * bytes between the nodes at the window barriers. The emulation is
+ * deterministic and does not depend on the number of threads.
+ *
+ * Without a radio medium every node receives the bytes of all other nodes.
+ * With a radio medium the bytes are only delivered to the radios in range
+ * of the sender that listen on the same channel, with the signal strength
+ * and link quality of the link. A receiving radio locks on to the first
+ * frame it is ready to receive and ignores other frames until it ends.
+ * Each node receives the bytes in its own thread at their due time.
+ *
+ * The nodes must be set up but not started, i.e. not running in their own
+ * threads, before they are added to the scheduler.
+ */
+public class NodeScheduler {
+
+    /* The time to transmit one byte in 802.15.4 (two symbol periods) */
+    public static final double DEFAULT_LATENCY_MILLIS = 0.032;
+
+    private final double latencyMillis;
+    private final ForkJoinPool pool;
+    private final ArrayList<ScheduledNode> nodes = new ArrayList<ScheduledNode>();
+    private final IdentityHashMap<Radio802154, ScheduledNode> radioNodes =
+            new IdentityHashMap<Radio802154, ScheduledNode>();
+    private ScheduledNode[] nodeArray;
+    private RadioMedium medium;
+    private double timeMillis;
+
+    public NodeScheduler() {
+        this(Runtime.getRuntime().availableProcessors(), DEFAULT_LATENCY_MILLIS);
+    }
+
+    /**
+     * @param threads the number of threads used to run the nodes
+     * @param latencyMillis the delay of radio bytes between nodes, which is
+     * also the length of the time windows
+     */
+    public NodeScheduler(int threads, double latencyMillis) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("at least one thread is needed: " + threads);
+        }
+        if (latencyMillis <= 0) {
+            throw new IllegalArgumentException("the radio latency must be positive: " + latencyMillis);
+        }
+        this.latencyMillis = latencyMillis;
+        this.pool = threads > 1 ? new ForkJoinPool(threads) : null;
+    }
+
+    /**
+     * Connects the nodes through a radio medium instead of to all other
+     * nodes. The medium must be set before any node is added.
+     */
+    public synchronized void setRadioMedium(RadioMedium medium) {
+        if (!nodes.isEmpty()) {
+            throw new IllegalStateException("the radio medium must be set before adding nodes");
+        }
+        this.medium = medium;
+    }
+
+    public synchronized RadioMedium getRadioMedium() {
+        return medium;
+    }
+
+    public synchronized void addNode(GenericNode node) {
+        if (medium != null) {
+            throw new IllegalStateException("nodes in a radio medium need a position");
+        }
+        addScheduledNode(node);
+    }
+
+    /**
+     * Adds a node at the specified position in the radio medium.
+     */
+    public synchronized void addNode(GenericNode node, double x, double y) {
+        if (medium == null) {
+            throw new IllegalStateException("no radio medium");
+        }
+        ScheduledNode scheduledNode = addScheduledNode(node);
+        if (scheduledNode.radio != null) {
+            medium.addScheduledRadio(scheduledNode.radio, x, y);
+            radioNodes.put(scheduledNode.radio, scheduledNode);
+        }
+    }
+
+    private ScheduledNode addScheduledNode(GenericNode node) {
+        if (node.getCPU().isRunning()) {
+            throw new IllegalStateException("node " + node.getID() + " is already running");
+        }
+        ScheduledNode scheduledNode = new ScheduledNode(node, nodes.size(), medium != null);
+        nodes.add(scheduledNode);
+        nodeArray = null;
+        return scheduledNode;
+    }
+
+    public synchronized GenericNode[] getNodes() {
+        GenericNode[] result = new GenericNode[nodes.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = nodes.get(i).node;
+        }
+        return result;
+    }
+
+    public int getNodeCount() {
+        return nodes.size();
+    }
+
+    public double getLatencyMillis() {
+        return latencyMillis;
+    }
+
+    /**
+     * Returns the emulated time, in milliseconds, that all nodes have reached.
+     */
+    public double getTimeMillis() {
+        return timeMillis;
+    }
+
+    /**
+     * Advances all nodes the specified time.
+     *
+     * @return true if the time was reached and false if a node was stopped
+     */
+    public synchronized boolean run(double millis) throws EmulationException {
+        ScheduledNode[] nodes = nodeArray;
+        if (nodes == null) {
+            nodeArray = nodes = this.nodes.toArray(new ScheduledNode[this.nodes.size()]);
+        }
+        double endMillis = timeMillis + millis;
+        while (timeMillis < endMillis) {
+            double windowEnd = Math.min(timeMillis + latencyMillis, endMillis);
+            for (ScheduledNode node : nodes) {
+                node.windowEnd = windowEnd;
+            }
+            if (pool == null || nodes.length == 1) {
+                for (ScheduledNode node : nodes) {
+                    node.runWindow();
+                }
+            } else {
+                pool.invoke(new WindowTask(nodes, 0, nodes.length));
+            }
+            timeMillis = windowEnd;
+
+            boolean stopped = false;
+            for (ScheduledNode node : nodes) {
+                stopped |= node.stopped;
+            }
+            exchange(nodes);
+            if (stopped) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void shutdown() {
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int threads = Runtime.getRuntime().availableProcessors();
+        double latency = DEFAULT_LATENCY_MILLIS;
+        double range = 0;
+        int index = 0;
+        while (index < args.length && args[index].startsWith("-")) {
+            if ("-threads".equals(args[index]) && index + 1 < args.length) {
+                threads = Integer.parseInt(args[index + 1]);
+            } else if ("-latency".equals(args[index]) && index + 1 < args.length) {
+                latency = Double.parseDouble(args[index + 1]);
+            } else if ("-range".equals(args[index]) && index + 1 < args.length) {
+                range = Double.parseDouble(args[index + 1]);
+            } else {
+                index = args.length;
+                break;
+            }
+            index += 2;
+        }
+        if (args.length - index != 4) {
+            System.err.println("Usage: NodeScheduler [-threads N] [-latency millis] [-range distance]"
+                    + " <platform> <firmware> <nodes> <seconds>");
+            System.err.println("With a range the nodes are placed one unit apart in a square grid"
+                    + " and only the nodes within range are connected.");
+            System.exit(1);
+        }
+        String platform = args[index];
+        String firmware = args[index + 1];
+        int count = Integer.parseInt(args[index + 2]);
+        double seconds = Double.parseDouble(args[index + 3]);
+
+        String nodeType = Main.getNodeTypeByPlatform(platform);
+        NodeScheduler scheduler = new NodeScheduler(threads, latency);
+        if (range > 0) {
+            scheduler.setRadioMedium(new RadioMedium(range));
+        }
+        int width = (int) Math.ceil(Math.sqrt(count));
+        for (int i = 0; i < count; i++) {
+            GenericNode node = Main.createNode(nodeType);
+            if (node == null) {
+                System.err.println("MSPSim does not currently support the platform '" + platform + "'.");
+                System.exit(1);
+            }
+            ArgumentManager config = new ArgumentManager();
+            config.setProperty("nogui", "true");
+            config.setProperty("cli", "false");
+            node.loadFirmware(firmware);
+            node.setup(config);
+            if (range > 0) {
+                scheduler.addNode(node, i % width, i / width);
+            } else {
+                scheduler.addNode(node);
+            }
+        }
+
+        long start = System.currentTimeMillis();
+        boolean completed = scheduler.run(seconds * 1000);
+        long elapsed = System.currentTimeMillis() - start;
+        scheduler.shutdown();
+        System.out.println("Emulated " + count + " nodes for " + scheduler.getTimeMillis() + " ms in "
+                + elapsed + " ms using " + threads + " threads" + (completed ? "" : " (stopped)"));
+    }
+
+    /* Moves the bytes sent during the last window to the receivers */
+    private void exchange(ScheduledNode[] nodes) {
+        if (medium != null) {
+            exchangeInRange(nodes);
+            return;
+        }
+        for (ScheduledNode receiver : nodes) {
+            if (receiver.radio == null) {
+                continue;
+            }
+            boolean received = false;
+            receiver.removeDelivered();
+            for (ScheduledNode sender : nodes) {
+                if (sender != receiver && sender.sentCount > 0) {
+                    for (int i = 0; i < sender.sentCount; i++) {
+                        receiver.addPending(sender.sentTime[i] + latencyMillis,
+                                sender.index, sender.sentData[i], 0, 0, 0);
+                    }
+                    received = true;
+                }
+            }
+            if (received) {
+                receiver.scheduleDelivery();
+            }
+        }
+        for (ScheduledNode sender : nodes) {
+            sender.sentCount = 0;
+        }
+    }
+
+    /* Moves the bytes sent during the last window to the radios in range */
+    private void exchangeInRange(ScheduledNode[] nodes) {
+        int version = medium.getTopologyVersion();
+        for (ScheduledNode sender : nodes) {
+            if (sender.sentCount == 0) {
+                continue;
+            }
+            if (sender.linkVersion != version) {
+                sender.updateLinks(medium.getLinks(sender.radio), radioNodes, version);
+            }
+            int channel = sender.radio.getActiveChannel();
+            for (int i = 0; i < sender.linkCount; i++) {
+                ScheduledNode receiver = sender.linkNodes[i];
+                if (receiver.radio.getActiveChannel() != channel) {
+                    continue;
+                }
+                if (!receiver.received) {
+                    receiver.received = true;
+                    receiver.removeDelivered();
+                }
+                for (int j = 0; j < sender.sentCount; j++) {
+                    receiver.addPending(sender.sentTime[j] + latencyMillis, sender.index,
+                            sender.sentData[j], sender.sentFlags[j], sender.linkRssi[i], sender.linkLqi[i]);
+                }
+            }
+            sender.sentCount = 0;
+        }
+        for (ScheduledNode receiver : nodes) {
+            if (receiver.received) {
+                receiver.received = false;
+                receiver.scheduleDelivery();
+            }
+        }
+    }
+
+    private static class ScheduledNode implements RFListener, FrameListener {
+
+        /* Flags of the sent bytes when the nodes are in a radio medium */
+        static final int FRAME_START = 1;
+        /* Marks the end of a frame - not a byte */
+        static final int FRAME_END = 2;
+
+        final GenericNode node;
+        final MSP430 cpu;
+        final Radio802154 radio;
+        final int index;
+        final boolean inMedium;
+        double windowEnd;
+        boolean stopped;
+
+        /* Bytes sent during the current window - only used by the node's thread */
+        double[] sentTime = new double[16];
+        byte[] sentData = new byte[16];
+        byte[] sentFlags = new byte[16];
+        int sentCount;
+
+        /* Bytes to be received, sorted by due time and then by sender */
+        double[] pendingTime = new double[16];
+        int[] pendingSender = new int[16];
+        byte[] pendingData = new byte[16];
+        byte[] pendingFlags = new byte[16];
+        int[] pendingRssi = new int[16];
+        int[] pendingLqi = new int[16];
+        int pendingCount;
+        int pendingPos;
+        boolean received;
+
+        /* The nodes in range in the radio medium - only used at the barriers */
+        ScheduledNode[] linkNodes;
+        int[] linkRssi;
+        int[] linkLqi;
+        int linkCount;
+        int linkVersion = -1;
+
+        /* The sender of the frame being received, or -1 */
+        private int rxSender = -1;
+
+        private final TimeEvent deliveryEvent = new TimeEvent(0, "radio delivery") {
+            public void execute(long t) {
+                deliver();
+            }
+        };
+
+        ScheduledNode(GenericNode node, int index, boolean inMedium) {
+            this.node = node;
+            this.cpu = node.getCPU();
+            this.index = index;
+            this.inMedium = inMedium;
+            this.radio = cpu.getChip(Radio802154.class);
+            if (radio != null) {
+                radio.addRFListener(this);
+                if (inMedium) {
+                    radio.addFrameListener(this);
+                }
+            }
+        }
+
+        void runWindow() {
+            if (pendingCount > pendingPos && !deliveryEvent.isScheduled()) {
+                /* The events were removed by a reset */
+                scheduleDelivery();
+            }
+            stopped = !cpu.runUntilMillis(windowEnd);
+        }
+
+        public void receivedByte(byte data) {
+            /* Called by the radio of this node when transmitting */
+            addSent(data, 0);
+        }
+
+        public void frameStarted() {
+            /* The radio reports the start after sending the first byte */
+            if (sentCount > 0) {
+                sentFlags[sentCount - 1] |= FRAME_START;
+            }
+        }
+
+        public void frameTransmitted(RadioFrame frame) {
+            addSent((byte) 0, FRAME_END);
+        }
+
+        private void addSent(byte data, int flags) {
+            if (sentCount == sentData.length) {
+                sentTime = Arrays.copyOf(sentTime, sentCount * 2);
+                sentData = Arrays.copyOf(sentData, sentCount * 2);
+                sentFlags = Arrays.copyOf(sentFlags, sentCount * 2);
+            }
+            sentTime[sentCount] = cpu.getTimeMillis();
+            sentFlags[sentCount] = (byte) flags;
+            sentData[sentCount++] = data;
+        }
+
+        void updateLinks(RadioMedium.Link[] links, IdentityHashMap<Radio802154, ScheduledNode> radioNodes,
+                int version) {
+            linkNodes = new ScheduledNode[links.length];
+            linkRssi = new int[links.length];
+            linkLqi = new int[links.length];
+            linkCount = 0;
+            for (RadioMedium.Link link : links) {
+                ScheduledNode node = radioNodes.get(link.radio);
+                if (node != null) {
+                    linkNodes[linkCount] = node;
+                    linkRssi[linkCount] = link.rssi;
+                    linkLqi[linkCount] = link.lqi;
+                    linkCount++;
+                }
+            }
+            linkVersion = version;
+        }
+
+        void deliver() {
+            double now = cpu.getTimeMillis();
+            while (pendingPos < pendingCount && pendingTime[pendingPos] <= now) {
+                int pos = pendingPos++;
+                if (inMedium) {
+                    receive(pos);
+                } else {
+                    radio.receivedByte(pendingData[pos]);
+                }
+            }
+            if (pendingPos == pendingCount) {
+                pendingCount = 0;
+                pendingPos = 0;
+            } else {
+                scheduleDelivery();
+            }
+        }
+
+        /* Only the frame the radio has locked on to is received */
+        private void receive(int pos) {
+            int sender = pendingSender[pos];
+            int flags = pendingFlags[pos];
+            if ((flags & FRAME_START) != 0 && (rxSender < 0 || rxSender == sender)) {
+                if (radio.isReadyToReceive()) {
+                    rxSender = sender;
+                    radio.setLQI(pendingLqi[pos]);
+                    radio.setRSSI(pendingRssi[pos]);
+                } else if (rxSender == sender) {
+                    endReception();
+                }
+            }
+            if (sender == rxSender) {
+                if ((flags & FRAME_END) != 0) {
+                    endReception();
+                } else {
+                    radio.receivedByte(pendingData[pos]);
+                }
+            }
+        }
+
+        private void endReception() {
+            rxSender = -1;
+            radio.setRSSI(RadioMedium.NOISE_FLOOR);
+        }
+
+        void removeDelivered() {
+            if (pendingPos > 0) {
+                int count = pendingCount - pendingPos;
+                System.arraycopy(pendingTime, pendingPos, pendingTime, 0, count);
+                System.arraycopy(pendingSender, pendingPos, pendingSender, 0, count);
+                System.arraycopy(pendingData, pendingPos, pendingData, 0, count);
+                System.arraycopy(pendingFlags, pendingPos, pendingFlags, 0, count);
+                System.arraycopy(pendingRssi, pendingPos, pendingRssi, 0, count);
+                System.arraycopy(pendingLqi, pendingPos, pendingLqi, 0, count);
+                pendingCount = count;
+                pendingPos = 0;
+            }
+        }
+
+        /* Inserts after all bytes due at the same time from the same or lower senders */
+        void addPending(double timeMillis, int sender, byte data, int flags, int rssi, int lqi) {
+            if (pendingCount == pendingData.length) {
+                pendingTime = Arrays.copyOf(pendingTime, pendingCount * 2);
+                pendingSender = Arrays.copyOf(pendingSender, pendingCount * 2);
+                pendingData = Arrays.copyOf(pendingData, pendingCount * 2);
+                pendingFlags = Arrays.copyOf(pendingFlags, pendingCount * 2);
+                pendingRssi = Arrays.copyOf(pendingRssi, pendingCount * 2);
+                pendingLqi = Arrays.copyOf(pendingLqi, pendingCount * 2);
+            }
+            int pos = pendingCount;
+            while (pos > pendingPos && (pendingTime[pos - 1] > timeMillis
+                    || (pendingTime[pos - 1] == timeMillis && pendingSender[pos - 1] > sender))) {
+                pos--;
+            }
+            int count = pendingCount - pos;
+            if (count > 0) {
+                System.arraycopy(pendingTime, pos, pendingTime, pos + 1, count);
+                System.arraycopy(pendingSender, pos, pendingSender, pos + 1, count);
+                System.arraycopy(pendingData, pos, pendingData, pos + 1, count);
+                System.arraycopy(pendingFlags, pos, pendingFlags, pos + 1, count);
+                System.arraycopy(pendingRssi, pos, pendingRssi, pos + 1, count);
+                System.arraycopy(pendingLqi, pos, pendingLqi, pos + 1, count);
+            }
+            pendingTime[pos] = timeMillis;
+            pendingSender[pos] = sender;
+            pendingData[pos] = data;
+            pendingFlags[pos] = (byte) flags;
+            pendingRssi[pos] = rssi;
+            pendingLqi[pos] = lqi;
+            pendingCount++;
+        }
+
+        void scheduleDelivery() {
+            removeDelivered();
+            double delay = pendingTime[0] - cpu.getTimeMillis();
+            long cycles = cpu.cycles + (delay > 0 ? (long) Math.ceil(delay * cpu.getDCOFrequency() / 1000) : 0);
+            cpu.scheduleCycleEvent(deliveryEvent, cycles);
+        }
+    }
+
+    private static class WindowTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final ScheduledNode[] nodes;
+        private final int from;
+        private final int to;
+
+        WindowTask(ScheduledNode[] nodes, int from, int to) {
+            this.nodes = nodes;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                nodes[from].runWindow();
+            } else {
+                int middle = (from + to) >>> 1;
+                invokeAll(new WindowTask(nodes, from, middle), new WindowTask(nodes, middle, to));
+            }
+        }
+    }
+
+}
@@ -1,7 +1,8 @@
 package se.sics.mspsim.platform.sky;
 import se.sics.mspsim.chip.CC2420;
 import se.sics.mspsim.chip.DS2411;
-import se.sics.mspsim.chip.PacketListener;
+import se.sics.mspsim.chip.FrameListener;
+import se.sics.mspsim.chip.RadioFrame;
 import se.sics.mspsim.config.MSP430f1611Config;
 import se.sics.mspsim.core.IOPort;
 import se.sics.mspsim.core.MSP430;
@@ -16,6 +17,7 @@ import se.sics.mspsim.ui.SerialMon;
 import se.sics.mspsim.util.ELF;
 import se.sics.mspsim.util.NetworkConnection;
 import se.sics.mspsim.util.OperatingModeStatistics;
+import se.sics.mspsim.util.PacketHub;
 
 public abstract class CC2420Node extends GenericNode implements PortListener, USARTListener {
 
@@ -145,27 +147,19 @@ public abstract class CC2420Node extends GenericNode implements PortListener, US
             }
         }
 
-        if (config.getPropertyAsBoolean("enableNetwork", false)) {
-            final NetworkConnection network = new NetworkConnection();
+        boolean loopback = config.getPropertyAsBoolean("networkLoopback", false);
+        if (loopback || config.getPropertyAsBoolean("enableNetwork", false)) {
+            /* The loopback network only connects the nodes in this process */
+            final NetworkConnection network = loopback
+                    ? new NetworkConnection(PacketHub.getLoopback()) : new NetworkConnection();
             final RadioWrapper radioWrapper = new RadioWrapper(radio);
-            radioWrapper.addPacketListener(new PacketListener() {
-                public void transmissionStarted() {
+            radio.addFrameListener(network);
+            network.addFrameListener(new FrameListener() {
+                public void frameStarted() {
                 }
-                public void transmissionEnded(byte[] receivedData) {
-//                    System.out.println("**** Sending data len = " + receivedData.length);
-//                    for (int i = 0; i < receivedData.length; i++) {
-//                        System.out.println("Byte: " + Utils.hex8(receivedData[i]));
-//                    }
-                    network.dataSent(receivedData);
-                }
-            });
 
-            network.addPacketListener(new PacketListener() {
-                public void transmissionStarted() {
-                }
-                public void transmissionEnded(byte[] receivedData) {
-//                    System.out.println("**** Receiving data = " + receivedData.length);
-                    radioWrapper.packetReceived(receivedData);
+                public void frameTransmitted(RadioFrame frame) {
+                    radioWrapper.packetReceived(frame);
                 }
             });
         }
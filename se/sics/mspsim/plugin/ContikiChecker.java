@@ -48,6 +48,7 @@ import se.sics.mspsim.core.MSP430;
 import se.sics.mspsim.core.Memory.AccessMode;
 import se.sics.mspsim.core.MemoryMonitor;
 import se.sics.mspsim.core.Profiler;
+import se.sics.mspsim.core.WatchPoint;
 import se.sics.mspsim.profiler.CallEntry;
 import se.sics.mspsim.profiler.CallListener;
 import se.sics.mspsim.util.ActiveComponent;
@@ -63,6 +64,7 @@ public class ContikiChecker implements CallListener, ActiveComponent {
 
     private CommandContext context;
     private MemoryMonitor monitor;
+    private WatchPoint watchPoint;
     private MSP430 cpu;
     private Profiler profiler;
 
@@ -102,17 +104,15 @@ public class ContikiChecker implements CallListener, ActiveComponent {
                                 //profiler.printStackTrace(context.out);
                         }
                     };
-                    for (int i = 0; i < 0x100; i++) {
-                        cpu.addWatchPoint(i, monitor);
-                    }
+                    watchPoint = new WatchPoint(0, 0x100, WatchPoint.WRITE, null, monitor);
+                    cpu.addWatchPoint(watchPoint);
                     return 0;
                 }
 
                 public void stopCommand(CommandContext context) {
                     if (monitor != null) {
-                        for (int i = 0; i < 0x100; i++) {
-                            cpu.removeWatchPoint(i, monitor);
-                        }
+                        cpu.removeWatchPoint(watchPoint);
+                        watchPoint = null;
                         monitor = null;
                         cpu = null;
                     }
@@ -0,0 +1,517 @@
+package se.sics.mspsim.profiler;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.regex.Pattern;
+
+import se.sics.mspsim.core.MSP430Core;
+import se.sics.mspsim.core.Profiler;
+import se.sics.mspsim.util.ArrayUtils;
+import se.sics.mspsim.util.MapEntry;
+import se.sics.mspsim.util.StackMonitor;
+import se.sics.mspsim.util.Utils;
+
+/**
+ * Instrumented profiler that gives the same results as SimpleProfiler but
+ * keeps the statistics in primitive arrays indexed by the function entry
+ * address and the call stack in preallocated arrays. Calls and returns do
+ * not allocate any objects once the call stack and the caller table have
+ * grown to their working size.
+ *
+ * The arrays use one slot per word of memory, which is about 30 bytes per
+ * word or 1 MB for a 64 KB address space.
+ */
+public class ArrayProfiler implements Profiler {
+
+  private static final int MAX_INTERRUPTS = 64;
+
+  private MSP430Core cpu;
+
+  /* Statistics indexed by function address / 2 */
+  private MapEntry[] functions = new MapEntry[0];
+  private long[] calls = new long[0];
+  private long[] cycles = new long[0];
+  private long[] exclusiveCycles = new long[0];
+
+  /* The indices of all functions with statistics, in the order first seen */
+  private int[] profiled = new int[256];
+  private int profiledCount;
+
+  /* Open addressing table with the number of calls per (callee, caller) */
+  private long[] callerKeys;
+  private long[] callerCounts;
+  private int callerCount;
+
+  /* The call stack */
+  private int[] stackFunction = new int[64];
+  private long[] stackCycles = new long[64];
+  private long[] stackExclusiveCycles = new long[64];
+  private int[] stackFrom = new int[64];
+  private int[] stackHide = new int[64];
+  /* False for calls made before the profile was cleared */
+  private boolean[] stackCounted = new boolean[64];
+  private int[] stackStart = new int[64];
+  private int[] stackCurrentMax = new int[64];
+  private int cSP;
+
+  /* Reused entries for call listeners, one per stack level */
+  private CallEntry[] listenerEntries = new CallEntry[64];
+  private CallListener[] callListeners;
+
+  private PrintStream logger;
+  private boolean hideIRQ = false;
+  private final HashSet<String> ignoreFunctions = new HashSet<String>();
+
+  /* statistics for interrupts */
+  private final long[] lastInterruptTime = new long[MAX_INTERRUPTS];
+  private final long[] interruptTime = new long[MAX_INTERRUPTS];
+  private final long[] interruptCount = new long[MAX_INTERRUPTS];
+  private int servicedInterrupt = -1;
+  private int interruptLevel;
+  private int interruptFrom;
+  private boolean newIRQ;
+
+  private StackMonitor stackMonitor;
+
+  public ArrayProfiler() {
+    initCallers(256);
+  }
+
+  public void setCPU(MSP430Core cpu) {
+    this.cpu = cpu;
+    int size = (cpu.MAX_MEM + 1) / 2;
+    if (functions.length != size) {
+      functions = new MapEntry[size];
+      calls = new long[size];
+      cycles = new long[size];
+      exclusiveCycles = new long[size];
+      profiledCount = 0;
+      initCallers(256);
+    }
+  }
+
+  public void setStackMonitor(StackMonitor stackMonitor) {
+    this.stackMonitor = stackMonitor;
+  }
+
+  public void setHideIRQ(boolean hide) {
+    hideIRQ = hide;
+  }
+
+  public void addIgnoreFunction(String function) {
+    ignoreFunctions.add(function);
+  }
+
+  public void profileCall(MapEntry entry, long cycles, int from) {
+    if (cSP == stackFunction.length) {
+      growStack();
+    }
+    int index = entry.getAddress() >> 1;
+    if (functions[index] == null) {
+      addFunction(index, entry);
+    }
+
+    int hide = 0;
+    PrintStream logger = this.logger;
+    if (logger != null) {
+      /* hide this if last call was to be hidden */
+      hide = (cSP == 0 || newIRQ) ? 0 : stackHide[cSP - 1];
+      /* increase level of "hide" if last was hidden */
+      if (hide > 0) hide++;
+      if ((!hideIRQ || servicedInterrupt == -1) && hide == 0) {
+        if (servicedInterrupt >= 0) logger.printf("[%2d] ", servicedInterrupt);
+        printSpace(logger, (cSP - interruptLevel) * 2);
+        logger.println("Call to $" + Utils.hex(entry.getAddress(), 4) +
+                       ": " + entry.getInfo());
+        if (ignoreFunctions.contains(entry.getName())) {
+          hide = 1;
+        }
+      }
+    }
+
+    int sp = cSP++;
+    stackFunction[sp] = index;
+    stackCycles[sp] = cycles;
+    stackExclusiveCycles[sp] = cycles;
+    stackFrom[sp] = from;
+    stackHide[sp] = hide;
+    stackCounted[sp] = true;
+    newIRQ = false;
+
+    if (stackMonitor != null) {
+      /* get the current stack MAX for previous function */
+      if (sp > 0) {
+        stackCurrentMax[sp - 1] = stackMonitor.getProfStackMax();
+      }
+      /* start stack here! */
+      stackStart[sp] = stackMonitor.getStack();
+      stackMonitor.setProfStackMax(stackMonitor.getStack());
+    }
+
+    CallListener[] listeners = callListeners;
+    if (listeners != null) {
+      CallEntry ce = getListenerEntry(sp);
+      for (int i = 0, n = listeners.length; i < n; i++) {
+        listeners[i].functionCall(this, ce);
+      }
+    }
+  }
+
+  public void profileReturn(long cycles) {
+    if (cSP <= 0) {
+      /* the stack pointer might have been messed with? */
+      return;
+    }
+    int sp = --cSP;
+    int index = stackFunction[sp];
+
+    long elapsed = cycles - stackCycles[sp];
+    long exElapsed = cycles - stackExclusiveCycles[sp];
+    if (sp != 0) {
+      stackExclusiveCycles[sp - 1] += elapsed;
+    }
+
+    if (stackCounted[sp]) {
+      this.cycles[index] += elapsed;
+      this.exclusiveCycles[index] += exElapsed;
+      this.calls[index]++;
+
+      int maxUsage = 0;
+      if (stackMonitor != null) {
+        maxUsage = stackMonitor.getProfStackMax() - stackStart[sp];
+        if (sp != 0) {
+          /* put the max for previous function back into the max profiler */
+          stackMonitor.setProfStackMax(stackCurrentMax[sp - 1]);
+        }
+      }
+
+      if (sp != 0) {
+        countCaller(index, stackFunction[sp - 1]);
+      }
+
+      PrintStream logger = this.logger;
+      if (logger != null) {
+        if ((stackHide[sp] <= 1) && (!hideIRQ || servicedInterrupt == -1)) {
+          if (servicedInterrupt >= 0) logger.printf("[%2d] ", servicedInterrupt);
+          printSpace(logger, (sp - interruptLevel) * 2);
+          logger.println("return from " + functions[index].getInfo() + " elapsed: " + elapsed + " maxStackUsage: " + maxUsage);
+        }
+      }
+
+      CallListener[] listeners = callListeners;
+      if (listeners != null) {
+        CallEntry ce = getListenerEntry(sp);
+        for (int i = 0, n = listeners.length; i < n; i++) {
+          listeners[i].functionReturn(this, ce);
+        }
+      }
+    }
+    newIRQ = false;
+  }
+
+  public void profileInterrupt(int vector, long cycles) {
+    servicedInterrupt = vector;
+    interruptFrom = cpu.getPC();
+    lastInterruptTime[servicedInterrupt] = cycles;
+    interruptLevel = cSP;
+    newIRQ = true;
+
+    PrintStream logger = this.logger;
+    if (logger != null && !hideIRQ) {
+      logger.println("----- Interrupt vector " + vector + " start execution -----");
+    }
+  }
+
+  public void profileRETI(long cycles) {
+    if (servicedInterrupt > -1) {
+      interruptTime[servicedInterrupt] += cycles - lastInterruptTime[servicedInterrupt];
+      interruptCount[servicedInterrupt]++;
+
+      PrintStream logger = this.logger;
+      if (logger != null && !hideIRQ) {
+        logger.println("----- Interrupt vector " + servicedInterrupt + " returned - elapsed: " +
+            (cycles - lastInterruptTime[servicedInterrupt]));
+      }
+    }
+    newIRQ = false;
+    interruptLevel = 0;
+
+    /* what if interrupt from interrupt ? */
+    servicedInterrupt = -1;
+  }
+
+  public void resetProfile() {
+    clearProfile();
+    cSP = 0;
+    servicedInterrupt = -1;
+  }
+
+  public void clearProfile() {
+    for (int i = 0; i < profiledCount; i++) {
+      int index = profiled[i];
+      cycles[index] = 0;
+      exclusiveCycles[index] = 0;
+      calls[index] = 0;
+    }
+    initCallers(callerKeys.length);
+    /* The calls in progress started before the clear */
+    Arrays.fill(stackCounted, false);
+  }
+
+  private void addFunction(int index, MapEntry entry) {
+    functions[index] = entry;
+    if (profiledCount == profiled.length) {
+      profiled = Arrays.copyOf(profiled, profiledCount * 2);
+    }
+    profiled[profiledCount++] = index;
+  }
+
+  private void growStack() {
+    int size = stackFunction.length + 64;
+    stackFunction = Arrays.copyOf(stackFunction, size);
+    stackCycles = Arrays.copyOf(stackCycles, size);
+    stackExclusiveCycles = Arrays.copyOf(stackExclusiveCycles, size);
+    stackFrom = Arrays.copyOf(stackFrom, size);
+    stackHide = Arrays.copyOf(stackHide, size);
+    stackCounted = Arrays.copyOf(stackCounted, size);
+    stackStart = Arrays.copyOf(stackStart, size);
+    stackCurrentMax = Arrays.copyOf(stackCurrentMax, size);
+    listenerEntries = Arrays.copyOf(listenerEntries, size);
+  }
+
+  private CallEntry getListenerEntry(int sp) {
+    CallEntry ce = listenerEntries[sp];
+    if (ce == null) {
+      listenerEntries[sp] = ce = new CallEntry();
+    }
+    ce.function = functions[stackFunction[sp]];
+    ce.cycles = stackCycles[sp];
+    ce.exclusiveCycles = stackExclusiveCycles[sp];
+    ce.fromPC = stackFrom[sp];
+    ce.hide = stackHide[sp];
+    ce.calls = stackCounted[sp] ? 0 : -1;
+    ce.stackStart = stackStart[sp];
+    ce.currentStackMax = stackCurrentMax[sp];
+    return ce;
+  }
+
+  /*
+   * Caller statistics
+   */
+  private void initCallers(int size) {
+    callerKeys = new long[size];
+    callerCounts = new long[size];
+    Arrays.fill(callerKeys, -1);
+    callerCount = 0;
+  }
+
+  private static int hashSlot(long key, int mask) {
+    long h = key * 0x9e3779b97f4a7c15L;
+    return (int) (h >>> 32) & mask;
+  }
+
+  private void countCaller(int callee, int caller) {
+    long key = ((long) callee << 32) | caller;
+    int mask = callerKeys.length - 1;
+    int slot = hashSlot(key, mask);
+    while (callerKeys[slot] != key) {
+      if (callerKeys[slot] == -1) {
+        if (callerCount * 2 >= callerKeys.length) {
+          growCallers();
+          countCaller(callee, caller);
+          return;
+        }
+        callerKeys[slot] = key;
+        callerCount++;
+        break;
+      }
+      slot = (slot + 1) & mask;
+    }
+    callerCounts[slot]++;
+  }
+
+  private void growCallers() {
+    long[] keys = callerKeys;
+    long[] counts = callerCounts;
+    initCallers(keys.length * 2);
+    int mask = callerKeys.length - 1;
+    for (int i = 0; i < keys.length; i++) {
+      if (keys[i] != -1) {
+        int slot = hashSlot(keys[i], mask);
+        while (callerKeys[slot] != -1) {
+          slot = (slot + 1) & mask;
+        }
+        callerKeys[slot] = keys[i];
+        callerCounts[slot] = counts[i];
+        callerCount++;
+      }
+    }
+  }
+
+  public void printProfile(PrintStream out) {
+    printProfile(out, new Properties());
+  }
+
+  public void printProfile(PrintStream out, Properties parameters) {
+    String functionNameRegexp = parameters.getProperty(PARAM_FUNCTION_NAME_REGEXP);
+    String profSort = parameters.getProperty(PARAM_SORT_MODE);
+    boolean profCallers = parameters.getProperty(PARAM_PROFILE_CALLERS) != null;
+    Pattern pattern = null;
+    Integer[] entries = new Integer[profiledCount];
+    for (int i = 0; i < profiledCount; i++) {
+      entries[i] = profiled[i];
+    }
+
+    Arrays.sort(entries, new IndexComparator(profSort));
+
+    out.println("************************* Profile Data **************************************");
+    out.println("Function                              Calls    Average       Total  Exclusive");
+
+    if (functionNameRegexp != null && functionNameRegexp.length() > 0) {
+      pattern = Pattern.compile(functionNameRegexp);
+    }
+    for (int index : entries) {
+      long c = calls[index];
+      if (c > 0) {
+        String functionName = functions[index].getName();
+        if (pattern == null || pattern.matcher(functionName).find()) {
+          String cyclesS = "" + cycles[index];
+          String exCyclesS = "" + exclusiveCycles[index];
+          String callS = "" + c;
+          String avgS = "" + (cycles[index] / c);
+          out.print(functionName);
+          printSpace(out, 43 - functionName.length() - callS.length());
+          out.print(callS);
+          out.print(' ');
+          printSpace(out, 10 - avgS.length());
+          out.print(avgS);
+          out.print(' ');
+          printSpace(out, 11 - cyclesS.length());
+          out.print(cyclesS);
+          printSpace(out, 11 - exCyclesS.length());
+          out.println(exCyclesS);
+          if (profCallers) {
+            printCallers(index, out);
+          }
+        }
+      }
+    }
+    if (pattern == null) {
+      out.println("********** Profile IRQ **************************");
+      out.println("Vector          Average    Calls  Tot.Cycles");
+      for (int i = 0; i <= cpu.config.maxInterruptVector; i++) {
+        out.print((i < 10 ? "0" : "") + i + "               ");
+        out.printf("%4d ",(interruptCount[i] > 0 ? (interruptTime[i] / interruptCount[i]):0));
+        out.printf("%8d   %8d",interruptCount[i],interruptTime[i]);
+        out.println();
+      }
+    }
+  }
+
+  private void printCallers(int callee, PrintStream out) {
+    ArrayList<Integer> slots = new ArrayList<Integer>();
+    for (int i = 0; i < callerKeys.length; i++) {
+      if (callerKeys[i] != -1 && (int) (callerKeys[i] >>> 32) == callee) {
+        slots.add(i);
+      }
+    }
+    Collections.sort(slots, new Comparator<Integer>() {
+      public int compare(Integer o1, Integer o2) {
+        return Long.compare(callerCounts[o2], callerCounts[o1]);
+      }
+    });
+    for (int slot : slots) {
+      int caller = (int) (callerKeys[slot] & 0xffffffffL);
+      String functionName = functions[caller].getName();
+      String callS = "" + callerCounts[slot];
+      printSpace(out, 12 - callS.length());
+      out.print(callS);
+      printSpace(out, 2);
+      out.print(functionName);
+      out.println();
+    }
+  }
+
+  private void printSpace(PrintStream out, int len) {
+    for (int i = 0; i < len; i++) {
+      out.print(' ');
+    }
+  }
+
+  public void printStackTrace(PrintStream out) {
+    int stackCount = cSP;
+    out.println("Stack Trace: number of calls: " + stackCount
+        + " PC: $" + Utils.hex(cpu.getPC(), 5));
+    for (int i = 0; i < stackCount; i++) {
+      int sp = stackCount - i - 1;
+      out.println("  " + functions[stackFunction[sp]].getInfo()
+          + " called from PC: $" + Utils.hex(stackFrom[sp], 5)
+          + " (elapsed: " + (cpu.cpuCycles - stackCycles[sp]) + ')');
+      if (sp == interruptLevel && servicedInterrupt != -1) {
+        out.println(" *** Interrupt " + servicedInterrupt + " from PC: $" + Utils.hex(interruptFrom, 5));
+      }
+    }
+  }
+
+  /* Sorts function indices in the same orders as SimpleProfiler */
+  private class IndexComparator implements Comparator<Integer> {
+    private int mode;
+
+    public IndexComparator(String modeS) {
+      if ("exclusive".equalsIgnoreCase(modeS)) {
+        mode = 1;
+      } else if ("calls".equalsIgnoreCase(modeS)) {
+        mode = 2;
+      } else if ("average".equalsIgnoreCase(modeS)) {
+        mode = 3;
+      } else if ("function".equalsIgnoreCase(modeS)) {
+        mode = 4;
+      } else {
+        mode = 0;
+      }
+    }
+
+    public int compare(Integer i1, Integer i2) {
+      int o1 = i1;
+      int o2 = i2;
+      switch (mode) {
+      case 1:
+        return Long.compare(exclusiveCycles[o2], exclusiveCycles[o1]);
+      case 2:
+        return Long.compare(calls[o2], calls[o1]);
+      case 3:
+        return Long.compare(calls[o2] > 0 ? cycles[o2] / calls[o2] : 0,
+            calls[o1] > 0 ? cycles[o1] / calls[o1] : 0);
+      case 4:
+        return functions[o1].getName().compareTo(functions[o2].getName());
+      default:
+        return Long.compare(cycles[o2], cycles[o1]);
+      }
+    }
+  }
+
+  public void setLogger(PrintStream out) {
+    logger = out;
+  }
+
+  public synchronized void addCallListener(CallListener listener) {
+    callListeners = ArrayUtils.add(CallListener.class, callListeners, listener);
+  }
+
+  public synchronized void removeCallListener(CallListener listener) {
+    callListeners = ArrayUtils.remove(callListeners, listener);
+  }
+
+  public String getCall(int i) {
+    return getCallMapEntry(i).getInfo();
+  }
+
+  public MapEntry getCallMapEntry(int i) {
+    return functions[stackFunction[cSP - i - 1]];
+  }
+
+}
@@ -0,0 +1,345 @@
+package se.sics.mspsim.profiler;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+
+import se.sics.mspsim.core.MSP430;
+import se.sics.mspsim.core.MSP430Constants;
+import se.sics.mspsim.core.MemoryImage;
+import se.sics.mspsim.core.SimEvent;
+import se.sics.mspsim.core.SimEventListener;
+import se.sics.mspsim.core.TimeEvent;
+import se.sics.mspsim.util.MapEntry;
+import se.sics.mspsim.util.MapTable;
+
+/**
+ * Statistical profiler that samples the program counter and the call
+ * stack every N cycles instead of instrumenting every call and return.
+ *
+ * The call stack is reconstructed by scanning the stack for words that
+ * point just after a CALL instruction. This is a heuristic - stale return
+ * addresses left on the stack can show up as extra frames.
+ *
+ * Samples are counted per address in primitive arrays and the stacks are
+ * exported as collapsed stacks that can be turned into flame graphs.
+ */
+public class SamplingProfiler {
+
+  /* About 300 samples per second at 16 MHz */
+  public static final int DEFAULT_PERIOD = 50000;
+
+  private static final int MAX_DEPTH = 32;
+  /* Number of stack words to scan for return addresses */
+  private static final int MAX_STACK_SCAN = 256;
+  private static final int MAX_INTERRUPTS = 64;
+
+  private final MSP430 cpu;
+  private final int[] pcSamples;
+  private final int[] irqSamples = new int[MAX_INTERRUPTS];
+  private long idleSamples;
+  private long samples;
+  private int period = DEFAULT_PERIOD;
+  private boolean running;
+
+  /* Function start addresses (sorted) and names from the map table */
+  private int[] functionStart = new int[0];
+  private String[] functionName = new String[0];
+  /* The initial stack pointer, where the scan for return addresses ends */
+  private int stackStart = -1;
+
+  /* Counts per unique call stack. The probe is reused to avoid allocation
+   * when the stack has been seen before. */
+  private final HashMap<Stack,Stack> stacks = new HashMap<Stack,Stack>();
+  private final Stack probe = new Stack(new int[MAX_DEPTH + 1], 0);
+
+  private final TimeEvent sampleEvent = new TimeEvent(0, "sampling profiler") {
+    public void execute(long t) {
+      sample();
+      cpu.scheduleCycleEvent(this, t + period);
+    }
+  };
+
+  /* A reset removes all events - continue sampling after the reset */
+  private final SimEventListener resetListener = new SimEventListener() {
+    public void simChanged(SimEvent event) {
+      if (event.getType() == SimEvent.Type.RESET && running && !sampleEvent.isScheduled()) {
+        cpu.scheduleCycleEvent(sampleEvent, cpu.cycles + period);
+      }
+    }
+  };
+
+  public SamplingProfiler(MSP430 cpu, MapTable map) {
+    this.cpu = cpu;
+    this.pcSamples = new int[cpu.MAX_MEM];
+    setMap(map);
+  }
+
+  public void setMap(MapTable map) {
+    if (map == null) {
+      return;
+    }
+    stackStart = map.getStackStart();
+    ArrayList<MapEntry> functions = new ArrayList<MapEntry>();
+    for (MapEntry entry : map.getAllEntries()) {
+      if (entry.getType() == MapEntry.TYPE.function) {
+        functions.add(entry);
+      }
+    }
+    Collections.sort(functions, new Comparator<MapEntry>() {
+      public int compare(MapEntry o1, MapEntry o2) {
+        return o1.getAddress() - o2.getAddress();
+      }
+    });
+    functionStart = new int[functions.size()];
+    functionName = new String[functions.size()];
+    for (int i = 0; i < functionStart.length; i++) {
+      functionStart[i] = functions.get(i).getAddress();
+      functionName[i] = functions.get(i).getName();
+    }
+  }
+
+  public int getPeriod() {
+    return period;
+  }
+
+  /**
+   * Sets the number of cycles between samples.
+   */
+  public void setPeriod(int period) {
+    if (period < 1) {
+      throw new IllegalArgumentException("period must be at least one cycle");
+    }
+    this.period = period;
+  }
+
+  public boolean isRunning() {
+    return running;
+  }
+
+  public void start() {
+    if (!running) {
+      running = true;
+      cpu.addSimEventListener(resetListener);
+      cpu.scheduleCycleEvent(sampleEvent, cpu.cycles + period);
+    }
+  }
+
+  public void stop() {
+    running = false;
+    cpu.removeSimEventListener(resetListener);
+    sampleEvent.remove();
+  }
+
+  public long getSampleCount() {
+    return samples;
+  }
+
+  public int getSampleCount(int address) {
+    return pcSamples[address];
+  }
+
+  public void clear() {
+    Arrays.fill(pcSamples, 0);
+    Arrays.fill(irqSamples, 0);
+    idleSamples = 0;
+    samples = 0;
+    stacks.clear();
+  }
+
+  void sample() {
+    samples++;
+    int irq = cpu.getServicedInterrupt();
+    if (irq >= 0 && irq < MAX_INTERRUPTS) {
+      irqSamples[irq]++;
+    }
+    if ((cpu.getSR() & MSP430Constants.CPUOFF) != 0 && irq < 0) {
+      idleSamples++;
+      return;
+    }
+    int pc = cpu.reg[MSP430Constants.PC];
+    if (pc >= 0 && pc < pcSamples.length) {
+      pcSamples[pc]++;
+    }
+
+    /* Collect the functions from the leaf and outwards */
+    int[] frames = probe.frames;
+    int depth = 0;
+    frames[depth++] = getFunctionIndex(pc);
+    byte[] memory = cpu.memory;
+    int sp = cpu.reg[MSP430Constants.SP];
+    int top = sp + MAX_STACK_SCAN * 2;
+    if (sp < stackStart && stackStart < top) {
+      top = stackStart;
+    }
+    if (top > memory.length - 1) {
+      top = memory.length - 1;
+    }
+    cpu.unshareMemory(sp, top + 1);
+    for (; sp >= 0 && sp < top && depth < MAX_DEPTH; sp += 2) {
+      int ret = MemoryImage.readWord(memory, sp);
+      if (isReturnAddress(memory, ret)) {
+        frames[depth++] = getFunctionIndex(ret);
+      }
+    }
+    if (irq >= 0) {
+      /* Marks the base of the interrupt handler */
+      frames[depth++] = -2 - irq;
+    }
+    probe.length = depth;
+    probe.hash = probe.computeHash();
+    Stack stack = stacks.get(probe);
+    if (stack == null) {
+      stack = new Stack(Arrays.copyOf(frames, depth), depth);
+      stacks.put(stack, stack);
+    }
+    stack.count++;
+  }
+
+  /* True if the word points just after a CALL instruction in the program */
+  private boolean isReturnAddress(byte[] memory, int address) {
+    if ((address & 1) != 0 || address < 4 || address >= memory.length
+        || functionStart.length == 0 || address <= functionStart[0]) {
+      return false;
+    }
+    cpu.unshareMemory(address - 4, address);
+    /* CALL is 0x1280 - 0x12bf: two bytes for register modes, four with an extension word */
+    int op = MemoryImage.readWord(memory, address - 2);
+    if ((op & 0xffc0) == 0x1280 && (op & 0x30) != 0x10 && (op & 0x3f) != 0x30) {
+      return true;
+    }
+    op = MemoryImage.readWord(memory, address - 4);
+    return (op & 0xffc0) == 0x1280 && ((op & 0x30) == 0x10 || (op & 0x3f) == 0x30);
+  }
+
+  /* Returns the index of the function containing the address, or -1 */
+  private int getFunctionIndex(int address) {
+    int index = Arrays.binarySearch(functionStart, address);
+    return index >= 0 ? index : -index - 2;
+  }
+
+  private String getFrameName(int frame) {
+    if (frame <= -2) {
+      return "[irq " + (-2 - frame) + "]";
+    }
+    return frame >= 0 ? functionName[frame] : "[unknown]";
+  }
+
+  /**
+   * Prints the samples as collapsed stacks, one line per unique stack with
+   * the frames from the outermost to the leaf followed by the count.
+   */
+  public void printCollapsedStacks(PrintStream out) {
+    StringBuilder sb = new StringBuilder();
+    for (Stack stack : stacks.values()) {
+      sb.setLength(0);
+      for (int i = stack.length - 1; i >= 0; i--) {
+        sb.append(getFrameName(stack.frames[i]));
+        if (i > 0) {
+          sb.append(';');
+        }
+      }
+      sb.append(' ').append(stack.count);
+      out.println(sb);
+    }
+    if (idleSamples > 0) {
+      out.println("[idle] " + idleSamples);
+    }
+  }
+
+  /**
+   * Prints the samples per function and per interrupt.
+   */
+  public void printSummary(PrintStream out) {
+    if (samples == 0) {
+      out.println("No samples");
+      return;
+    }
+    /* Samples outside the known functions are summed as unknown */
+    long[] functionSamples = new long[functionStart.length + 1];
+    for (int address = 0; address < pcSamples.length; address++) {
+      int count = pcSamples[address];
+      if (count > 0) {
+        functionSamples[getFunctionIndex(address) + 1] += count;
+      }
+    }
+    Integer[] order = new Integer[functionSamples.length];
+    for (int i = 0; i < order.length; i++) {
+      order[i] = i;
+    }
+    final long[] fs = functionSamples;
+    Arrays.sort(order, new Comparator<Integer>() {
+      public int compare(Integer o1, Integer o2) {
+        return Long.compare(fs[o2], fs[o1]);
+      }
+    });
+
+    out.printf("%d samples every %d cycles\n", samples, period);
+    out.println(" Function                                 Samples    Percent");
+    for (Integer i : order) {
+      if (fs[i] == 0) {
+        break;
+      }
+      String name = i == 0 ? "[unknown]" : functionName[i - 1];
+      out.printf(" %-40s %8d %9.2f%%\n", name, fs[i], 100.0 * fs[i] / samples);
+    }
+    if (idleSamples > 0) {
+      out.printf(" %-40s %8d %9.2f%%\n", "[idle]", idleSamples, 100.0 * idleSamples / samples);
+    }
+    boolean header = false;
+    for (int i = 0; i < irqSamples.length; i++) {
+      if (irqSamples[i] > 0) {
+        if (!header) {
+          out.println(" Interrupt                                Samples    Percent");
+          header = true;
+        }
+        out.printf(" %-40s %8d %9.2f%%\n", "[irq " + i + "]", irqSamples[i],
+            100.0 * irqSamples[i] / samples);
+      }
+    }
+  }
+
+  private static class Stack {
+    final int[] frames;
+    int length;
+    int hash;
+    long count;
+
+    Stack(int[] frames, int length) {
+      this.frames = frames;
+      this.length = length;
+      this.hash = computeHash();
+    }
+
+    int computeHash() {
+      int h = 1;
+      for (int i = 0; i < length; i++) {
+        h = 31 * h + frames[i];
+      }
+      return h;
+    }
+
+    public int hashCode() {
+      return hash;
+    }
+
+    public boolean equals(Object o) {
+      if (!(o instanceof Stack)) {
+        return false;
+      }
+      Stack s = (Stack) o;
+      if (s.length != length || s.hash != hash) {
+        return false;
+      }
+      for (int i = 0; i < length; i++) {
+        if (s.frames[i] != frames[i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+}
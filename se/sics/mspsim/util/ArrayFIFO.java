@@ -1,7 +1,9 @@
 package se.sics.mspsim.util;
 
 import se.sics.mspsim.core.EmulationException;
+import se.sics.mspsim.core.Snapshot;
 
+@Snapshot.State
 public class ArrayFIFO {
 
     public static final boolean STRICT = false;
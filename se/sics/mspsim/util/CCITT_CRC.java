@@ -34,7 +34,10 @@
 
 package se.sics.mspsim.util;
 
+import se.sics.mspsim.core.Snapshot;
+
 /* basic CRC-CCITT code */
+@Snapshot.State
 public class CCITT_CRC {
   int crc;
 
@@ -44,6 +44,7 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.List;
 
 import se.sics.mspsim.debug.DwarfReader;
 import se.sics.mspsim.debug.StabDebug;
@@ -84,7 +85,10 @@ public class ELF {
   ELFSection dbgStab;
   public ELFSection dbgStabStr;
 
+  /* The debug information is parsed when first needed */
   ELFDebug debug;
+  private boolean hasDwarf;
+  private volatile boolean debugLoaded;
 
   public ELF(byte[] data) {
     elfData = data;
@@ -288,12 +292,7 @@ public class ELF {
           readDwarf = true;
       }
     }
-    if (readDwarf) {
-        DwarfReader dwarf = new DwarfReader(this);
-        dwarf.read();
-        debug = dwarf;
-    }
-
+    hasDwarf = readDwarf;
   }
 
   private void readPrograms() {
@@ -311,12 +310,9 @@ public class ELF {
     readHeader();
     readPrograms();
     readSections();
-    if (dbgStab != null) {
-      debug = new StabDebug(this, dbgStab, dbgStabStr);
-    }
   }
 
-  public void loadPrograms(int[] memory) {
+  public void loadPrograms(byte[] memory) {
     for (int i = 0, n = phnum; i < n; i++) {
       // paddr or vaddr???
       loadBytes(memory, programs[i].offset, programs[i].paddr,
@@ -324,14 +320,14 @@ public class ELF {
     }
   }
 
-  private void loadBytes(int[] memory, int offset, int addr, int len,
+  private void loadBytes(byte[] memory, int offset, int addr, int len,
 			 int fill) {
     if (DEBUG) {
       System.out.println("Loading " + len + " bytes into " +
              Integer.toString(addr, 16) + " fill " + fill);
     }
     for (int i = 0, n = len; i < n; i++) {
-      memory[addr++] = elfData[offset++] & 0xff;
+      memory[addr++] = elfData[offset++];
     }
     if (fill > len) {
       int n = fill - len;
@@ -345,10 +341,30 @@ public class ELF {
   }
 
   public ELFDebug getDebug() {
+    if (!debugLoaded) {
+      loadDebug();
+    }
     return debug;
   }
 
+  /* Synchronized with getMap as the stabs are read using the ELF position */
+  private synchronized void loadDebug() {
+    if (debugLoaded) {
+      return;
+    }
+    /* The stabs are preferred when there is both */
+    if (dbgStab != null) {
+      debug = new StabDebug(this, dbgStab, dbgStabStr);
+    } else if (hasDwarf) {
+      DwarfReader dwarf = new DwarfReader(this);
+      dwarf.read();
+      debug = dwarf;
+    }
+    debugLoaded = true;
+  }
+
   public DebugInfo getDebugInfo(int adr) {
+      ELFDebug debug = getDebug();
       if (debug != null) {
           return debug.getDebugInfo(adr);
       }
@@ -356,6 +372,7 @@ public class ELF {
   }
 
   public String lookupFile(int address) {
+    ELFDebug debug = getDebug();
     if (debug != null) {
         DebugInfo di = debug.getDebugInfo(address);
         if (di != null) {
@@ -371,7 +388,16 @@ public class ELF {
     return null;
   }
 
-  public MapTable getMap() {
+  /* The source file table is read together with the map table */
+  List<FileInfo> getFiles() {
+    return files;
+  }
+
+  void addFile(String name, int start, int end) {
+    files.add(new FileInfo(name, start, end));
+  }
+
+  public synchronized MapTable getMap() {
     MapTable map = new MapTable();
     int sAddrHighest = -1;
     boolean foundEnd = false;
@@ -530,7 +556,7 @@ public class ELF {
     return pos;
   }
 
-  private static class FileInfo {
+  static class FileInfo {
       public final String name;
       public final int start;
       public final int end;
@@ -0,0 +1,229 @@
+package se.sics.mspsim.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Process-wide cache of parsed firmware images keyed by the SHA-1 hash of
+ * the firmware file. Nodes loading the same firmware share the parsed ELF
+ * and the symbol table instead of parsing the file once per node.
+ *
+ * When the system property mspsim.cache.dir names a directory, the symbol
+ * table and the source file table are also stored there as a pre-parsed
+ * index so that later runs do not need to build them from the ELF symbol
+ * section. Only the ELF headers are read when the index exists. Without
+ * the property nothing is written to disk.
+ */
+public class FirmwareCache {
+
+  public static final String CACHE_DIR_PROPERTY = "mspsim.cache.dir";
+
+  private static final int INDEX_MAGIC = 0x4d535049; /* "MSPI" */
+  private static final int INDEX_VERSION = 2;
+
+  private static final HashMap<String, SoftReference<Firmware>> cache =
+      new HashMap<String, SoftReference<Firmware>>();
+
+  private FirmwareCache() {
+  }
+
+  /**
+   * A parsed firmware. The ELF and the map table are shared by all nodes
+   * running the firmware and must not be modified except for the entries
+   * the CPU adds for calls to unknown functions.
+   */
+  public static class Firmware {
+    private final String hash;
+    private final ELF elf;
+    private final MapTable map;
+
+    Firmware(String hash, ELF elf, MapTable map) {
+      this.hash = hash;
+      this.elf = elf;
+      this.map = map;
+    }
+
+    public String getHash() {
+      return hash;
+    }
+
+    public ELF getELF() {
+      return elf;
+    }
+
+    public MapTable getMap() {
+      return map;
+    }
+
+    /**
+     * Copies the program segments into the memory of a node.
+     */
+    public void loadPrograms(byte[] memory) {
+      elf.loadPrograms(memory);
+    }
+  }
+
+  public static Firmware getFirmware(String file) throws IOException {
+    return getFirmware(Files.readAllBytes(new File(file).toPath()));
+  }
+
+  public static Firmware getFirmware(byte[] data) throws IOException {
+    String hash = hash(data);
+    synchronized (cache) {
+      SoftReference<Firmware> ref = cache.get(hash);
+      Firmware firmware = ref != null ? ref.get() : null;
+      if (firmware == null) {
+        firmware = parse(hash, data);
+        cache.put(hash, new SoftReference<Firmware>(firmware));
+      }
+      return firmware;
+    }
+  }
+
+  /**
+   * Removes all parsed firmware from the cache. The index on disk is kept.
+   */
+  public static void clear() {
+    synchronized (cache) {
+      cache.clear();
+    }
+  }
+
+  private static Firmware parse(String hash, byte[] data) throws IOException {
+    ELF elf = new ELF(data);
+    elf.readAll();
+    File index = getIndexFile(hash);
+    MapTable map = null;
+    if (index != null && index.isFile()) {
+      try {
+        map = readIndex(index, elf);
+      } catch (Exception e) {
+        /* Rebuild a broken or old index */
+      }
+    }
+    if (map == null) {
+      map = elf.getMap();
+      if (index != null) {
+        try {
+          writeIndex(index, map, elf);
+        } catch (IOException e) {
+          System.err.println("Warning: failed to write firmware index " + index + ": " + e.getMessage());
+        }
+      }
+    }
+    return new Firmware(hash, elf, map);
+  }
+
+  private static String hash(byte[] data) {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-1").digest(data);
+      StringBuilder sb = new StringBuilder();
+      for (byte b : digest) {
+        sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+      }
+      return sb.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-1 not available", e);
+    }
+  }
+
+  private static File getIndexFile(String hash) {
+    String dir = System.getProperty(CACHE_DIR_PROPERTY);
+    if (dir == null || dir.length() == 0) {
+      return null;
+    }
+    return new File(dir, hash + ".idx");
+  }
+
+  private static MapTable readIndex(File file, ELF elf) throws IOException {
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+      if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION) {
+        throw new IOException("unknown index format");
+      }
+      MapTable map = new MapTable();
+      map.setHeapStart(in.readInt());
+      map.setStackStart(in.readInt());
+      MapEntry.TYPE[] types = MapEntry.TYPE.values();
+      for (int i = 0, n = in.readInt(); i < n; i++) {
+        MapEntry.TYPE type = types[in.readByte()];
+        int address = in.readInt();
+        int size = in.readInt();
+        String name = in.readUTF();
+        String sourceFile = in.readBoolean() ? in.readUTF() : null;
+        boolean isLocal = in.readBoolean();
+        map.setEntry(new MapEntry(type, address, size, name, sourceFile, isLocal));
+      }
+      int fileCount = in.readInt();
+      if (fileCount < 0 || fileCount > file.length()) {
+        throw new IOException("bad file count " + fileCount);
+      }
+      String[] names = new String[fileCount];
+      int[] ranges = new int[fileCount * 2];
+      for (int i = 0; i < fileCount; i++) {
+        names[i] = in.readUTF();
+        ranges[i * 2] = in.readInt();
+        ranges[i * 2 + 1] = in.readInt();
+      }
+      /* Only a complete index is used */
+      for (int i = 0; i < fileCount; i++) {
+        elf.addFile(names[i], ranges[i * 2], ranges[i * 2 + 1]);
+      }
+      return map;
+    }
+  }
+
+  private static void writeIndex(File file, MapTable map, ELF elf) throws IOException {
+    File dir = file.getParentFile();
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("could not create " + dir);
+    }
+    /* Write to a temporary file first to never leave a partial index */
+    File tmp = File.createTempFile("index", ".tmp", dir);
+    try {
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+        MapEntry[] entries = map.getAllEntries();
+        out.writeInt(INDEX_MAGIC);
+        out.writeInt(INDEX_VERSION);
+        out.writeInt(map.getHeapStart());
+        out.writeInt(map.getStackStart());
+        out.writeInt(entries.length);
+        for (MapEntry entry : entries) {
+          out.writeByte(entry.getType().ordinal());
+          out.writeInt(entry.getAddress());
+          out.writeInt(entry.getSize());
+          out.writeUTF(entry.getName());
+          out.writeBoolean(entry.getFile() != null);
+          if (entry.getFile() != null) {
+            out.writeUTF(entry.getFile());
+          }
+          out.writeBoolean(entry.isLocal());
+        }
+        List<ELF.FileInfo> files = elf.getFiles();
+        out.writeInt(files.size());
+        for (ELF.FileInfo fileInfo : files) {
+          out.writeUTF(fileInfo.name);
+          out.writeInt(fileInfo.start);
+          out.writeInt(fileInfo.end);
+        }
+      }
+      Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      tmp.delete();
+    }
+  }
+
+}
@@ -40,215 +40,967 @@
  */
 package se.sics.mspsim.util;
 
-import java.io.DataInputStream;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import se.sics.mspsim.core.EmulationException;
-import se.sics.mspsim.core.MSP430Core;
-import se.sics.mspsim.core.Memory;
+import se.sics.mspsim.core.MSP430;
+import se.sics.mspsim.core.MSP430Constants;
+import se.sics.mspsim.core.Memory.AccessMode;
+import se.sics.mspsim.core.Memory.AccessType;
+import se.sics.mspsim.core.MemoryMonitor;
+import se.sics.mspsim.core.WatchPoint;
 
-public class GDBStubs implements Runnable {
+/**
+ * GDB remote serial protocol server for a node.
+ *
+ * All servers share one thread that serves the sockets with non-blocking
+ * I/O, so several nodes can be debugged at the same time, each on its own
+ * port. The node executes in a thread of its own while continuing or
+ * stepping, and memory reads and interrupts are served meanwhile. Requests
+ * that change the memory, the registers or the breakpoints are answered
+ * with an error until the node has stopped.
+ *
+ * Supported are no-ack mode, binary memory writes, the memory map, vCont,
+ * flash programming, and breakpoints and watchpoints backed by the watch
+ * points of the CPU.
+ */
+public class GDBStubs {
+
+    /* The largest packet sent to GDB - also the largest memory read */
+    public static final int PACKET_SIZE = 0x4000;
+
+    /* The largest packet accepted from GDB */
+    private static final int MAX_INPUT_PACKET = 1024 * 1024;
+
+    /* How long to wait for the node to stop when GDB attaches */
+    private static final long ATTACH_TIMEOUT_MILLIS = 1000;
 
-    private final static String OK = "OK";
+    private static final String OK = "OK";
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
 
-    ServerSocket serverSocket;
-    OutputStream output;
-    MSP430Core cpu;
+    private static final String STOP_INTERRUPTED = "S02";
+    private static final String STOP_ILLEGAL = "S04";
+    private static final String STOP_TRAPPED = "S05";
 
-    public void setupServer(MSP430Core cpu, int port) {
+    private static Server server;
+
+    private MSP430 cpu;
+    private int port = -1;
+    private ServerSocketChannel serverChannel;
+    private ExecutorService executor;
+    private byte[] memoryMap;
+
+    /* Only used by the server thread */
+    private Connection connection;
+    private final HashMap<String,WatchPoint> points = new HashMap<String,WatchPoint>();
+
+    /* True while the node is continuing or stepping on request of GDB */
+    private volatile boolean resuming;
+    private volatile boolean interrupted;
+    /* The reply for the breakpoint or watchpoint that stopped the node */
+    private volatile String stopReply;
+    /* A breakpoint at the address the node resumes from is passed over */
+    private volatile int resumePC = -1;
+    private volatile long resumeCycles = -1;
+
+    public void setupServer(MSP430 cpu, int port) {
         this.cpu = cpu;
         try {
-            serverSocket = new ServerSocket(port);
-            System.out.println("GDBStubs open server socket port: " + port);
-            new Thread(this).start();
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.socket().setReuseAddress(true);
+            serverChannel.bind(new InetSocketAddress(port));
+            serverChannel.configureBlocking(false);
+            this.port = serverChannel.socket().getLocalPort();
+            final String name = "GDBStubs " + this.port;
+            executor = Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            });
+            getServer().register(this);
+            System.out.println("GDBStubs open server socket port: " + this.port);
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
-    int[] buffer = new int[256];
-    int len;
+    public int getPort() {
+        return port;
+    }
 
-    public void run() {
-        while (true) {
+    /**
+     * Closes the server socket and the connection to GDB, if any.
+     */
+    public void close() {
+        if (serverChannel == null) {
+            return;
+        }
+        server.execute(() -> {
+            if (connection != null) {
+                connection.close();
+            }
             try {
-                Socket s = serverSocket.accept();
-
-                DataInputStream input = new DataInputStream(s.getInputStream());
-                output = s.getOutputStream();
-
-                String cmd = "";
-                boolean readCmd = false;
-                int c;
-                while (s != null && ((c = input.read()) != -1)) {
-                    System.out.println("GDBStubs: Read  " + c + " => "
-                            + (char) c);
-                    if (c == '#') {
-                        readCmd = false;
-                        /* ack the message */
-                        output.write('+');
-                        handleCmd(cmd, buffer, len);
-                        cmd = "";
-                        len = 0;
-                    }
-                    if (readCmd) {
-                        cmd += (char) c;
-                        buffer[len++] = (c & 0xff);
-                    }
-                    if (c == '$') {
-                        readCmd = true;
+                serverChannel.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        });
+        executor.shutdown();
+    }
+
+    private static synchronized Server getServer() throws IOException {
+        if (server == null) {
+            server = new Server();
+            Thread thread = new Thread(server, "GDBStubs");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        return server;
+    }
+
+    private void accept(Selector selector) throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        if (connection != null) {
+            /* Only one debugger at a time */
+            channel.close();
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        connection = new Connection(channel);
+        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+        if (cpu.isRunning() && !resuming) {
+            /* GDB expects the target to be stopped when attaching */
+            cpu.stop();
+            long timeout = System.currentTimeMillis() + ATTACH_TIMEOUT_MILLIS;
+            while (cpu.isRunning() && System.currentTimeMillis() < timeout) {
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+        }
+    }
+
+    /* The node runs in another thread until it has stopped */
+    private boolean isStopped() {
+        return !resuming && !cpu.isRunning();
+    }
+
+    private void resume(final boolean step, int address) {
+        if (resuming) {
+            return;
+        }
+        if (address >= 0) {
+            cpu.writeRegister(MSP430Constants.PC, address);
+        }
+        resuming = true;
+        interrupted = false;
+        stopReply = null;
+        resumePC = cpu.getPC();
+        resumeCycles = cpu.cycles;
+        executor.execute(() -> {
+            String reply;
+            try {
+                if (cpu.isRunning()) {
+                    /* Started by someone else - report when it stops */
+                    while (cpu.isRunning()) {
+                        Thread.sleep(10);
                     }
+                } else if (step) {
+                    cpu.stepInstructions(1);
+                } else {
+                    cpu.cpuloop();
                 }
-            } catch (IOException e) {
-                e.printStackTrace();
+                reply = stopReply != null ? stopReply : interrupted ? STOP_INTERRUPTED : STOP_TRAPPED;
             } catch (EmulationException e) {
-                e.printStackTrace();
+                System.err.println("GDBStubs: " + e.getMessage());
+                reply = STOP_ILLEGAL;
+            } catch (InterruptedException e) {
+                reply = STOP_INTERRUPTED;
             }
+            final String stop = reply;
+            server.execute(() -> {
+                resuming = false;
+                if (connection != null) {
+                    connection.sendReply(stop);
+                    connection.flushQuietly();
+                }
+            });
+        });
+    }
+
+    private void interrupt() {
+        /* Nothing to interrupt if GDB already got the stop reply */
+        if (resuming) {
+            interrupted = true;
+            cpu.stop();
         }
     }
 
-    private void handleCmd(String cmd, int[] cmdBytes, int cmdLen)
-    throws IOException, EmulationException {
-        System.out.println("cmd: " + cmd);
-        char c = cmd.charAt(0);
-        switch (c) {
-        case 'H':
-            sendResponse(OK);
-            break;
-        case 'q':
-            if ("qC".equals(cmd)) {
-                sendResponse("QC1");
-            } else if ("qOffsets".equals(cmd)) {
-                sendResponse("Text=0;Data=0;Bss=0");
-            } else if ("qfThreadInfo".equals(cmd)){
-                sendResponse("m 01");
-            } else if ("qsThreadInfo".equals(cmd)){
-                sendResponse("l");      
-            } else if ("qSymbol::".equals(cmd)){
-                sendResponse(OK);
-                //} else if ("qThreadExtraInfo,1".equals(cmd)){
-                //              sendResponse(stringToHex("Stoped"));
-            } else {
-                System.out.println("Command unknown");
-                sendResponse("");
+    /* Handles Z and z packets */
+    private boolean setPoint(boolean insert, int type, int address, int kind) {
+        String key = type + "," + address + "," + kind;
+        WatchPoint wp = points.get(key);
+        if (!insert) {
+            if (wp != null) {
+                points.remove(key);
+                cpu.removeWatchPoint(wp);
             }
-
-            break;
-        case '?':
-            sendResponse("S01");
-            break;
-        case 'g':
-            readRegisters();
+            return true;
+        }
+        if (wp != null) {
+            return true;
+        }
+        switch (type) {
+        case 0:
+        case 1:
+            wp = new WatchPoint(address, 1, WatchPoint.EXECUTE, null, new PointMonitor(type, address));
             break;
-        case 'k': // kill
-            sendResponse(OK);
+        case 2:
+            wp = new WatchPoint(address, Math.max(kind, 1), WatchPoint.WRITE, null, new PointMonitor(type, address));
             break;
-        case 'm':
-        case 'M':
-        case 'X':
-            String cmd2 = cmd.substring(1);
-            String wdata[] = cmd2.split(":");
-            int cPos = cmd.indexOf(':');
-            if (cPos > 0) {
-                /* only until length in first part */
-                cmd2 = wdata[0];
-            }
-            String parts[] = cmd2.split(",");
-            int addr = Integer.decode("0x" + parts[0]);
-            int len = Integer.decode("0x" + parts[1]);
-            String data = "";
-            Memory mem = cpu.getMemory();
-            if (c == 'm') {
-                System.out.println("Returning memory from: " + addr + " len = "
-                        + len);
-                /* This might be wrong - which is the correct byte order? */
-                for (int i = 0; i < len; i++) {
-                    data += Utils.hex8(mem.get(addr++, Memory.AccessMode.BYTE));
-                }
-                sendResponse(data);
-            } else {
-                System.out.println("Writing to memory at: " + addr + " len = "
-                        + len + " with: "
-                        + ((wdata.length > 1) ? wdata[1] : ""));
-                cPos++;
-                for (int i = 0; i < len; i++) {
-                    System.out.println("Writing: " + cmdBytes[cPos] + " to "
-                            + addr + " cpos=" + cPos);
-                    mem.set(addr++, cmdBytes[cPos++], Memory.AccessMode.BYTE);
-                }
-                sendResponse(OK);
-            }
+        case 3:
+            wp = new WatchPoint(address, Math.max(kind, 1), WatchPoint.READ, null, new PointMonitor(type, address));
             break;
-        case 'C':
-            sendResponse("S01");
+        case 4:
+            wp = new WatchPoint(address, Math.max(kind, 1), WatchPoint.READ | WatchPoint.WRITE, null,
+                    new PointMonitor(type, address));
             break;
         default:
-            System.out.println("Command unknown");
-            sendResponse("");
+            return false;
         }
+        points.put(key, wp);
+        cpu.addWatchPoint(wp);
+        return true;
     }
 
-    private void readRegisters() throws IOException {
-        String regs = "";
-        for (int i = 0; i < 16; i++) {
-            regs += Utils.hex8(cpu.reg[i] & 0xff) + Utils.hex8(cpu.reg[i] >> 8);
+    private void removeAllPoints() {
+        for (WatchPoint wp : points.values()) {
+            cpu.removeWatchPoint(wp);
         }
-        sendResponse(regs);
+        points.clear();
     }
 
-    public static String stringToHex(String base)
-    {
-        StringBuilder buffer = new StringBuilder();
-        int intValue;
-        for(int x = 0; x < base.length(); x++)
-        {
-            int cursor = 0;
-            intValue = base.charAt(x);
-            String binaryChar = new String(Integer.toBinaryString(base.charAt(x)));
-            for(int i = 0; i < binaryChar.length(); i++) {
-                if(binaryChar.charAt(i) == '1') {
-                    cursor += 1;
+    private class PointMonitor extends MemoryMonitor.Adapter {
+        private final String reply;
+
+        PointMonitor(int type, int address) {
+            String name = type == 2 ? "watch" : type == 3 ? "rwatch" : "awatch";
+            this.reply = type < 2 ? STOP_TRAPPED : "T05" + name + ':' + Integer.toHexString(address) + ';';
+        }
+
+        @Override
+        public void notifyReadBefore(int address, AccessMode mode, AccessType type) {
+            if (type == AccessType.EXECUTE && address == resumePC && cpu.cycles == resumeCycles) {
+                /* Resuming from this breakpoint */
+                return;
+            }
+            hit();
+        }
+
+        @Override
+        public void notifyWriteBefore(int address, int data, AccessMode mode) {
+            hit();
+        }
+
+        private void hit() {
+            if (stopReply == null) {
+                stopReply = reply;
+            }
+            cpu.triggBreakpoint();
+        }
+    }
+
+    /* The memory map with RAM for all memory except the flash */
+    private byte[] getMemoryMap() {
+        if (memoryMap == null) {
+            ArrayList<int[]> flash = new ArrayList<int[]>();
+            if (cpu.config.infoMemSize > 0) {
+                flash.add(new int[] { cpu.config.infoMemStart, cpu.config.infoMemSize, 128 });
+            }
+            if (cpu.config.mainFlashSize > 0) {
+                flash.add(new int[] { cpu.config.mainFlashStart, cpu.config.mainFlashSize, 512 });
+            }
+            flash.sort((a, b) -> Integer.compare(a[0], b[0]));
+
+            StringBuilder sb = new StringBuilder();
+            sb.append("<?xml version=\"1.0\"?>\n<!DOCTYPE memory-map PUBLIC \"+//IDN gnu.org//DTD GDB Memory Map V1.0//EN\""
+                    + " \"http://sourceware.org/gdb/gdb-memory-map.dtd\">\n<memory-map>\n");
+            int address = 0;
+            for (int[] f : flash) {
+                if (f[0] < address || f[0] + f[1] > cpu.MAX_MEM) {
+                    continue;
                 }
+                if (f[0] > address) {
+                    sb.append("<memory type=\"ram\" start=\"0x").append(Integer.toHexString(address))
+                    .append("\" length=\"0x").append(Integer.toHexString(f[0] - address)).append("\"/>\n");
+                }
+                sb.append("<memory type=\"flash\" start=\"0x").append(Integer.toHexString(f[0]))
+                .append("\" length=\"0x").append(Integer.toHexString(f[1]))
+                .append("\">\n<property name=\"blocksize\">0x").append(Integer.toHexString(f[2]))
+                .append("</property>\n</memory>\n");
+                address = f[0] + f[1];
             }
-            if((cursor % 2) > 0) {
-                intValue += 128;
+            if (address < cpu.MAX_MEM) {
+                sb.append("<memory type=\"ram\" start=\"0x").append(Integer.toHexString(address))
+                .append("\" length=\"0x").append(Integer.toHexString(cpu.MAX_MEM - address)).append("\"/>\n");
             }
-            buffer.append(Integer.toHexString(intValue));
+            sb.append("</memory-map>\n");
+            memoryMap = sb.toString().getBytes(StandardCharsets.US_ASCII);
         }
-        return buffer.toString();
+        return memoryMap;
     }
 
+    private int readMemory(int address) {
+        if (address < cpu.MAX_MEM_IO) {
+            return cpu.getMemory().get(address, AccessMode.BYTE);
+        }
+        cpu.unshareMemory(address, address + 1);
+        return cpu.memory[address] & 0xff;
+    }
+
+    /* Writes directly to the memory to also allow writing the flash */
+    private void writeMemory(int address, int value) {
+        if (address < cpu.MAX_MEM_IO) {
+            cpu.getMemory().set(address, value, AccessMode.BYTE);
+        } else {
+            cpu.unshareMemory(address, address + 1);
+            cpu.memory[address] = (byte) value;
+        }
+    }
+
+    private boolean isValidRange(int address, int length) {
+        return address >= 0 && length >= 0 && address + length <= cpu.MAX_MEM;
+    }
+
+    private int getRegisterSize() {
+        return cpu.MSP430XArch ? 4 : 2;
+    }
+
+    private class Connection {
+
+        private static final int IDLE = 0;
+        private static final int DATA = 1;
+        private static final int CHECKSUM1 = 2;
+        private static final int CHECKSUM2 = 3;
+
+        final SocketChannel channel;
+        SelectionKey key;
+        private final ByteBuffer input = ByteBuffer.allocate(PACKET_SIZE * 2);
+        private ByteBuffer output = ByteBuffer.allocate(PACKET_SIZE * 2 + 8);
+
+        /* The packet being received */
+        private byte[] packet = new byte[PACKET_SIZE];
+        private int packetLength;
+        private int state = IDLE;
+        private int checksum;
+        private int receivedChecksum;
+        private int pos;
+        private boolean noAck;
+        private boolean closing;
+
+        /* The reply being built and the last reply, sent again on request */
+        private byte[] reply = new byte[PACKET_SIZE + 8];
+        private int replyLength;
+        private byte[] lastReply;
+        private int lastReplyLength;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void read() throws IOException {
+            int n = channel.read(input);
+            if (n < 0) {
+                close();
+                return;
+            }
+            input.flip();
+            while (input.hasRemaining() && !closing) {
+                receive(input.get() & 0xff);
+            }
+            input.clear();
+            flush();
+            if (closing) {
+                close();
+            }
+        }
 
-    public void sendResponse(String resp) throws IOException {
-        output.write('$');
-        int cs = 0;
-        if (resp != null) {
-            for (int i = 0; i < resp.length(); i++) {
-                output.write(resp.charAt(i));
-                System.out.print(resp.charAt(i));
-                cs += resp.charAt(i);
+        private void receive(int c) {
+            switch (state) {
+            case IDLE:
+                if (c == '$') {
+                    state = DATA;
+                    packetLength = 0;
+                    checksum = 0;
+                } else if (c == 0x03) {
+                    interrupt();
+                } else if (c == '-' && !noAck && lastReply != null) {
+                    putOutput(lastReply, 0, lastReplyLength);
+                }
+                break;
+            case DATA:
+                if (c == '#') {
+                    state = CHECKSUM1;
+                } else if (packetLength < MAX_INPUT_PACKET) {
+                    if (packetLength == packet.length) {
+                        byte[] tmp = new byte[packet.length * 2];
+                        System.arraycopy(packet, 0, tmp, 0, packetLength);
+                        packet = tmp;
+                    }
+                    packet[packetLength++] = (byte) c;
+                    checksum += c;
+                } else {
+                    /* Too long - ask for a retransmission that will also fail */
+                    state = IDLE;
+                    putOutput('-');
+                }
+                break;
+            case CHECKSUM1:
+                receivedChecksum = Character.digit(c, 16) << 4;
+                state = CHECKSUM2;
+                break;
+            case CHECKSUM2:
+                receivedChecksum |= Character.digit(c, 16);
+                state = IDLE;
+                if (!noAck) {
+                    if (receivedChecksum != (checksum & 0xff)) {
+                        putOutput('-');
+                        break;
+                    }
+                    putOutput('+');
+                }
+                try {
+                    handlePacket();
+                } catch (RuntimeException e) {
+                    System.err.println("GDBStubs: failed to handle packet: " + e);
+                    sendReply("E01");
+                }
+                break;
             }
         }
-        output.write('#');
-        System.out.print('#');
-        int c = (cs & 0xff) >> 4;
-            if (c < 10) {
-                c = c + '0';
+
+        private void handlePacket() {
+            if (packetLength == 0) {
+                sendReply("");
+                return;
+            }
+            pos = 1;
+            int c = packet[0];
+            switch (c) {
+            case '?':
+                sendReply(STOP_TRAPPED);
+                break;
+            case 'H':
+            case 'T':
+                sendReply(OK);
+                break;
+            case 'g':
+                readRegisters();
+                break;
+            case 'G':
+                writeRegisters();
+                break;
+            case 'p':
+                readRegister(parseHex());
+                break;
+            case 'P': {
+                int r = parseHex();
+                pos++;
+                writeRegister(r);
+                break;
+            }
+            case 'm': {
+                int address = parseHex();
+                pos++;
+                readMemory(address, parseHex());
+                break;
+            }
+            case 'M':
+            case 'X': {
+                int address = parseHex();
+                pos++;
+                int length = parseHex();
+                pos++;
+                if (c == 'M') {
+                    writeHexMemory(address, length);
+                } else {
+                    writeBinaryMemory(address, length);
+                }
+                break;
+            }
+            case 'c':
+            case 's':
+                resume(c == 's', pos < packetLength ? parseHex() : -1);
+                break;
+            case 'C':
+            case 'S':
+                /* The signal is ignored */
+                parseHex();
+                resume(c == 'S', pos < packetLength && packet[pos++] == ';' ? parseHex() : -1);
+                break;
+            case 'Z':
+            case 'z': {
+                if (!checkStopped()) {
+                    break;
+                }
+                int type = parseHex();
+                pos++;
+                int address = parseHex();
+                pos++;
+                int kind = parseHex();
+                sendReply(setPoint(c == 'Z', type, address, kind) ? OK : "");
+                break;
+            }
+            case 'v':
+                handleV();
+                break;
+            case 'q':
+                handleQuery();
+                break;
+            case 'Q':
+                if (startsWith("QStartNoAckMode")) {
+                    sendReply(OK);
+                    noAck = true;
+                    lastReply = null;
+                } else {
+                    sendReply("");
+                }
+                break;
+            case 'D':
+                sendReply(OK);
+                closing = true;
+                break;
+            case 'k':
+                closing = true;
+                break;
+            default:
+                sendReply("");
+            }
+        }
+
+        private void handleV() {
+            if (startsWith("vCont?")) {
+                sendReply("vCont;c;C;s;S;t");
+            } else if (startsWith("vCont;")) {
+                /* All actions apply to the only thread - use the first one */
+                pos = 6;
+                int action = packet[pos++];
+                if (action == 'c' || action == 'C' || action == 's' || action == 'S') {
+                    resume(action == 's' || action == 'S', -1);
+                } else if (action == 't') {
+                    interrupt();
+                } else {
+                    sendReply("E01");
+                }
+            } else if (startsWith("vFlashErase:")) {
+                if (!checkStopped()) {
+                    return;
+                }
+                pos = 12;
+                int address = parseHex();
+                pos++;
+                int length = parseHex();
+                if (!isValidRange(address, length)) {
+                    sendReply("E01");
+                    return;
+                }
+                for (int i = 0; i < length; i++) {
+                    writeMemory(address + i, 0xff);
+                }
+                cpu.invalidateInstructionCache();
+                sendReply(OK);
+            } else if (startsWith("vFlashWrite:")) {
+                pos = 12;
+                int address = parseHex();
+                pos++;
+                writeBinaryMemory(address, -1);
+            } else if (startsWith("vFlashDone")) {
+                sendReply(OK);
             } else {
-                c = c - 10 + 'a';
+                sendReply("");
             }
-            output.write((char) c);
-            System.out.print((char) c);
-            c = cs & 15;
-            if (c < 10) {
-                c = c + '0';
+        }
+
+        private void handleQuery() {
+            if (startsWith("qSupported")) {
+                sendReply("PacketSize=" + Integer.toHexString(PACKET_SIZE)
+                        + ";QStartNoAckMode+;qXfer:memory-map:read+");
+            } else if (startsWith("qXfer:memory-map:read::")) {
+                pos = 23;
+                int offset = parseHex();
+                pos++;
+                int length = parseHex();
+                byte[] map = getMemoryMap();
+                if (offset >= map.length) {
+                    sendReply("l");
+                    return;
+                }
+                length = Math.min(Math.min(length, PACKET_SIZE / 2), map.length - offset);
+                begin();
+                put(offset + length < map.length ? 'm' : 'l');
+                for (int i = 0; i < length; i++) {
+                    putBinary(map[offset + i]);
+                }
+                end();
+            } else if (startsWith("qC")) {
+                sendReply("QC1");
+            } else if (startsWith("qAttached")) {
+                sendReply("1");
+            } else if (startsWith("qOffsets")) {
+                sendReply("Text=0;Data=0;Bss=0");
+            } else if (startsWith("qfThreadInfo")) {
+                sendReply("m1");
+            } else if (startsWith("qsThreadInfo")) {
+                sendReply("l");
+            } else if (startsWith("qSymbol::")) {
+                sendReply(OK);
             } else {
-                c = c - 10 + 'a';
+                sendReply("");
+            }
+        }
+
+        private void readRegisters() {
+            int size = getRegisterSize();
+            begin();
+            for (int i = 0; i < 16; i++) {
+                int value = cpu.reg[i];
+                for (int b = 0; b < size; b++) {
+                    putHex8(value >> (b * 8));
+                }
+            }
+            end();
+        }
+
+        private void writeRegisters() {
+            int size = getRegisterSize();
+            if (!checkStopped()) {
+                return;
+            }
+            if (packetLength < 1 + 16 * size * 2) {
+                sendReply("E01");
+                return;
+            }
+            for (int i = 0; i < 16; i++) {
+                cpu.writeRegister(i, parseLittleEndian(size));
+            }
+            sendReply(OK);
+        }
+
+        private void readRegister(int r) {
+            if (r < 0 || r >= 16) {
+                sendReply("E01");
+                return;
+            }
+            begin();
+            for (int b = 0, value = cpu.reg[r]; b < getRegisterSize(); b++) {
+                putHex8(value >> (b * 8));
+            }
+            end();
+        }
+
+        private void writeRegister(int r) {
+            int size = getRegisterSize();
+            if (!checkStopped()) {
+                return;
+            }
+            if (r < 0 || r >= 16 || packetLength - pos < size * 2) {
+                sendReply("E01");
+                return;
+            }
+            cpu.writeRegister(r, parseLittleEndian(size));
+            sendReply(OK);
+        }
+
+        private void readMemory(int address, int length) {
+            if (!isValidRange(address, length)) {
+                sendReply("E01");
+                return;
+            }
+            length = Math.min(length, PACKET_SIZE / 2);
+            begin();
+            for (int i = 0; i < length; i++) {
+                putHex8(GDBStubs.this.readMemory(address + i));
+            }
+            end();
+        }
+
+        private void writeHexMemory(int address, int length) {
+            if (!checkStopped()) {
+                return;
+            }
+            if (!isValidRange(address, length) || packetLength - pos < length * 2) {
+                sendReply("E01");
+                return;
             }
-            output.write((char) c);
-            System.out.println((char) c);
+            for (int i = 0; i < length; i++) {
+                writeMemory(address + i, (Character.digit(packet[pos], 16) << 4) | Character.digit(packet[pos + 1], 16));
+                pos += 2;
+            }
+            cpu.invalidateInstructionCache();
+            sendReply(OK);
+        }
+
+        /* Writes escaped binary data - all remaining data if the length is negative */
+        private void writeBinaryMemory(int address, int length) {
+            if (!checkStopped()) {
+                return;
+            }
+            int count = 0;
+            int a = address;
+            while (pos < packetLength && (length < 0 || count < length)) {
+                int b = packet[pos++];
+                if (b == '}' && pos < packetLength) {
+                    b = packet[pos++] ^ 0x20;
+                }
+                if (!isValidRange(a, 1)) {
+                    sendReply("E01");
+                    return;
+                }
+                writeMemory(a++, b & 0xff);
+                count++;
+            }
+            if (count > 0) {
+                cpu.invalidateInstructionCache();
+            }
+            sendReply(count == length || length < 0 ? OK : "E01");
+        }
+
+        /* Replies with an error if the node is running */
+        private boolean checkStopped() {
+            if (isStopped()) {
+                return true;
+            }
+            sendReply("E01");
+            return false;
+        }
+
+        private boolean startsWith(String prefix) {
+            int n = prefix.length();
+            if (packetLength < n) {
+                return false;
+            }
+            for (int i = 0; i < n; i++) {
+                if (packet[i] != prefix.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private int parseHex() {
+            int value = 0;
+            while (pos < packetLength) {
+                int d = Character.digit(packet[pos], 16);
+                if (d < 0) {
+                    break;
+                }
+                value = (value << 4) | d;
+                pos++;
+            }
+            return value;
+        }
+
+        private int parseLittleEndian(int bytes) {
+            int value = 0;
+            for (int b = 0; b < bytes; b++) {
+                value |= ((Character.digit(packet[pos], 16) << 4) | Character.digit(packet[pos + 1], 16)) << (b * 8);
+                pos += 2;
+            }
+            return value;
+        }
+
+        private void begin() {
+            replyLength = 0;
+        }
+
+        private void put(int c) {
+            if (replyLength == reply.length) {
+                byte[] tmp = new byte[reply.length * 2];
+                System.arraycopy(reply, 0, tmp, 0, replyLength);
+                reply = tmp;
+            }
+            reply[replyLength++] = (byte) c;
+        }
+
+        private void putHex8(int value) {
+            put(HEX[(value >> 4) & 0xf]);
+            put(HEX[value & 0xf]);
+        }
+
+        private void putBinary(int c) {
+            if (c == '#' || c == '$' || c == '}' || c == '*') {
+                put('}');
+                c ^= 0x20;
+            }
+            put(c);
+        }
+
+        private void end() {
+            int cs = 0;
+            for (int i = 0; i < replyLength; i++) {
+                cs += reply[i];
+            }
+            ensureOutput(replyLength + 4);
+            int start = output.position();
+            output.put((byte) '$');
+            output.put(reply, 0, replyLength);
+            output.put((byte) '#');
+            output.put(HEX[(cs >> 4) & 0xf]);
+            output.put(HEX[cs & 0xf]);
+            if (!noAck) {
+                /* Keep the framed reply for retransmission */
+                lastReplyLength = output.position() - start;
+                if (lastReply == null || lastReply.length < lastReplyLength) {
+                    lastReply = new byte[Math.max(lastReplyLength, PACKET_SIZE)];
+                }
+                System.arraycopy(output.array(), start, lastReply, 0, lastReplyLength);
+            }
+        }
+
+        void sendReply(String text) {
+            begin();
+            for (int i = 0, n = text.length(); i < n; i++) {
+                put(text.charAt(i));
+            }
+            end();
+        }
+
+        private void putOutput(int c) {
+            ensureOutput(1);
+            output.put((byte) c);
+        }
+
+        private void putOutput(byte[] data, int offset, int length) {
+            ensureOutput(length);
+            output.put(data, offset, length);
+        }
+
+        private void ensureOutput(int length) {
+            if (output.remaining() < length) {
+                ByteBuffer tmp = ByteBuffer.allocate(Math.max(output.capacity() * 2, output.position() + length));
+                output.flip();
+                tmp.put(output);
+                output = tmp;
+            }
+        }
+
+        void flush() throws IOException {
+            output.flip();
+            channel.write(output);
+            output.compact();
+            if (key.isValid()) {
+                key.interestOps(output.position() > 0
+                        ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+            }
+        }
+
+        void flushQuietly() {
+            try {
+                flush();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        void close() {
+            removeAllPoints();
+            if (connection == this) {
+                connection = null;
+            }
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
     }
-}
\ No newline at end of file
+
+    /* Serves the sockets of all GDB stubs */
+    private static class Server implements Runnable {
+
+        private final Selector selector;
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+        Server() throws IOException {
+            selector = Selector.open();
+        }
+
+        /* Runs the task in the server thread */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void register(final GDBStubs stubs) {
+            execute(() -> {
+                try {
+                    stubs.serverChannel.register(selector, SelectionKey.OP_ACCEPT, stubs);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+        }
+
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return;
+                }
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Object attachment = key.attachment();
+                    try {
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            ((GDBStubs) attachment).accept(selector);
+                        } else {
+                            Connection connection = (Connection) attachment;
+                            if (key.isReadable()) {
+                                connection.read();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.flush();
+                            }
+                        }
+                    } catch (IOException e) {
+                        if (attachment instanceof Connection) {
+                            ((Connection) attachment).close();
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+}
@@ -42,6 +42,7 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Pattern;
 
 
@@ -69,8 +70,10 @@ public class MapTable {
   private int dataFill = 0;
 
   private ArrayList<MapEntry> modules = new ArrayList<MapEntry>();
+  /* The table can be shared by nodes running the same firmware and the
+   * CPUs add entries for unknown functions while running */
   private ArrayList<MapEntry> entries = new ArrayList<MapEntry>();
-  private HashMap<Integer, MapEntry> addressMap = new HashMap<Integer, MapEntry>();
+  private ConcurrentHashMap<Integer, MapEntry> addressMap = new ConcurrentHashMap<Integer, MapEntry>();
   
   public MapTable() {
   }
@@ -212,11 +215,11 @@ public class MapTable {
       return addressMap.get(address);
   }
 
-  public MapEntry[] getAllEntries() {
+  public synchronized MapEntry[] getAllEntries() {
     return entries.toArray(new MapEntry[entries.size()]);
   }
 
-  public MapEntry[] getEntries(String regexp) {
+  public synchronized MapEntry[] getEntries(String regexp) {
     Pattern pattern = Pattern.compile(regexp);
     ArrayList<MapEntry> allEntries = new ArrayList<MapEntry>();
     for (MapEntry entry : entries) {
@@ -232,14 +235,14 @@ public class MapTable {
     setEntry(new MapEntry(MapEntry.TYPE.function, address, 0, name, null, false));
   }
 
-  public void setEntry(MapEntry entry) {
+  public synchronized void setEntry(MapEntry entry) {
     entries.add(entry);
     addressMap.put(entry.getAddress(), entry);
   }
 
   // Really slow way to find a specific function address!!!!
   // Either reimplement this or cache in hashtable...
-  public int getFunctionAddress(String function) {
+  public synchronized int getFunctionAddress(String function) {
       for (MapEntry entry : entries) {
         if (function.equals(entry.getName())) {
           return entry.getAddress();
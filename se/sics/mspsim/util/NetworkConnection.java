@@ -36,40 +36,50 @@
  */
 package se.sics.mspsim.util;
 
-import java.io.DataInputStream;
-import java.io.IOException;
-import java.io.OutputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.UnknownHostException;
-import java.util.ArrayList;
-
+import se.sics.mspsim.chip.FrameListener;
 import se.sics.mspsim.chip.PacketListener;
+import se.sics.mspsim.chip.RadioFrame;
 
 /**
+ * Connects the radios of nodes in the same or in different processes.
+ * Frames sent by the local radio are received via frameTransmitted() and
+ * frames from the other nodes are delivered to the frame listeners.
+ *
+ * The frames are distributed by a packet hub. By default the hub shared
+ * by the process is used, which also exchanges frames with other processes
+ * over TCP.
+ *
  * @author joakim
  *
  */
-public class NetworkConnection implements Runnable {
+public class NetworkConnection implements FrameListener {
 
-  private final static boolean DEBUG = false;
-  private final static int DEFAULT_PORT = 4711;
-
-  private ServerSocket serverSocket = null;
-  private SendThread sendThread = null;
-  private ConnectionThread[] connections = null;
+  private final PacketHub hub;
+  /* Used for frames sent as byte arrays */
+  private final RadioFrame sendFrame = new RadioFrame();
   private PacketListener packetListener;
+  private FrameListener frameListener;
 
   public NetworkConnection() {
-    if (connect(DEFAULT_PORT)) {
-      System.out.println("NetworkConnection: Connected to network...");
-    } else {
-      setupServer(DEFAULT_PORT);
-      System.out.println("NetworkConnection: Setup network server...");
-    }
-    sendThread = new SendThread();
+    this(PacketHub.getDefault());
+  }
+
+  public NetworkConnection(PacketHub hub) {
+    this.hub = hub;
+    hub.addConnection(this);
+  }
+
+  public PacketHub getHub() {
+    return hub;
+  }
+
+  /**
+   * Detaches this connection from the hub.
+   */
+  public void close() {
+    hub.removeConnection(this);
   }
-  
+
   public synchronized void addPacketListener(PacketListener listener) {
       packetListener = PacketListener.Proxy.INSTANCE.add(packetListener, listener);
   }
@@ -78,193 +88,45 @@ public class NetworkConnection implements Runnable {
       packetListener = PacketListener.Proxy.INSTANCE.remove(packetListener, listener);
   }
 
-  private void setupServer(int port) {
-    try {
-      serverSocket = new ServerSocket(port);
-      if (DEBUG) System.out.println("NetworkConnection: setup of server socket finished... ");
-      new Thread(this).start();
-    } catch (IOException e) {
-      e.printStackTrace();
-    }
+  public synchronized void addFrameListener(FrameListener listener) {
+      frameListener = FrameListener.Proxy.INSTANCE.add(frameListener, listener);
   }
 
-  public void run() {
-    System.out.println("NetworkConnection: Accepting new connections...");
-    while (true) {
-      try {
-        Socket s = serverSocket.accept();
-        if (DEBUG) System.out.println("NetworkConnection: New connection from " + s.getRemoteSocketAddress());
-        connections = ArrayUtils.add(ConnectionThread.class, connections, new ConnectionThread(s));
-      } catch (IOException e) {
-        e.printStackTrace();
-      }
-    }
+  public synchronized void removeFrameListener(FrameListener listener) {
+      frameListener = FrameListener.Proxy.INSTANCE.remove(frameListener, listener);
   }
-  
-  // Data incoming from the network!!! - forward to radio and if server, to
-  // all other nodes
-  private void dataReceived(byte[] data, ConnectionThread source) {
-    PacketListener listener = this.packetListener;
-    if (listener != null) {
+
+  // A frame from another node - forward to the radio
+  void frameReceived(RadioFrame frame) {
+    FrameListener frameListener = this.frameListener;
+    if (frameListener != null) {
       // Send this data to the transmitter in this node!
-      listener.transmissionStarted();      
-      listener.transmissionEnded(data);
+      frameListener.frameTransmitted(frame);
     }
-
-    // And if this is the server, propagate to the others
-    if (serverSocket != null) {
-      dataSent(data, source);
+    PacketListener listener = this.packetListener;
+    if (listener != null) {
+      listener.transmissionStarted();
+      listener.transmissionEnded(frame.toByteArray());
     }
   }
 
-  // Data was sent from the radio in the node (or other node) and should
-  // be sent out to other nodes!!!
+  // Data was sent from the radio in the node and should be sent out to
+  // other nodes!!!
   public void dataSent(byte[] receivedData) {
-    dataSent(receivedData, null);
-  }
-
-  // Data was sent either from radio, or came from another "radio" -
-  // and if so it should be propagated to all others.
-  public void dataSent(byte[] receivedData, ConnectionThread source) {
-    if (connections != null && sendThread != null) {
-      sendThread.send(receivedData, source);
+    synchronized (sendFrame) {
+      sendFrame.clear();
+      sendFrame.append(receivedData, 0, receivedData.length);
+      hub.send(this, sendFrame);
     }
   }
 
-  private void printPacket(String prefix, byte[] data) {
-    System.out.print("NetworkConnection: " + prefix);
-    for (int i = 0, len = data.length; i < len; i++) {
-      System.out.print(' ' + Utils.hex8(data[i]));
-    }
-    System.out.println();
-  }
-  
-  private boolean connect(int port) {
-    try {
-      Socket socket = new Socket("127.0.0.1", port);
-      connections = ArrayUtils.add(ConnectionThread.class, connections, new ConnectionThread(socket));
-    } catch (UnknownHostException e) {
-      return false;
-    } catch (IOException e) {
-      return false;
-    }    
-    return true;
+  // Frames are sent to the other nodes when completed
+  public void frameStarted() {
   }
 
-  private static class SendEvent {
-    public final byte[] data;
-    public final ConnectionThread source;
-    public SendEvent(byte[] data, ConnectionThread source) {
-      this.data = data;
-      this.source = source;
-    }
+  // A frame was sent from the radio in the node
+  public void frameTransmitted(RadioFrame frame) {
+    hub.send(this, frame);
   }
 
-  class SendThread implements Runnable {
-
-    private ArrayList<SendEvent> queue = new ArrayList<SendEvent>();
-
-    public SendThread() {
-      new Thread(this).start();
-    }
-
-    public synchronized void send(byte[] receivedData, ConnectionThread source) {
-      queue.add(new SendEvent(receivedData, source));
-      notifyAll();
-    }
-
-    public synchronized SendEvent getNext() throws InterruptedException {
-      while (queue.isEmpty()) {
-        wait();
-      }
-      return queue.remove(0);
-    }
-
-    private void sendPacket(SendEvent event) {
-      ConnectionThread[] cthr = connections;
-      if (cthr != null) {
-        for (int i = 0; i < cthr.length; i++) {
-          if (cthr[i].isClosed()) {
-            connections = ArrayUtils.remove(connections, cthr[i]);
-            // Do not write back to the source
-          } else if (cthr[i] != event.source){
-            try {
-              cthr[i].output.write(event.data, 0, event.data.length);
-              cthr[i].output.flush();
-            } catch (IOException e) {
-              e.printStackTrace();
-              cthr[i].close();
-            }
-          }
-        }
-        if (DEBUG) {
-//              System.out.println("NetworkConnection: wrote " + receivedData.length + " bytes");
-          printPacket("sent", event.data);
-        }
-      }
-    }
-
-    public void run() {
-      try {
-        SendEvent event;
-        do {
-          event = getNext();
-          if (event != null) {
-            sendPacket(event);
-          }
-        } while (event != null);
-      } catch (InterruptedException e) {
-        e.printStackTrace();
-      }
-    }
-  }
-
-  class ConnectionThread implements Runnable {
-    Socket socket;
-    DataInputStream input;
-    OutputStream output;
-    
-    public ConnectionThread(Socket socket) throws IOException {
-      this.socket = socket;
-      input = new DataInputStream(socket.getInputStream());
-      output = socket.getOutputStream();
-      new Thread(this).start();
-    }
-    
-    public void close() {
-      try {
-        input.close();
-        socket.close();
-      } catch (IOException e) {
-        e.printStackTrace();
-      }
-      socket = null;
-    }
-    
-    public boolean isClosed() {
-      return socket == null;
-    }
-    
-    public void run() {
-      if (DEBUG) System.out.println("NetworkConnection: Started connection thread...");
-      try {
-        while (socket != null) {
-          int len = input.read();
-          if (len > 0) {
-            byte[] buffer = new byte[len + 1];
-            buffer[0] = (byte) (len & 0xff);
-            input.readFully(buffer, 1, len);
-            if (DEBUG) {
-//              System.out.println("NetworkConnection: Read packet with " + len + " bytes");
-              printPacket("read", buffer);
-            }
-            dataReceived(buffer, this);
-          }
-        }
-      } catch (IOException e) {
-        e.printStackTrace();
-        close();
-      }
-    }
-  }
 }
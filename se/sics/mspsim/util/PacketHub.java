@@ -0,0 +1,481 @@
+package se.sics.mspsim.util;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import se.sics.mspsim.chip.RadioFrame;
+
+/**
+ * Distributes radio frames between the network connections of the nodes.
+ * Connections in the same process are attached to the same hub and receive
+ * each other's frames directly in memory. Frames are also exchanged with
+ * hubs in other processes over TCP where one hub acts as server and
+ * forwards the frames between its clients.
+ *
+ * All sockets are handled by a single selector thread. The wire format is
+ * the same as before the hub: the raw frames back to back, each starting
+ * with its PHY length byte that counts the bytes that follow. Frames that
+ * do not start with their length can not be delimited and are dropped. The
+ * frames are encoded once into pooled direct buffers that are shared by
+ * all receiving peers, and the frames queued for a peer are written with
+ * one gathering write.
+ */
+public class PacketHub implements Runnable {
+
+  public static final int DEFAULT_PORT = 4711;
+  /* The length byte and at most 255 bytes */
+  public static final int MAX_FRAME_SIZE = 256;
+
+  private static final int MAX_POOLED = 1024;
+  /* Frames are dropped for peers that do not keep up */
+  private static final int MAX_PENDING = 16384;
+  private static final int MAX_GATHER = 64;
+
+  private static PacketHub defaultHub;
+  private static PacketHub loopbackHub;
+
+  private final Selector selector;
+  private final ConcurrentLinkedQueue<Packet> outgoing = new ConcurrentLinkedQueue<Packet>();
+  private final ConcurrentLinkedQueue<SelectableChannel> newChannels = new ConcurrentLinkedQueue<SelectableChannel>();
+  private final ConcurrentLinkedQueue<Packet> pool = new ConcurrentLinkedQueue<Packet>();
+  private final AtomicBoolean wakeupPending = new AtomicBoolean();
+  /* Only used by the selector thread */
+  private final ArrayList<Peer> peers = new ArrayList<Peer>();
+
+  private volatile NetworkConnection[] connections;
+  private ServerSocketChannel serverChannel;
+  private volatile boolean isServer;
+  private volatile int peerCount;
+  private volatile boolean isClosed;
+  private Thread thread;
+  private final AtomicLong droppedFrames = new AtomicLong();
+
+  public PacketHub() throws IOException {
+    selector = Selector.open();
+  }
+
+  /**
+   * Returns the hub shared by all network connections in this process. The
+   * hub connects to a server on the default port or becomes the server if
+   * there is none.
+   */
+  public static synchronized PacketHub getDefault() {
+    if (defaultHub == null) {
+      try {
+        PacketHub hub = new PacketHub();
+        try {
+          hub.connect("127.0.0.1", DEFAULT_PORT);
+          System.out.println("NetworkConnection: Connected to network...");
+        } catch (IOException e) {
+          try {
+            hub.listen(DEFAULT_PORT);
+            System.out.println("NetworkConnection: Setup network server...");
+          } catch (IOException e2) {
+            System.err.println("NetworkConnection: failed to setup network server: " + e2.getMessage());
+          }
+        }
+        defaultHub = hub;
+      } catch (IOException e) {
+        throw new IllegalStateException("failed to open selector", e);
+      }
+    }
+    return defaultHub;
+  }
+
+  /**
+   * Returns a hub without sockets that only connects the nodes in this
+   * process.
+   */
+  public static synchronized PacketHub getLoopback() {
+    if (loopbackHub == null) {
+      try {
+        loopbackHub = new PacketHub();
+      } catch (IOException e) {
+        throw new IllegalStateException("failed to open selector", e);
+      }
+    }
+    return loopbackHub;
+  }
+
+  /**
+   * Accepts connections from other hubs on the specified port, or on any
+   * free port if the port is 0. Returns the port.
+   */
+  public synchronized int listen(int port) throws IOException {
+    if (serverChannel != null) {
+      throw new IllegalStateException("already listening");
+    }
+    ServerSocketChannel channel = ServerSocketChannel.open();
+    try {
+      channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+      channel.bind(new InetSocketAddress(port));
+      channel.configureBlocking(false);
+    } catch (IOException e) {
+      channel.close();
+      throw e;
+    }
+    serverChannel = channel;
+    isServer = true;
+    register(channel);
+    return channel.socket().getLocalPort();
+  }
+
+  /**
+   * Connects to a hub in another process.
+   */
+  public void connect(String host, int port) throws IOException {
+    SocketChannel channel = SocketChannel.open();
+    try {
+      channel.connect(new InetSocketAddress(host, port));
+      channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+      channel.configureBlocking(false);
+    } catch (IOException e) {
+      channel.close();
+      throw e;
+    }
+    register(channel);
+  }
+
+  private synchronized void register(SelectableChannel channel) {
+    if (isClosed) {
+      throw new IllegalStateException("hub is closed");
+    }
+    if (thread == null) {
+      thread = new Thread(this, "PacketHub");
+      thread.setDaemon(true);
+      thread.start();
+    }
+    newChannels.add(channel);
+    selector.wakeup();
+  }
+
+  public synchronized void close() {
+    isClosed = true;
+    selector.wakeup();
+    if (thread == null) {
+      try {
+        selector.close();
+      } catch (IOException e) {
+        // Ignore
+      }
+    }
+  }
+
+  public boolean isServer() {
+    return isServer;
+  }
+
+  public int getPeerCount() {
+    return peerCount;
+  }
+
+  /**
+   * Returns the number of frames not sent because they did not start with
+   * their length or because a peer did not keep up.
+   */
+  public long getDroppedFrames() {
+    return droppedFrames.get();
+  }
+
+  synchronized void addConnection(NetworkConnection connection) {
+    connections = ArrayUtils.add(NetworkConnection.class, connections, connection);
+  }
+
+  synchronized void removeConnection(NetworkConnection connection) {
+    connections = ArrayUtils.remove(connections, connection);
+  }
+
+  /**
+   * Sends a frame from a connection in this process. The other connections
+   * receive the frame before this method returns and the frame is queued
+   * for the peers in other processes.
+   */
+  void send(NetworkConnection source, RadioFrame frame) {
+    NetworkConnection[] connections = this.connections;
+    if (connections != null) {
+      for (NetworkConnection connection : connections) {
+        if (connection != source) {
+          connection.frameReceived(frame);
+        }
+      }
+    }
+    if (peerCount > 0) {
+      Packet packet = encode(frame.getData(), 0, frame.getLength());
+      if (packet != null) {
+        outgoing.add(packet);
+        wakeup();
+      }
+    }
+  }
+
+  private void wakeup() {
+    /* Avoid waking up the selector once per frame when it is already awake */
+    if (wakeupPending.compareAndSet(false, true)) {
+      selector.wakeup();
+    }
+  }
+
+  private Packet encode(byte[] data, int offset, int length) {
+    if (length < 2 || length > MAX_FRAME_SIZE || (data[offset] & 0xff) != length - 1) {
+      droppedFrames.incrementAndGet();
+      return null;
+    }
+    Packet packet = pool.poll();
+    if (packet == null) {
+      packet = new Packet(ByteBuffer.allocateDirect(MAX_FRAME_SIZE));
+    }
+    ByteBuffer buffer = packet.buffer;
+    buffer.clear();
+    buffer.put(data, offset, length);
+    buffer.flip();
+    return packet;
+  }
+
+  private void release(Packet packet) {
+    if (--packet.references <= 0) {
+      packet.source = null;
+      packet.references = 0;
+      if (pool.size() < MAX_POOLED) {
+        pool.add(packet);
+      }
+    }
+  }
+
+  public void run() {
+    try {
+      while (!isClosed) {
+        selector.select();
+        wakeupPending.set(false);
+        processOutgoing();
+
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          if (!key.isValid()) {
+            continue;
+          }
+          if (key.isAcceptable()) {
+            accept();
+          } else {
+            Peer peer = (Peer) key.attachment();
+            if (key.isReadable()) {
+              read(peer);
+            }
+            if (key.isValid() && key.isWritable()) {
+              write(peer);
+            }
+          }
+        }
+        /* Write the frames received from other peers */
+        for (int i = 0, n = peers.size(); i < n; i++) {
+          Peer peer = peers.get(i);
+          if (peer.hasUnflushed) {
+            write(peer);
+          }
+        }
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+    } catch (ClosedSelectorException e) {
+      // Closed
+    } finally {
+      for (int i = peers.size() - 1; i >= 0; i--) {
+        peers.get(i).close();
+      }
+      try {
+        if (serverChannel != null) {
+          serverChannel.close();
+        }
+        selector.close();
+      } catch (IOException e) {
+        // Ignore
+      }
+    }
+  }
+
+  private void processOutgoing() throws IOException {
+    SelectableChannel channel;
+    while ((channel = newChannels.poll()) != null) {
+      if (channel instanceof ServerSocketChannel) {
+        channel.register(selector, SelectionKey.OP_ACCEPT);
+      } else {
+        addPeer((SocketChannel) channel);
+      }
+    }
+    Packet packet;
+    while ((packet = outgoing.poll()) != null) {
+      queue(packet);
+    }
+  }
+
+  private void accept() throws IOException {
+    SocketChannel channel;
+    while ((channel = serverChannel.accept()) != null) {
+      channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+      channel.configureBlocking(false);
+      addPeer(channel);
+    }
+  }
+
+  private void addPeer(SocketChannel channel) throws IOException {
+    Peer peer = new Peer(channel);
+    peer.key = channel.register(selector, SelectionKey.OP_READ, peer);
+    peers.add(peer);
+    peerCount = peers.size();
+  }
+
+  /* Queues the packet for all peers except the source */
+  private void queue(Packet packet) {
+    packet.references++;
+    for (int i = 0, n = peers.size(); i < n; i++) {
+      Peer peer = peers.get(i);
+      if (peer != packet.source) {
+        if (peer.pending.size() < MAX_PENDING) {
+          packet.references++;
+          peer.pending.add(packet);
+          peer.views.add(packet.buffer.duplicate());
+          peer.hasUnflushed = true;
+        } else {
+          droppedFrames.incrementAndGet();
+        }
+      }
+    }
+    release(packet);
+  }
+
+  private void read(Peer peer) {
+    ByteBuffer input = peer.input;
+    try {
+      if (peer.channel.read(input) < 0) {
+        peer.close();
+        return;
+      }
+    } catch (IOException e) {
+      peer.close();
+      return;
+    }
+    input.flip();
+    while (input.hasRemaining()) {
+      int length = (input.get(input.position()) & 0xff) + 1;
+      if (length == 1) {
+        /* An empty frame */
+        input.get();
+        continue;
+      }
+      if (input.remaining() < length) {
+        break;
+      }
+      RadioFrame frame = peer.frame;
+      frame.setLength(length);
+      input.get(frame.getData(), 0, length);
+      frameReceived(frame, peer);
+    }
+    input.compact();
+  }
+
+  private void frameReceived(RadioFrame frame, Peer source) {
+    NetworkConnection[] connections = this.connections;
+    if (connections != null) {
+      for (NetworkConnection connection : connections) {
+        connection.frameReceived(frame);
+      }
+    }
+    /* The server forwards the frame to all other peers */
+    if (isServer && peers.size() > 1) {
+      Packet packet = encode(frame.getData(), 0, frame.getLength());
+      if (packet != null) {
+        packet.source = source;
+        queue(packet);
+      }
+    }
+  }
+
+  private void write(Peer peer) {
+    ArrayDeque<ByteBuffer> views = peer.views;
+    ByteBuffer[] gather = peer.gather;
+    try {
+      while (!views.isEmpty()) {
+        int count = 0;
+        for (ByteBuffer view : views) {
+          gather[count++] = view;
+          if (count == gather.length) {
+            break;
+          }
+        }
+        long written = peer.channel.write(gather, 0, count);
+        while (!views.isEmpty() && !views.peek().hasRemaining()) {
+          views.poll();
+          release(peer.pending.poll());
+        }
+        if (written == 0) {
+          break;
+        }
+      }
+    } catch (IOException e) {
+      peer.close();
+      return;
+    }
+    peer.hasUnflushed = false;
+    if (peer.key.isValid()) {
+      peer.key.interestOps(views.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+  }
+
+  /* A frame encoded for the wire and shared by the peers it is queued for */
+  private static class Packet {
+    final ByteBuffer buffer;
+    Peer source;
+    int references;
+
+    Packet(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+  }
+
+  private class Peer {
+    final SocketChannel channel;
+    final ByteBuffer input = ByteBuffer.allocateDirect(MAX_FRAME_SIZE * 4);
+    final RadioFrame frame = new RadioFrame();
+    /* The queued packets and this peer's views of their buffers */
+    final ArrayDeque<Packet> pending = new ArrayDeque<Packet>();
+    final ArrayDeque<ByteBuffer> views = new ArrayDeque<ByteBuffer>();
+    final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+    SelectionKey key;
+    boolean hasUnflushed;
+
+    Peer(SocketChannel channel) {
+      this.channel = channel;
+    }
+
+    void close() {
+      if (peers.remove(this)) {
+        peerCount = peers.size();
+        while (!pending.isEmpty()) {
+          release(pending.poll());
+        }
+        views.clear();
+        try {
+          channel.close();
+        } catch (IOException e) {
+          // Ignore
+        }
+      }
+    }
+  }
+
+}
@@ -0,0 +1,149 @@
+/**
+ * Copyright (c) 2007, Swedish Institute of Computer Science.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * This file is part of MSPSim.
+ *
+ * -----------------------------------------------------------------
+ *
+ * SnapshotTest
+ */
+package se.sics.mspsim.util;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import se.sics.mspsim.core.MSP430;
+import se.sics.mspsim.core.Snapshot;
+import se.sics.mspsim.platform.GenericNode;
+
+/**
+ * SnapshotTest - runs nodes, saves and restores their state, and exits
+ * with an error if a restored or forked node does not continue exactly as
+ * the original node did.
+ *
+ * Arguments are pairs of node class and firmware file.
+ */
+public class SnapshotTest {
+
+  private static final long WARMUP_CYCLES = 2000000;
+  private static final long RUN_CYCLES = 1000000;
+
+  private SnapshotTest() {
+  }
+
+  private static GenericNode createNode(String nodeClass, String firmware) throws Exception {
+    GenericNode node = (GenericNode) Class.forName(nodeClass).getDeclaredConstructor().newInstance();
+    node.loadFirmware(firmware);
+    ArgumentManager config = new ArgumentManager();
+    config.setProperty("nogui", "true");
+    config.setProperty("cli", "false");
+    node.setup(config);
+    return node;
+  }
+
+  private static void run(MSP430 cpu, long cycles) {
+    long target = cpu.cycles + cycles;
+    while (cpu.cycles < target) {
+      cpu.emulateOP(target);
+    }
+  }
+
+  private static byte[] save(MSP430 cpu) throws IOException {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    Snapshot.save(cpu, output);
+    return output.toByteArray();
+  }
+
+  private static void load(MSP430 cpu, byte[] state) throws IOException {
+    Snapshot.load(cpu, new ByteArrayInputStream(state));
+  }
+
+  private static boolean check(String name, String what, byte[] expected, byte[] state) {
+    if (Arrays.equals(expected, state)) {
+      return true;
+    }
+    System.err.println("FAIL: " + name + ": " + what + " differs from the original");
+    return false;
+  }
+
+  private static boolean test(String nodeClass, String firmware) throws Exception {
+    String name = nodeClass.substring(nodeClass.lastIndexOf('.') + 1);
+    GenericNode node = createNode(nodeClass, firmware);
+    MSP430 cpu = node.getCPU();
+    run(cpu, WARMUP_CYCLES);
+    Snapshot snapshot = node.takeSnapshot(null);
+    byte[] start = save(cpu);
+    run(cpu, RUN_CYCLES);
+    byte[] end = save(cpu);
+
+    /* Restore into the same node */
+    load(cpu, start);
+    boolean ok = check(name, "state after restore", start, save(cpu));
+    run(cpu, RUN_CYCLES);
+    ok &= check(name, "state after restoring and running", end, save(cpu));
+
+    /* Restore into a new node of the same type */
+    MSP430 other = createNode(nodeClass, firmware).getCPU();
+    load(other, start);
+    ok &= check(name, "state of new node after restore", start, save(other));
+    run(other, RUN_CYCLES);
+    ok &= check(name, "state of new node after restoring and running", end, save(other));
+
+    /* Fork a node that shares the memory pages of an in-memory snapshot */
+    MSP430 child = node.fork(snapshot).getCPU();
+    ok &= check(name, "state of forked node", start, save(child));
+    run(child, RUN_CYCLES);
+    ok &= check(name, "state of forked node after running", end, save(child));
+
+    System.out.println("#|" + name + (ok ? " ok" : " failed"));
+    return ok;
+  }
+
+  public static void main(String[] args) {
+    if (args.length == 0 || args.length % 2 != 0) {
+      System.err.println("Usage: SnapshotTest <node class> <firmware> [<node class> <firmware>...]");
+      System.exit(1);
+    }
+    boolean ok = true;
+    try {
+      for (int i = 0; i < args.length; i += 2) {
+        ok &= test(args[i], args[i + 1]);
+      }
+    } catch (Exception e) {
+      e.printStackTrace();
+      ok = false;
+    }
+    if (ok) {
+      System.out.println("Tests succeded!");
+      System.exit(0);
+    } else {
+      System.err.println("Tests failed!");
+      System.exit(1);
+    }
+  }
+}
@@ -1,7 +1,9 @@
 package se.sics.mspsim.util;
 import se.sics.mspsim.core.MSP430;
+import se.sics.mspsim.core.Profiler;
 import se.sics.mspsim.core.RegisterMonitor;
 import se.sics.mspsim.core.Memory.AccessMode;
+import se.sics.mspsim.profiler.ArrayProfiler;
 import se.sics.mspsim.profiler.SimpleProfiler;
 
 public class StackMonitor {
@@ -46,10 +48,12 @@ public class StackMonitor {
   };
   
   public StackMonitor(MSP430 cpu) {
-    SimpleProfiler profiler = cpu.getRegistry().getComponent(SimpleProfiler.class);
-    if (profiler != null) {
-        profiler.setStackMonitor(this);
+    Profiler profiler = cpu.getProfiler();
+    if (profiler instanceof SimpleProfiler) {
+        ((SimpleProfiler) profiler).setStackMonitor(this);
         System.out.println("Found simple profiler!!!: " + profiler);
+    } else if (profiler instanceof ArrayProfiler) {
+        ((ArrayProfiler) profiler).setStackMonitor(this);
     } else {
         System.out.println("Could not find any suitable profiler");
     }
@@ -91,6 +91,8 @@ public class Test implements USARTListener {
       // Flag
       if ("-debug".equalsIgnoreCase(args[index])) {
 	cpu.setDebug(true);
+      } else if ("-translate".equalsIgnoreCase(args[index])) {
+	cpu.setBlockTranslationEnabled(true);
       } else {
 	System.err.println("Unknown flag: " + args[index]);
 	System.exit(1);
@@ -99,7 +101,7 @@ public class Test implements USARTListener {
     }
 
     try {
-      int[] memory = cpu.memory;
+      byte[] memory = cpu.memory;
       ELF elf = ELF.readELF(args[index++]);
       elf.loadPrograms(memory);
       MapTable map = elf.getMap();